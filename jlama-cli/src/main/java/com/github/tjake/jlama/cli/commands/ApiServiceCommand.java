@@ -73,7 +73,8 @@ public class ApiServiceCommand extends ModelBaseCommand implements WebMvcConfigu
                 advancedSection.workingMemoryType,
                 advancedSection.workingQuantizationType,
                 Optional.ofNullable(advancedSection.modelQuantization),
-                Optional.ofNullable(advancedSection.threadCount)
+                Optional.ofNullable(advancedSection.threadCount),
+                getProgressConsumer()
             );
 
             System.out.println("Chat UI: http://localhost:" + port);
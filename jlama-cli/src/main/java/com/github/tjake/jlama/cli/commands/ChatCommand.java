@@ -56,7 +56,8 @@ public class ChatCommand extends ModelBaseCommand {
             advancedSection.workingMemoryType,
             advancedSection.workingQuantizationType,
             Optional.ofNullable(advancedSection.modelQuantization),
-            Optional.ofNullable(advancedSection.threadCount)
+            Optional.ofNullable(advancedSection.threadCount),
+            getProgressConsumer()
         );
 
         if (m.promptSupport().isEmpty()) {
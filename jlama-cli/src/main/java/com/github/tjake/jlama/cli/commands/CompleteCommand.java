@@ -49,7 +49,8 @@ public class CompleteCommand extends ModelBaseCommand {
             advancedSection.workingMemoryType,
             advancedSection.workingQuantizationType,
             Optional.ofNullable(advancedSection.modelQuantization),
-            Optional.ofNullable(advancedSection.threadCount)
+            Optional.ofNullable(advancedSection.threadCount),
+            getProgressConsumer()
         );
 
         Generator.Response r = m.generate(UUID.randomUUID(), PromptContext.of(prompt), temperature, tokens, makeOutHandler());
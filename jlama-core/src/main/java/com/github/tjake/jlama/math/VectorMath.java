@@ -16,6 +16,7 @@
 package com.github.tjake.jlama.math;
 
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.FloatBufferTensor;
 import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 import com.github.tjake.jlama.util.BiIntConsumer;
 import com.github.tjake.jlama.util.PhysicalCoreExecutor;
@@ -145,22 +146,25 @@ public class VectorMath {
         return result;
     }
 
-    public static float[][] precomputeFreqsCis(int dim, int end, double theta, double scaling_factor) {
-        float[] freqs = new float[dim / 2];
-        float step = 0.0f;
-        for (int i = 0; i < freqs.length; i++, step += 2.0)
-            freqs[i] = (float) ((1.0 / FastMath.pow(theta, step / dim)) / scaling_factor);
-
-        float[] t = new float[end];
-        for (int i = 0; i < end; i++)
-            t[i] = i;
-
-        float[] freqs_cis = outerProduct(t, freqs);
-
-        float[][] r = new float[freqs_cis.length][];
-        for (int i = 0; i < freqs_cis.length; i++)
-            r[i] = new float[] { (float) FastMath.cos(freqs_cis[i]), (float) FastMath.sin(freqs_cis[i]) };
+    /**
+     * Precomputes the RoPE rotations for every position as a packed [end, dim] table.
+     *
+     * For the huggingface permuted layout each row holds the cosines followed by the sines,
+     * for the interleaved layout each row holds cos,sin pairs.
+     * @see com.github.tjake.jlama.tensor.operations.TensorOperations#rope
+     */
+    public static AbstractTensor precomputeRopeTable(int dim, int end, double theta, double scaling_factor, boolean interleaved) {
+        int headPiece = dim / 2;
+        AbstractTensor table = new FloatBufferTensor(end, dim);
+        for (int j = 0; j < headPiece; j++) {
+            double freq = (1.0 / FastMath.pow(theta, (2.0 * j) / dim)) / scaling_factor;
+            for (int p = 0; p < end; p++) {
+                float angle = (float) p * (float) freq;
+                table.set((float) FastMath.cos(angle), p, interleaved ? 2 * j : j);
+                table.set((float) FastMath.sin(angle), p, interleaved ? 2 * j + 1 : j + headPiece);
+            }
+        }
 
-        return r;
+        return table;
     }
 }
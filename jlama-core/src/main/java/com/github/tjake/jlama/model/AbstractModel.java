@@ -24,14 +24,17 @@ import com.github.tjake.jlama.math.VectorMath;
 import com.github.tjake.jlama.model.functions.*;
 import com.github.tjake.jlama.safetensors.Config;
 import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.safetensors.QuantizedWeightCache;
 import com.github.tjake.jlama.safetensors.WeightLoader;
 import com.github.tjake.jlama.safetensors.prompt.PromptContext;
 import com.github.tjake.jlama.safetensors.prompt.PromptSupport;
 import com.github.tjake.jlama.safetensors.prompt.Tool;
 import com.github.tjake.jlama.safetensors.prompt.ToolCall;
+import com.github.tjake.jlama.safetensors.tokenizer.DetokenizerStream;
 import com.github.tjake.jlama.safetensors.tokenizer.Tokenizer;
 import com.github.tjake.jlama.tensor.*;
 import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
+import com.github.tjake.jlama.util.BiIntConsumer;
 import com.github.tjake.jlama.util.DebugSupport;
 import com.github.tjake.jlama.util.JsonSupport;
 import com.google.common.base.Preconditions;
@@ -55,6 +58,9 @@ public abstract class AbstractModel implements Generator {
     private static final Logger logger = LoggerFactory.getLogger(AbstractModel.class);
 
     private static final Integer MAX_BATCH_SIZE = Integer.getInteger("jlama.max_batch_size", 256);
+    private static final boolean CONTINUOUS_BATCHING = Boolean.getBoolean("jlama.continuous_batching");
+    // Fewer allowed tokens than this are computed on the calling thread
+    private static final int PARTIAL_LOGITS_PARALLEL_ROWS = Integer.getInteger("jlama.partial_logits_parallel_rows", 256);
 
     public enum InferenceType {
         // Used for distributed inference
@@ -96,6 +102,7 @@ public abstract class AbstractModel implements Generator {
     protected Optional<PoolingLayer> poolingLayer;
     protected TransformerBlock[] transformerBlocks;
     protected KvBufferCache kvBufferCache;
+    protected final Optional<ContinuousBatchScheduler> batchScheduler;
 
     protected AbstractModel(
         InferenceType inferenceType,
@@ -108,7 +115,7 @@ public abstract class AbstractModel implements Generator {
     ) {
         this.inferenceType = inferenceType;
         this.c = c;
-        this.weights = w;
+        this.weights = QuantizedWeightCache.maybeWrap(w);
         this.tokenizer = t;
 
         this.modelDType = w.getModelDType();
@@ -152,6 +159,12 @@ public abstract class AbstractModel implements Generator {
             workingMemoryQType = TensorOperationsProvider.get().preferredWorkingQuantizedType();
         }
 
+        // The K-quant kernels only take F32 inputs
+        DType weightDType = modelQType.orElse(modelDType);
+        if (weightDType == DType.Q4_K || weightDType == DType.Q6_K) {
+            workingMemoryQType = DType.F32;
+        }
+
         if (workingMemoryQType != workingMemoryDType) {
             boolean supportsQType;
             AbstractTensor tmp = makeDenseTensor(Q8ByteBufferTensor.BLOCK_SIZE);
@@ -180,10 +193,14 @@ public abstract class AbstractModel implements Generator {
         this.sampleOutput = inferenceType.isOutput ? loadOutputWeights() : null;
         this.classifyOutput = inferenceType.isClassify ? loadClassifierWeights() : null;
         this.poolingLayer = inferenceType.isPooling ? Optional.ofNullable(loadPoolingWeights()) : Optional.empty();
+        this.batchScheduler = CONTINUOUS_BATCHING && inferenceType == InferenceType.FULL_GENERATION
+            ? Optional.of(new ContinuousBatchScheduler(this, MAX_BATCH_SIZE))
+            : Optional.empty();
     }
 
     @Override
     public void close() {
+        batchScheduler.ifPresent(ContinuousBatchScheduler::close);
         kvBufferCache.close();
     }
 
@@ -272,6 +289,9 @@ public abstract class AbstractModel implements Generator {
     ) {
         AbstractTensor embedding = embedInput.inputTokenToEmbedding(token_id, pos);
 
+        // Passes combined across nodes can't be replayed locally, so only local ones are recorded
+        if (tensorReducer.isEmpty()) kvbuf.recordTokens(pos, token_id);
+
         debug("EMBEDDING TOKEN", token_id);
         debug("TOKEN POSITION", pos);
 
@@ -299,6 +319,7 @@ public abstract class AbstractModel implements Generator {
         Optional<Consumer<List<AbstractTensor>>> tensorReducer
     ) {
         AbstractTensor embedding = null;
+        if (tensorReducer.isEmpty()) kvbuf.recordTokens(startPos, token_ids);
 
         // Batch prompt into groups of MAX_BATCH_SIZE
         for (int i = 0; i < token_ids.length; i += MAX_BATCH_SIZE) {
@@ -311,23 +332,53 @@ public abstract class AbstractModel implements Generator {
         return embedding;
     }
 
+    /**
+     * Runs a single forward pass over tokens from different sessions, each row with its own position and kv buffer.
+     * Used by the {@link ContinuousBatchScheduler} to step all active sessions at once.
+     */
+    public AbstractTensor batchForward(int[] token_ids, int[] positions, KvBufferCache.KvBuffer[] kvbufs) {
+        Preconditions.checkArgument(token_ids.length == positions.length && token_ids.length == kvbufs.length);
+        AbstractTensor embedding = embedInput.batchInputsToEmbeddings(token_ids, positions);
+        for (int i = 0; i < token_ids.length; i++)
+            kvbufs[i].recordTokens(positions[i], token_ids[i]);
+
+        return forward(embedding, positions, kvbufs, Optional.empty());
+    }
+
     public AbstractTensor forward(
         AbstractTensor embedding,
-        int startPos,
-        KvBufferCache.KvBuffer kvbuf,
+        int[] positions,
+        KvBufferCache.KvBuffer[] kvbufs,
         Optional<Consumer<List<AbstractTensor>>> tensorReducer
     ) {
 
         for (int i = c.dctx().layerStart; i < c.dctx().layerEnd; i++) {
             int relativeLayer = i - c.dctx().layerStart;
             AbstractTensor ref = embedding; // reference so we can free
-            embedding = transformerBlocks[relativeLayer].forward(embedding, startPos, kvbuf, tensorReducer);
+            embedding = transformerBlocks[relativeLayer].forward(embedding, positions, kvbufs, tensorReducer);
             ref.close();
         }
 
         return embedding;
     }
 
+    public AbstractTensor forward(
+        AbstractTensor embedding,
+        int startPos,
+        KvBufferCache.KvBuffer kvbuf,
+        Optional<Consumer<List<AbstractTensor>>> tensorReducer
+    ) {
+        int batchSize = embedding.shape().first();
+        int[] positions = new int[batchSize];
+        KvBufferCache.KvBuffer[] kvbufs = new KvBufferCache.KvBuffer[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            positions[i] = startPos + i;
+            kvbufs[i] = kvbuf;
+        }
+
+        return forward(embedding, positions, kvbufs, tensorReducer);
+    }
+
     @Override
     public float[] embed(String input, PoolingType poolingType) {
         int[] encoded = Arrays.stream(tokenizer.encode(input)).mapToInt(Ints::checkedCast).toArray();
@@ -440,54 +491,179 @@ public abstract class AbstractModel implements Generator {
         }
     }
 
-    public int sample(AbstractTensor output, float temperature, float uniformSample, AbstractTensor logits) {
+    protected void computeLogits(AbstractTensor output, AbstractTensor logits) {
+        computeLogits(output, logits, Optional.empty());
+    }
+
+    /**
+     * Projects the output embedding onto the vocabulary, applying any logit scaling and soft capping.
+     * With allowed tokens the rest are set to negative infinity, and when the allowed set is small
+     * only its rows of the output weights are computed.
+     */
+    protected void computeLogits(AbstractTensor output, AbstractTensor logits, Optional<BitSet> allowedTokens) {
+        BitSet partial = allowedTokens.filter(b -> b.cardinality() < c.vocabularySize / 2).orElse(null);
+
         try (AbstractTensor embedding = sampleOutput.getOutputLayerNorm().forward(output)) {
-            // This is a mix of argmax and sampling with softmax
-            VectorMath.pchunk(0, c.vocabularySize, (chunkStart, chunkSize) -> {
-                TensorOperationsProvider.get()
-                    .dotProductChunk(logits, embedding, sampleOutput.getOutputLogitsWeights(), 0, c.embeddingLength, chunkStart, chunkSize);
-            });
+            if (partial == null) {
+                VectorMath.pchunk(0, c.vocabularySize, (chunkStart, chunkSize) -> {
+                    TensorOperationsProvider.get()
+                        .dotProductChunk(logits, embedding, sampleOutput.getOutputLogitsWeights(), 0, c.embeddingLength, chunkStart, chunkSize);
+                });
+            } else {
+                // Gather the runs of allowed rows, then split the allowed rows evenly across cores
+                // so a scattered mask is as parallel as a contiguous one
+                int runs = 0;
+                for (int i = partial.nextSetBit(0); i >= 0 && i < c.vocabularySize; i = partial.nextSetBit(partial.nextClearBit(i)))
+                    runs++;
+
+                int[] runStarts = new int[runs];
+                int[] rowsBefore = new int[runs + 1];
+                for (int r = 0, i = partial.nextSetBit(0); r < runs; r++) {
+                    int end = Math.min(partial.nextClearBit(i), c.vocabularySize);
+                    runStarts[r] = i;
+                    rowsBefore[r + 1] = rowsBefore[r] + (end - i);
+                    i = partial.nextSetBit(end);
+                }
+
+                int allowedRows = rowsBefore[runs];
+                BiIntConsumer chunk = (first, count) -> {
+                    int r = Arrays.binarySearch(rowsBefore, 0, rowsBefore.length - 1, first);
+                    if (r < 0) r = -r - 2;
+
+                    for (int k = first, end = first + count; k < end; r++) {
+                        int rows = Math.min(rowsBefore[r + 1], end) - k;
+                        TensorOperationsProvider.get()
+                            .dotProductChunk(
+                                logits,
+                                embedding,
+                                sampleOutput.getOutputLogitsWeights(),
+                                0,
+                                c.embeddingLength,
+                                runStarts[r] + (k - rowsBefore[r]),
+                                rows
+                            );
+                        k += rows;
+                    }
+                };
+
+                if (allowedRows >= PARTIAL_LOGITS_PARALLEL_ROWS) VectorMath.pchunk(0, allowedRows, chunk);
+                else chunk.accept(0, allowedRows);
+            }
 
             if (c.logitMultiplier != null) {
                 TensorOperationsProvider.get().scale(1.0f / c.logitMultiplier, logits, 0, c.vocabularySize);
             }
 
-            int maxi = Integer.MIN_VALUE;
-            double maxv = Double.NEGATIVE_INFINITY;
-            for (int i = 0; i < c.vocabularySize; i++) {
-                float v = logits.get(0, i);
-                if (c.finalLogitSoftCapping != null) {
+            if (c.finalLogitSoftCapping != null) {
+                for (int i = 0; i < c.vocabularySize; i++) {
+                    if (partial != null && !partial.get(i)) continue;
+
+                    float v = logits.get(0, i);
                     v /= c.finalLogitSoftCapping;
                     v = (float) FastMath.tanh(v);
                     v = v * c.finalLogitSoftCapping;
                     logits.set(v, 0, i);
                 }
-                if (v > maxv) {
-                    maxi = i;
-                    maxv = v;
-                }
             }
 
-            if (temperature == 0.0) {
-                return maxi;
+            if (allowedTokens.isPresent()) {
+                BitSet allowed = allowedTokens.get();
+                for (int i = allowed.nextClearBit(0); i < c.vocabularySize; i = allowed.nextClearBit(i + 1))
+                    logits.set(Float.NEGATIVE_INFINITY, 0, i);
             }
+        }
+    }
 
-            float sum = 0;
-            for (int i = 0; i < c.vocabularySize; i++) {
-                float v = (float) FastMath.exp((logits.get(0, i) - maxv) / temperature);
-                sum += v;
-                logits.set(v, 0, i);
-            }
+    public int sample(AbstractTensor output, float temperature, float uniformSample, AbstractTensor logits) {
+        // This is a mix of argmax and sampling with softmax
+        computeLogits(output, logits);
+        float maxv = TensorOperationsProvider.get().max(logits, 0, c.vocabularySize);
 
-            float acc = 0;
-            for (int i = 0; i < c.vocabularySize; i++) {
-                float v = logits.get(0, i) / sum;
-                acc += v;
-                if (acc >= uniformSample) return i;
-            }
+        if (temperature == 0.0) {
+            for (int i = 0; i < c.vocabularySize; i++)
+                if (logits.get(0, i) == maxv) return i;
 
             return c.vocabularySize - 1;
         }
+
+        float sum = TensorOperationsProvider.get().expSum(logits, maxv, 1.0f / temperature, 0, c.vocabularySize);
+
+        float acc = 0;
+        float threshold = uniformSample * sum;
+        for (int i = 0; i < c.vocabularySize; i++) {
+            acc += logits.get(0, i);
+            if (acc >= threshold) return i;
+        }
+
+        return c.vocabularySize - 1;
+    }
+
+    /**
+     * Picks the next token with the sampler, without allocating
+     */
+    public int sample(AbstractTensor output, Sampler.State sampler, float uniformSample, AbstractTensor logits) {
+        computeLogits(output, logits, sampler.allowedTokens());
+        return sampler.sample(logits, uniformSample);
+    }
+
+    /**
+     * Computes the full next token distribution the sampler draws from for the output embedding.
+     * At temperature zero this is all the mass on the argmax, so it matches greedy {@link #sample}.
+     */
+    protected void probabilities(AbstractTensor output, Sampler.State sampler, AbstractTensor logits, float[] dist) {
+        computeLogits(output, logits, sampler.allowedTokens());
+        sampler.distribution(logits, dist);
+    }
+
+    static int sampleFrom(float[] dist, float uniformSample) {
+        float acc = 0;
+        for (int i = 0; i < dist.length; i++) {
+            if (dist[i] == 0.0f) continue;
+            acc += dist[i];
+            if (acc >= uniformSample) return i;
+        }
+
+        return dist.length - 1;
+    }
+
+    /**
+     * Samples from the part of the target distribution the draft distribution under-covers, normalized max(0, p - q).
+     * This is what keeps speculative sampling exact when a draft token is rejected.
+     * A null draft distribution means all of its mass was on the drafted token.
+     */
+    private static int sampleResidual(float[] target, float[] draft, int drafted, float uniformSample) {
+        float sum = 0;
+        for (int i = 0; i < target.length; i++)
+            sum += residual(target, draft, drafted, i);
+
+        // Identical distributions never reject, but guard against rounding
+        if (sum <= 0.0f) return sampleFrom(target, uniformSample);
+
+        float acc = 0;
+        float threshold = uniformSample * sum;
+        for (int i = 0; i < target.length; i++) {
+            acc += residual(target, draft, drafted, i);
+            if (acc >= threshold) return i;
+        }
+
+        return target.length - 1;
+    }
+
+    private static float residual(float[] target, float[] draft, int drafted, int i) {
+        float q = draft != null ? draft[i] : (i == drafted ? 1.0f : 0.0f);
+        return Math.max(0.0f, target[i] - q);
+    }
+
+    /**
+     * The furthest position speculated tokens can be written to without a rejected token's kv entry
+     * overwriting a sliding window ring slot that is still in use.
+     */
+    int speculationLimit() {
+        int limit = c.contextLength;
+        for (int i = c.dctx().layerStart; i < c.dctx().layerEnd; i++)
+            limit = Math.min(limit, c.attentionWindow(i));
+
+        return limit;
     }
 
     protected boolean addBosToken() {
@@ -519,6 +695,17 @@ public abstract class AbstractModel implements Generator {
         float temperature,
         int ntokens,
         BiConsumer<String, Float> onTokenWithTimings
+    ) {
+        return generate(sessionId, promptContext, Sampler.of(temperature), ntokens, onTokenWithTimings);
+    }
+
+    @Override
+    public Response generate(
+        UUID sessionId,
+        PromptContext promptContext,
+        Sampler sampler,
+        int ntokens,
+        BiConsumer<String, Float> onTokenWithTimings
     ) {
         long[] encoded = tokenizer.encode(promptContext.getPrompt());
 
@@ -542,8 +729,10 @@ public abstract class AbstractModel implements Generator {
             int tokensGenerated;
             StringBuilder responseText = new StringBuilder();
             StringBuilder responseTextWithSpecialTokens = new StringBuilder();
+            DetokenizerStream detokenizer = tokenizer.detokenizer();
 
             try (AbstractTensor logits = makeDenseTensor(c.vocabularySize)) {
+                Sampler.State samplerState = sampler.newState(c.vocabularySize);
                 int[] promptTokens;
 
                 if (addBosToken()) {
@@ -560,64 +749,61 @@ public abstract class AbstractModel implements Generator {
 
                 long start = System.currentTimeMillis();
                 long promptStart = start;
+
+                // Reuse any kv pages already computed for the start of this prompt,
+                // always leaving at least one token to prefill so we get its logits
+                int cachedPrefix = startPos == 0 ? Math.min(kvmem.attachPrefix(promptTokens), promptTokens.length - 1) : 0;
+                int[] uncachedTokens = cachedPrefix > 0 ? Arrays.copyOfRange(promptTokens, cachedPrefix, promptTokens.length) : promptTokens;
+
                 // Batch Process Prompt
                 AbstractTensor last = DebugSupport.isDebug()
-                    ? batchForwardSlow(promptTokens, startPos, kvmem)
-                    : batchForward(promptTokens, startPos, kvmem);
+                    ? batchForwardSlow(uncachedTokens, startPos + cachedPrefix, kvmem)
+                    : batchForward(uncachedTokens, startPos + cachedPrefix, kvmem);
+
+                if (startPos == 0) kvmem.registerPrefix(promptTokens, promptTokens.length);
 
                 promptBatchTime = System.currentTimeMillis() - start;
                 float batchMsPerToken = Math.round((((double) promptBatchTime) / (double) promptLength));
                 logger.debug("{} prompt tokens in {}ms | {}ms per token", promptLength, promptBatchTime, batchMsPerToken);
 
+                for (int token : promptTokens)
+                    samplerState.acceptPrompt(token);
+
                 float genMsPerToken = 0;
                 tokensGenerated = 0;
-                int next = sample(last.slice(last.shape().first() - 1), temperature, ThreadLocalRandom.current().nextFloat(), logits);
+                int next = sample(last.slice(last.shape().first() - 1), samplerState, ThreadLocalRandom.current().nextFloat(), logits);
+                samplerState.accept(next);
                 last.close();
-                try {
-                    String c = tokenizer.decode(next);
-                    if (tokenizer.getModel().isSpecialToken(next)) {
-                        responseTextWithSpecialTokens.append(c);
-                    } else {
-                        onTokenWithTimings.accept(c, batchMsPerToken);
-                        responseText.append(c);
-                        responseTextWithSpecialTokens.append(c);
-                    }
-                } catch (Exception e) {
-                    logger.error("Failed to decode token {}", next, e);
-                }
+                emitToken(next, batchMsPerToken, responseText, responseTextWithSpecialTokens, detokenizer, onTokenWithTimings);
 
                 start = System.currentTimeMillis();
-                for (int i = startPos + promptTokens.length; i < ntokens; i++) {
-                    AbstractTensor output = forward(next, i, kvmem);
-                    tokensGenerated++;
-
-                    next = sample(output, temperature, ThreadLocalRandom.current().nextFloat(), logits);
+                batchScheduler.ifPresent(ContinuousBatchScheduler::join);
+                try {
+                    for (int i = startPos + promptTokens.length; i < ntokens; i++) {
+                        AbstractTensor output = batchScheduler.isPresent()
+                            ? batchScheduler.get().forward(next, i, kvmem)
+                            : forward(next, i, kvmem);
+                        tokensGenerated++;
 
-                    if (logger.isTraceEnabled()) logger.trace("Sampled token {} with temperature {}", next, temperature);
-                    output.close();
+                        next = sample(output, samplerState, ThreadLocalRandom.current().nextFloat(), logits);
+                        samplerState.accept(next);
 
-                    kvmem.incrementContextPosition();
-
-                    // Model may tell us it's done
-                    if (c.eosTokens.contains(next)) {
-                        reason = FinishReason.STOP_TOKEN;
-                        break;
-                    }
+                        if (logger.isTraceEnabled()) logger.trace("Sampled token {} with temperature {}", next, sampler.temperature);
+                        output.close();
 
-                    try {
-                        String c = tokenizer.decode(next);
+                        kvmem.incrementContextPosition();
 
-                        if (tokenizer.getModel().isSpecialToken(next)) {
-                            responseTextWithSpecialTokens.append(c);
-                        } else {
-                            genMsPerToken = (System.currentTimeMillis() - start) / (float) (tokensGenerated);
-                            onTokenWithTimings.accept(c, genMsPerToken);
-                            responseTextWithSpecialTokens.append(c);
-                            responseText.append(c);
+                        // Model may tell us it's done
+                        if (c.eosTokens.contains(next)) {
+                            reason = FinishReason.STOP_TOKEN;
+                            break;
                         }
-                    } catch (Exception e) {
-                        logger.error("Failed to decode token {}", next, e);
+
+                        genMsPerToken = (System.currentTimeMillis() - start) / (float) (tokensGenerated);
+                        emitToken(next, genMsPerToken, responseText, responseTextWithSpecialTokens, detokenizer, onTokenWithTimings);
                     }
+                } finally {
+                    batchScheduler.ifPresent(ContinuousBatchScheduler::leave);
                 }
 
                 long end = System.currentTimeMillis();
@@ -645,6 +831,222 @@ public abstract class AbstractModel implements Generator {
         }
     }
 
+    private void emitToken(
+        int next,
+        float msPerToken,
+        StringBuilder responseText,
+        StringBuilder responseTextWithSpecialTokens,
+        DetokenizerStream detokenizer,
+        BiConsumer<String, Float> onTokenWithTimings
+    ) {
+        try {
+            String c = detokenizer.next(next);
+
+            if (tokenizer.getModel().isSpecialToken(next)) {
+                responseTextWithSpecialTokens.append(c);
+            } else {
+                onTokenWithTimings.accept(c, msPerToken);
+                responseTextWithSpecialTokens.append(c);
+                responseText.append(c);
+            }
+        } catch (Exception e) {
+            logger.error("Failed to decode token {}", next, e);
+        }
+    }
+
+    /**
+     * Generates with a draft model proposing up to draftTokens tokens per step.
+     * Both models keep their own kv buffer for the session.
+     */
+    @Override
+    public Response generateSpeculative(
+        UUID sessionId,
+        PromptContext promptContext,
+        Generator draftModel,
+        int draftTokens,
+        Sampler sampler,
+        int ntokens,
+        BiConsumer<String, Float> onTokenWithTimings
+    ) {
+        Preconditions.checkArgument(draftModel instanceof AbstractModel, "Draft model must be an AbstractModel");
+        AbstractModel draft = (AbstractModel) draftModel;
+        Preconditions.checkArgument(draft != this, "Draft model must be a separate instance, the session kv buffers would collide");
+        Preconditions.checkArgument(draft.c.vocabularySize == c.vocabularySize, "Draft model must share the same vocabulary");
+        Preconditions.checkArgument(draftTokens > 0 && draftTokens < MAX_BATCH_SIZE, "draftTokens must be between 1 and %s", MAX_BATCH_SIZE);
+
+        try (TokenDrafter drafter = new DraftModelDrafter(draft, sessionId, sampler, draftTokens)) {
+            return generateSpeculative(sessionId, promptContext, drafter, draftTokens, sampler, ntokens, onTokenWithTimings);
+        }
+    }
+
+    /**
+     * Generates with proposals copied from earlier occurrences of the trailing n-gram in the prompt and output.
+     */
+    @Override
+    public Response generatePromptLookup(
+        UUID sessionId,
+        PromptContext promptContext,
+        int ngramSize,
+        int draftTokens,
+        Sampler sampler,
+        int ntokens,
+        BiConsumer<String, Float> onTokenWithTimings
+    ) {
+        Preconditions.checkArgument(ngramSize > 0, "ngramSize must be > 0");
+        Preconditions.checkArgument(draftTokens > 0 && draftTokens < MAX_BATCH_SIZE, "draftTokens must be between 1 and %s", MAX_BATCH_SIZE);
+
+        try (TokenDrafter drafter = new PromptLookupDrafter(ngramSize)) {
+            return generateSpeculative(sessionId, promptContext, drafter, draftTokens, sampler, ntokens, onTokenWithTimings);
+        }
+    }
+
+    /**
+     * The drafter proposes up to draftTokens tokens per step, which this model then verifies with a single
+     * batched forward pass.  Each proposal is accepted with probability min(1, p/q) and the first rejected
+     * one is resampled from the residual distribution, so the output follows this model's distribution
+     * exactly (and matches greedy decoding at temperature zero).
+     *
+     * Rejected tokens are never counted in the context position, so their kv entries are simply overwritten
+     * by the next step.
+     */
+    Response generateSpeculative(
+        UUID sessionId,
+        PromptContext promptContext,
+        TokenDrafter drafter,
+        int draftTokens,
+        Sampler sampler,
+        int ntokens,
+        BiConsumer<String, Float> onTokenWithTimings
+    ) {
+        Preconditions.checkArgument(sampler.repetitionPenalty == 1.0f, "Repetition penalty is not supported with speculative decoding");
+        Preconditions.checkArgument(sampler.constraint.isEmpty(), "Constraints are not supported with speculative decoding");
+        int[] promptTokens = encodePrompt(promptContext);
+        int promptLength = promptTokens.length;
+        Preconditions.checkArgument(promptLength < c.contextLength && promptLength < ntokens, "Prompt exceeds max tokens");
+
+        if (ntokens > c.contextLength) ntokens = c.contextLength;
+        Sampler.State samplerState = sampler.newState(c.vocabularySize);
+        int limit = Math.min(ntokens, Math.min(speculationLimit(), drafter.limit()));
+
+        try (KvBufferCache.KvBuffer kvmem = kvBufferCache.getKvBuffer(sessionId); AbstractTensor logits = makeDenseTensor(c.vocabularySize)) {
+            int startPos = kvmem.getCurrentContextPosition();
+
+            logger.debug("Starting speculative decode at token {} for session {} with {} draft tokens", startPos, sessionId, draftTokens);
+
+            FinishReason reason = FinishReason.MAX_TOKENS;
+            StringBuilder responseText = new StringBuilder();
+            StringBuilder responseTextWithSpecialTokens = new StringBuilder();
+            DetokenizerStream detokenizer = tokenizer.detokenizer();
+            float[] targetDist = new float[c.vocabularySize];
+            int[] proposal = new int[draftTokens + 1];
+
+            long start = System.currentTimeMillis();
+            long promptStart = start;
+
+            // Batch Process Prompt
+            AbstractTensor last = batchForward(promptTokens, startPos, kvmem);
+            drafter.prefill(promptTokens, startPos);
+
+            long promptBatchTime = System.currentTimeMillis() - start;
+            float batchMsPerToken = Math.round((((double) promptBatchTime) / (double) promptLength));
+            logger.debug("{} prompt tokens in {}ms | {}ms per token", promptLength, promptBatchTime, batchMsPerToken);
+
+            probabilities(last.slice(last.shape().first() - 1), samplerState, logits, targetDist);
+            last.close();
+            int next = sampleFrom(targetDist, ThreadLocalRandom.current().nextFloat());
+            drafter.appended(next);
+            emitToken(next, batchMsPerToken, responseText, responseTextWithSpecialTokens, detokenizer, onTokenWithTimings);
+
+            float genMsPerToken = 0;
+            int tokensGenerated = 0;
+            int proposed = 0;
+            int accepted = 0;
+            start = System.currentTimeMillis();
+
+            // next is always the token to feed at position
+            int position = startPos + promptLength;
+            outer: while (position < ntokens) {
+                // Never write speculated kv entries past the limit, fall back to one token at a time there
+                proposal[0] = next;
+                int k = drafter.propose(proposal, position, Math.max(0, Math.min(draftTokens, limit - position - 1)));
+
+                // Verify all proposals in a single pass
+                int acceptedTokens = 0;
+                int emitted;
+                try (AbstractTensor output = batchForward(Arrays.copyOf(proposal, k + 1), position, kvmem)) {
+                    while (true) {
+                        probabilities(output.slice(acceptedTokens), samplerState, logits, targetDist);
+
+                        // Everything accepted, take a bonus token from the last row
+                        if (acceptedTokens == k) {
+                            emitted = sampleFrom(targetDist, ThreadLocalRandom.current().nextFloat());
+                            break;
+                        }
+
+                        int t = proposal[acceptedTokens + 1];
+                        float[] draftDist = drafter.distribution(acceptedTokens);
+                        float q = draftDist != null ? draftDist[t] : 1.0f;
+                        if (q > 0.0f && ThreadLocalRandom.current().nextFloat() < Math.min(1.0f, targetDist[t] / q)) {
+                            acceptedTokens++;
+                            continue;
+                        }
+
+                        emitted = sampleResidual(targetDist, draftDist, t, ThreadLocalRandom.current().nextFloat());
+                        break;
+                    }
+                }
+
+                proposed += k;
+                accepted += acceptedTokens;
+                drafter.verified(proposal, position, k, acceptedTokens);
+
+                for (int j = 1; j <= acceptedTokens + 1; j++) {
+                    next = j <= acceptedTokens ? proposal[j] : emitted;
+                    tokensGenerated++;
+                    drafter.fed(kvmem.getCurrentContextPosition());
+                    kvmem.incrementContextPosition();
+                    drafter.appended(next);
+                    position++;
+
+                    // Model may tell us it's done
+                    if (c.eosTokens.contains(next)) {
+                        reason = FinishReason.STOP_TOKEN;
+                        break outer;
+                    }
+
+                    genMsPerToken = (System.currentTimeMillis() - start) / (float) (tokensGenerated);
+                    emitToken(next, genMsPerToken, responseText, responseTextWithSpecialTokens, detokenizer, onTokenWithTimings);
+
+                    if (position >= ntokens) break outer;
+                }
+            }
+
+            long end = System.currentTimeMillis();
+
+            Response response = new Response(
+                responseText.toString(),
+                responseTextWithSpecialTokens.toString(),
+                reason,
+                promptLength,
+                tokensGenerated,
+                promptBatchTime,
+                end - start
+            );
+            logger.debug(
+                String.format(
+                    "\n\nelapsed: %ds, prompt %.1fms per token, gen %.1fms per token, accepted %d of %d draft tokens\n",
+                    TimeUnit.MILLISECONDS.toSeconds(end - promptStart),
+                    batchMsPerToken,
+                    genMsPerToken,
+                    accepted,
+                    proposed
+                )
+            );
+
+            return postProcessResponse(promptContext, response);
+        }
+    }
+
     /**
      * This is a hook for subclasses to post process the response before returning it to the caller.
      * For example this can be used to handle tool calls.
@@ -50,10 +50,13 @@ public class CausalSelfAttention {
 
     private final AbstractTensor outputProjectionWeights;
 
+    // Number of prompt positions whose attention scores are computed together during prefill
+    private static final int PREFILL_BLOCK_SIZE = Integer.getInteger("jlama.prefill_block_size", 64);
+
     private final float attentionScale;
+    private final int attentionWindow;
     private final int attentionLength;
 
-    private final AbstractTensor[] qkvResults;
     private final AbstractTensor[] qkvWeights;
 
     public CausalSelfAttention(
@@ -131,9 +134,9 @@ public class CausalSelfAttention {
         this.outputProjectionWeights = outputProjectionWeights;
         this.attentionLength = c.numberOfHeads * c.headSize;
 
+        this.attentionWindow = c.attentionWindow(layerIndex);
         this.attentionScale = c.attentionMultiplier != null ? c.attentionMultiplier : (float) (1.0 / StrictMath.sqrt(c.headSize));
 
-        this.qkvResults = new AbstractTensor[3];
         this.qkvWeights = new AbstractTensor[] { queryAttnWeights, keyAttnWeights, valueAttnWeights };
 
         TensorOperationsProvider.get().registerModelTensor(queryAttnWeights);
@@ -147,9 +150,31 @@ public class CausalSelfAttention {
         int startPosition,
         KvBufferCache.KvBuffer kvMem,
         Optional<Consumer<List<AbstractTensor>>> tensorReducer
+    ) {
+        int batchSize = input.shape().first();
+        int[] positions = new int[batchSize];
+        KvBufferCache.KvBuffer[] kvBuffers = new KvBufferCache.KvBuffer[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            positions[i] = startPosition + i;
+            kvBuffers[i] = kvMem;
+        }
+
+        return forward(input, positions, kvBuffers, tensorReducer);
+    }
+
+    /**
+     * Runs attention for a batch where each row has its own position and kv buffer.
+     * This lets rows from different sessions share the same qkv and output projections.
+     */
+    public AbstractTensor forward(
+        AbstractTensor input,
+        int[] positions,
+        KvBufferCache.KvBuffer[] kvBuffers,
+        Optional<Consumer<List<AbstractTensor>>> tensorReducer
     ) {
         Preconditions.checkArgument(input.dims() == 2 && input.shape().last() == c.embeddingLength);
         int batchSize = input.shape().first();
+        Preconditions.checkArgument(positions.length == batchSize && kvBuffers.length == batchSize);
 
         try (
             AbstractTensor queryBatch = m.makeDenseTensor(batchSize, attentionLength);
@@ -170,9 +195,7 @@ public class CausalSelfAttention {
                         .dotProductChunk(tmpValBatch, input, valueAttnWeights, 0, c.embeddingLength, chunkStart, chunkLength);
                 });
             } else {
-                qkvResults[0] = queryBatch;
-                qkvResults[1] = tmpKeyBatch;
-                qkvResults[2] = tmpValBatch;
+                AbstractTensor[] qkvResults = new AbstractTensor[] { queryBatch, tmpKeyBatch, tmpValBatch };
 
                 // compute the query vector
                 VectorMath.pchunk(dctx.attentionSegmentStart, dctx.attentionSegmentLength, (chunkStart, chunkLength) -> {
@@ -195,165 +218,27 @@ public class CausalSelfAttention {
             debug("key", tmpKeyBatch, layerIndex);
             debug("value", tmpValBatch, layerIndex);
 
+            // Sliding window layers overwrite the oldest positions, so once the window has filled
+            // each row must attend before a later row in the batch reuses its slots
+            boolean windowWraps = attentionWindow < c.contextLength && Arrays.stream(positions).max().getAsInt() >= attentionWindow;
+
             // This is our memory of the key and value vectors for each position
-            for (int position = startPosition, bi = 0; position < startPosition + batchSize; position++, bi++) {
-                int finalPosition = position;
-                AbstractTensor key = kvMem.getKeyTensorForPosition(layerIndex, position);
-                AbstractTensor val = kvMem.getValTensorForPosition(layerIndex, position);
-
-                AbstractTensor[] kvp = kvMem.getKeyTensorsUptoPosition(layerIndex, position);
-                AbstractTensor[] vvp = kvMem.getValTensorsUptoPosition(layerIndex, position);
-
-                AbstractTensor tmpKey = tmpKeyBatch.slice(bi);
-                AbstractTensor tmpVal = tmpValBatch.slice(bi);
-                AbstractTensor query = queryBatch.slice(bi);
-                AbstractTensor value = valueBatch.slice(bi);
-
-                if (key.dType() != tmpKey.dType()) {
-                    try (
-                        AbstractTensor tmpKey2 = TensorOperationsProvider.get().quantize(tmpKey, key.dType(), 0, c.kvLength);
-                        AbstractTensor tmpVal2 = TensorOperationsProvider.get().quantize(tmpVal, val.dType(), 0, c.kvLength)
-                    ) {
-                        key.copyFrom(
-                            tmpKey2,
-                            tmpKey2.getOffset(0, dctx.kvSegmentStart),
-                            key.getOffset(0, dctx.kvSegmentStart),
-                            dctx.kvSegmentLength
-                        );
-                        val.copyFrom(
-                            tmpVal2,
-                            tmpVal2.getOffset(0, dctx.kvSegmentStart),
-                            val.getOffset(0, dctx.kvSegmentStart),
-                            dctx.kvSegmentLength
-                        );
-                    }
-                } else {
-                    key.copyFrom(
-                        tmpKey,
-                        tmpKey.getOffset(0, dctx.kvSegmentStart),
-                        key.getOffset(0, dctx.kvSegmentStart),
-                        dctx.kvSegmentLength
-                    );
-                    val.copyFrom(
-                        tmpVal,
-                        tmpVal.getOffset(0, dctx.kvSegmentStart),
-                        val.getOffset(0, dctx.kvSegmentStart),
-                        dctx.kvSegmentLength
-                    );
+            if (windowWraps) {
+                for (int bi = 0; bi < batchSize; bi++) {
+                    storeKeyValue(queryBatch.slice(bi), tmpKeyBatch.slice(bi), tmpValBatch.slice(bi), positions[bi], kvBuffers[bi]);
+                    attend(queryBatch.slice(bi), valueBatch.slice(bi), positions[bi], kvBuffers[bi]);
                 }
-
-                // apply RoPE if present (accounting for huggingface permutation)
-                // https://github.com/huggingface/transformers/blob/d533465150532b0c5de167b574e59f64c68b1154/src/transformers/models/llama/convert_llama_weights_to_hf.py#L114
-                c.ropeFreqs.ifPresent(rf -> {
-                    int headPiece = c.headSize / 2;
-                    int poffset = finalPosition * headPiece;
-
-                    if (c.isGQA) {
-                        // apply RoPE rotation to the q and k vectors for each head
-                        for (int h = dctx.headStart; h < dctx.headEnd; h++) {
-                            // get the q vectors for this head
-                            int offset = h * c.headSize;
-
-                            // skip if we are out of bounds
-                            if (offset >= query.shape().last()) break;
-
-                            int goffset = c.maybeMapToGroupHead(h) * c.headSize;
-                            // rotate q by the freq theta and freq r
-                            for (int i = offset, g = goffset; i < (offset + headPiece); i++, g++) {
-                                float q0 = query.get(0, i);
-                                float q1 = query.get(0, i + headPiece); // hf permutation is 0,64,1,65 etc...
-                                float[] f = rf[poffset + g];
-                                float fcr = f[0];
-                                float fci = f[1];
-                                query.set(q0 * fcr - q1 * fci, 0, i);
-                                query.set(q0 * fci + q1 * fcr, 0, i + headPiece);
-                            }
-                        }
-
-                        for (int h = dctx.groupHeadStart; h < dctx.groupHeadEnd; h++) {
-                            // get the k vectors for this head
-                            int offset = h * c.headSize;
-                            if (offset >= key.shape().last()) break;
-                            // rotate k by the freq theta and freq r
-                            for (int i = offset; i < (offset + headPiece); i++) {
-                                float k00 = key.get(0, i);
-                                float k1 = key.get(0, i + headPiece); // hf permutation is 0,64,1,65 etc...
-                                float[] f = rf[poffset + i];
-                                float fcr = f[0];
-                                float fci = f[1];
-                                key.set(k00 * fcr - k1 * fci, 0, i);
-                                key.set(k00 * fci + k1 * fcr, 0, i + headPiece);
-                            }
-                        }
-                    } else {
-                        // apply RoPE rotation to the q and k vectors for each head
-                        for (int h = dctx.headStart; h < dctx.headEnd; h++) {
-                            // get the q and k vectors for this head
-                            int offset = h * c.headSize;
-                            // rotate q and k by the freq theta and freq r
-                            for (int i = offset; i < (offset + headPiece); i++) {
-                                float q0 = query.get(0, i);
-                                float q1 = query.get(0, i + headPiece); // hf permutation is 0,64,1,65 etc...
-                                float k00 = key.get(0, i);
-                                float k1 = key.get(0, i + headPiece);
-                                float[] f = rf[poffset + i];
-                                float fcr = f[0];
-                                float fci = f[1];
-                                query.set(q0 * fcr - q1 * fci, 0, i);
-                                query.set(q0 * fci + q1 * fcr, 0, i + headPiece);
-                                key.set(k00 * fcr - k1 * fci, 0, i);
-                                key.set(k00 * fci + k1 * fcr, 0, i + headPiece);
-                            }
-                        }
-                    }
-                    debug("query+rope", query, finalPosition);
-                    debug("key+rope", key, finalPosition);
-                });
+            } else {
+                for (int bi = 0; bi < batchSize; bi++)
+                    storeKeyValue(queryBatch.slice(bi), tmpKeyBatch.slice(bi), tmpValBatch.slice(bi), positions[bi], kvBuffers[bi]);
 
                 // Attention
-                VectorMath.pfor(dctx.headStart, dctx.headEnd, h -> {
-                    int xoffset = c.maybeMapToGroupHead(h) * c.headSize;
-                    int yoffset = h * c.headSize;
-
-                    if (yoffset >= query.shape().last()) return;
-
-                    try (AbstractTensor attn = m.makeDenseTensor(1, kvp[0].shape().first() * kvp.length)) { // chunky so the cache isn't
-                                                                                                            // thrashed
-                        // compute attention scores by multiplying query and key for every position
-                        // do this for each position since the pages are not contiguous
-                        for (int i = 0; i < kvp.length; i++) {
-                            int len = kvp[i].shape().first();
-                            int offset = i * len;
-                            int size = i == kvp.length - 1 ? (finalPosition + 1) - offset : len;
-                            TensorOperationsProvider.get()
-                                .batchDotProduct(attn, query, kvp[i], yoffset, xoffset, c.headSize, offset, 0, size);
-                        }
-
-                        TensorOperationsProvider.get().scale(attentionScale, attn, 0, finalPosition + 1);
-
-                        if (c.attnLogitSoftCapping != null) {
-                            for (int i = 0; i < finalPosition + 1; i++) {
-                                float v = attn.get(0, i);
-                                v /= c.attnLogitSoftCapping;
-                                v = (float) FastMath.tanh(v);
-                                v *= c.attnLogitSoftCapping;
-                                attn.set(v, 0, i);
-                            }
-                        }
-
-                        // softmax the scores to get attention weights, from 0..pos inclusively
-                        VectorMath.softMax(attn, 0, finalPosition + 1);
-
-                        // apply adjusted attention weights to value vectors
-                        // do this for each position since the pages are not contiguous
-                        for (int i = 0; i < vvp.length; i++) {
-                            int len = vvp[i].shape().first(); // batch size
-                            int offset = i * len;
-                            int size = i == vvp.length - 1 ? (finalPosition + 1) - offset : len;
-                            TensorOperationsProvider.get().saxpy(attn, vvp[i], value, xoffset, yoffset, c.headSize, offset, 0, size);
-                        }
-                    }
-                });
+                if (isPrefill(positions, kvBuffers)) {
+                    batchAttention(queryBatch, valueBatch, positions[0], kvBuffers[0]);
+                } else {
+                    for (int bi = 0; bi < batchSize; bi++)
+                        attend(queryBatch.slice(bi), valueBatch.slice(bi), positions[bi], kvBuffers[bi]);
+                }
             }
 
             debug("after_attention", valueBatch, layerIndex);
@@ -383,4 +268,187 @@ public class CausalSelfAttention {
             return result;
         }
     }
+
+    /**
+     * Applies RoPE to a row's query and key then stores its key and value in the kv cache
+     */
+    private void storeKeyValue(
+        AbstractTensor query,
+        AbstractTensor tmpKey,
+        AbstractTensor tmpVal,
+        int finalPosition,
+        KvBufferCache.KvBuffer kvMem
+    ) {
+        AbstractTensor key = kvMem.getKeyTensorForPosition(layerIndex, finalPosition);
+        AbstractTensor val = kvMem.getValTensorForPosition(layerIndex, finalPosition);
+
+        // apply RoPE if present (accounting for huggingface permutation)
+        // keys are rotated before they are stored so the cache can hold quantized values
+        // https://github.com/huggingface/transformers/blob/d533465150532b0c5de167b574e59f64c68b1154/src/transformers/models/llama/convert_llama_weights_to_hf.py#L114
+        c.ropeFreqs.ifPresent(rf -> {
+            int queryEnd = Math.min(dctx.headEnd * c.headSize, query.shape().last());
+            int queryStart = Math.min(dctx.headStart * c.headSize, queryEnd);
+            TensorOperationsProvider.get().rope(query, rf, finalPosition, queryStart, queryEnd - queryStart, c.headSize, false);
+
+            // with GQA the keys only cover the group heads
+            int keyStartHead = c.isGQA ? dctx.groupHeadStart : dctx.headStart;
+            int keyEndHead = c.isGQA ? dctx.groupHeadEnd : dctx.headEnd;
+            int keyEnd = Math.min(keyEndHead * c.headSize, tmpKey.shape().last());
+            int keyStart = Math.min(keyStartHead * c.headSize, keyEnd);
+            TensorOperationsProvider.get().rope(tmpKey, rf, finalPosition, keyStart, keyEnd - keyStart, c.headSize, false);
+
+            debug("query+rope", query, finalPosition);
+            debug("key+rope", tmpKey, finalPosition);
+        });
+
+        if (key.dType() != tmpKey.dType()) {
+            try (
+                AbstractTensor tmpKey2 = TensorOperationsProvider.get().quantize(tmpKey, key.dType(), 0, c.kvLength);
+                AbstractTensor tmpVal2 = TensorOperationsProvider.get().quantize(tmpVal, val.dType(), 0, c.kvLength)
+            ) {
+                key.copyFrom(
+                    tmpKey2,
+                    tmpKey2.getOffset(0, dctx.kvSegmentStart),
+                    key.getOffset(0, dctx.kvSegmentStart),
+                    dctx.kvSegmentLength
+                );
+                val.copyFrom(
+                    tmpVal2,
+                    tmpVal2.getOffset(0, dctx.kvSegmentStart),
+                    val.getOffset(0, dctx.kvSegmentStart),
+                    dctx.kvSegmentLength
+                );
+            }
+        } else {
+            key.copyFrom(
+                tmpKey,
+                tmpKey.getOffset(0, dctx.kvSegmentStart),
+                key.getOffset(0, dctx.kvSegmentStart),
+                dctx.kvSegmentLength
+            );
+            val.copyFrom(
+                tmpVal,
+                tmpVal.getOffset(0, dctx.kvSegmentStart),
+                val.getOffset(0, dctx.kvSegmentStart),
+                dctx.kvSegmentLength
+            );
+        }
+    }
+
+    /**
+     * Attention for a single row against everything in the kv cache up to its position
+     */
+    private void attend(AbstractTensor query, AbstractTensor value, int finalPosition, KvBufferCache.KvBuffer kvMem) {
+        // Sliding window layers only attend to the most recent positions
+        int length = Math.min(finalPosition + 1, attentionWindow);
+        AbstractTensor[] kvp = kvMem.getKeyTensorsUptoPosition(layerIndex, finalPosition);
+        AbstractTensor[] vvp = kvMem.getValTensorsUptoPosition(layerIndex, finalPosition);
+
+        VectorMath.pfor(dctx.headStart, dctx.headEnd, h -> {
+            int xoffset = c.maybeMapToGroupHead(h) * c.headSize;
+            int yoffset = h * c.headSize;
+
+            if (yoffset >= query.shape().last()) return;
+
+            // scores, softmax and the weighted sum of values are fused and tiled
+            // so the full score vector for the context is never materialized
+            TensorOperationsProvider.get()
+                .attention(
+                    query,
+                    kvp,
+                    vvp,
+                    value,
+                    yoffset,
+                    xoffset,
+                    c.headSize,
+                    length,
+                    attentionScale,
+                    c.attnLogitSoftCapping == null ? 0f : c.attnLogitSoftCapping
+                );
+        });
+    }
+
+    /**
+     * A batch is a prefill when every row belongs to the same session at consecutive positions
+     */
+    private static boolean isPrefill(int[] positions, KvBufferCache.KvBuffer[] kvBuffers) {
+        if (positions.length < 2) return false;
+
+        for (int i = 1; i < positions.length; i++) {
+            if (kvBuffers[i] != kvBuffers[0] || positions[i] != positions[0] + i) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Attention for a block of consecutive prompt positions.
+     *
+     * Rather than running a dot product per position, the queries for a block of positions are
+     * multiplied against the keys as a single matmul, then each row is causally masked by only
+     * taking the softmax and weighted sum of values up to its own position.
+     */
+    private void batchAttention(AbstractTensor queryBatch, AbstractTensor valueBatch, int startPosition, KvBufferCache.KvBuffer kvMem) {
+        int batchSize = queryBatch.shape().first();
+
+        for (int r0 = 0; r0 < batchSize; r0 += PREFILL_BLOCK_SIZE) {
+            int blockStart = r0;
+            int blockSize = Math.min(PREFILL_BLOCK_SIZE, batchSize - r0);
+            int lastPosition = startPosition + blockStart + blockSize - 1;
+
+            AbstractTensor[] kvp = kvMem.getKeyTensorsUptoPosition(layerIndex, lastPosition);
+            AbstractTensor[] vvp = kvMem.getValTensorsUptoPosition(layerIndex, lastPosition);
+            int pageSize = kvp[0].shape().first();
+
+            VectorMath.pfor(dctx.headStart, dctx.headEnd, h -> {
+                int xoffset = c.maybeMapToGroupHead(h) * c.headSize;
+                int yoffset = h * c.headSize;
+
+                if (yoffset >= queryBatch.shape().last()) return;
+
+                try (
+                    AbstractTensor queryBlock = m.makeDenseTensor(blockSize, c.headSize);
+                    AbstractTensor scores = m.makeDenseTensor(blockSize, pageSize * kvp.length)
+                ) {
+                    // gather this head's queries so they are contiguous for the matmul
+                    for (int i = 0; i < blockSize; i++)
+                        queryBlock.copyFrom(queryBatch, queryBatch.getOffset(blockStart + i, yoffset), queryBlock.getOffset(i, 0), c.headSize);
+
+                    // scores for every query in the block against every key up to the last position
+                    for (int i = 0; i < kvp.length; i++) {
+                        int offset = i * pageSize;
+                        int size = i == kvp.length - 1 ? (lastPosition + 1) - offset : pageSize;
+                        TensorOperationsProvider.get().batchDotProduct(scores, queryBlock, kvp[i], 0, xoffset, c.headSize, offset, 0, size);
+                    }
+
+                    TensorOperationsProvider.get().scale(attentionScale, scores, 0, lastPosition + 1);
+
+                    for (int bi = 0; bi < blockSize; bi++) {
+                        // causal mask, each row only sees positions up to its own
+                        int length = startPosition + blockStart + bi + 1;
+                        AbstractTensor attn = scores.slice(bi);
+
+                        if (c.attnLogitSoftCapping != null) {
+                            for (int i = 0; i < length; i++) {
+                                float v = attn.get(0, i);
+                                v /= c.attnLogitSoftCapping;
+                                v = (float) FastMath.tanh(v);
+                                v *= c.attnLogitSoftCapping;
+                                attn.set(v, 0, i);
+                            }
+                        }
+
+                        VectorMath.softMax(attn, 0, length);
+
+                        AbstractTensor value = valueBatch.slice(blockStart + bi);
+                        for (int i = 0; i < vvp.length && i * pageSize < length; i++) {
+                            int offset = i * pageSize;
+                            int size = Math.min(pageSize, length - offset);
+                            TensorOperationsProvider.get().saxpy(attn, vvp[i], value, xoffset, yoffset, c.headSize, offset, 0, size);
+                        }
+                    }
+                }
+            });
+        }
+    }
 }
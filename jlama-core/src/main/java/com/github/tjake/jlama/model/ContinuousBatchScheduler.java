@@ -0,0 +1,189 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.KvBufferCache;
+import com.google.common.base.Preconditions;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Steps all active generation sessions through the model together.
+ *
+ * Each session submits its next token and blocks, the scheduler gathers the pending tokens
+ * from every active session and runs a single batched forward pass with a per-row position
+ * and kv buffer.  This means the weights are read once per step for all sessions
+ * rather than once per session.
+ *
+ * Sessions {@link #join()} before decoding and {@link #leave()} when done, so the batch
+ * can grow and shrink between steps.
+ */
+public class ContinuousBatchScheduler implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ContinuousBatchScheduler.class);
+
+    // How long to wait for the rest of the active sessions before running a partial batch
+    private static final long MAX_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(Integer.getInteger("jlama.batch_scheduler_wait_us", 2000));
+
+    private final AbstractModel model;
+    private final int maxBatchSize;
+    private final LinkedBlockingQueue<PendingStep> pending;
+    private final AtomicInteger activeSessions;
+    private final Thread worker;
+    private volatile boolean running;
+
+    private static class PendingStep {
+        final int token;
+        final int position;
+        final KvBufferCache.KvBuffer kvBuffer;
+        final CompletableFuture<AbstractTensor> result;
+
+        PendingStep(int token, int position, KvBufferCache.KvBuffer kvBuffer) {
+            this.token = token;
+            this.position = position;
+            this.kvBuffer = kvBuffer;
+            this.result = new CompletableFuture<>();
+        }
+    }
+
+    public ContinuousBatchScheduler(AbstractModel model, int maxBatchSize) {
+        Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be > 0");
+        this.model = model;
+        this.maxBatchSize = maxBatchSize;
+        this.pending = new LinkedBlockingQueue<>();
+        this.activeSessions = new AtomicInteger(0);
+        this.running = true;
+        this.worker = new Thread(this::run, "jlama-batch-scheduler");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Registers a session as actively decoding, so steps will wait for its next token
+     */
+    public void join() {
+        activeSessions.incrementAndGet();
+    }
+
+    /**
+     * Removes a session from the active set
+     */
+    public void leave() {
+        activeSessions.decrementAndGet();
+    }
+
+    public int activeSessions() {
+        return activeSessions.get();
+    }
+
+    /**
+     * Submits the next token for a session and blocks until the batched step containing it completes.
+     * @return the output embedding for this token, owned by the caller
+     */
+    public AbstractTensor forward(int token, int position, KvBufferCache.KvBuffer kvBuffer) {
+        Preconditions.checkState(running, "Scheduler is closed");
+        PendingStep step = new PendingStep(token, position, kvBuffer);
+        pending.add(step);
+
+        try {
+            return step.result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            throw e;
+        }
+    }
+
+    private void run() {
+        List<PendingStep> batch = new ArrayList<>(maxBatchSize);
+        while (running) {
+            try {
+                PendingStep first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+
+                batch.add(first);
+                pending.drainTo(batch, maxBatchSize - batch.size());
+
+                // Give the other active sessions a chance to submit their next token
+                long deadline = System.nanoTime() + MAX_WAIT_NANOS;
+                while (batch.size() < Math.min(maxBatchSize, activeSessions.get())) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+
+                    PendingStep next = pending.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+
+                    batch.add(next);
+                    pending.drainTo(batch, maxBatchSize - batch.size());
+                }
+
+                step(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+
+        // Fail anything left behind so callers don't hang
+        PendingStep s;
+        while ((s = pending.poll()) != null)
+            s.result.completeExceptionally(new IllegalStateException("Scheduler is closed"));
+    }
+
+    private void step(List<PendingStep> batch) {
+        int batchSize = batch.size();
+        int[] tokens = new int[batchSize];
+        int[] positions = new int[batchSize];
+        KvBufferCache.KvBuffer[] kvBuffers = new KvBufferCache.KvBuffer[batchSize];
+
+        for (int i = 0; i < batchSize; i++) {
+            PendingStep s = batch.get(i);
+            tokens[i] = s.token;
+            positions[i] = s.position;
+            kvBuffers[i] = s.kvBuffer;
+        }
+
+        try (AbstractTensor output = model.batchForward(tokens, positions, kvBuffers)) {
+            logger.trace("Batched decode step for {} sessions", batchSize);
+
+            int length = output.shape().last();
+            for (int i = 0; i < batchSize; i++) {
+                AbstractTensor row = model.makeDenseTensor(1, length);
+                row.copyFrom(output, output.getOffset(i, 0), 0, length);
+                batch.get(i).result.complete(row);
+            }
+        } catch (Throwable t) {
+            logger.error("Batched decode step failed", t);
+            for (PendingStep s : batch)
+                s.result.completeExceptionally(t);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        worker.interrupt();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.model.functions.Sampler;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.KvBufferCache;
+import com.google.common.base.Preconditions;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Proposes tokens by sampling autoregressively from a smaller model sharing the target's vocabulary.
+ * The draft keeps its own kv buffer for the session, advanced in step with the target.
+ */
+class DraftModelDrafter implements TokenDrafter {
+    private final AbstractModel draft;
+    private final Sampler.State sampler;
+    private final KvBufferCache.KvBuffer kvmem;
+    private final AbstractTensor logits;
+    private final float[][] dists;
+
+    DraftModelDrafter(AbstractModel draft, UUID sessionId, Sampler sampler, int maxTokens) {
+        this.draft = draft;
+        this.sampler = sampler.newState(draft.c.vocabularySize);
+        this.kvmem = draft.kvBufferCache.getKvBuffer(sessionId);
+        this.logits = draft.makeDenseTensor(draft.c.vocabularySize);
+        this.dists = new float[maxTokens][draft.c.vocabularySize];
+    }
+
+    @Override
+    public void prefill(int[] promptTokens, int startPos) {
+        Preconditions.checkState(kvmem.getCurrentContextPosition() == startPos, "Draft model session is out of sync");
+        draft.batchForward(promptTokens, startPos, kvmem).close();
+    }
+
+    @Override
+    public int limit() {
+        return draft.speculationLimit();
+    }
+
+    @Override
+    public int propose(int[] proposal, int position, int maxTokens) {
+        for (int j = 0; j < maxTokens; j++) {
+            try (AbstractTensor output = draft.forward(proposal[j], position + j, kvmem)) {
+                draft.probabilities(output, sampler, logits, dists[j]);
+            }
+            proposal[j + 1] = AbstractModel.sampleFrom(dists[j], ThreadLocalRandom.current().nextFloat());
+        }
+
+        return maxTokens;
+    }
+
+    @Override
+    public float[] distribution(int j) {
+        return dists[j];
+    }
+
+    @Override
+    public void verified(int[] proposal, int position, int proposed, int accepted) {
+        // The draft never saw its own last proposal, catch it up so both buffers stay aligned
+        if (proposed > 0 && accepted == proposed) draft.forward(proposal[proposed], position + proposed, kvmem).close();
+    }
+
+    @Override
+    public void appended(int token) {}
+
+    @Override
+    public void fed(int contextPosition) {
+        Preconditions.checkState(kvmem.getCurrentContextPosition() == contextPosition, "Draft model session is out of sync");
+        kvmem.incrementContextPosition();
+    }
+
+    @Override
+    public void close() {
+        logits.close();
+        kvmem.close();
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.model;
+
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.google.common.base.Preconditions;
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the most used experts of a Mixture of Experts model resident in memory.
+ *
+ * Expert weights are normally mapped straight from the safetensors files, so on hosts with less memory
+ * than the model the page cache thrashes between experts.  For each layer this tracks how often every expert
+ * is routed to and:
+ * <ul>
+ *   <li>Pins the hottest experts by copying their weights off-heap and dropping the mapped pages</li>
+ *   <li>Asks the OS to page in the experts the gate just picked, in the background, so the later experts
+ *   load while the first one is computed</li>
+ *   <li>Predicts the experts the next layer's gate will pick from how routing flowed between the layers before,
+ *   and pages those in too</li>
+ * </ul>
+ *
+ * Only weights that are still mapped are managed, experts that were quantized or sharded at load time
+ * already live off-heap.
+ */
+public class ExpertResidency {
+    private static final Logger logger = LoggerFactory.getLogger(ExpertResidency.class);
+
+    // Number of experts per layer to keep pinned, 0 disables pinning
+    private static final int PINNED_EXPERTS = Integer.getInteger("jlama.moe_pinned_experts", 0);
+
+    // Number of routed tokens per layer between re-evaluating which experts are pinned
+    private static final int REBALANCE_INTERVAL = Integer.getInteger("jlama.moe_residency_interval", 256);
+
+    private static final boolean DISABLE_PREFETCH = Boolean.getBoolean("jlama.moe_disable_prefetch");
+
+    private static final ExecutorService PAGER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "jlama-expert-pager");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final int numberOfExperts;
+    private final int numberOfExpertsPerToken;
+    private final int pinnedExperts;
+    private final Layer[] layers;
+    private final Executor pager;
+
+    public ExpertResidency(int numberOfLayers, int numberOfExperts, int numberOfExpertsPerToken) {
+        this(numberOfLayers, numberOfExperts, numberOfExpertsPerToken, PINNED_EXPERTS);
+    }
+
+    public ExpertResidency(int numberOfLayers, int numberOfExperts, int numberOfExpertsPerToken, int pinnedExperts) {
+        this(numberOfLayers, numberOfExperts, numberOfExpertsPerToken, pinnedExperts, PAGER);
+    }
+
+    /**
+     * @param pager runs the background page-ins and pin copies
+     */
+    ExpertResidency(int numberOfLayers, int numberOfExperts, int numberOfExpertsPerToken, int pinnedExperts, Executor pager) {
+        Preconditions.checkArgument(
+            pinnedExperts >= 0 && pinnedExperts <= numberOfExperts,
+            "pinnedExperts must be in [0, numberOfExperts]"
+        );
+        this.numberOfExperts = numberOfExperts;
+        this.numberOfExpertsPerToken = numberOfExpertsPerToken;
+        this.pinnedExperts = pinnedExperts;
+        this.layers = new Layer[numberOfLayers];
+        this.pager = pager;
+    }
+
+    /**
+     * Registers the expert weights of a layer, each array is indexed by expert
+     */
+    public Layer register(int layerIndex, AbstractTensor[] w1, AbstractTensor[] w2, AbstractTensor[] w3) {
+        Preconditions.checkArgument(w1.length == numberOfExperts && w2.length == numberOfExperts && w3.length == numberOfExperts);
+        Layer layer = new Layer(layerIndex, w1, w2, w3);
+        layers[layerIndex] = layer;
+        return layer;
+    }
+
+    /**
+     * Registers a layer that is not part of a larger model
+     */
+    static Layer standalone(
+        int numberOfExperts,
+        int numberOfExpertsPerToken,
+        AbstractTensor[] w1,
+        AbstractTensor[] w2,
+        AbstractTensor[] w3
+    ) {
+        return new ExpertResidency(1, numberOfExperts, numberOfExpertsPerToken, 0).register(0, w1, w2, w3);
+    }
+
+    private static boolean isPinnable(AbstractTensor t) {
+        return t.mappedSegment().isPresent() && !t.shape().isSparse();
+    }
+
+    public class Layer {
+        private final int layerIndex;
+        private final AbstractTensor[][] mapped;
+        private final AtomicReferenceArray<AbstractTensor[]> current;
+        private final boolean[] pinned;
+        private final boolean[] pinning;
+        // The last rebalance's choice, a pin that finishes after the expert went cold is dropped
+        private final boolean[] wanted;
+        private final long[] activations;
+
+        // Counts of which expert this layer picked for a token after the previous layer picked another
+        private final long[][] transitions;
+        private int[] lastRouted;
+        private int routedSinceRebalance;
+
+        private Layer(int layerIndex, AbstractTensor[] w1, AbstractTensor[] w2, AbstractTensor[] w3) {
+            this.layerIndex = layerIndex;
+            this.mapped = new AbstractTensor[numberOfExperts][];
+            this.current = new AtomicReferenceArray<>(numberOfExperts);
+            for (int e = 0; e < numberOfExperts; e++) {
+                mapped[e] = new AbstractTensor[] { w1[e], w2[e], w3[e] };
+                current.set(e, mapped[e]);
+            }
+            this.pinned = new boolean[numberOfExperts];
+            this.pinning = new boolean[numberOfExperts];
+            this.wanted = new boolean[numberOfExperts];
+            this.activations = new long[numberOfExperts];
+            this.transitions = new long[numberOfExperts][numberOfExperts];
+        }
+
+        /**
+         * The {w1, w2, w3} weights to use for an expert, pinned copies when the expert is hot
+         */
+        public AbstractTensor[] weights(int expert) {
+            return current.get(expert);
+        }
+
+        public synchronized boolean isPinned(int expert) {
+            return pinned[expert];
+        }
+
+        /**
+         * Records the experts the gate picked for a batch, {@code numberOfExpertsPerToken} per token in order,
+         * and pages in what this layer and the next are about to read.
+         */
+        public void route(int[] routedExperts, int[] expertCounts) {
+            if (!DISABLE_PREFETCH) {
+                for (int e = 0; e < numberOfExperts; e++)
+                    if (expertCounts[e] > 0) prefetch(e);
+            }
+
+            synchronized (this) {
+                for (int e = 0; e < numberOfExperts; e++)
+                    activations[e] += expertCounts[e];
+
+                Layer prev = layerIndex > 0 ? layers[layerIndex - 1] : null;
+                if (prev != null) {
+                    int[] prevRouted = prev.lastRouted();
+                    if (prevRouted != null && prevRouted.length == routedExperts.length) recordTransitions(prevRouted, routedExperts);
+                }
+                lastRouted = routedExperts;
+
+                routedSinceRebalance += routedExperts.length;
+                if (pinnedExperts > 0 && routedSinceRebalance >= REBALANCE_INTERVAL) {
+                    routedSinceRebalance = 0;
+                    rebalance();
+                }
+            }
+
+            Layer next = layerIndex + 1 < layers.length ? layers[layerIndex + 1] : null;
+            if (next != null && !DISABLE_PREFETCH) {
+                for (int e : next.predict(routedExperts))
+                    next.prefetch(e);
+            }
+        }
+
+        private synchronized int[] lastRouted() {
+            return lastRouted;
+        }
+
+        private void recordTransitions(int[] prevRouted, int[] routedExperts) {
+            for (int t = 0; t < routedExperts.length; t += numberOfExpertsPerToken) {
+                for (int i = 0; i < numberOfExpertsPerToken; i++)
+                    for (int j = 0; j < numberOfExpertsPerToken; j++)
+                        transitions[prevRouted[t + i]][routedExperts[t + j]]++;
+            }
+        }
+
+        /**
+         * Guesses which experts this layer will pick given the previous layer's picks
+         */
+        synchronized int[] predict(int[] prevRouted) {
+            long[] score = new long[numberOfExperts];
+            long total = 0;
+            for (int e : prevRouted) {
+                for (int n = 0; n < numberOfExperts; n++) {
+                    score[n] += transitions[e][n];
+                    total += transitions[e][n];
+                }
+            }
+
+            if (total == 0) return new int[0];
+            return top(score, numberOfExpertsPerToken);
+        }
+
+        private void prefetch(int expert) {
+            AbstractTensor[] w = current.get(expert);
+            if (w != mapped[expert]) return;
+
+            pager.execute(() -> {
+                for (AbstractTensor t : w) {
+                    Optional<MemorySegment> s = t.mappedSegment();
+                    if (s.isPresent() && !s.get().isLoaded()) s.get().load();
+                }
+            });
+        }
+
+        /**
+         * Pins the most activated experts and releases the rest, halving the counts so routing changes are picked up
+         */
+        private void rebalance() {
+            int[] hot = top(activations, pinnedExperts);
+            boolean[] keep = new boolean[numberOfExperts];
+            for (int e : hot)
+                if (activations[e] > 0) keep[e] = true;
+
+            for (int e = 0; e < numberOfExperts; e++) {
+                wanted[e] = keep[e];
+                activations[e] >>= 1;
+                for (int n = 0; n < numberOfExperts; n++)
+                    transitions[e][n] >>= 1;
+
+                if (keep[e] && !pinned[e] && !pinning[e] && Arrays.stream(mapped[e]).allMatch(ExpertResidency::isPinnable)) {
+                    pinning[e] = true;
+                    int expert = e;
+                    pager.execute(() -> pin(expert));
+                } else if (!keep[e] && pinned[e]) {
+                    pinned[e] = false;
+                    current.set(e, mapped[e]);
+                    logger.debug("Unpinned expert {} of layer {}", e, layerIndex);
+                }
+            }
+        }
+
+        private void pin(int expert) {
+            AbstractTensor[] copies = new AbstractTensor[3];
+            for (int i = 0; i < 3; i++)
+                copies[i] = mapped[expert][i].copy();
+
+            synchronized (this) {
+                pinning[expert] = false;
+                if (!wanted[expert]) {
+                    logger.debug("Dropped pin of expert {} of layer {}, it went cold while copying", expert, layerIndex);
+                    return;
+                }
+                pinned[expert] = true;
+                current.set(expert, copies);
+            }
+
+            // The mapped pages are no longer read, let the OS drop them
+            for (AbstractTensor t : mapped[expert]) {
+                Optional<MemorySegment> s = t.mappedSegment();
+                s.ifPresent(MemorySegment::unload);
+            }
+
+            logger.debug("Pinned expert {} of layer {}", expert, layerIndex);
+        }
+    }
+
+    private static int[] top(long[] values, int k) {
+        Integer[] order = new Integer[values.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(values[b], values[a]));
+
+        int[] top = new int[k];
+        for (int i = 0; i < k; i++)
+            top[i] = order[i];
+        return top;
+    }
+}
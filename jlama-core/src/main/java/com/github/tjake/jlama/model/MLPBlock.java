@@ -42,7 +42,6 @@ public class MLPBlock implements FeedForward {
 
     private final ActivationFunction.Type activationFunction;
 
-    private final AbstractTensor[] batchResults;
     private final AbstractTensor[] batchWeights;
 
     public MLPBlock(
@@ -91,7 +90,6 @@ public class MLPBlock implements FeedForward {
         this.projectionBias = projectionBias;
         this.projectionWeights = projectionWeights;
         this.upProjectionWeights = upProjectionWeights;
-        this.batchResults = new AbstractTensor[2];
         this.batchWeights = new AbstractTensor[] { fullyConnectedWeights, upProjectionWeights };
 
         TensorOperationsProvider.get().registerModelTensor(fullyConnectedWeights);
@@ -111,8 +109,8 @@ public class MLPBlock implements FeedForward {
             AbstractTensor buf2 = model.makeTensor(batchSize, hiddenLength)
         ) {
 
-            batchResults[0] = buf;
-            batchResults[1] = buf2;
+            // Per call, sessions can run through the same block from different threads
+            AbstractTensor[] batchResults = new AbstractTensor[] { buf, buf2 };
 
             VectorMath.pchunk(dctx.hiddenSegmentStart, dctx.hiddenSegmentLength, (chunkStart, chunkSize) -> {
                 if (upProjectionWeights != null) {
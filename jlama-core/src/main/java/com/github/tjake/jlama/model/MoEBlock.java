@@ -19,13 +19,15 @@ import com.github.tjake.jlama.math.ActivationFunction;
 import com.github.tjake.jlama.math.VectorMath;
 import com.github.tjake.jlama.model.functions.FeedForward;
 import com.github.tjake.jlama.tensor.AbstractTensor;
-import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import com.github.tjake.jlama.tensor.TensorShape;
 import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
 import java.util.*;
 import java.util.function.Consumer;
 
 /**
  * A Mixture of Experts block. See https://huggingface.co/blog/moe for more details
+ *
+ * Expert weights are read through an {@link ExpertResidency.Layer} which keeps the hot ones in memory.
  */
 public class MoEBlock implements FeedForward {
 
@@ -34,15 +36,9 @@ public class MoEBlock implements FeedForward {
     private final AbstractTensor moeGateWeight;
     private final int numberOfExperts;
     private final int numberOfExpertsPerToken;
-    private final AbstractTensor fullyConnectedWeights[];
-    private final AbstractTensor projectionWeights[];
-    private final AbstractTensor upProjectionWeights[];
-    private final FloatBufferTensor expertResults;
-    private final int[] selectedExperts;
+    private final ExpertResidency.Layer experts;
     private final ActivationFunction.Type activationFunction;
 
-    private final AbstractTensor[] batchResults;
-    private final AbstractTensor[] batchWeights;
 
     public MoEBlock(
         AbstractModel model,
@@ -53,6 +49,30 @@ public class MoEBlock implements FeedForward {
         AbstractTensor[] fullyConnectedWeights,
         AbstractTensor[] projectionWeights,
         AbstractTensor[] upProjectionWeights
+    ) {
+        this(
+            model,
+            numberOfExperts,
+            numberOfExpertsPerToken,
+            activationFunction,
+            moeGateWeight,
+            ExpertResidency.standalone(
+                numberOfExperts,
+                numberOfExpertsPerToken,
+                fullyConnectedWeights, // w1
+                projectionWeights, // w2
+                upProjectionWeights // w3
+            )
+        );
+    }
+
+    public MoEBlock(
+        AbstractModel model,
+        int numberOfExperts,
+        int numberOfExpertsPerToken,
+        ActivationFunction.Type activationFunction,
+        AbstractTensor moeGateWeight,
+        ExpertResidency.Layer experts
     ) {
         this.model = model;
         this.dctx = model.c.dctx();
@@ -60,110 +80,152 @@ public class MoEBlock implements FeedForward {
         this.numberOfExpertsPerToken = numberOfExpertsPerToken;
         this.moeGateWeight = moeGateWeight;
         this.activationFunction = activationFunction;
-        this.fullyConnectedWeights = fullyConnectedWeights;
-        this.projectionWeights = projectionWeights;
-        this.upProjectionWeights = upProjectionWeights;
-        this.expertResults = new FloatBufferTensor(numberOfExperts);
-        this.selectedExperts = new int[numberOfExpertsPerToken];
-        this.batchResults = new AbstractTensor[2];
-        this.batchWeights = new AbstractTensor[2];
+        this.experts = experts;
     }
 
+    /**
+     * Routes the whole batch first, then runs each selected expert once over all the tokens routed to it,
+     * so each expert's weights are read once per batch rather than once per token.
+     */
     @Override
     public AbstractTensor forward(AbstractTensor lnemb, Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
         int batchSize = lnemb.shape().first();
+        int embeddingLength = model.c.embeddingLength;
 
-        int hiddenLength = model.c.hiddenLength;
-        AbstractTensor result = model.makeTensor(batchSize, model.c.embeddingLength);
-
-        try (
-            AbstractTensor buf = model.makeTensor(1, hiddenLength);
-            AbstractTensor buf2 = model.makeTensor(1, hiddenLength);
-            AbstractTensor moeResult = model.makeTensor(1, model.c.embeddingLength)
-        ) {
-
-            for (int b = 0; b < batchSize; b++) {
-                AbstractTensor lnembSlice = lnemb.slice(true, b);
-                // Apply each experts gate to the input
-                VectorMath.pfor(0, numberOfExperts, i -> {
-                    expertResults.set(
-                        TensorOperationsProvider.get().dotProduct(lnembSlice, moeGateWeight.slice(true, i), 0, 0, model.c.embeddingLength),
-                        0,
-                        i
-                    );
-                });
+        // The experts picked for each token with their weights, and how many tokens each expert gets
+        int[] expertCounts = new int[numberOfExperts];
+        int[] routedExperts = new int[batchSize * numberOfExpertsPerToken];
+        float[] routedWeights = new float[batchSize * numberOfExpertsPerToken];
 
-                // Pick the top experts for this token
-                VectorMath.softMax(expertResults, 0, numberOfExperts);
-                topk(expertResults);
+        // Score every token against every expert gate in one batched matmul
+        try (AbstractTensor gateScores = model.makeDenseTensor(batchSize, numberOfExperts)) {
+            TensorOperationsProvider.get().dotProductChunk(gateScores, lnemb, moeGateWeight, 0, embeddingLength, 0, numberOfExperts);
 
-                // Apply the selected experts to the input
-                for (int i = 0; i < numberOfExpertsPerToken; i++) {
-                    batchWeights[0] = fullyConnectedWeights[selectedExperts[i]];
-                    batchWeights[1] = upProjectionWeights[selectedExperts[i]];
-                    AbstractTensor projectionWeight = projectionWeights[selectedExperts[i]];
-                    batchResults[0] = buf;
-                    batchResults[1] = buf2;
+            for (int b = 0; b < batchSize; b++)
+                selectExperts(gateScores, b, routedExperts, routedWeights, b * numberOfExpertsPerToken);
+        }
 
-                    VectorMath.pchunk(dctx.hiddenSegmentStart, dctx.hiddenSegmentLength, (chunkStart, chunkSize) -> {
-                        TensorOperationsProvider.get()
-                            .dotProductBatchChunk(
-                                batchResults,
-                                lnembSlice,
-                                batchWeights,
-                                0,
-                                model.c.embeddingLength,
-                                chunkStart,
-                                chunkSize
-                            );
-                    });
-
-                    VectorMath.pfor(dctx.hiddenSegmentStart, dctx.hiddenSegmentEnd, iv -> {
-                        float w1 = buf.get(0, iv);
-                        float w1a = ActivationFunction.eval(activationFunction, w1);
-                        buf.set(w1a, 0, iv);
-                    });
-
-                    TensorOperationsProvider.get().maccumulate(buf, buf2, dctx.hiddenSegmentStart, dctx.hiddenSegmentLength);
-
-                    tensorReducer.ifPresent(func -> func.accept(Collections.singletonList(buf)));
-
-                    // matmul the projection and sum into result
-                    try (AbstractTensor bufq = model.maybeQuantize(buf)) {
-                        VectorMath.pchunk(0, model.c.embeddingLength, (chunkStart, chunkSize) -> {
-                            TensorOperationsProvider.get()
-                                .dotProductChunk(moeResult, bufq, projectionWeight, 0, hiddenLength, chunkStart, chunkSize);
-                        });
-                    }
+        for (int e : routedExperts)
+            expertCounts[e]++;
+
+        // Bucket the token indexes by expert
+        int[] expertStarts = new int[numberOfExperts + 1];
+        for (int e = 0; e < numberOfExperts; e++)
+            expertStarts[e + 1] = expertStarts[e] + expertCounts[e];
+
+        int[] fill = Arrays.copyOf(expertStarts, numberOfExperts);
+        int[] tokens = new int[routedExperts.length];
+        float[] weights = new float[routedExperts.length];
+        for (int r = 0; r < routedExperts.length; r++) {
+            int slot = fill[routedExperts[r]]++;
+            tokens[slot] = r / numberOfExpertsPerToken;
+            weights[slot] = routedWeights[r];
+        }
+
+        experts.route(routedExperts, expertCounts);
+
+        AbstractTensor result = model.makeTensor(batchSize, embeddingLength);
+        for (int e = 0; e < numberOfExperts; e++) {
+            int count = expertCounts[e];
+            if (count == 0) continue;
 
-                    if (i == 0) {
-                        result.copyFrom(moeResult, 0, 0, model.c.embeddingLength);
-                    } else {
-                        TensorOperationsProvider.get().accumulate(result.slice(b), moeResult, 0, model.c.embeddingLength);
+            try (AbstractTensor input = model.c.tensorCache.get(lnemb.dType(), TensorShape.of(count, embeddingLength))) {
+                for (int k = 0; k < count; k++)
+                    input.copyFrom(lnemb, lnemb.getOffset(tokens[expertStarts[e] + k], 0), input.getOffset(k, 0), embeddingLength);
+
+                try (AbstractTensor output = expertForward(e, input)) {
+                    // Scatter the weighted expert output back to each token
+                    for (int k = 0; k < count; k++) {
+                        int slot = expertStarts[e] + k;
+                        TensorOperationsProvider.get()
+                            .saxpy(weights[slot], output.slice(k), result.slice(tokens[slot]), 0, 0, embeddingLength);
                     }
                 }
             }
-
-            return result;
         }
+
+        tensorReducer.ifPresent(func -> func.accept(Collections.singletonList(result)));
+
+        return result;
     }
 
-    private int[] topk(FloatBufferTensor probs) {
-        long length = probs.size();
-        for (int i = 0; i < numberOfExpertsPerToken; i++) {
-            selectedExperts[i] = i;
-        }
-        for (int i = numberOfExpertsPerToken; i < length; i++) {
-            int min = 0;
-            for (int j = 1; j < numberOfExpertsPerToken; j++) {
-                if (probs.get(0, selectedExperts[j]) < probs.get(0, selectedExperts[min])) {
-                    min = j;
+    /**
+     * Runs one expert's feed forward over a batch of tokens
+     */
+    private AbstractTensor expertForward(int expert, AbstractTensor input) {
+        int count = input.shape().first();
+        int hiddenLength = model.c.hiddenLength;
+        AbstractTensor[] w = experts.weights(expert);
+
+        try (AbstractTensor buf = model.makeTensor(count, hiddenLength); AbstractTensor buf2 = model.makeTensor(count, hiddenLength)) {
+            AbstractTensor[] batchResults = new AbstractTensor[] { buf, buf2 };
+            AbstractTensor[] batchWeights = new AbstractTensor[] { w[0], w[2] };
+
+            VectorMath.pchunk(dctx.hiddenSegmentStart, dctx.hiddenSegmentLength, (chunkStart, chunkSize) -> {
+                TensorOperationsProvider.get()
+                    .dotProductBatchChunk(batchResults, input, batchWeights, 0, model.c.embeddingLength, chunkStart, chunkSize);
+            });
+
+            VectorMath.pfor(dctx.hiddenSegmentStart, dctx.hiddenSegmentEnd, iv -> {
+                for (int k = 0; k < count; k++) {
+                    float w1 = buf.get(k, iv);
+                    buf.set(ActivationFunction.eval(activationFunction, w1), k, iv);
                 }
+            });
+
+            TensorOperationsProvider.get().maccumulate(buf, buf2, dctx.hiddenSegmentStart, dctx.hiddenSegmentLength);
+
+            // matmul the projection of this shard of the hidden layer
+            AbstractTensor output = model.makeTensor(count, model.c.embeddingLength);
+            try (AbstractTensor bufq = model.maybeQuantize(buf)) {
+                VectorMath.pchunk(0, model.c.embeddingLength, (chunkStart, chunkSize) -> {
+                    TensorOperationsProvider.get()
+                        .dotProductChunk(
+                            output,
+                            bufq,
+                            w[1],
+                            dctx.hiddenSegmentStart,
+                            dctx.hiddenSegmentLength,
+                            chunkStart,
+                            chunkSize
+                        );
+                });
             }
-            if (probs.get(0, i) > probs.get(0, selectedExperts[min])) {
-                selectedExperts[min] = i;
+
+            return output;
+        }
+    }
+
+    /**
+     * Fused softmax and top-k over one row of gate scores.
+     *
+     * Keeps the k highest scores in a small sorted array, then normalizes them with a softmax over just those k,
+     * which equals the full softmax renormalized over the top-k since the other terms cancel out.
+     */
+    private void selectExperts(AbstractTensor gateScores, int row, int[] experts, float[] weights, int offset) {
+        int k = numberOfExpertsPerToken;
+        int found = 0;
+        for (int e = 0; e < numberOfExperts; e++) {
+            float score = gateScores.get(row, e);
+            if (found == k && score <= weights[offset + k - 1]) continue;
+
+            int i = found < k ? found++ : k - 1;
+            for (; i > 0 && weights[offset + i - 1] < score; i--) {
+                weights[offset + i] = weights[offset + i - 1];
+                experts[offset + i] = experts[offset + i - 1];
             }
+            weights[offset + i] = score;
+            experts[offset + i] = e;
+        }
+
+        float max = weights[offset];
+        float sum = 0;
+        for (int i = 0; i < k; i++) {
+            float v = (float) Math.exp(weights[offset + i] - max);
+            weights[offset + i] = v;
+            sum += v;
         }
-        return selectedExperts;
+        for (int i = 0; i < k; i++)
+            weights[offset + i] /= sum;
     }
 }
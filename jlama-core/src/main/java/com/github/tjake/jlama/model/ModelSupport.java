@@ -30,6 +30,7 @@ import com.github.tjake.jlama.safetensors.SafeTensorSupport;
 import com.github.tjake.jlama.safetensors.WeightLoader;
 import com.github.tjake.jlama.safetensors.tokenizer.Tokenizer;
 import com.github.tjake.jlama.util.PhysicalCoreExecutor;
+import com.github.tjake.jlama.util.ProgressReporter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,6 +42,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 
 import static com.github.tjake.jlama.util.JsonSupport.om;
@@ -118,6 +120,27 @@ public class ModelSupport {
         DType workingQuantizationType,
         Optional<DType> modelQuantization,
         Optional<Integer> threadCount
+    ) {
+        return loadModel(
+            model,
+            workingDirectory,
+            workingMemoryType,
+            workingQuantizationType,
+            modelQuantization,
+            threadCount,
+            Optional.empty()
+        );
+    }
+
+    /** Same as above, reporting the progress of warming up the weights when jlama.warmup_weights is set */
+    public static AbstractModel loadModel(
+        File model,
+        File workingDirectory,
+        DType workingMemoryType,
+        DType workingQuantizationType,
+        Optional<DType> modelQuantization,
+        Optional<Integer> threadCount,
+        Optional<ProgressReporter> progressReporter
     ) {
         return loadModel(
             AbstractModel.InferenceType.FULL_GENERATION,
@@ -128,7 +151,7 @@ public class ModelSupport {
             modelQuantization,
             threadCount,
             Optional.empty(),
-            SafeTensorSupport::loadWeights
+            (b, c) -> SafeTensorSupport.loadWeights(b, progressReporter, Optional.of(c.dctx()))
         );
     }
 
@@ -143,6 +166,34 @@ public class ModelSupport {
         Optional<Function<Config, DistributedContext>> distributedContextLoader,
         Function<File, WeightLoader> weightLoaderSupplier
     ) {
+        return loadModel(
+            inferenceType,
+            model,
+            workingDirectory,
+            workingMemoryType,
+            workingQuantizationType,
+            modelQuantization,
+            threadCount,
+            distributedContextLoader,
+            (b, c) -> weightLoaderSupplier.apply(b)
+        );
+    }
+
+    /**
+     * Loads a model, the weight loader is given the model directory and the config once its distributed context is set,
+     * so it can skip the work for layers this node doesn't hold
+     */
+    public static AbstractModel loadModel(
+        AbstractModel.InferenceType inferenceType,
+        File model,
+        File workingDirectory,
+        DType workingMemoryType,
+        DType workingQuantizationType,
+        Optional<DType> modelQuantization,
+        Optional<Integer> threadCount,
+        Optional<Function<Config, DistributedContext>> distributedContextLoader,
+        BiFunction<File, Config, WeightLoader> weightLoaderSupplier
+    ) {
 
         if (!model.exists()) {
             throw new IllegalArgumentException("Model location does not exist: " + model);
@@ -177,7 +228,7 @@ public class ModelSupport {
             c.setWorkingDirectory(workingDirectory);
 
             Tokenizer t = modelType.getTokenizerClass().getConstructor(Path.class).newInstance(baseDir.toPath());
-            WeightLoader wl = weightLoaderSupplier.apply(baseDir);
+            WeightLoader wl = weightLoaderSupplier.apply(baseDir, c);
 
             return modelType.getModelClass()
                 .getConstructor(
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.model;
+
+import java.util.Arrays;
+
+/**
+ * Proposes tokens by finding the most recent earlier occurrence of the trailing n-gram in the prompt and
+ * output so far, and copying what followed it.  This needs no second model and works well when the
+ * response quotes its context, like code edits or answers over retrieved documents.
+ */
+class PromptLookupDrafter implements TokenDrafter {
+    private final int maxNgramSize;
+    private int[] history;
+    private int length;
+
+    PromptLookupDrafter(int maxNgramSize) {
+        this.maxNgramSize = maxNgramSize;
+        this.history = new int[256];
+        this.length = 0;
+    }
+
+    @Override
+    public void prefill(int[] promptTokens, int startPos) {
+        for (int token : promptTokens)
+            append(token);
+    }
+
+    @Override
+    public int limit() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int propose(int[] proposal, int position, int maxTokens) {
+        if (maxTokens == 0) return 0;
+
+        // Longest n-gram first, it is the most likely to continue the same way
+        for (int n = Math.min(maxNgramSize, length); n > 0; n--) {
+            int suffix = length - n;
+            for (int start = suffix - 1; start >= 0; start--) {
+                if (!matches(start, suffix, n)) continue;
+
+                int count = Math.min(maxTokens, length - (start + n));
+                System.arraycopy(history, start + n, proposal, 1, count);
+                return count;
+            }
+        }
+
+        return 0;
+    }
+
+    private boolean matches(int start, int suffix, int n) {
+        for (int i = 0; i < n; i++)
+            if (history[start + i] != history[suffix + i]) return false;
+
+        return true;
+    }
+
+    @Override
+    public float[] distribution(int j) {
+        return null;
+    }
+
+    @Override
+    public void verified(int[] proposal, int position, int proposed, int accepted) {}
+
+    @Override
+    public void appended(int token) {
+        append(token);
+    }
+
+    @Override
+    public void fed(int contextPosition) {}
+
+    private void append(int token) {
+        if (length == history.length) history = Arrays.copyOf(history, length * 2);
+        history[length++] = token;
+    }
+
+    @Override
+    public void close() {}
+}
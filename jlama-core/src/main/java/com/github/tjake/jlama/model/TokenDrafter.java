@@ -0,0 +1,68 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.model;
+
+/**
+ * Proposes tokens for speculative decoding, which the target model then verifies in a single batched forward pass.
+ *
+ * @see AbstractModel#generateSpeculative
+ * @see AbstractModel#generatePromptLookup
+ */
+interface TokenDrafter extends AutoCloseable {
+
+    /**
+     * Called once with the prompt before any proposals are made
+     */
+    void prefill(int[] promptTokens, int startPos);
+
+    /**
+     * The first position the drafter can no longer propose for, or {@link Integer#MAX_VALUE} for no limit
+     */
+    int limit();
+
+    /**
+     * Proposes up to maxTokens tokens following proposal[0], which will be fed at position.
+     * Proposals are written to proposal[1..n].
+     *
+     * @return n, the number of tokens proposed
+     */
+    int propose(int[] proposal, int position, int maxTokens);
+
+    /**
+     * The distribution the j'th proposal was drawn from, or null when the proposal was deterministic
+     * (all the mass on the proposed token)
+     */
+    float[] distribution(int j);
+
+    /**
+     * Called after verification with the number of proposals the target accepted
+     */
+    void verified(int[] proposal, int position, int proposed, int accepted);
+
+    /**
+     * Called for every token added to the output, in order, before it has been fed
+     */
+    void appended(int token);
+
+    /**
+     * Called when the target counts a fed token in the session, with its context position before counting it.
+     * Drafters with their own kv buffer advance it here so both stay aligned across calls
+     */
+    void fed(int contextPosition);
+
+    @Override
+    void close();
+}
@@ -161,6 +161,27 @@ public class TransformerBlock {
         KvBufferCache.KvBuffer kvBuffer,
         Optional<Consumer<List<AbstractTensor>>> tensorReducer
     ) {
+        int batchSize = embedding.shape().first();
+        int[] positions = new int[batchSize];
+        KvBufferCache.KvBuffer[] kvBuffers = new KvBufferCache.KvBuffer[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            positions[i] = position + i;
+            kvBuffers[i] = kvBuffer;
+        }
+
+        return forward(embedding, positions, kvBuffers, tensorReducer);
+    }
+
+    /**
+     * Forward pass where each row of the batch has its own position and kv buffer,
+     * used to step multiple sessions through the layer at once.
+     */
+    public AbstractTensor forward(
+        AbstractTensor embedding,
+        int[] positions,
+        KvBufferCache.KvBuffer[] kvBuffers,
+        Optional<Consumer<List<AbstractTensor>>> tensorReducer
+    ) {
 
         debug("input_emb", embedding, layerIndex);
 
@@ -170,7 +191,7 @@ public class TransformerBlock {
 
         AbstractTensor postAttention;
         try (AbstractTensor qlnemb = model.maybeQuantize(lnemb)) {
-            postAttention = attention.forward(qlnemb, position, kvBuffer, tensorReducer);
+            postAttention = attention.forward(qlnemb, positions, kvBuffers, tensorReducer);
         }
 
         debug("post_attn", postAttention, layerIndex);
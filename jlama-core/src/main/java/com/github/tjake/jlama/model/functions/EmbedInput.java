@@ -28,9 +28,20 @@ public interface EmbedInput {
     AbstractTensor inputTokenToEmbedding(int inputToken, int position);
 
     default AbstractTensor batchInputsToEmbeddings(int[] inputTokens, int startPos) {
-        Preconditions.checkArgument(inputTokens.length > 0);
+        int[] positions = new int[inputTokens.length];
+        for (int i = 0; i < positions.length; i++)
+            positions[i] = startPos + i;
 
-        AbstractTensor t = inputTokenToEmbedding(inputTokens[0], startPos);
+        return batchInputsToEmbeddings(inputTokens, positions);
+    }
+
+    /**
+     * Embeds a batch of tokens where each token has its own position (e.g. tokens from different sessions)
+     */
+    default AbstractTensor batchInputsToEmbeddings(int[] inputTokens, int[] positions) {
+        Preconditions.checkArgument(inputTokens.length > 0 && inputTokens.length == positions.length);
+
+        AbstractTensor t = inputTokenToEmbedding(inputTokens[0], positions[0]);
         if (inputTokens.length == 1) return t;
 
         TensorShape tbs = TensorShape.of(inputTokens.length, t.shape().last());
@@ -40,7 +51,7 @@ public interface EmbedInput {
         t.close();
 
         VectorMath.pfor(1, inputTokens.length, i -> {
-            AbstractTensor ti = inputTokenToEmbedding(inputTokens[i], startPos + i);
+            AbstractTensor ti = inputTokenToEmbedding(inputTokens[i], positions[i]);
             tb.copyFrom(ti, 0, i * ti.shape().last(), ti.shape().last());
             ti.close();
         });
@@ -144,6 +144,82 @@ public interface Generator extends Closeable {
         return generate(session, promptContext, temperature, ntokens, (s, aFloat) -> {});
     }
 
+    /**
+     * Generate tokens from a prompt, picking each token with the given sampler
+     *
+     * @param session the session id
+     * @param promptContext the prompt context
+     * @param sampler the sampling settings
+     * @param ntokens the number of tokens to generate
+     * @param onTokenWithTimings a callback for each token generated
+     * @return the response
+     */
+    default Response generate(
+        UUID session,
+        PromptContext promptContext,
+        Sampler sampler,
+        int ntokens,
+        BiConsumer<String, Float> onTokenWithTimings
+    ) {
+        if (!sampler.isTemperatureOnly()) {
+            throw new UnsupportedOperationException("Only temperature sampling is supported by this model");
+        }
+
+        return generate(session, promptContext, sampler.temperature, ntokens, onTokenWithTimings);
+    }
+
+    /**
+     * Generate tokens from a prompt using a smaller draft model to propose tokens,
+     * which are then verified together in a single pass of this model.
+     * The output follows the same distribution as {@link #generate}.
+     *
+     * @param session the session id
+     * @param promptContext the prompt context
+     * @param draftModel the draft model, must share this model's vocabulary
+     * @param draftTokens the number of tokens to propose per step
+     * @param sampler the sampling settings, repetition penalty is not supported
+     * @param ntokens the number of tokens to generate
+     * @param onTokenWithTimings a callback for each token generated
+     * @return the response
+     */
+    default Response generateSpeculative(
+        UUID session,
+        PromptContext promptContext,
+        Generator draftModel,
+        int draftTokens,
+        Sampler sampler,
+        int ntokens,
+        BiConsumer<String, Float> onTokenWithTimings
+    ) {
+        throw new UnsupportedOperationException("Speculative decoding not supported by this model");
+    }
+
+    /**
+     * Generate tokens from a prompt using speculative decoding without a draft model.
+     * Tokens are proposed by matching the trailing n-gram against the prompt and the output so far,
+     * which is effective when the response copies spans of its context.
+     *
+     * @param session the session id
+     * @param promptContext the prompt context
+     * @param ngramSize the longest n-gram to match
+     * @param draftTokens the maximum number of tokens to propose per step
+     * @param sampler the sampling settings, repetition penalty is not supported
+     * @param ntokens the number of tokens to generate
+     * @param onTokenWithTimings a callback for each token generated
+     * @return the response
+     */
+    default Response generatePromptLookup(
+        UUID session,
+        PromptContext promptContext,
+        int ngramSize,
+        int draftTokens,
+        Sampler sampler,
+        int ntokens,
+        BiConsumer<String, Float> onTokenWithTimings
+    ) {
+        throw new UnsupportedOperationException("Prompt lookup decoding not supported by this model");
+    }
+
     default GenerateBuilder generateBuilder() {
         return new GenerateBuilder(this);
     }
@@ -183,8 +259,17 @@ public interface Generator extends Closeable {
         private UUID session = UUID.randomUUID();
         private PromptContext promptContext;
         private float temperature = 0.0f;
+        private int topK = 0;
+        private float topP = 1.0f;
+        private float minP = 0.0f;
+        private float repetitionPenalty = 1.0f;
+        private Optional<BitSet> allowedTokens = Optional.empty();
+        private Optional<TokenConstraint> constraint = Optional.empty();
         private int ntokens = 256;
         private BiConsumer<String, Float> onTokenWithTimings = (s, aFloat) -> {};
+        private Generator draftModel;
+        private int draftTokens = 4;
+        private int promptLookupNgramSize = 0;
         private final Generator generator;
 
         public GenerateBuilder(Generator generator) {
@@ -221,6 +306,67 @@ public interface Generator extends Closeable {
             return this;
         }
 
+        /**
+         * Only sample from the k most likely tokens, zero disables
+         */
+        public GenerateBuilder topK(int topK) {
+            this.topK = topK;
+
+            return this;
+        }
+
+        /**
+         * Only sample from the most likely tokens whose probability sums to topP, one disables
+         */
+        public GenerateBuilder topP(float topP) {
+            this.topP = topP;
+
+            return this;
+        }
+
+        /**
+         * Drop tokens less likely than minP times the most likely token, zero disables
+         */
+        public GenerateBuilder minP(float minP) {
+            this.minP = minP;
+
+            return this;
+        }
+
+        /**
+         * Penalize recently seen tokens, one disables
+         */
+        public GenerateBuilder repetitionPenalty(float repetitionPenalty) {
+            this.repetitionPenalty = repetitionPenalty;
+
+            return this;
+        }
+
+        /**
+         * Only sample from these tokens, the logits for the rest are never computed
+         */
+        public GenerateBuilder allowedTokens(BitSet allowedTokens) {
+            this.allowedTokens = Optional.of(allowedTokens);
+
+            return this;
+        }
+
+        /**
+         * Only generate output matching the constraint
+         */
+        public GenerateBuilder constraint(TokenConstraint constraint) {
+            this.constraint = Optional.of(constraint);
+
+            return this;
+        }
+
+        /**
+         * Only generate JSON matching the schema
+         */
+        public GenerateBuilder jsonSchema(String jsonSchema) {
+            return constraint(JsonConstraint.of(generator, jsonSchema));
+        }
+
         public GenerateBuilder ntokens(int ntokens) {
             this.ntokens = ntokens;
 
@@ -233,12 +379,51 @@ public interface Generator extends Closeable {
             return this;
         }
 
+        public GenerateBuilder draftModel(Generator draftModel) {
+            this.draftModel = draftModel;
+
+            return this;
+        }
+
+        public GenerateBuilder draftTokens(int draftTokens) {
+            this.draftTokens = draftTokens;
+
+            return this;
+        }
+
+        /**
+         * Enables draft-free speculative decoding by matching n-grams up to this size against the prompt.
+         */
+        public GenerateBuilder promptLookup(int ngramSize) {
+            this.promptLookupNgramSize = ngramSize;
+
+            return this;
+        }
+
         public Response generate() {
             if (promptContext == null) {
                 throw new IllegalArgumentException("promptContext cannot be null");
             }
 
-            return generator.generate(session, promptContext, temperature, ntokens, onTokenWithTimings);
+            Sampler sampler = new Sampler(temperature, topK, topP, minP, repetitionPenalty, allowedTokens, constraint);
+
+            if (draftModel != null) {
+                return generator.generateSpeculative(session, promptContext, draftModel, draftTokens, sampler, ntokens, onTokenWithTimings);
+            }
+
+            if (promptLookupNgramSize > 0) {
+                return generator.generatePromptLookup(
+                    session,
+                    promptContext,
+                    promptLookupNgramSize,
+                    draftTokens,
+                    sampler,
+                    ntokens,
+                    onTokenWithTimings
+                );
+            }
+
+            return generator.generate(session, promptContext, sampler, ntokens, onTokenWithTimings);
         }
     }
 }
@@ -0,0 +1,577 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.model.functions;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.github.tjake.jlama.safetensors.Config;
+import com.github.tjake.jlama.safetensors.tokenizer.Tokenizer;
+import com.github.tjake.jlama.util.JsonSupport;
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Constrains generation to a single JSON value, optionally matching a JSON schema.
+ *
+ * The grammar is a character level pushdown automaton.  The allowed tokens for an automaton state are
+ * found by walking the vocabulary in sorted order, so tokens sharing a prefix only step the automaton
+ * once for it and a rejected prefix skips every token starting with it.  The masks are cached per state,
+ * so a state only pays this the first time it is seen.
+ *
+ * The supported schema keywords are type, properties, items, enum and const.  Object properties are
+ * generated in their declared order and all of them are emitted.  Anything else matches any JSON value.
+ */
+public class JsonConstraint implements TokenConstraint {
+    // Limit consecutive whitespace so the model can't pad forever between tokens
+    private static final int MAX_WHITESPACE = Integer.getInteger("jlama.json_max_whitespace", 4);
+    private static final int MAX_CACHED_MASKS = Integer.getInteger("jlama.json_max_cached_masks", 4096);
+
+    // Sorting the vocabulary is the expensive part of compiling, share it between constraints
+    private static final Map<Tokenizer, Vocabulary> vocabularies = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final Vocabulary vocabulary;
+    private final BitSet eosTokens;
+    private final State start;
+    private final ConcurrentMap<State, BitSet> masks;
+
+    /**
+     * Matches any JSON value
+     */
+    public static JsonConstraint of(Generator model) {
+        return new JsonConstraint(model.getTokenizer(), model.getConfig(), Schema.ANY);
+    }
+
+    /**
+     * Matches JSON values valid for the schema
+     */
+    public static JsonConstraint of(Generator model, String jsonSchema) {
+        return of(model.getTokenizer(), model.getConfig(), jsonSchema);
+    }
+
+    public static JsonConstraint of(Tokenizer tokenizer, Config c, String jsonSchema) {
+        try {
+            return new JsonConstraint(tokenizer, c, Schema.compile(JsonSupport.om.readTree(jsonSchema)));
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Invalid JSON schema", e);
+        }
+    }
+
+    private JsonConstraint(Tokenizer tokenizer, Config c, Schema schema) {
+        this.vocabulary = vocabularies.computeIfAbsent(tokenizer, t -> new Vocabulary(t, c.vocabularySize));
+        this.eosTokens = new BitSet(c.vocabularySize);
+        c.eosTokens.forEach(eosTokens::set);
+        this.start = new State(new Node(new ValueFrame(schema), null), 0);
+        this.masks = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public Matcher matcher() {
+        return new JsonMatcher();
+    }
+
+    private class JsonMatcher implements Matcher {
+        private State state = start;
+        private boolean finished = false;
+
+        @Override
+        public BitSet allowedTokens() {
+            if (finished) return eosTokens;
+
+            BitSet mask = masks.get(state);
+            if (mask == null) {
+                if (masks.size() >= MAX_CACHED_MASKS) masks.clear();
+
+                mask = computeMask(state);
+                masks.put(state, mask);
+            }
+
+            return mask;
+        }
+
+        @Override
+        public void accept(int token) {
+            if (eosTokens.get(token)) {
+                Preconditions.checkState(state.isComplete(), "End of output before the JSON value is complete");
+                finished = true;
+                return;
+            }
+
+            String text = token < vocabulary.tokens.length ? vocabulary.tokens[token] : null;
+            Preconditions.checkState(text != null && !finished, "Token %s is not allowed here", token);
+
+            State next = state;
+            for (int i = 0; i < text.length() && next != null; i++)
+                next = step(next, text.charAt(i));
+
+            Preconditions.checkState(next != null, "Token %s is not allowed here", token);
+            state = next;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return finished || state.isComplete();
+        }
+    }
+
+    private BitSet computeMask(State from) {
+        BitSet mask = new BitSet(vocabulary.tokens.length);
+        State[] states = new State[vocabulary.maxLength + 1];
+        states[0] = from;
+
+        int reached = 0; // states[0..reached] are valid for the previous walked token
+        int rejected = Integer.MAX_VALUE; // length of the previous token's prefix that was rejected
+
+        for (int k = 0; k < vocabulary.sortedIds.length; k++) {
+            int id = vocabulary.sortedIds[k];
+            int shared = vocabulary.sharedPrefix[k];
+
+            // Starts with a prefix we already know is rejected
+            if (rejected <= shared) continue;
+
+            String text = vocabulary.tokens[id];
+            int d = Math.min(shared, reached);
+            rejected = Integer.MAX_VALUE;
+            for (; d < text.length(); d++) {
+                State next = step(states[d], text.charAt(d));
+                if (next == null) {
+                    rejected = d + 1;
+                    break;
+                }
+                states[d + 1] = next;
+            }
+
+            reached = d;
+            if (rejected == Integer.MAX_VALUE) mask.set(id);
+        }
+
+        if (from.isComplete()) mask.or(eosTokens);
+
+        return mask;
+    }
+
+    /**
+     * Advances the automaton by one character
+     * @return the next state, or null if the character is rejected
+     */
+    static State step(State state, char c) {
+        Node stack = state.stack;
+        while (stack != null) {
+            Transition t = stack.top.next(c);
+            if (t == null) return null;
+
+            Node next = t.top != null ? new Node(t.top, stack.rest) : stack.rest;
+            if (t.child != null) next = new Node(t.child, next);
+
+            if (t.consumed) {
+                int whitespace = t.whitespace ? state.whitespace + 1 : 0;
+                return whitespace > MAX_WHITESPACE ? null : new State(next, whitespace);
+            }
+
+            // Not consumed, feed it to the new top
+            stack = next;
+        }
+
+        // The value is already complete
+        return null;
+    }
+
+    record State(Node stack, int whitespace) {
+        boolean isComplete() {
+            return stack == null || (stack.rest == null && stack.top.canEnd());
+        }
+    }
+
+    record Node(Frame top, Node rest) {}
+
+    /**
+     * What a frame does with the next character.  A null top pops the frame, a child is pushed above the top.
+     * When the character isn't consumed it is fed to whatever frame ends up on top.
+     */
+    record Transition(Frame top, Frame child, boolean consumed, boolean whitespace) {
+        static Transition consume(Frame next) {
+            return new Transition(next, null, true, false);
+        }
+
+        static Transition consume(Frame next, Frame child) {
+            return new Transition(next, child, true, false);
+        }
+
+        static Transition replace(Frame next) {
+            return new Transition(next, null, false, false);
+        }
+
+        static Transition push(Frame next, Frame child) {
+            return new Transition(next, child, false, false);
+        }
+
+        static Transition pop() {
+            return new Transition(null, null, false, false);
+        }
+
+        static Transition whitespace(Frame self) {
+            return new Transition(self, null, true, true);
+        }
+    }
+
+    sealed interface Frame permits ValueFrame, LiteralFrame, StringFrame, NumberFrame, ObjectFrame, ArrayFrame {
+        Transition next(char c);
+
+        /**
+         * True if the value is complete here but could also continue, like a number
+         */
+        default boolean canEnd() {
+            return false;
+        }
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isHexDigit(char c) {
+        return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    /**
+     * The start of any value, picks the concrete frame from the first character
+     */
+    record ValueFrame(Schema schema) implements Frame {
+        @Override
+        public Transition next(char c) {
+            if (isWhitespace(c)) return Transition.whitespace(this);
+
+            return switch (schema.type) {
+                case LITERAL -> Transition.replace(new LiteralFrame(schema.literals, 0));
+                case STRING -> c == '"' ? Transition.consume(new StringFrame(0)) : null;
+                case NUMBER, INTEGER -> c == '-' || isDigit(c)
+                    ? Transition.replace(new NumberFrame(schema.type == Schema.Type.INTEGER, NumberFrame.START))
+                    : null;
+                case OBJECT -> c == '{' ? Transition.consume(new ObjectFrame(schema, ObjectFrame.FIRST, 0)) : null;
+                case ARRAY -> c == '[' ? Transition.consume(new ArrayFrame(schema.items, ArrayFrame.FIRST)) : null;
+                case ANY -> switch (c) {
+                    case '{' -> Transition.consume(new ObjectFrame(Schema.ANY_OBJECT, ObjectFrame.FIRST, 0));
+                    case '[' -> Transition.consume(new ArrayFrame(Schema.ANY, ArrayFrame.FIRST));
+                    case '"' -> Transition.consume(new StringFrame(0));
+                    case 't' -> Transition.replace(new LiteralFrame(List.of("true"), 0));
+                    case 'f' -> Transition.replace(new LiteralFrame(List.of("false"), 0));
+                    case 'n' -> Transition.replace(new LiteralFrame(List.of("null"), 0));
+                    default -> c == '-' || isDigit(c) ? Transition.replace(new NumberFrame(false, NumberFrame.START)) : null;
+                };
+            };
+        }
+    }
+
+    /**
+     * Matches one of a fixed set of strings, pos characters in
+     */
+    record LiteralFrame(List<String> options, int pos) implements Frame {
+        @Override
+        public Transition next(char c) {
+            List<String> matching = null;
+            boolean continues = false;
+            for (String option : options) {
+                if (option.length() > pos && option.charAt(pos) == c) {
+                    if (matching == null) matching = new ArrayList<>(options.size());
+                    matching.add(option);
+                    continues |= option.length() > pos + 1;
+                }
+            }
+
+            if (matching != null) return Transition.consume(continues ? new LiteralFrame(matching, pos + 1) : null);
+
+            return canEnd() ? Transition.pop() : null;
+        }
+
+        @Override
+        public boolean canEnd() {
+            for (String option : options)
+                if (option.length() == pos) return true;
+
+            return false;
+        }
+    }
+
+    /**
+     * Inside a string, escape is 0 normally, 1 after a backslash and n+1 while n unicode hex digits remain
+     */
+    record StringFrame(int escape) implements Frame {
+        @Override
+        public Transition next(char c) {
+            if (escape == 0) {
+                if (c == '"') return Transition.consume(null);
+                if (c == '\\') return Transition.consume(new StringFrame(1));
+                return c < 0x20 ? null : Transition.consume(this);
+            }
+
+            if (escape == 1) {
+                if (c == 'u') return Transition.consume(new StringFrame(5));
+                return "\"\\/bfnrt".indexOf(c) >= 0 ? Transition.consume(new StringFrame(0)) : null;
+            }
+
+            return isHexDigit(c) ? Transition.consume(new StringFrame(escape == 2 ? 0 : escape - 1)) : null;
+        }
+    }
+
+    record NumberFrame(boolean integer, int phase) implements Frame {
+        static final int START = 0;
+        static final int MINUS = 1;
+        static final int ZERO = 2;
+        static final int INT = 3;
+        static final int DOT = 4;
+        static final int FRAC = 5;
+        static final int EXP = 6;
+        static final int EXP_SIGN = 7;
+        static final int EXP_DIGITS = 8;
+
+        @Override
+        public Transition next(char c) {
+            boolean digit = isDigit(c);
+            boolean exponent = !integer && (c == 'e' || c == 'E');
+            int next = switch (phase) {
+                case START -> c == '-' ? MINUS : c == '0' ? ZERO : digit ? INT : -1;
+                case MINUS -> c == '0' ? ZERO : digit ? INT : -1;
+                case ZERO -> !integer && c == '.' ? DOT : exponent ? EXP : -1;
+                case INT -> digit ? INT : !integer && c == '.' ? DOT : exponent ? EXP : -1;
+                case DOT -> digit ? FRAC : -1;
+                case FRAC -> digit ? FRAC : exponent ? EXP : -1;
+                case EXP -> c == '+' || c == '-' ? EXP_SIGN : digit ? EXP_DIGITS : -1;
+                case EXP_SIGN, EXP_DIGITS -> digit ? EXP_DIGITS : -1;
+                default -> -1;
+            };
+
+            if (next >= 0) return Transition.consume(next == phase ? this : new NumberFrame(integer, next));
+
+            // Numbers only end when something else starts
+            return canEnd() ? Transition.pop() : null;
+        }
+
+        @Override
+        public boolean canEnd() {
+            return phase == ZERO || phase == INT || phase == FRAC || phase == EXP_DIGITS;
+        }
+    }
+
+    /**
+     * Inside an object, index is the current property when the schema lists them
+     */
+    record ObjectFrame(Schema schema, int phase, int index) implements Frame {
+        static final int FIRST = 0;
+        static final int KEY = 1;
+        static final int COLON = 2;
+        static final int VALUE = 3;
+        static final int NEXT = 4;
+
+        @Override
+        public Transition next(char c) {
+            boolean free = schema.propertyKeys == null;
+            int count = free ? 0 : schema.propertyKeys.size();
+
+            return switch (phase) {
+                case FIRST, KEY -> {
+                    if (isWhitespace(c)) yield Transition.whitespace(this);
+                    if (phase == FIRST && c == '}' && (free || count == 0)) yield Transition.consume(null);
+                    if (c != '"' || (!free && index >= count)) yield null;
+
+                    Frame key = free ? new StringFrame(0) : new LiteralFrame(List.of(schema.propertyKeys.get(index)), 1);
+                    yield Transition.consume(new ObjectFrame(schema, COLON, index), key);
+                }
+                case COLON -> {
+                    if (isWhitespace(c)) yield Transition.whitespace(this);
+                    yield c == ':' ? Transition.consume(new ObjectFrame(schema, VALUE, index)) : null;
+                }
+                case VALUE -> Transition.push(
+                    new ObjectFrame(schema, NEXT, index),
+                    new ValueFrame(free ? Schema.ANY : schema.properties.get(index))
+                );
+                case NEXT -> {
+                    if (isWhitespace(c)) yield Transition.whitespace(this);
+                    if (c == ',' && (free || index + 1 < count)) {
+                        yield Transition.consume(new ObjectFrame(schema, KEY, free ? 0 : index + 1));
+                    }
+                    yield c == '}' && (free || index + 1 == count) ? Transition.consume(null) : null;
+                }
+                default -> null;
+            };
+        }
+    }
+
+    record ArrayFrame(Schema items, int phase) implements Frame {
+        static final int FIRST = 0;
+        static final int ITEM = 1;
+        static final int NEXT = 2;
+
+        @Override
+        public Transition next(char c) {
+            return switch (phase) {
+                case FIRST -> {
+                    if (isWhitespace(c)) yield Transition.whitespace(this);
+                    if (c == ']') yield Transition.consume(null);
+                    yield Transition.push(new ArrayFrame(items, NEXT), new ValueFrame(items));
+                }
+                case ITEM -> Transition.push(new ArrayFrame(items, NEXT), new ValueFrame(items));
+                case NEXT -> {
+                    if (isWhitespace(c)) yield Transition.whitespace(this);
+                    if (c == ',') yield Transition.consume(new ArrayFrame(items, ITEM));
+                    yield c == ']' ? Transition.consume(null) : null;
+                }
+                default -> null;
+            };
+        }
+    }
+
+    /**
+     * The compiled subset of a JSON schema.  Compared by identity so automaton states hash cheaply.
+     */
+    static final class Schema {
+        enum Type {
+            ANY,
+            OBJECT,
+            ARRAY,
+            STRING,
+            NUMBER,
+            INTEGER,
+            LITERAL
+        }
+
+        static final Schema ANY = new Schema(Type.ANY, null, null, null, null);
+        static final Schema ANY_OBJECT = new Schema(Type.OBJECT, null, null, null, null);
+
+        final Type type;
+        final List<String> propertyKeys; // JSON encoded, null for an object with any properties
+        final List<Schema> properties;
+        final Schema items;
+        final List<String> literals; // JSON encoded
+
+        private Schema(Type type, List<String> propertyKeys, List<Schema> properties, Schema items, List<String> literals) {
+            this.type = type;
+            this.propertyKeys = propertyKeys;
+            this.properties = properties;
+            this.items = items;
+            this.literals = literals;
+        }
+
+        static Schema compile(JsonNode node) throws JsonProcessingException {
+            if (node == null || !node.isObject()) return ANY;
+
+            if (node.has("const")) return literals(List.of(JsonSupport.om.writeValueAsString(node.get("const"))));
+
+            if (node.has("enum")) {
+                List<String> literals = new ArrayList<>();
+                for (JsonNode value : node.get("enum"))
+                    literals.add(JsonSupport.om.writeValueAsString(value));
+                return literals(literals);
+            }
+
+            String type = node.path("type").asText(node.has("properties") ? "object" : node.has("items") ? "array" : "");
+            switch (type) {
+                case "object":
+                    if (!node.has("properties")) return ANY_OBJECT;
+
+                    List<String> keys = new ArrayList<>();
+                    List<Schema> properties = new ArrayList<>();
+                    Iterator<Map.Entry<String, JsonNode>> fields = node.get("properties").fields();
+                    while (fields.hasNext()) {
+                        Map.Entry<String, JsonNode> field = fields.next();
+                        keys.add(JsonSupport.om.writeValueAsString(field.getKey()));
+                        properties.add(compile(field.getValue()));
+                    }
+                    return new Schema(Type.OBJECT, keys, properties, null, null);
+                case "array":
+                    return new Schema(Type.ARRAY, null, null, compile(node.get("items")), null);
+                case "string":
+                    return new Schema(Type.STRING, null, null, null, null);
+                case "number":
+                    return new Schema(Type.NUMBER, null, null, null, null);
+                case "integer":
+                    return new Schema(Type.INTEGER, null, null, null, null);
+                case "boolean":
+                    return literals(List.of("true", "false"));
+                case "null":
+                    return literals(List.of("null"));
+                default:
+                    return ANY;
+            }
+        }
+
+        private static Schema literals(List<String> literals) {
+            return new Schema(Type.LITERAL, null, null, null, literals);
+        }
+    }
+
+    /**
+     * The decoded text of every usable token, sorted so tokens sharing a prefix are adjacent
+     */
+    static class Vocabulary {
+        final String[] tokens;
+        final int[] sortedIds;
+        final int[] sharedPrefix; // with the previous token in sorted order
+        final int maxLength;
+
+        Vocabulary(Tokenizer tokenizer, int size) {
+            this.tokens = new String[size];
+            List<Integer> usable = new ArrayList<>(size);
+            int longest = 0;
+            for (int i = 0; i < size; i++) {
+                if (tokenizer.getModel() != null && tokenizer.getModel().isSpecialToken(i)) continue;
+
+                String text;
+                try {
+                    text = tokenizer.decodeToken(i);
+                } catch (RuntimeException e) {
+                    continue; // Padded vocabularies have ids the tokenizer doesn't know
+                }
+
+                if (text == null || text.isEmpty()) continue;
+
+                tokens[i] = text;
+                usable.add(i);
+                longest = Math.max(longest, text.length());
+            }
+
+            usable.sort(Comparator.comparing(i -> tokens[i]));
+
+            this.maxLength = longest;
+            this.sortedIds = new int[usable.size()];
+            this.sharedPrefix = new int[usable.size()];
+            for (int k = 0; k < sortedIds.length; k++) {
+                sortedIds[k] = usable.get(k);
+                if (k > 0) sharedPrefix[k] = commonPrefix(tokens[sortedIds[k - 1]], tokens[sortedIds[k]]);
+            }
+        }
+
+        private static int commonPrefix(String a, String b) {
+            int n = Math.min(a.length(), b.length());
+            int i = 0;
+            while (i < n && a.charAt(i) == b.charAt(i))
+                i++;
+
+            return i;
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.model.functions;
+
+import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.operations.TensorOperations;
+import com.github.tjake.jlama.tensor.operations.TensorOperationsProvider;
+import com.google.common.base.Preconditions;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Optional;
+
+/**
+ * The settings used to pick the next token from the logits.
+ *
+ * Temperature scales the logits before the softmax, zero means greedy.  The candidates are then filtered by
+ * min-p (tokens less likely than minP times the most likely token), top-k (the k most likely tokens) and
+ * top-p (the smallest set of most likely tokens whose probability sums to at least topP).  Repetition
+ * penalty divides the logits of recently seen tokens, as described in the CTRL paper.
+ *
+ * When allowedTokens is set only those rows of the output projection are computed, which saves most of
+ * its cost for constrained decoding over a small set of tokens.  A {@link TokenConstraint} narrows the allowed
+ * tokens further at every step, so the output follows a grammar.
+ *
+ * A Sampler is immutable, each generation gets its own {@link State} holding the scratch space
+ * so sampling a token doesn't allocate.
+ */
+public final class Sampler {
+    // How many of the most recent tokens are penalized for repetition
+    private static final int REPETITION_PENALTY_WINDOW = Integer.getInteger("jlama.repetition_penalty_window", 64);
+
+    public final float temperature;
+    public final int topK;
+    public final float topP;
+    public final float minP;
+    public final float repetitionPenalty;
+    public final Optional<BitSet> allowedTokens;
+    public final Optional<TokenConstraint> constraint;
+
+    public static Sampler of(float temperature) {
+        return new Sampler(temperature, 0, 1.0f, 0.0f, 1.0f);
+    }
+
+    public Sampler(float temperature, int topK, float topP, float minP, float repetitionPenalty) {
+        this(temperature, topK, topP, minP, repetitionPenalty, Optional.empty());
+    }
+
+    public Sampler(float temperature, int topK, float topP, float minP, float repetitionPenalty, Optional<BitSet> allowedTokens) {
+        this(temperature, topK, topP, minP, repetitionPenalty, allowedTokens, Optional.empty());
+    }
+
+    /**
+     * @param temperature the temperature [0.0, 1.0], zero is greedy
+     * @param topK keep only the k most likely tokens, zero disables
+     * @param topP keep the most likely tokens whose probability sums to topP (0.0, 1.0], one disables
+     * @param minP drop tokens less likely than minP times the most likely token [0.0, 1.0), zero disables
+     * @param repetitionPenalty penalty for recently seen tokens, one disables
+     * @param allowedTokens the only tokens that may be sampled, include the eos tokens to let generation stop
+     * @param constraint the grammar the output must follow
+     */
+    public Sampler(
+        float temperature,
+        int topK,
+        float topP,
+        float minP,
+        float repetitionPenalty,
+        Optional<BitSet> allowedTokens,
+        Optional<TokenConstraint> constraint
+    ) {
+        Preconditions.checkArgument(temperature >= 0.0f, "temperature must be >= 0");
+        Preconditions.checkArgument(topK >= 0, "topK must be >= 0");
+        Preconditions.checkArgument(topP > 0.0f && topP <= 1.0f, "topP must be in (0, 1]");
+        Preconditions.checkArgument(minP >= 0.0f && minP < 1.0f, "minP must be in [0, 1)");
+        Preconditions.checkArgument(repetitionPenalty > 0.0f, "repetitionPenalty must be > 0");
+
+        this.temperature = temperature;
+        this.topK = topK;
+        this.topP = topP;
+        this.minP = minP;
+        this.repetitionPenalty = repetitionPenalty;
+        this.allowedTokens = allowedTokens;
+        this.constraint = constraint;
+    }
+
+    /**
+     * True when only the temperature is set, so any generator can honor it
+     */
+    public boolean isTemperatureOnly() {
+        return topK == 0 && topP == 1.0f && minP == 0.0f && repetitionPenalty == 1.0f && allowedTokens.isEmpty() && constraint.isEmpty();
+    }
+
+    public State newState(int vocabularySize) {
+        return new State(vocabularySize);
+    }
+
+    /**
+     * Per generation scratch space and the recent token history, not thread safe
+     */
+    public final class State {
+        private final int vocabularySize;
+        private final float[] probs;
+        private final float[] select;
+        private final long[] candidates;
+        private final int[] recent;
+        private int recentCount;
+        private final TokenConstraint.Matcher matcher;
+        private final BitSet combined;
+
+        private State(int vocabularySize) {
+            this.vocabularySize = vocabularySize;
+            this.probs = new float[vocabularySize];
+            this.select = topK > 0 && topK < vocabularySize ? new float[vocabularySize] : null;
+            this.candidates = topP < 1.0f ? new long[vocabularySize] : null;
+            this.recent = new int[REPETITION_PENALTY_WINDOW];
+            this.recentCount = 0;
+            this.matcher = constraint.map(TokenConstraint::matcher).orElse(null);
+            this.combined = matcher != null && allowedTokens.isPresent() ? new BitSet(vocabularySize) : null;
+        }
+
+        /**
+         * The tokens allowed next, changes as tokens are accepted when there is a constraint
+         */
+        public Optional<BitSet> allowedTokens() {
+            if (matcher == null) return allowedTokens;
+
+            BitSet mask = matcher.allowedTokens();
+            if (combined == null) return Optional.of(mask);
+
+            combined.clear();
+            combined.or(mask);
+            combined.and(allowedTokens.get());
+            return Optional.of(combined);
+        }
+
+        /**
+         * Records a prompt token, for the repetition penalty
+         */
+        public void acceptPrompt(int token) {
+            if (repetitionPenalty == 1.0f) return;
+            recent[recentCount++ % recent.length] = token;
+        }
+
+        /**
+         * Records a generated token, advancing the constraint
+         */
+        public void accept(int token) {
+            if (matcher != null) matcher.accept(token);
+            acceptPrompt(token);
+        }
+
+        /**
+         * Picks the next token.  The logits are overwritten.
+         */
+        public int sample(AbstractTensor logits, float uniformSample) {
+            TensorOperations ops = TensorOperationsProvider.get();
+            applyRepetitionPenalty(logits);
+
+            float max = ops.max(logits, 0, vocabularySize);
+
+            if (temperature == 0.0f) {
+                copyFrom(logits);
+                for (int i = 0; i < vocabularySize; i++)
+                    if (probs[i] == max) return i;
+
+                return vocabularySize - 1;
+            }
+
+            // Unnormalized probabilities, the most likely token is 1.0
+            ops.expSum(logits, max, 1.0f / temperature, 0, vocabularySize);
+            copyFrom(logits);
+
+            if (topP < 1.0f) {
+                int n = sortedCandidates(cutoff());
+                return n == 0 ? vocabularySize - 1 : sampleSorted(n, uniformSample);
+            }
+
+            return sampleAbove(cutoff(), uniformSample);
+        }
+
+        /**
+         * Fills dist with the normalized distribution {@link #sample} draws from, for speculative decoding.
+         * The logits are overwritten.
+         */
+        public void distribution(AbstractTensor logits, float[] dist) {
+            Preconditions.checkArgument(repetitionPenalty == 1.0f, "Repetition penalty is not supported here");
+            TensorOperations ops = TensorOperationsProvider.get();
+            float max = ops.max(logits, 0, vocabularySize);
+            Arrays.fill(dist, 0, vocabularySize, 0.0f);
+
+            if (temperature == 0.0f) {
+                copyFrom(logits);
+                for (int i = 0; i < vocabularySize; i++) {
+                    if (probs[i] == max) {
+                        dist[i] = 1.0f;
+                        return;
+                    }
+                }
+                return;
+            }
+
+            ops.expSum(logits, max, 1.0f / temperature, 0, vocabularySize);
+            copyFrom(logits);
+            float cutoff = cutoff();
+
+            float sum = 0.0f;
+            if (topP < 1.0f) {
+                int n = sortedCandidates(cutoff);
+                for (int j = 0; j < n; j++) {
+                    int i = (int) candidates[j];
+                    dist[i] = probs[i];
+                    sum += probs[i];
+                }
+            } else {
+                for (int i = 0; i < vocabularySize; i++) {
+                    if (probs[i] >= cutoff) {
+                        dist[i] = probs[i];
+                        sum += probs[i];
+                    }
+                }
+            }
+
+            float scale = 1.0f / sum;
+            for (int i = 0; i < vocabularySize; i++)
+                dist[i] *= scale;
+        }
+
+        private void applyRepetitionPenalty(AbstractTensor logits) {
+            if (repetitionPenalty == 1.0f) return;
+
+            int n = Math.min(recentCount, recent.length);
+            outer: for (int j = 0; j < n; j++) {
+                int token = recent[j];
+
+                // Only penalize each token once
+                for (int k = 0; k < j; k++)
+                    if (recent[k] == token) continue outer;
+
+                float v = logits.get(0, token);
+                logits.set(v > 0 ? v / repetitionPenalty : v * repetitionPenalty, 0, token);
+            }
+        }
+
+        private void copyFrom(AbstractTensor logits) {
+            if (logits.dType() == DType.F32) {
+                MemorySegment.copy(logits.getMemorySegment(), ValueLayout.JAVA_FLOAT, 0, probs, 0, vocabularySize);
+            } else {
+                for (int i = 0; i < vocabularySize; i++)
+                    probs[i] = logits.get(0, i);
+            }
+        }
+
+        /**
+         * The smallest probability that survives min-p and top-k
+         */
+        private float cutoff() {
+            // The most likely token is 1.0 so min-p needs no scaling
+            float cutoff = minP;
+
+            if (select != null) {
+                System.arraycopy(probs, 0, select, 0, vocabularySize);
+                cutoff = Math.max(cutoff, kthLargest(select, topK));
+            }
+
+            return cutoff;
+        }
+
+        private int sampleAbove(float cutoff, float uniformSample) {
+            float sum = massAbove(cutoff);
+
+            float acc = 0.0f;
+            float threshold = uniformSample * sum;
+            for (int i = 0; i < vocabularySize; i++) {
+                // Disallowed tokens have no mass and must never be picked, even for a zero sample
+                if (probs[i] < cutoff || probs[i] == 0.0f) continue;
+                acc += probs[i];
+                if (acc >= threshold) return i;
+            }
+
+            return vocabularySize - 1;
+        }
+
+        /**
+         * Sorts the tokens above the cutoff by descending probability and trims them to the top-p nucleus
+         * @return the number of candidates left
+         */
+        private int sortedCandidates(float cutoff) {
+            float total = massAbove(cutoff);
+            float nucleus = topP * total;
+
+            // Sorting the whole vocabulary is slow, so first find a bound that still holds the nucleus.
+            // The nucleus is a prefix of the sorted tokens above any bound whose mass reaches it
+            float bound = 1.0f;
+            while (bound > cutoff && massAbove(bound) < nucleus)
+                bound *= 0.25f;
+            bound = Math.max(bound, cutoff);
+
+            int n = 0;
+            for (int i = 0; i < vocabularySize; i++) {
+                // Positive floats sort the same as their bits, so pack the probability above the index
+                if (probs[i] >= bound) candidates[n++] = ((long) Float.floatToRawIntBits(probs[i]) << 32) | i;
+            }
+
+            Arrays.sort(candidates, 0, n);
+
+            // Reverse so the most likely come first
+            for (int l = 0, r = n - 1; l < r; l++, r--) {
+                long t = candidates[l];
+                candidates[l] = candidates[r];
+                candidates[r] = t;
+            }
+
+            float acc = 0.0f;
+            for (int j = 0; j < n; j++) {
+                acc += probs[(int) candidates[j]];
+                if (acc >= nucleus) return j + 1;
+            }
+
+            return n;
+        }
+
+        private float massAbove(float bound) {
+            float sum = 0.0f;
+            for (int i = 0; i < vocabularySize; i++)
+                if (probs[i] >= bound) sum += probs[i];
+
+            return sum;
+        }
+
+        private int sampleSorted(int n, float uniformSample) {
+            float sum = 0.0f;
+            for (int j = 0; j < n; j++)
+                sum += probs[(int) candidates[j]];
+
+            float acc = 0.0f;
+            float threshold = uniformSample * sum;
+            for (int j = 0; j < n; j++) {
+                int i = (int) candidates[j];
+                acc += probs[i];
+                if (acc >= threshold) return i;
+            }
+
+            return (int) candidates[n - 1];
+        }
+    }
+
+    /**
+     * Finds the k'th largest value with quickselect, reordering a
+     */
+    static float kthLargest(float[] a, int k) {
+        int lo = 0;
+        int hi = a.length - 1;
+        int target = k - 1;
+
+        while (lo < hi) {
+            float pivot = a[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (a[i] > pivot) i++;
+                while (a[j] < pivot) j--;
+                if (i <= j) {
+                    float t = a[i];
+                    a[i] = a[j];
+                    a[j] = t;
+                    i++;
+                    j--;
+                }
+            }
+
+            if (target <= j) hi = j;
+            else if (target >= i) lo = i;
+            else return a[target];
+        }
+
+        return a[target];
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.model.functions;
+
+import java.util.BitSet;
+
+/**
+ * Restricts which tokens may be generated next, so the output always matches a grammar.
+ *
+ * A constraint is compiled once and can be shared, each generation walks it with its own {@link Matcher}.
+ *
+ * @see JsonConstraint
+ */
+public interface TokenConstraint {
+
+    /**
+     * Starts matching a new generation
+     */
+    Matcher matcher();
+
+    interface Matcher {
+        /**
+         * The tokens allowed next, including the eos tokens once the output is complete.
+         * The returned set is shared and must not be modified.
+         */
+        BitSet allowedTokens();
+
+        /**
+         * Advances past a generated token
+         * @throws IllegalStateException if the token is not allowed
+         */
+        void accept(int token);
+
+        /**
+         * True when the output so far is a complete match
+         */
+        boolean isComplete();
+    }
+}
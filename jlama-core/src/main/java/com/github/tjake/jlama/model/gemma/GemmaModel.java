@@ -86,10 +86,10 @@ public class GemmaModel extends LlamaModel {
             CausalSelfAttention attention = new CausalSelfAttention(
                 this,
                 i,
-                weights.load(prefix + "q_proj.weight", c.dctx(), true, false).quantize(qType),
-                weights.load(prefix + "k_proj.weight", c.dctx(), true, false).quantize(qType),
-                weights.load(prefix + "v_proj.weight", c.dctx(), true, false).quantize(qType),
-                weights.load(prefix + "o_proj.weight", c.dctx(), false, true).quantize(qType)
+                weights.load(prefix + "q_proj.weight", c.dctx(), true, false, qType),
+                weights.load(prefix + "k_proj.weight", c.dctx(), true, false, qType),
+                weights.load(prefix + "v_proj.weight", c.dctx(), true, false, qType),
+                weights.load(prefix + "o_proj.weight", c.dctx(), false, true, qType)
             );
 
             prefix = base + "mlp.";
@@ -97,17 +97,17 @@ public class GemmaModel extends LlamaModel {
             MLPBlock mlp = new MLPBlock(
                 this,
                 c.activationFunction,
-                weights.load(prefix + "gate_proj.weight", c.dctx(), true, false).quantize(qType), // w1
-                weights.load(prefix + "down_proj.weight", c.dctx(), false, true).quantize(qType), // w2
-                weights.load(prefix + "up_proj.weight", c.dctx(), true, false).quantize(qType) // w3
+                weights.load(prefix + "gate_proj.weight", c.dctx(), true, false, qType), // w1
+                weights.load(prefix + "down_proj.weight", c.dctx(), false, true, qType), // w2
+                weights.load(prefix + "up_proj.weight", c.dctx(), true, false, qType) // w3
             );
 
             transformerBlocks[i] = new TransformerBlock(
                 this,
                 i,
-                new RMSNorm(this, weights.load(base + "input_layernorm.weight").quantize(qType), 1.0f),
+                new RMSNorm(this, weights.load(base + "input_layernorm.weight", qType), 1.0f),
                 attention,
-                new RMSNorm(this, weights.load(base + "post_attention_layernorm.weight").quantize(qType), 1.0f),
+                new RMSNorm(this, weights.load(base + "post_attention_layernorm.weight", qType), 1.0f),
                 mlp
             );
         });
@@ -141,7 +141,7 @@ public class GemmaModel extends LlamaModel {
         if (wte == null) wte = weights.load("model.embed_tokens.weight").quantize(workingDType); // Don't quantize this, it's
                                                                                                  // used for the embedding layer
 
-        final LayerNorm layerNorm = new RMSNorm(this, weights.load("model.norm.weight").quantize(qType), 1.0f);
+        final LayerNorm layerNorm = new RMSNorm(this, weights.load("model.norm.weight", qType), 1.0f);
 
         return new SampleOutput() {
             @Override
@@ -40,7 +40,8 @@ public class Gemma2Config extends Config {
         @JsonProperty("rope_scaling") Map<String, String> ropeScaling,
         @JsonProperty("head_dim") Integer headDim,
         @JsonProperty("final_logit_softcapping") Float finalLogitSoftCapping,
-        @JsonProperty("attn_logit_softcapping") Float attnLogitSoftCapping
+        @JsonProperty("attn_logit_softcapping") Float attnLogitSoftCapping,
+        @JsonProperty("sliding_window") Integer slidingWindow
     ) {
         super(
             contextLength,
@@ -56,9 +57,23 @@ public class Gemma2Config extends Config {
             activationFunction,
             ropeFreqsTheta == null ? 10000.0 : ropeFreqsTheta,
             ropeScaling == null ? 1.0 : Double.parseDouble(ropeScaling.get("factor")),
-            headDim,
+            null,
+            headDim == null ? embeddingLength / numberOfHeads : headDim,
             finalLogitSoftCapping,
-            attnLogitSoftCapping
+            attnLogitSoftCapping,
+            null,
+            null,
+            null,
+            null,
+            slidingWindow
         );
     }
+
+    /**
+     * Gemma2 alternates local sliding window attention with global attention, starting with local
+     */
+    @Override
+    protected boolean isSlidingWindowLayer(int layerIndex) {
+        return layerIndex % 2 == 0;
+    }
 }
@@ -86,10 +86,10 @@ public class Gemma2Model extends LlamaModel {
             CausalSelfAttention attention = new CausalSelfAttention(
                 this,
                 i,
-                weights.load(prefix + "q_proj.weight", c.dctx(), true, false).quantize(qType),
-                weights.load(prefix + "k_proj.weight", c.dctx(), true, false).quantize(qType),
-                weights.load(prefix + "v_proj.weight", c.dctx(), true, false).quantize(qType),
-                weights.load(prefix + "o_proj.weight", c.dctx(), false, true).quantize(qType)
+                weights.load(prefix + "q_proj.weight", c.dctx(), true, false, qType),
+                weights.load(prefix + "k_proj.weight", c.dctx(), true, false, qType),
+                weights.load(prefix + "v_proj.weight", c.dctx(), true, false, qType),
+                weights.load(prefix + "o_proj.weight", c.dctx(), false, true, qType)
             );
 
             prefix = base + "mlp.";
@@ -97,20 +97,20 @@ public class Gemma2Model extends LlamaModel {
             MLPBlock mlp = new MLPBlock(
                 this,
                 c.activationFunction,
-                weights.load(prefix + "gate_proj.weight", c.dctx(), true, false).quantize(qType), // w1
-                weights.load(prefix + "down_proj.weight", c.dctx(), false, true).quantize(qType), // w2
-                weights.load(prefix + "up_proj.weight", c.dctx(), true, false).quantize(qType) // w3
+                weights.load(prefix + "gate_proj.weight", c.dctx(), true, false, qType), // w1
+                weights.load(prefix + "down_proj.weight", c.dctx(), false, true, qType), // w2
+                weights.load(prefix + "up_proj.weight", c.dctx(), true, false, qType) // w3
             );
 
             transformerBlocks[i] = new TransformerBlock(
                 this,
                 i,
-                new RMSNorm(this, weights.load(base + "input_layernorm.weight").quantize(qType), 1.0f),
+                new RMSNorm(this, weights.load(base + "input_layernorm.weight", qType), 1.0f),
                 attention,
-                new RMSNorm(this, weights.load(base + "post_attention_layernorm.weight").quantize(qType), 1.0f),
-                new RMSNorm(this, weights.load(base + "pre_feedforward_layernorm.weight").quantize(qType), 1.0f),
+                new RMSNorm(this, weights.load(base + "post_attention_layernorm.weight", qType), 1.0f),
+                new RMSNorm(this, weights.load(base + "pre_feedforward_layernorm.weight", qType), 1.0f),
                 mlp,
-                new RMSNorm(this, weights.load(base + "post_feedforward_layernorm.weight").quantize(qType), 1.0f)
+                new RMSNorm(this, weights.load(base + "post_feedforward_layernorm.weight", qType), 1.0f)
             );
         });
 
@@ -142,7 +142,7 @@ public class Gemma2Model extends LlamaModel {
 
         if (wte == null) wte = weights.load("model.embed_tokens.weight").quantize(workingDType);
 
-        final LayerNorm layerNorm = new RMSNorm(this, weights.load("model.norm.weight").quantize(qType), 1.0f);
+        final LayerNorm layerNorm = new RMSNorm(this, weights.load("model.norm.weight", qType), 1.0f);
 
         return new SampleOutput() {
             @Override
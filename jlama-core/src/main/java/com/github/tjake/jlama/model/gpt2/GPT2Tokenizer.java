@@ -72,8 +72,8 @@ public class GPT2Tokenizer extends BPETokenizer {
 
         // Map to the actual byte characters token
         String s = Character.toString(token);
-        Long b = model.vocabLookup.get(s);
-        return b == null ? token : b;
+        long b = model.vocabulary().getId(s);
+        return b < 0 ? token : b;
     }
 
     @Override
@@ -82,8 +82,8 @@ public class GPT2Tokenizer extends BPETokenizer {
     }
 
     @Override
-    public String decode(long id) {
-        String s = model.vocabLookup.inverse().get(id);
+    protected String postProcessToken(String s) {
+        if (s == null) s = model.unkToken;
 
         return s.codePoints()
             .map(c -> alteredBytes.inverse().getOrDefault(c, c))
@@ -91,6 +91,11 @@ public class GPT2Tokenizer extends BPETokenizer {
             .collect(Collectors.joining());
     }
 
+    @Override
+    protected boolean isByteLevel() {
+        return true;
+    }
+
     @Override
     protected String postProcess(String s) {
 
@@ -78,10 +78,10 @@ public class GraniteModel extends LlamaModel {
             CausalSelfAttention attention = new CausalSelfAttention(
                 this,
                 relativeLayer,
-                weights.load(prefix + "q_proj.weight", c.dctx(), true, false).quantize(qType),
-                weights.load(prefix + "k_proj.weight", c.dctx(), true, false).quantize(qType),
-                weights.load(prefix + "v_proj.weight", c.dctx(), true, false).quantize(qType),
-                weights.load(prefix + "o_proj.weight", c.dctx(), false, true).quantize(qType)
+                weights.load(prefix + "q_proj.weight", c.dctx(), true, false, qType),
+                weights.load(prefix + "k_proj.weight", c.dctx(), true, false, qType),
+                weights.load(prefix + "v_proj.weight", c.dctx(), true, false, qType),
+                weights.load(prefix + "o_proj.weight", c.dctx(), false, true, qType)
             );
 
             prefix = base + "mlp.";
@@ -89,18 +89,18 @@ public class GraniteModel extends LlamaModel {
             MLPBlock mlp = new MLPBlock(
                 this,
                 c.activationFunction,
-                weights.load(prefix + "gate_proj.weight", c.dctx(), true, false).quantize(qType), // w1
-                weights.load(prefix + "down_proj.weight", c.dctx(), false, true).quantize(qType), // w2
-                weights.load(prefix + "up_proj.weight", c.dctx(), true, false).quantize(qType)
+                weights.load(prefix + "gate_proj.weight", c.dctx(), true, false, qType), // w1
+                weights.load(prefix + "down_proj.weight", c.dctx(), false, true, qType), // w2
+                weights.load(prefix + "up_proj.weight", c.dctx(), true, false, qType)
             ); // w3
 
             transformerBlocks[relativeLayer] = new TransformerBlock(
                 this,
                 relativeLayer,
-                Optional.of(new RMSNorm(this, weights.load(base + "input_layernorm.weight").quantize(qType))),
+                Optional.of(new RMSNorm(this, weights.load(base + "input_layernorm.weight", qType))),
                 attention,
                 Optional.empty(),
-                Optional.of(new RMSNorm(this, weights.load(base + "post_attention_layernorm.weight").quantize(qType))),
+                Optional.of(new RMSNorm(this, weights.load(base + "post_attention_layernorm.weight", qType))),
                 mlp,
                 Optional.empty(),
                 Optional.empty()
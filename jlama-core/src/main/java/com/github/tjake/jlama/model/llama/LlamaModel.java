@@ -117,10 +117,10 @@ public class LlamaModel extends AbstractModel {
             CausalSelfAttention attention = new CausalSelfAttention(
                 this,
                 relativeLayer,
-                weights.load(prefix + "q_proj.weight", c.dctx(), true, false).quantize(qType),
-                weights.load(prefix + "k_proj.weight", c.dctx(), true, false).quantize(qType),
-                weights.load(prefix + "v_proj.weight", c.dctx(), true, false).quantize(qType),
-                weights.load(prefix + "o_proj.weight", c.dctx(), false, true).quantize(qType)
+                weights.load(prefix + "q_proj.weight", c.dctx(), true, false, qType),
+                weights.load(prefix + "k_proj.weight", c.dctx(), true, false, qType),
+                weights.load(prefix + "v_proj.weight", c.dctx(), true, false, qType),
+                weights.load(prefix + "o_proj.weight", c.dctx(), false, true, qType)
             );
 
             prefix = base + "mlp.";
@@ -128,17 +128,17 @@ public class LlamaModel extends AbstractModel {
             MLPBlock mlp = new MLPBlock(
                 this,
                 c.activationFunction,
-                weights.load(prefix + "gate_proj.weight", c.dctx(), true, false).quantize(qType), // w1
-                weights.load(prefix + "down_proj.weight", c.dctx(), false, true).quantize(qType), // w2
-                weights.load(prefix + "up_proj.weight", c.dctx(), true, false).quantize(qType)
+                weights.load(prefix + "gate_proj.weight", c.dctx(), true, false, qType), // w1
+                weights.load(prefix + "down_proj.weight", c.dctx(), false, true, qType), // w2
+                weights.load(prefix + "up_proj.weight", c.dctx(), true, false, qType)
             ); // w3
 
             transformerBlocks[relativeLayer] = new TransformerBlock(
                 this,
                 relativeLayer,
-                new RMSNorm(this, weights.load(base + "input_layernorm.weight").quantize(qType)),
+                new RMSNorm(this, weights.load(base + "input_layernorm.weight", qType)),
                 attention,
-                new RMSNorm(this, weights.load(base + "post_attention_layernorm.weight").quantize(qType)),
+                new RMSNorm(this, weights.load(base + "post_attention_layernorm.weight", qType)),
                 mlp
             );
         });
@@ -149,7 +149,7 @@ public class LlamaModel extends AbstractModel {
     @Override
     protected SampleOutput loadOutputWeights() {
         DType qType = modelQType.orElse(this.modelDType);
-        final LayerNorm outputLayerNorm = new RMSNorm(this, weights.load("model.norm.weight").quantize(qType));
+        final LayerNorm outputLayerNorm = new RMSNorm(this, weights.load("model.norm.weight", qType));
 
         // Some llama models don't have a classification head
         AbstractTensor classificationWeights = weights.isWeightPresent("lm_head.weight")
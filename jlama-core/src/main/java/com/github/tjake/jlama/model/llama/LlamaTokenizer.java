@@ -27,7 +27,7 @@ public class LlamaTokenizer extends BPETokenizer {
 
     public LlamaTokenizer(Path modelRoot) {
         super(modelRoot);
-        this.byteFallbackEncodingOffset = this.getModel().vocabLookup.getOrDefault("<0x00>", -1L).intValue();
+        this.byteFallbackEncodingOffset = (int) this.getModel().vocabulary().getId("<0x00>");
     }
 
     @Override
@@ -63,6 +63,11 @@ public class LlamaTokenizer extends BPETokenizer {
         return sentence;
     }
 
+    @Override
+    protected boolean isByteLevel() {
+        return model.isLegacy() && !model.byteFallback;
+    }
+
     @Override
     protected String postProcess(String sentence) {
         return sentence.stripLeading();
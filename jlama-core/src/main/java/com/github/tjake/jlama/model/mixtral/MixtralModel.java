@@ -69,6 +69,11 @@ public class MixtralModel extends MistralModel {
         }
 
         TransformerBlock[] transformerBlocks = new TransformerBlock[c.dctx().numberOfLayers];
+        ExpertResidency residency = new ExpertResidency(
+            c.numberOfLayers,
+            mixtralConfig.numberOfExperts,
+            mixtralConfig.numberOfExpertsPerToken
+        );
 
         IntStream.range(c.dctx().layerStart, c.dctx().layerEnd).parallel().forEach(i -> {
             String base = "model.layers." + i + ".";
@@ -76,10 +81,10 @@ public class MixtralModel extends MistralModel {
             CausalSelfAttention attention = new CausalSelfAttention(
                 this,
                 i,
-                weights.load(prefix + "q_proj.weight", c.dctx(), true, false).quantize(qType),
-                weights.load(prefix + "k_proj.weight", c.dctx(), true, false).quantize(qType),
-                weights.load(prefix + "v_proj.weight", c.dctx(), true, false).quantize(qType),
-                weights.load(prefix + "o_proj.weight").quantize(qType)
+                weights.load(prefix + "q_proj.weight", c.dctx(), true, false, qType),
+                weights.load(prefix + "k_proj.weight", c.dctx(), true, false, qType),
+                weights.load(prefix + "v_proj.weight", c.dctx(), true, false, qType),
+                weights.load(prefix + "o_proj.weight", qType)
             );
 
             prefix = base + "block_sparse_moe.";
@@ -90,9 +95,9 @@ public class MixtralModel extends MistralModel {
 
             for (int e = 0; e < mixtralConfig.numberOfExperts; e++) {
                 String expertPrefix = prefix + "experts." + e + ".";
-                expertGateWeights[e] = weights.load(expertPrefix + "w1.weight", c.dctx(), true, false).quantize(qType);
-                expertDownWeights[e] = weights.load(expertPrefix + "w2.weight").quantize(qType);
-                expertUpWeights[e] = weights.load(expertPrefix + "w3.weight", c.dctx(), true, false).quantize(qType);
+                expertGateWeights[e] = weights.load(expertPrefix + "w1.weight", c.dctx(), true, false, qType);
+                expertDownWeights[e] = weights.load(expertPrefix + "w2.weight", qType);
+                expertUpWeights[e] = weights.load(expertPrefix + "w3.weight", c.dctx(), true, false, qType);
             }
 
             MoEBlock moe = new MoEBlock(
@@ -100,18 +105,16 @@ public class MixtralModel extends MistralModel {
                 mixtralConfig.numberOfExperts,
                 mixtralConfig.numberOfExpertsPerToken,
                 c.activationFunction,
-                weights.load(prefix + "gate.weight").quantize(qType),
-                expertGateWeights, // w1
-                expertDownWeights, // w2
-                expertUpWeights
-            ); // w3
+                weights.load(prefix + "gate.weight", qType),
+                residency.register(i, expertGateWeights, expertDownWeights, expertUpWeights)
+            );
 
             transformerBlocks[i] = new TransformerBlock(
                 this,
                 i,
-                new RMSNorm(this, weights.load(base + "input_layernorm.weight").quantize(qType)),
+                new RMSNorm(this, weights.load(base + "input_layernorm.weight", qType)),
                 attention,
-                new RMSNorm(this, weights.load(base + "post_attention_layernorm.weight").quantize(qType)),
+                new RMSNorm(this, weights.load(base + "post_attention_layernorm.weight", qType)),
                 moe
             );
         });
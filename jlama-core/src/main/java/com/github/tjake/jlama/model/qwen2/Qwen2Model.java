@@ -72,14 +72,14 @@ public class Qwen2Model extends LlamaModel {
             CausalSelfAttention attention = new CausalSelfAttention(
                 this,
                 relativeLayer,
-                Optional.of(weights.load(prefix + "q_proj.bias").quantize(qType)),
-                Optional.of(weights.load(prefix + "k_proj.bias").quantize(qType)),
-                Optional.of(weights.load(prefix + "v_proj.bias").quantize(qType)),
-                weights.load(prefix + "q_proj.weight", c.dctx(), true, false).quantize(qType),
-                weights.load(prefix + "k_proj.weight", c.dctx(), true, false).quantize(qType),
-                weights.load(prefix + "v_proj.weight", c.dctx(), true, false).quantize(qType),
+                Optional.of(weights.load(prefix + "q_proj.bias", qType)),
+                Optional.of(weights.load(prefix + "k_proj.bias", qType)),
+                Optional.of(weights.load(prefix + "v_proj.bias", qType)),
+                weights.load(prefix + "q_proj.weight", c.dctx(), true, false, qType),
+                weights.load(prefix + "k_proj.weight", c.dctx(), true, false, qType),
+                weights.load(prefix + "v_proj.weight", c.dctx(), true, false, qType),
                 Optional.empty(),
-                weights.load(prefix + "o_proj.weight", c.dctx(), false, true).quantize(qType)
+                weights.load(prefix + "o_proj.weight", c.dctx(), false, true, qType)
             );
 
             prefix = base + "mlp.";
@@ -87,17 +87,17 @@ public class Qwen2Model extends LlamaModel {
             MLPBlock mlp = new MLPBlock(
                 this,
                 c.activationFunction,
-                weights.load(prefix + "gate_proj.weight", c.dctx(), true, false).quantize(qType), // w1
-                weights.load(prefix + "down_proj.weight", c.dctx(), false, true).quantize(qType), // w2
-                weights.load(prefix + "up_proj.weight", c.dctx(), true, false).quantize(qType)
+                weights.load(prefix + "gate_proj.weight", c.dctx(), true, false, qType), // w1
+                weights.load(prefix + "down_proj.weight", c.dctx(), false, true, qType), // w2
+                weights.load(prefix + "up_proj.weight", c.dctx(), true, false, qType)
             ); // w3
 
             transformerBlocks[relativeLayer] = new TransformerBlock(
                 this,
                 relativeLayer,
-                new RMSNorm(this, weights.load(base + "input_layernorm.weight").quantize(qType)),
+                new RMSNorm(this, weights.load(base + "input_layernorm.weight", qType)),
                 attention,
-                new RMSNorm(this, weights.load(base + "post_attention_layernorm.weight").quantize(qType)),
+                new RMSNorm(this, weights.load(base + "post_attention_layernorm.weight", qType)),
                 mlp
             );
         });
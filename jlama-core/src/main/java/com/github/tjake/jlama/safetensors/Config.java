@@ -18,6 +18,7 @@ package com.github.tjake.jlama.safetensors;
 import com.github.tjake.jlama.math.ActivationFunction;
 import com.github.tjake.jlama.math.VectorMath;
 import com.github.tjake.jlama.model.DistributedContext;
+import com.github.tjake.jlama.tensor.AbstractTensor;
 import com.github.tjake.jlama.tensor.TensorCache;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.BiMap;
@@ -48,10 +49,12 @@ public class Config {
     public final Float attentionMultiplier;
     public final Float embeddingMultiplier;
     public final Float logitMultiplier;
+    public final Integer slidingWindow;
     public final int vocabularySize;
     public final int bosToken;
     public final List<Integer> eosTokens;
-    public final Optional<float[][]> ropeFreqs;
+    // Packed cos/sin table per position, in the huggingface permuted layout
+    public final Optional<AbstractTensor> ropeFreqs;
     public final Optional<BiMap<String, Integer>> classifcationLabels;
 
     private volatile DistributedContext dctx;
@@ -249,6 +252,56 @@ public class Config {
         Float attentionMultiplier,
         Float embeddingMultiplier,
         Float logitMultiplier
+    ) {
+        this(
+            contextLength,
+            embeddingLength,
+            hiddenLength,
+            numberOfHeads,
+            numberOfKeyValueHeads,
+            numberOfLayers,
+            layerNormEps,
+            vocabularySize,
+            bosToken,
+            eosTokens,
+            activationFunction,
+            ropeFreqsTheta,
+            ropeScalingFactor,
+            classifcationLabels,
+            headSize,
+            finalLogitSoftCapping,
+            attnLogitSoftCapping,
+            residualMultiplier,
+            attentionMultiplier,
+            embeddingMultiplier,
+            logitMultiplier,
+            null
+        );
+    }
+
+    public Config(
+        int contextLength,
+        int embeddingLength,
+        int hiddenLength,
+        int numberOfHeads,
+        int numberOfKeyValueHeads,
+        int numberOfLayers,
+        float layerNormEps,
+        int vocabularySize,
+        int bosToken,
+        List<Integer> eosTokens,
+        ActivationFunction.Type activationFunction,
+        Double ropeFreqsTheta,
+        Double ropeScalingFactor,
+        Map<String, Integer> classifcationLabels,
+        Integer headSize,
+        Float finalLogitSoftCapping,
+        Float attnLogitSoftCapping,
+        Float residualMultiplier,
+        Float attentionMultiplier,
+        Float embeddingMultiplier,
+        Float logitMultiplier,
+        Integer slidingWindow
     ) {
         this.contextLength = contextLength;
         this.attentionLength = numberOfHeads * headSize;
@@ -270,7 +323,13 @@ public class Config {
         this.ropeFreqs = ropeFreqsTheta == null
             ? Optional.empty()
             : Optional.of(
-                VectorMath.precomputeFreqsCis(headSize, contextLength, ropeFreqsTheta, ropeScalingFactor == null ? 1.0 : ropeScalingFactor)
+                VectorMath.precomputeRopeTable(
+                    headSize,
+                    contextLength,
+                    ropeFreqsTheta,
+                    ropeScalingFactor == null ? 1.0 : ropeScalingFactor,
+                    false
+                )
             );
 
         this.classifcationLabels = classifcationLabels == null ? Optional.empty() : Optional.of(ImmutableBiMap.copyOf(classifcationLabels));
@@ -281,6 +340,7 @@ public class Config {
         this.attentionMultiplier = attentionMultiplier;
         this.embeddingMultiplier = embeddingMultiplier;
         this.logitMultiplier = logitMultiplier;
+        this.slidingWindow = slidingWindow;
 
         // Set default values
         this.dctx = DistributedContext.builder(this).build();
@@ -313,6 +373,22 @@ public class Config {
         return Math.floorDiv(head, headGroupSize);
     }
 
+    /**
+     * The number of most recent positions a layer attends to.
+     * Layers without a sliding window attend to the full context.
+     */
+    public int attentionWindow(int layerIndex) {
+        if (slidingWindow == null || !isSlidingWindowLayer(layerIndex)) return contextLength;
+        return Math.min(slidingWindow, contextLength);
+    }
+
+    /**
+     * Models that mix local and global attention override this to pick the local layers
+     */
+    protected boolean isSlidingWindowLayer(int layerIndex) {
+        return true;
+    }
+
     public boolean isClassifier() {
         return classifcationLabels.isPresent();
     }
@@ -47,7 +47,11 @@ public enum DType {
     // Q4 represents a 4-bit quantized type.
     Q4(1),
     // Q5 represents a 5-bit quantized type.
-    Q5(1);
+    Q5(1),
+    // Q4_K represents a 4-bit quantized type in super-blocks with 6-bit sub-block scales and mins.
+    Q4_K(1),
+    // Q6_K represents a 6-bit quantized type in super-blocks with 8-bit sub-block scales.
+    Q6_K(1);
 
     private final int size;
 
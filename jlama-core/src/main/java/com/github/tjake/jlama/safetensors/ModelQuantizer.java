@@ -0,0 +1,329 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.safetensors;
+
+import static com.github.tjake.jlama.util.JsonSupport.om;
+
+import com.github.tjake.jlama.math.VectorMath;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.KQuantByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
+import com.github.tjake.jlama.tensor.TensorShape;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Semaphore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Quantizes a model into a new sharded safetensors model.
+ *
+ * The output layout is planned from the tensor shapes alone, so every tensor has a shard and offset before anything
+ * is quantized.  Each shard's tensors are then loaded, quantized and written straight to their offset in parallel on
+ * the {@link com.github.tjake.jlama.util.PhysicalCoreExecutor}, with the bytes in flight bounded, rather than holding
+ * the whole model in memory.
+ *
+ * Shards are written to a temporary name and renamed once complete.  Rerunning an interrupted quantization keeps
+ * every finished shard whose header matches the plan and only redoes the rest.
+ */
+class ModelQuantizer {
+    private static final Logger logger = LoggerFactory.getLogger(ModelQuantizer.class);
+
+    private static final long MB = 1024 * 1024;
+    static final long SHARD_BYTES = Integer.getInteger("jlama.quantize_shard_mb", 4096) * MB;
+    static final long MAX_INFLIGHT_BYTES = Integer.getInteger("jlama.quantize_max_inflight_mb", 4096) * MB;
+
+    private final WeightLoader weights;
+    private final DType quantizeTo;
+    private final String[] skipLayerPrefixes;
+    private final String[] dropLayerPrefixes;
+    private final long shardBytes;
+    private final long maxInflightBytes;
+
+    /**
+     * A tensor's place in the output, offsets are relative to the start of its shard's data.
+     * loadBytes is what loading the source tensor holds, including the F32 copy of widened F16 weights
+     */
+    record Planned(String name, boolean quantize, DType dType, int[] shape, long offset, long loadBytes) {
+        boolean hasBlocks() {
+            return dType == DType.Q4 || dType == DType.I8;
+        }
+
+        TensorShape blockShape() {
+            return TensorShape.of(shape).scaleLastDim(Q4ByteBufferTensor.I_BLOCK_SIZE);
+        }
+
+        long tensorBytes() {
+            long elements = TensorShape.of(shape).size();
+            return switch (dType) {
+                case Q4 -> elements / 2;
+                case Q4_K, Q6_K -> KQuantByteBufferTensor.storageBytes(dType, elements);
+                case Q5 -> throw new UnsupportedOperationException("Q5 quantization is not supported");
+                default -> elements * dType.size();
+            };
+        }
+
+        long size() {
+            return tensorBytes() + (hasBlocks() ? blockShape().size() * DType.F32.size() : 0);
+        }
+
+        /**
+         * Bytes held while this tensor is written: the loaded source plus its quantized copy
+         */
+        long inflightBytes() {
+            return loadBytes + (quantize ? size() : 0);
+        }
+
+        void addTo(Map<String, TensorInfo> header) {
+            long end = offset + tensorBytes();
+            header.put(name, new TensorInfo(dType, toLongs(shape), new long[] { offset, end }));
+            if (hasBlocks()) {
+                TensorShape bs = blockShape();
+                int[] blockShape = new int[bs.dims()];
+                for (int i = 0; i < blockShape.length; i++)
+                    blockShape[i] = bs.dim(i);
+
+                header.put(name + ".qb", new TensorInfo(DType.F32, toLongs(blockShape), new long[] { end, offset + size() }));
+            }
+        }
+    }
+
+    ModelQuantizer(WeightLoader weights, DType quantizeTo, String[] skipLayerPrefixes, String[] dropLayerPrefixes) {
+        this(weights, quantizeTo, skipLayerPrefixes, dropLayerPrefixes, SHARD_BYTES, MAX_INFLIGHT_BYTES);
+    }
+
+    ModelQuantizer(
+        WeightLoader weights,
+        DType quantizeTo,
+        String[] skipLayerPrefixes,
+        String[] dropLayerPrefixes,
+        long shardBytes,
+        long maxInflightBytes
+    ) {
+        Preconditions.checkArgument(shardBytes > 0 && maxInflightBytes > 0, "Shard and in-flight sizes must be > 0");
+        this.weights = weights;
+        this.quantizeTo = quantizeTo;
+        this.skipLayerPrefixes = skipLayerPrefixes == null ? new String[0] : skipLayerPrefixes;
+        this.dropLayerPrefixes = dropLayerPrefixes == null ? new String[0] : dropLayerPrefixes;
+        this.shardBytes = shardBytes;
+        this.maxInflightBytes = maxInflightBytes;
+    }
+
+    /**
+     * Assigns every kept tensor its output type, shard and offset, in name order so reruns produce the same plan
+     */
+    List<List<Planned>> plan() {
+        Map<String, TensorInfo> tensors = weights.tensorInfoMap();
+        List<List<Planned>> shards = new ArrayList<>();
+        List<Planned> shard = new ArrayList<>();
+        long offset = 0;
+
+        for (String name : new TreeSet<>(tensors.keySet())) {
+            // Block scales of already quantized tensors are written along with their tensor
+            if (name.endsWith(".qb") && tensors.containsKey(name.substring(0, name.length() - 3))) continue;
+
+            if (matches(name, dropLayerPrefixes, true)) {
+                logger.info("Dropping layer: " + name);
+                continue;
+            }
+
+            boolean skipQ = matches(name, skipLayerPrefixes, false);
+            if (skipQ) logger.info("Skipping quantization of layer: " + name);
+
+            TensorInfo info = tensors.get(name);
+            // F16 weights are widened on load when most of the model is F32
+            DType source = info.dType == DType.F16 && weights.getModelDType() == DType.F32 ? DType.F32 : info.dType;
+            DType dType = skipQ ? source : AbstractTensor.quantizedType(source, TensorShape.of(info.shape), quantizeTo);
+            long widenedBytes = source != info.dType ? TensorShape.of(info.shape).size() * source.size() : 0;
+            long loadBytes = info.dataOffsets[1] - info.dataOffsets[0] + widenedBytes;
+            Planned p = new Planned(name, dType != source, dType, info.shape, offset, loadBytes);
+
+            if (!shard.isEmpty() && offset + p.size() > shardBytes) {
+                shards.add(shard);
+                shard = new ArrayList<>();
+                p = new Planned(name, p.quantize(), dType, info.shape, 0, loadBytes);
+            }
+
+            shard.add(p);
+            offset = p.offset() + p.size();
+        }
+
+        if (!shard.isEmpty()) shards.add(shard);
+        return shards;
+    }
+
+    /**
+     * Writes the shards and their model.safetensors.index.json into the output directory
+     */
+    void write(Path outputDir) throws IOException {
+        List<List<Planned>> shards = plan();
+        Map<String, String> weightMap = new TreeMap<>();
+        long totalSize = 0;
+
+        for (int i = 0; i < shards.size(); i++) {
+            String shardName = String.format("model-%05d-of-%05d.safetensors", i + 1, shards.size());
+            Map<String, TensorInfo> header = new LinkedHashMap<>();
+            for (Planned p : shards.get(i))
+                p.addTo(header);
+
+            Path target = outputDir.resolve(shardName);
+            if (Files.exists(target) && header.equals(readHeader(target))) {
+                logger.info("Keeping finished shard {}", shardName);
+            } else {
+                writeShard(outputDir, shardName, header, shards.get(i));
+            }
+
+            for (Map.Entry<String, TensorInfo> e : header.entrySet()) {
+                weightMap.put(e.getKey(), shardName);
+                totalSize += e.getValue().dataOffsets[1] - e.getValue().dataOffsets[0];
+            }
+        }
+
+        Map<String, Object> index = new LinkedHashMap<>();
+        index.put("metadata", Map.of("total_size", totalSize));
+        index.put("weight_map", weightMap);
+
+        Path tmp = outputDir.resolve(SafeTensorIndex.MODEL_INDEX_JSON + ".tmp");
+        om.writerWithDefaultPrettyPrinter().writeValue(tmp.toFile(), index);
+        Files.move(tmp, outputDir.resolve(SafeTensorIndex.MODEL_INDEX_JSON), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void writeShard(Path outputDir, String shardName, Map<String, TensorInfo> header, List<Planned> tensors)
+        throws IOException {
+        long start = System.currentTimeMillis();
+        Path tmp = outputDir.resolve(shardName + ".tmp");
+
+        long dataStart;
+        try (
+            FileChannel ch = FileChannel.open(
+                tmp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING
+            )
+        ) {
+            ByteBuffer hb = headerBytes(header);
+            dataStart = hb.remaining();
+            while (hb.hasRemaining())
+                ch.write(hb);
+        }
+
+        // Bound the source, widened and quantized bytes held at once, a single tensor larger than the limit still gets through alone
+        int maxPermits = Ints.checkedCast(Math.max(1, maxInflightBytes / MB));
+        Semaphore inflight = new Semaphore(maxPermits);
+
+        VectorMath.pfor(0, tensors.size(), i -> {
+            Planned p = tensors.get(i);
+            int permits = Ints.checkedCast(Math.min(maxPermits, Math.max(1, p.inflightBytes() / MB)));
+            inflight.acquireUninterruptibly(permits);
+            try {
+                writeTensor(tmp, dataStart, p);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                inflight.release(permits);
+            }
+        });
+
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            ch.force(true);
+        }
+        Files.move(tmp, outputDir.resolve(shardName), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        logger.info("Wrote {} with {} tensors in {}ms", shardName, tensors.size(), System.currentTimeMillis() - start);
+    }
+
+    private void writeTensor(Path file, long dataStart, Planned p) throws IOException {
+        try (AbstractTensor tr = weights.load(p.name())) {
+            AbstractTensor t = p.quantize() ? tr.quantize(quantizeTo) : tr;
+            Preconditions.checkState(t.dType() == p.dType(), "Planned %s for %s but got %s", p.dType(), p.name(), t.dType());
+
+            // Each task has its own channel so positions don't interfere
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ch.position(dataStart + p.offset());
+                t.save(ch);
+                switch (t.dType()) {
+                    case Q4 -> ((Q4ByteBufferTensor) t).getBlockF().save(ch);
+                    case I8 -> ((Q8ByteBufferTensor) t).getBlockF().save(ch);
+                    default -> {}
+                }
+
+                long written = ch.position() - dataStart - p.offset();
+                Preconditions.checkState(written == p.size(), "Planned %s bytes for %s but wrote %s", p.size(), p.name(), written);
+            }
+        }
+    }
+
+    private static ByteBuffer headerBytes(Map<String, TensorInfo> header) throws IOException {
+        byte[] json = om.writeValueAsBytes(header);
+        // Pad with spaces so the tensor data starts 8 byte aligned
+        int padding = (Long.BYTES - json.length % Long.BYTES) % Long.BYTES;
+        ByteBuffer hb = ByteBuffer.allocate(Long.BYTES + json.length + padding).order(ByteOrder.LITTLE_ENDIAN);
+        hb.putLong(json.length + padding).put(json);
+        for (int i = 0; i < padding; i++)
+            hb.put((byte) ' ');
+
+        return hb.flip();
+    }
+
+    private static Map<String, TensorInfo> readHeader(Path file) {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer len = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (len.hasRemaining() && ch.read(len) >= 0);
+            long headerLength = len.flip().remaining() == Long.BYTES ? len.getLong() : -1;
+            if (headerLength < 0 || headerLength > ch.size() - Long.BYTES) return Collections.emptyMap();
+
+            ByteBuffer buf = ByteBuffer.allocate(Ints.checkedCast(Long.BYTES + headerLength));
+            while (buf.hasRemaining() && ch.read(buf, buf.position()) >= 0);
+            return SafeTensorSupport.readTensorInfoMap(buf.flip(), Optional.empty());
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to read {}, rewriting it", file, e);
+            return Collections.emptyMap();
+        }
+    }
+
+    private static boolean matches(String name, String[] prefixes, boolean prefixOnly) {
+        for (String prefix : prefixes) {
+            if (prefixOnly ? name.startsWith(prefix) : name.contains(prefix)) return true;
+        }
+        return false;
+    }
+
+    private static long[] toLongs(int[] shape) {
+        long[] l = new long[shape.length];
+        for (int i = 0; i < shape.length; i++)
+            l[i] = shape[i];
+        return l;
+    }
+}
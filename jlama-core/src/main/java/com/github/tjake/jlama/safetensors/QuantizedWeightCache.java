@@ -0,0 +1,183 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.safetensors;
+
+import static com.github.tjake.jlama.util.JsonSupport.om;
+
+import com.github.tjake.jlama.model.DistributedContext;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
+import com.github.tjake.jlama.util.MachineSpec;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the result of quantizing a model's weights on disk so later starts only have to map them.
+ *
+ * Each quantized tensor is written to its own safetensors file, in the same layout the kernels read, the first time
+ * it is loaded.  Files are written to a temporary name and renamed into place, so an interrupted start leaves a
+ * partial but valid cache which the next start completes.
+ *
+ * The cache directory is keyed by the name, size and modification time of the model files and the machine's
+ * vector type, hashing tens of GB of weights on every start would defeat the purpose.
+ */
+public class QuantizedWeightCache implements WeightLoader {
+    private static final Logger logger = LoggerFactory.getLogger(QuantizedWeightCache.class);
+
+    private static final boolean ENABLED = Boolean.getBoolean("jlama.cache_quantized_weights");
+    private static final String CACHE_DIR = System.getProperty("jlama.weight_cache_dir");
+
+    private final SafeTensorIndex delegate;
+    private final Path cacheDir;
+
+    /**
+     * Wraps the loader with a cache when -Djlama.cache_quantized_weights=true and the weights come from local files
+     */
+    public static WeightLoader maybeWrap(WeightLoader loader) {
+        if (!ENABLED || !(loader instanceof SafeTensorIndex index) || index.modelRoot() == null) return loader;
+
+        Path root = CACHE_DIR != null ? Paths.get(CACHE_DIR) : index.modelRoot().resolve(".jlama-cache");
+        try {
+            return new QuantizedWeightCache(index, root);
+        } catch (IOException e) {
+            logger.warn("Unable to use quantized weight cache in {}", root, e);
+            return loader;
+        }
+    }
+
+    QuantizedWeightCache(SafeTensorIndex delegate, Path cacheRoot) throws IOException {
+        this.delegate = delegate;
+        this.cacheDir = cacheRoot.resolve(cacheKey(delegate));
+        Files.createDirectories(cacheDir);
+        logger.info("Using quantized weight cache {}", cacheDir);
+    }
+
+    private static String cacheKey(SafeTensorIndex index) throws IOException {
+        Hasher h = Hashing.sha256().newHasher();
+        for (String file : new TreeSet<>(index.files())) {
+            Path p = index.modelRoot().resolve(file);
+            h.putString(file, StandardCharsets.UTF_8).putLong(Files.size(p)).putLong(Files.getLastModifiedTime(p).toMillis());
+        }
+        h.putString(MachineSpec.VECTOR_TYPE.name(), StandardCharsets.UTF_8);
+        return h.hash().toString().substring(0, 16);
+    }
+
+    @Override
+    public Map<String, String> metadata() {
+        return delegate.metadata();
+    }
+
+    @Override
+    public Map<String, TensorInfo> tensorInfoMap() {
+        return delegate.tensorInfoMap();
+    }
+
+    @Override
+    public AbstractTensor load(String name, DistributedContext dctx, boolean sparseRows, boolean sparseColumns) {
+        return delegate.load(name, dctx, sparseRows, sparseColumns);
+    }
+
+    @Override
+    public AbstractTensor load(String name, DistributedContext dctx, boolean sparseRows, boolean sparseColumns, DType quantizeTo) {
+        // Shards only quantize their own slice, so there is nothing whole to cache
+        if (dctx != null && dctx.hasModelShard()) return WeightLoader.super.load(name, dctx, sparseRows, sparseColumns, quantizeTo);
+
+        String fileName = name + "." + quantizeTo.name() + ".safetensors";
+        Path cached = cacheDir.resolve(fileName);
+        if (!Files.exists(cached)) {
+            AbstractTensor t = delegate.load(name);
+            AbstractTensor q = t.quantize(quantizeTo);
+
+            // Nothing was quantized so the mapped weight is already as cheap as it gets
+            if (q == t) return t;
+
+            try {
+                if (!write(cached, name, q)) return q;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        return SafeTensorIndex.loadSingleFile(cacheDir, fileName).load(name, dctx, sparseRows, sparseColumns);
+    }
+
+    private boolean write(Path target, String name, AbstractTensor t) throws IOException {
+        Map<String, TensorInfo> header = new LinkedHashMap<>();
+        Path data = Files.createTempFile(cacheDir, name, ".data");
+        Path tmp = Files.createTempFile(cacheDir, name, ".tmp");
+        try {
+            try (FileChannel ch = FileChannel.open(data, StandardOpenOption.WRITE)) {
+                header.put(name, t.save(ch));
+                switch (t.dType()) {
+                    case F32, F16, BF16, Q4_K, Q6_K -> {}
+                    case Q4 -> header.put(name + ".qb", ((Q4ByteBufferTensor) t).getBlockF().save(ch));
+                    case I8 -> header.put(name + ".qb", ((Q8ByteBufferTensor) t).getBlockF().save(ch));
+                    default -> {
+                        logger.debug("Not caching {} of type {}", name, t.dType());
+                        return false;
+                    }
+                }
+            }
+
+            try (
+                FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE);
+                FileChannel in = FileChannel.open(data, StandardOpenOption.READ)
+            ) {
+                byte[] json = om.writeValueAsBytes(header);
+                ByteBuffer hb = ByteBuffer.allocate(Long.BYTES + json.length).order(ByteOrder.LITTLE_ENDIAN);
+                hb.putLong(json.length).put(json).flip();
+                while (hb.hasRemaining())
+                    out.write(hb);
+
+                for (long pos = 0; pos < in.size();)
+                    pos += in.transferTo(pos, in.size() - pos, out);
+            }
+
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } finally {
+            Files.deleteIfExists(data);
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    @Override
+    public DType getModelDType() {
+        return delegate.getModelDType();
+    }
+
+    @Override
+    public void close() throws Exception {
+        delegate.close();
+    }
+}
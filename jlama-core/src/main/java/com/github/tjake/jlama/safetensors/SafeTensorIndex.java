@@ -20,19 +20,25 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.tjake.jlama.model.DistributedContext;
 import com.github.tjake.jlama.tensor.AbstractTensor;
-import com.github.tjake.jlama.tensor.SegmentedTensor;
-
+import com.github.tjake.jlama.util.ProgressReporter;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.primitives.Ints;
-
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,6 +46,13 @@ public class SafeTensorIndex implements WeightLoader, AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(SafeTensorIndex.class);
     private static final ObjectMapper om = new ObjectMapper();
 
+    // Size of each sequential read when warming up the mapped files
+    private static final long WARMUP_CHUNK_BYTES = Integer.getInteger("jlama.warmup_chunk_mb", 64) * 1024L * 1024L;
+    private static final int WARMUP_THREADS = Integer.getInteger(
+        "jlama.warmup_threads",
+        Math.max(8, Runtime.getRuntime().availableProcessors())
+    );
+
     public static final String SINGLE_MODEL_NAME = "model.safetensors";
     public static final String MODEL_INDEX_JSON = "model.safetensors.index.json";
 
@@ -53,8 +66,10 @@ public class SafeTensorIndex implements WeightLoader, AutoCloseable {
     // Map from weight name to Weights data
     private final Map<String, Weights> weightMap = new HashMap<>();
 
-    // Map from file name to RandomAccessFile
-    private final Map<String, RandomAccessFile> fileMap = new HashMap<>();
+    // Map from file name to its mapping
+    private final Map<String, MemorySegment> fileMap = new HashMap<>();
+
+    private Path modelRoot;
 
     public static SafeTensorIndex loadWithWeights(Path modelRoot) {
         try {
@@ -81,158 +96,128 @@ public class SafeTensorIndex implements WeightLoader, AutoCloseable {
     }
 
     static void loadWeights(SafeTensorIndex index, Path modelRoot) throws IOException {
+        index.modelRoot = modelRoot;
         for (Map.Entry<String, String> e : index.weightFileMap.entrySet()) {
             // Only load the file if it's not already loaded
             if (!index.fileMap.containsKey(e.getValue())) {
-                RandomAccessFile raf = new RandomAccessFile(Paths.get(modelRoot.toString(), e.getValue()).toFile(), "r");
-                index.fileMap.put(e.getValue(), raf);
+                // Map the whole file once, tensors are zero-copy slices of it.
+                // The mapping is released when nothing references it anymore
+                MemorySegment file;
+                try (FileChannel ch = FileChannel.open(Paths.get(modelRoot.toString(), e.getValue()), StandardOpenOption.READ)) {
+                    file = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size(), Arena.ofAuto());
+                }
+                index.fileMap.put(e.getValue(), file);
 
                 // Read the first 1MB of the file to get the TensorInfo
-                ByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, Math.min(1 << 20, raf.length()));
+                ByteBuffer header = file.asSlice(0, Math.min(1 << 20, file.byteSize())).asByteBuffer();
 
                 Map<String, String> metadata = new HashMap<>();
                 Map<String, TensorInfo> tensorInfoMap = SafeTensorSupport.readTensorInfoMap(header, Optional.of(metadata));
                 index.allTensorInfoMap.putAll(tensorInfoMap);
                 int endOfHeaderPosition = header.position();
 
-                Map<List<Long>, List<String>> splits = index.computeMmapSplits(tensorInfoMap, raf.length());
-                for (Map.Entry<List<Long>, List<String>> split : splits.entrySet()) {
-                    long offset = split.getKey().get(0);
-                    long length = split.getKey().get(1);
-                    List<String> tensors = split.getValue();
-                    int lengthInt = Ints.checkedCast(length - offset);
-
-                    ByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, endOfHeaderPosition + offset, lengthInt);
-
-                    Map<String, TensorInfo> mmapTensorInfoMap = tensorInfoMap.entrySet()
-                        .stream()
-                        .filter(x -> tensors.contains(x.getKey()))
-                        .collect(ImmutableMap.toImmutableMap(Map.Entry::getKey, Map.Entry::getValue));
-
-                    Weights mmapWeights = new Weights(metadata, mmapTensorInfoMap, buf, Optional.of(index));
-                    for (String tensor : tensors) {
-                        index.weightMap.put(tensor, mmapWeights);
-                    }
+                Weights fileWeights = new Weights(metadata, tensorInfoMap, file.asSlice(endOfHeaderPosition), Optional.of(index));
+                for (String tensor : tensorInfoMap.keySet()) {
+                    index.weightMap.put(tensor, fileWeights);
                 }
             }
         }
     }
 
     /**
-     * Group tensors into splits that can be mmaped together.
-     * Since mmap limitation is integer max_value length.
+     * Pages every mapped file in ahead of the first forward pass, see {@link #warmup(Optional, Optional)}
+     */
+    public void warmup(Optional<ProgressReporter> progressReporter) {
+        warmup(progressReporter, Optional.empty());
+    }
+
+    /**
+     * Pages the mapped files in ahead of the first forward pass.
      *
-     * This also adjusts (inplace) the tensor offsets to be relative to the start of the split.
+     * Each file is cut into large chunks which are loaded in parallel. A chunk is hinted with madvise(MADV_WILLNEED)
+     * and then touched front to back, so the disk sees big sequential reads rather than the gemm loops faulting
+     * in one page at a time.
      *
+     * @param progressReporter called with the bytes loaded so far across all warmed files, the values only ever increase
+     * @param dctx when present, files that only hold layers outside its layer range are not warmed
      */
-    private Map<List<Long>, List<String>> computeMmapSplits(Map<String, TensorInfo> tensorInfoMap, long fileLength) {
-        Map<List<Long>, List<String>> splits = new HashMap<>();
-        long lastSplitOffset = 0;
-        int tensorsInFile = tensorInfoMap.size();
-        int tensorsSplit = 0;
-        List<String> tensors = new ArrayList<>();
-
-        Iterator<Map.Entry<String, TensorInfo>> it = new ArrayList<>(tensorInfoMap.entrySet()).iterator();
-        Map.Entry<String, TensorInfo> next = null;
-        while (tensorsSplit < tensorsInFile && (it.hasNext() || next != null)) {
-            tensors.clear();
-            long limit = lastSplitOffset + Integer.MAX_VALUE;
-            long startOffset = fileLength;
-            long endOffset = 0;
-
-            while (it.hasNext() || next != null) {
-                next = next == null ? it.next() : next;
-                TensorInfo info = next.getValue();
-                logger.debug("Tensor {} {} {} limit {}", next.getKey(), info.dataOffsets[0], info.dataOffsets[1], limit);
-                if (info.dataOffsets[1] < limit) {
-                    tensors.add(next.getKey());
-                    tensorsSplit++;
-
-                    if (info.dataOffsets[1] > endOffset) endOffset = info.dataOffsets[1];
-                    if (info.dataOffsets[0] < startOffset) startOffset = info.dataOffsets[0];
-
-                    // Adjust the offset to be relative to the start of the split
-                    info.dataOffsets[0] -= lastSplitOffset;
-                    info.dataOffsets[1] -= lastSplitOffset;
-
-                    logger.debug("Adding tensor {} to split {}-{}", next.getKey(), info.dataOffsets[0], info.dataOffsets[1]);
-
-                    // Used so fetch the tensor from the mmap
-                    next = null;
-                } else {
-                    // Split large tensors up (they will be reassembled in the Weights class)
-                    if (tensors.size() == 0) {
-                        int bytesPerColumn = info.dType.size() * info.shape[1];
-
-                        // This tensor is too large to fit in a single split
-                        // We'll split it up into smaller chunks
-                        if (info.dataOffsets[1] > endOffset) endOffset = info.dataOffsets[1];
-                        if (info.dataOffsets[0] < startOffset) startOffset = info.dataOffsets[0];
-
-                        // Adjust the offset to be relative to the start of the split
-                        info.dataOffsets[0] -= lastSplitOffset;
-                        info.dataOffsets[1] -= lastSplitOffset;
-
-                        long offset = info.dataOffsets[0];
-                        long length = info.dataOffsets[1] - offset;
-
-                        // Chunk size needs to be a multiple of the column size
-                        long chunkSize = Integer.MAX_VALUE - (Integer.MAX_VALUE % bytesPerColumn);
-                        long offsetAdded = 0;
-                        int chunk = 0;
-                        boolean added = false;
-                        while (length > 0) {
-                            long chunkEnd = Math.min(offset + chunkSize, endOffset);
-                            String chunkName = next.getKey() + "-part-" + chunk++;
-                            logger.debug(
-                                "Adding chunk {} to split {}-{} {}",
-                                chunkName,
-                                offset,
-                                chunkEnd,
-                                Ints.checkedCast(chunkEnd - offset)
-                            );
-                            splits.put(List.of(offset, chunkEnd), List.of(chunkName));
-
-                            // Add TensorInfo for the chunk
-                            assert info.shape.length == 2 : "Only 2D tensors supported";
-                            int numRowsInChunk = Ints.checkedCast((chunkEnd - offset) / bytesPerColumn);
-
-                            // This tensorInfo is relative to the split which we know is at least the mmap limit
-                            // We track the offsetAdded so we can make the offset relative to the current split
-                            TensorInfo chunkInfo = new TensorInfo(
-                                info.dType,
-                                new long[] { numRowsInChunk, info.shape[1] },
-                                new long[] { offset - offsetAdded, chunkEnd - offsetAdded }
-                            );
-                            tensorInfoMap.put(chunkName, chunkInfo);
-                            added = true;
-                            offsetAdded += chunkEnd - offset;
-
-                            offset = chunkEnd;
-                            length -= chunkSize;
-                        }
-
-                        if (added) {
-                            tensorsSplit++;
-                            next = null;
-                        }
-                    }
-
-                    break;
+    public void warmup(Optional<ProgressReporter> progressReporter, Optional<DistributedContext> dctx) {
+        Set<String> files = new TreeSet<>();
+        for (Map.Entry<String, String> e : weightFileMap.entrySet()) {
+            if (dctx.isEmpty() || inLayerRange(e.getKey(), dctx.get())) files.add(e.getValue());
+        }
+        // A single file model has no weight map, its one file holds every layer
+        if (weightFileMap.isEmpty()) files.addAll(fileMap.keySet());
+
+        List<MemorySegment> chunks = new ArrayList<>();
+        long totalBytes = 0;
+        for (String name : files) {
+            MemorySegment file = fileMap.get(name);
+            for (long offset = 0; offset < file.byteSize(); offset += WARMUP_CHUNK_BYTES)
+                chunks.add(file.asSlice(offset, Math.min(WARMUP_CHUNK_BYTES, file.byteSize() - offset)));
+
+            totalBytes += file.byteSize();
+        }
+
+        // Chunks finish out of order, so only the thread that holds the lock reports and never a smaller total
+        // than was already reported. Busy threads skip reporting rather than wait on a slow reporter
+        String taskName = String.valueOf(modelRoot.getFileName());
+        long total = totalBytes;
+        AtomicLong loaded = new AtomicLong();
+        ReentrantLock reportLock = new ReentrantLock();
+        AtomicLong reported = new AtomicLong(-1);
+        LongConsumer report = done -> progressReporter.ifPresent(p -> {
+            if (!reportLock.tryLock()) return;
+            try {
+                if (done > reported.get()) {
+                    reported.set(done);
+                    p.update(taskName, done, total);
                 }
+            } finally {
+                reportLock.unlock();
             }
+        });
 
-            assert tensorsSplit > 0 : "No tensors in split";
-            logger.debug("Adding split {}-{} with {} tensors of {}", startOffset, endOffset, tensors.size(), tensorsSplit);
-
-            // Add any sections that were split
-            if (!tensors.isEmpty()) splits.put(List.of(startOffset, endOffset), new ArrayList<>(tensors));
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(WARMUP_THREADS, chunks.size())));
+        try {
+            CompletableFuture.allOf(chunks.stream().map(chunk -> CompletableFuture.runAsync(() -> {
+                chunk.load();
+                report.accept(loaded.addAndGet(chunk.byteSize()));
+            }, executor)).toArray(CompletableFuture[]::new)).join();
+        } finally {
+            executor.shutdown();
+        }
 
-            if (endOffset > lastSplitOffset) lastSplitOffset = endOffset;
+        // The last chunk's report may have been skipped while another thread held the lock
+        reportLock.lock();
+        try {
+            if (progressReporter.isPresent() && reported.get() < total) progressReporter.get().update(taskName, total, total);
+        } finally {
+            reportLock.unlock();
         }
 
-        assert tensorsInFile == tensorsSplit : "Not all tensors were split: " + tensorsSplit + " != " + tensorsInFile;
-        return splits;
+        logger.info(
+            "Warmed up {}MB of weights in {} of {} files in {}ms",
+            totalBytes >> 20,
+            files.size(),
+            fileMap.size(),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+        );
+    }
+
+    /**
+     * Whether a tensor is needed by a node with the given layer range. Tensors are numbered by the first
+     * integer in their dotted name (model.layers.3.mlp, h.3.attn, encoder.layer.3...), unnumbered ones are always needed
+     */
+    static boolean inLayerRange(String tensorName, DistributedContext dctx) {
+        for (String part : tensorName.split("\\.")) {
+            if (!part.isEmpty() && part.chars().allMatch(Character::isDigit)) {
+                int layer = Integer.parseInt(part);
+                return layer >= dctx.layerStart && layer < dctx.layerEnd;
+            }
+        }
+        return true;
     }
 
     @JsonCreator
@@ -241,6 +226,16 @@ public class SafeTensorIndex implements WeightLoader, AutoCloseable {
         this.weightFileMap = ImmutableMap.copyOf(weightFileMap);
     }
 
+    /** The directory the weight files were loaded from */
+    public Path modelRoot() {
+        return modelRoot;
+    }
+
+    /** The weight files this index maps, relative to {@link #modelRoot()} */
+    public Set<String> files() {
+        return fileMap.keySet();
+    }
+
     @Override
     public Map<String, String> metadata() {
         return metadata;
@@ -254,22 +249,7 @@ public class SafeTensorIndex implements WeightLoader, AutoCloseable {
     @Override
     public AbstractTensor load(String name, DistributedContext dctx, boolean sparseRows, boolean sparseColumns) {
         Weights w = weightMap.get(name);
-        if (w == null) {
-            // Maybe assemble the tensor from segments
-            List<AbstractTensor> segments = new ArrayList<>();
-            int idx = 0;
-            while (true) {
-                String segmentName = name + "-part-" + idx++;
-                if (!weightMap.containsKey(segmentName)) break;
-                segments.add(weightMap.get(segmentName).load(segmentName, dctx, sparseRows, sparseColumns));
-            }
-
-            if (segments.size() > 0) {
-                return SegmentedTensor.wrap(segments);
-            }
-
-            throw new NoSuchElementException(name);
-        }
+        if (w == null) throw new NoSuchElementException(name);
 
         return w.load(name, dctx, sparseRows, sparseColumns);
     }
@@ -283,13 +263,6 @@ public class SafeTensorIndex implements WeightLoader, AutoCloseable {
     @Override
     public void close() throws Exception {
         weightMap.clear();
-        fileMap.forEach((k, v) -> {
-            try {
-                v.close();
-            } catch (IOException e) {
-                // Close quietly
-            }
-        });
         fileMap.clear();
         allTensorInfoMap.clear();
     }
@@ -18,12 +18,9 @@ package com.github.tjake.jlama.safetensors;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.type.MapType;
+import com.github.tjake.jlama.model.DistributedContext;
 import com.github.tjake.jlama.model.ModelSupport;
 import com.github.tjake.jlama.safetensors.tokenizer.TokenizerModel;
-import com.github.tjake.jlama.tensor.AbstractTensor;
-import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
-import com.github.tjake.jlama.tensor.Q5ByteBufferTensor;
-import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
 import com.github.tjake.jlama.util.HttpSupport;
 import com.github.tjake.jlama.util.ProgressReporter;
 import com.google.common.base.Preconditions;
@@ -42,6 +39,7 @@ import java.nio.ByteOrder;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -49,6 +47,7 @@ import static com.github.tjake.jlama.util.JsonSupport.om;
 
 public class SafeTensorSupport {
     private static final Logger logger = LoggerFactory.getLogger(SafeTensorSupport.class);
+    private static final boolean WARMUP_WEIGHTS = Boolean.getBoolean("jlama.warmup_weights");
     private static final MapType metadataTypeReference = om.getTypeFactory().constructMapType(Map.class, String.class, String.class);
 
     public static Map<String, TensorInfo> readTensorInfoMap(ByteBuffer buf, Optional<Map<String, String>> saveMetadata) {
@@ -117,16 +116,33 @@ public class SafeTensorSupport {
     }
 
     public static WeightLoader loadWeights(File baseDir) {
-        if (Files.exists(Paths.get(baseDir.getAbsolutePath(), SafeTensorIndex.MODEL_INDEX_JSON))) return SafeTensorIndex.loadWithWeights(
-            baseDir.toPath()
-        );
+        return loadWeights(baseDir, Optional.empty(), Optional.empty());
+    }
 
-        if (Files.exists(Paths.get(baseDir.getAbsolutePath(), SafeTensorIndex.SINGLE_MODEL_NAME))) return SafeTensorIndex.loadSingleFile(
-            baseDir.toPath(),
-            SafeTensorIndex.SINGLE_MODEL_NAME
-        );
+    /**
+     * Maps the model's weights and, with jlama.warmup_weights, pages them in up front.
+     *
+     * @param progressReporter reports the warmup's progress
+     * @param dctx when present, only the files holding this node's layers are warmed
+     */
+    public static WeightLoader loadWeights(
+        File baseDir,
+        Optional<ProgressReporter> progressReporter,
+        Optional<DistributedContext> dctx
+    ) {
+        SafeTensorIndex index;
+        if (Files.exists(Paths.get(baseDir.getAbsolutePath(), SafeTensorIndex.MODEL_INDEX_JSON))) {
+            index = SafeTensorIndex.loadWithWeights(baseDir.toPath());
+        } else if (Files.exists(Paths.get(baseDir.getAbsolutePath(), SafeTensorIndex.SINGLE_MODEL_NAME))) {
+            index = SafeTensorIndex.loadSingleFile(baseDir.toPath(), SafeTensorIndex.SINGLE_MODEL_NAME);
+        } else {
+            throw new IllegalArgumentException("No safetensor model found in: " + baseDir);
+        }
+
+        // Page the weights in up front rather than on the first forward pass
+        if (WARMUP_WEIGHTS) index.warmup(progressReporter, dctx);
 
-        throw new IllegalArgumentException("No safetensor model found in: " + baseDir);
+        return index;
     }
 
     public static boolean isModelLocal(Path modelRoot) {
@@ -212,6 +228,10 @@ public class SafeTensorSupport {
         return model;
     }
 
+    /**
+     * Quantizes a model into a sharded safetensors model, see {@link ModelQuantizer}.
+     * Rerunning with the same arguments after an interruption resumes from the last finished shard.
+     */
     public static Path quantizeModel(
         Path modelRoot,
         DType modelQuantization,
@@ -219,115 +239,32 @@ public class SafeTensorSupport {
         String[] dropLayerPrefixes,
         Optional<Path> outputRoot
     ) throws IOException {
-        File tmp = File.createTempFile("safe", "tensor");
-        tmp.deleteOnExit();
         WeightLoader wl = SafeTensorSupport.loadWeights(modelRoot.toFile());
-        Map<String, Object> writtenInfo = new HashMap<>();
-
-        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
-            Map<String, TensorInfo> tensors = wl.tensorInfoMap();
-
-            for (Map.Entry<String, TensorInfo> e : tensors.entrySet()) {
-                boolean drop = false;
-                if (dropLayerPrefixes != null) {
-                    for (String dropLayerPrefix : dropLayerPrefixes) {
-                        if (e.getKey().startsWith(dropLayerPrefix)) {
-                            logger.info("Dropping layer: " + e.getKey());
-                            drop = true;
-                        }
-                    }
-                }
-
-                if (drop) continue;
 
-                try (AbstractTensor tr = wl.load(e.getKey())) {
-
-                    boolean skipQ = false;
-                    if (skipLayerPrefixes != null) {
-                        for (String skipLayerPrefix : skipLayerPrefixes) {
-                            if (e.getKey().contains(skipLayerPrefix)) {
-                                logger.info("Skipping quantization of layer: " + e.getKey());
-                                skipQ = true;
-                                break;
-                            }
-                        }
-                    }
-
-                    AbstractTensor t = skipQ ? tr : tr.quantize(modelQuantization);
-
-                    switch (t.dType()) {
-                        case F32:
-                        case BF16:
-                        case F16:
-                            writtenInfo.put(e.getKey(), t.save(raf.getChannel()));
-                            break;
-                        case Q4:
-                            writtenInfo.put(e.getKey(), t.save(raf.getChannel()));
-                            writtenInfo.put(e.getKey() + ".qb", ((Q4ByteBufferTensor) t).getBlockF().save(raf.getChannel()));
-                            break;
-                        case Q5:
-                            writtenInfo.put(e.getKey(), t.save(raf.getChannel()));
-                            writtenInfo.put(e.getKey() + ".qb", ((Q5ByteBufferTensor) t).getBlockF().save(raf.getChannel()));
-                            // FIXME: Need to add b5 bits
-                            throw new UnsupportedOperationException("TODO");
-                        // break;
-                        case I8:
-                            writtenInfo.put(e.getKey(), t.save(raf.getChannel()));
-                            writtenInfo.put(e.getKey() + ".qb", ((Q8ByteBufferTensor) t).getBlockF().save(raf.getChannel()));
-                            break;
-                        default:
-                            throw new UnsupportedOperationException("" + t.dType() + " not implemented");
-                    }
-                }
-            }
-        }
-
-        // Now create the output file
         String baseDirName = modelRoot.getName(modelRoot.getNameCount() - 1).toString();
         Path parentPath = modelRoot.getParent();
 
         Path qPath = outputRoot.orElseGet(() -> Paths.get(parentPath.toString(), baseDirName + "-J" + modelQuantization.name()));
-        File qDir = qPath.toFile();
-        qDir.mkdirs();
+        Files.createDirectories(qPath);
+
+        new ModelQuantizer(wl, modelQuantization, skipLayerPrefixes, dropLayerPrefixes).write(qPath);
 
         // Copy config.json and tokenizer.json
-        Files.copy(modelRoot.resolve("config.json"), qPath.resolve("config.json"));
-        Files.copy(modelRoot.resolve("tokenizer.json"), qPath.resolve("tokenizer.json"));
-        Files.copy(modelRoot.resolve("README.md"), qPath.resolve("README.md"));
+        Files.copy(modelRoot.resolve("config.json"), qPath.resolve("config.json"), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(modelRoot.resolve("tokenizer.json"), qPath.resolve("tokenizer.json"), StandardCopyOption.REPLACE_EXISTING);
 
         // Copy README.md and add jlama header
-        addJlamaHeader(baseDirName, qPath.resolve("README.md"));
+        if (Files.exists(modelRoot.resolve("README.md"))) {
+            Files.copy(modelRoot.resolve("README.md"), qPath.resolve("README.md"), StandardCopyOption.REPLACE_EXISTING);
+            addJlamaHeader(baseDirName, qPath.resolve("README.md"));
+        }
 
         if (Files.exists(modelRoot.resolve("tokenizer_config.json"))) Files.copy(
             modelRoot.resolve("tokenizer_config.json"),
-            qPath.resolve("tokenizer_config.json")
+            qPath.resolve("tokenizer_config.json"),
+            StandardCopyOption.REPLACE_EXISTING
         );
 
-        try (RandomAccessFile raf = new RandomAccessFile(qPath.resolve("model.safetensors").toFile(), "rw")) {
-            byte[] header = om.writeValueAsBytes(writtenInfo);
-            byte[] hsize = new byte[Long.BYTES];
-            ByteBuffer.wrap(hsize).order(ByteOrder.LITTLE_ENDIAN).putLong(header.length);
-            raf.write(hsize);
-            raf.write(header);
-
-            Files.copy(tmp.toPath(), new OutputStream() {
-                @Override
-                public void write(int b) throws IOException {
-                    raf.write(b);
-                }
-
-                @Override
-                public void write(byte[] b) throws IOException {
-                    raf.write(b);
-                }
-
-                @Override
-                public void write(byte[] b, int off, int len) throws IOException {
-                    raf.write(b, off, len);
-                }
-            });
-        }
-
         return qPath;
     }
 
@@ -36,5 +36,16 @@ public interface WeightLoader extends AutoCloseable {
 
     AbstractTensor load(String name, DistributedContext dctx, boolean sparseRows, boolean sparseColumns);
 
+    default AbstractTensor load(String name, DType quantizeTo) {
+        return load(name, null, false, false, quantizeTo);
+    }
+
+    /**
+     * Loads a weight quantized to the given type, loaders may serve it from an earlier quantization
+     */
+    default AbstractTensor load(String name, DistributedContext dctx, boolean sparseRows, boolean sparseColumns, DType quantizeTo) {
+        return load(name, dctx, sparseRows, sparseColumns).quantize(quantizeTo);
+    }
+
     DType getModelDType();
 }
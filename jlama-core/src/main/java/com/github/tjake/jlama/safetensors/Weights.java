@@ -18,9 +18,11 @@ package com.github.tjake.jlama.safetensors;
 import com.github.tjake.jlama.model.DistributedContext;
 import com.github.tjake.jlama.tensor.*;
 import com.github.tjake.jlama.util.Pair;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.primitives.Ints;
 
+import java.lang.foreign.MemorySegment;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
@@ -34,14 +36,21 @@ public class Weights implements WeightLoader {
     private static final Logger logger = LoggerFactory.getLogger(Weights.class);
     private final Map<String, String> metadata;
     private final Map<String, TensorInfo> tensorInfoMap;
-    private final ByteBuffer bytes;
+    private final MemorySegment bytes;
     private final DType majorityDType;
     private final Optional<WeightLoader> parent;
 
     Weights(Map<String, String> metadata, Map<String, TensorInfo> tensorInfoMap, ByteBuffer bytes, Optional<WeightLoader> parent) {
+        this(metadata, tensorInfoMap, MemorySegment.ofBuffer(bytes), parent);
+    }
+
+    /**
+     * @param bytes the tensor data section, tensor offsets are relative to its start. Tensors are zero-copy slices of it
+     */
+    Weights(Map<String, String> metadata, Map<String, TensorInfo> tensorInfoMap, MemorySegment bytes, Optional<WeightLoader> parent) {
         this.metadata = ImmutableMap.copyOf(metadata);
         this.tensorInfoMap = ImmutableMap.copyOf(tensorInfoMap);
-        this.bytes = bytes.duplicate();
+        this.bytes = bytes;
         this.majorityDType = findDType(tensorInfoMap);
         this.parent = parent;
     }
@@ -87,15 +96,47 @@ public class Weights implements WeightLoader {
         }
 
         Pair<TensorShape, Pair<Long, Long>> offsets = getLoadOffsets(info, dctx, sparseRows);
+        long positionOffset = offsets.right.left;
+        long positionLimit = offsets.right.right;
+
+        if (positionLimit - positionOffset > Integer.MAX_VALUE) {
+            // Buffers are int indexed, so a tensor this large is wrapped as row chunks of the same mapping
+            Preconditions.checkArgument(info.shape.length == 2, "Only 2D tensors supported");
+
+            List<AbstractTensor> tensors = new ArrayList<>();
+            int bytesPerColumn = Ints.checkedCast(rowBytes(info.dType, info.shape[1]));
+            // Chunk size needs to be a multiple of the column size
+            long chunkSize = Integer.MAX_VALUE - (Integer.MAX_VALUE % bytesPerColumn);
+            int chunkNum = 0;
+            for (long offset = positionOffset; offset < positionLimit; offset += chunkSize) {
+                long chunkEnd = Math.min(offset + chunkSize, positionLimit);
+                int numRowsInChunk = Ints.checkedCast((chunkEnd - offset) / bytesPerColumn);
+                tensors.add(
+                    loadTensorFromBuffer(
+                        name + ".part." + chunkNum++,
+                        info.dType,
+                        majorityDType,
+                        TensorShape.of(numRowsInChunk, info.shape[1]),
+                        slice(offset, chunkEnd),
+                        sparseRows,
+                        sparseColumns,
+                        dctx,
+                        parent.orElse(this)
+                    )
+                );
+            }
 
-        ByteBuffer b = bytes.duplicate()
-            .order(ByteOrder.LITTLE_ENDIAN)
-            .position(Ints.checkedCast(offsets.right.left))
-            .limit(Ints.checkedCast(offsets.right.right));
+            return SegmentedTensor.wrap(tensors);
+        }
 
+        ByteBuffer b = slice(positionOffset, positionLimit);
         return loadTensorFromBuffer(name, info.dType, majorityDType, offsets.left, b, sparseRows, sparseColumns, dctx, parent.orElse(this));
     }
 
+    private ByteBuffer slice(long offset, long limit) {
+        return bytes.asSlice(offset, limit - offset).asByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
     static Pair<TensorShape, Pair<Long, Long>> getLoadOffsets(TensorInfo info, DistributedContext dctx, boolean sparseRows) {
         long positionOffset = info.dataOffsets[0];
         long positionLimit = info.dataOffsets[1];
@@ -104,10 +145,7 @@ public class Weights implements WeightLoader {
         // If this is a sparse tensor, we need to fetch only the section of the tensor that is needed
         if (dctx != null && sparseRows) {
             int rows = info.shape[0];
-            int columnLength = info.shape[1] * info.dType.size();
-
-            // Hack for Q4
-            if (info.dType == DType.Q4) columnLength /= 2;
+            long columnLength = rowBytes(info.dType, info.shape[1]);
 
             positionOffset = info.dataOffsets[0] + (dctx.getShardOffsetForLength(rows) * columnLength);
             positionLimit = positionOffset + (dctx.getShardLength(rows) * columnLength);
@@ -116,6 +154,17 @@ public class Weights implements WeightLoader {
         return Pair.of(shape, Pair.of(positionOffset, positionLimit));
     }
 
+    /**
+     * The number of bytes in a row of the given type, packed types take less than a byte per column
+     */
+    static long rowBytes(DType dType, int columns) {
+        return switch (dType) {
+            case Q4 -> columns / 2;
+            case Q4_K, Q6_K -> KQuantByteBufferTensor.storageBytes(dType, columns);
+            default -> (long) columns * dType.size();
+        };
+    }
+
     static AbstractTensor loadTensorFromBuffer(
         String name,
         DType dType,
@@ -169,10 +218,20 @@ public class Weights implements WeightLoader {
                 );
                 t = new Q8ByteBufferTensor(name, b.slice(), qb1, shape, true);
                 break;
+            case Q4_K:
+                t = new Q4KByteBufferTensor(name, b.slice(), shape, true);
+                break;
+            case Q6_K:
+                t = new Q6KByteBufferTensor(name, b.slice(), shape, true);
+                break;
             default:
                 throw new IllegalArgumentException("Unsupported Tensor type: " + dType.name() + " for " + name);
         }
 
+        // Remember the file mapping, the typed views above hide it from the tensor's own segment
+        MemorySegment source = MemorySegment.ofBuffer(b);
+        if (source.isMapped() && t.getMemorySegment().address() == source.address()) t.setMappedSegment(source);
+
         return dctx != null && sparseColumns && dctx.hasModelShard()
             ? t.sparsify(dctx.getShardOffsetForLength(shape.last()), dctx.getShardLength(shape.last()))
             : t;
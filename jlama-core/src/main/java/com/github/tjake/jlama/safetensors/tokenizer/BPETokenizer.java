@@ -18,15 +18,17 @@ package com.github.tjake.jlama.safetensors.tokenizer;
 import com.github.tjake.jlama.safetensors.SafeTensorSupport;
 import com.github.tjake.jlama.safetensors.prompt.PromptSupport;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import com.google.common.collect.ImmutableBiMap;
+import com.google.common.primitives.ImmutableLongArray;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,7 +39,13 @@ public abstract class BPETokenizer implements Tokenizer {
     protected static final Logger logger = LoggerFactory.getLogger(BPETokenizer.class);
     protected final TokenizerModel model;
     protected final PromptSupport promptSupport;
-    protected final ByteBuffer decodeBuffer = ByteBuffer.allocate(4);
+    protected final ThreadLocal<DetokenizerStream> decodeStream = ThreadLocal.withInitial(this::detokenizer);
+
+    // Pre-tokens repeat a lot in real text, so remember how the most recent ones were merged
+    private static final int MAX_CACHED_PIECE_LENGTH = 256;
+    private final Cache<String, long[]> pieceCache = CacheBuilder.newBuilder().maximumSize(TokenizerModel.CACHE_SIZE).build();
+
+    private final AtomicReferenceArray<byte[]> tokenBytes;
 
     public static BiMap<Integer, Integer> alteredBytes; // Codepoint and Token mapping needed for legacy mode
 
@@ -64,6 +72,8 @@ public abstract class BPETokenizer implements Tokenizer {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+
+        this.tokenBytes = new AtomicReferenceArray<>(model.vocabulary().idLimit());
     }
 
     @Override
@@ -107,85 +117,163 @@ public abstract class BPETokenizer implements Tokenizer {
     public long[] encode(String rawSentence) {
 
         List<String> sentencePieces = tokenize(rawSentence);
-        List<Long> allTokens = new ArrayList<>();
+        ImmutableLongArray.Builder allTokens = ImmutableLongArray.builder();
 
         for (String sentence : sentencePieces) {
             if (model.addedTokens() != null && model.addedTokens().containsKey(sentence)) {
                 allTokens.add(model.addedTokens().get(sentence));
                 continue;
             }
-            List<Long> tokens = new ArrayList<>();
-            sentence = preProcess(sentence);
-            int[] codes = sentence.codePoints().toArray();
-            for (int i = 0; i < codes.length; i++) {
-                String c = Character.toString(codes[i]);
-                Long id = model.vocabLookup.get(c);
-                if (id != null) {
-                    // we found this codepoint in vocab, add it as a token
-                    // logger.debug("{} -> {}", c, id);
-                    tokens.add(id);
+
+            // Long pieces rarely repeat, so don't let them push out the common ones
+            if (sentence.length() > MAX_CACHED_PIECE_LENGTH) {
+                allTokens.addAll(encodePiece(sentence));
+                continue;
+            }
+
+            long[] tokens = pieceCache.getIfPresent(sentence);
+            if (tokens == null) {
+                tokens = encodePiece(sentence);
+                pieceCache.put(sentence, tokens);
+            }
+
+            allTokens.addAll(tokens);
+        }
+
+        return allTokens.build().toArray();
+    }
+
+    private long[] encodePiece(String sentence) {
+        sentence = preProcess(sentence);
+        int[] codes = sentence.codePoints().toArray();
+
+        // The ids to output and the ids to look merges up by, which differ for byte fallback tokens.
+        // A codepoint is at most 4 utf-8 bytes
+        long[] tokens = new long[codes.length * 4];
+        long[] mergeIds = new long[tokens.length];
+        int n = 0;
+
+        for (int i = 0; i < codes.length; i++) {
+            String c = Character.toString(codes[i]);
+            long id = model.vocabulary().getId(c);
+            if (id >= 0) {
+                // we found this codepoint in vocab, add it as a token
+                tokens[n] = id;
+                mergeIds[n++] = id;
+            } else {
+                if (model.byteFallback) {
+                    // byte_fallback encoding: just encode each byte as a token
+                    byte[] chars = c.getBytes(StandardCharsets.UTF_8);
+                    for (int k = 0; k < chars.length; k++) {
+                        long token = encodeCharacterAsToken(chars[k]);
+                        tokens[n] = token;
+                        mergeIds[n++] = mergeId(token);
+                    }
                 } else {
-                    if (model.byteFallback) {
-                        // byte_fallback encoding: just encode each byte as a token
-                        String code = Character.toString(codes[i]);
-                        byte[] chars = code.getBytes(StandardCharsets.UTF_8);
-                        for (int k = 0; k < chars.length; k++) {
-                            long token = encodeCharacterAsToken(chars[k]);
-                            // logger.debug("byte {} -> {}", Byte.toUnsignedInt(chars[k]), token);
-                            tokens.add(token);
-                        }
-                    } else {
-                        if (model.unkToken != null) {
-                            tokens.add(model.vocabLookup.get(model.unkToken));
-                        }
+                    long token = model.unkToken == null ? -1 : model.vocabulary().getId(model.unkToken);
+                    if (token >= 0) {
+                        tokens[n] = token;
+                        mergeIds[n++] = token;
                     }
                 }
             }
+        }
 
-            // merge the best consecutive tuple each iteration,
-            // until we can't find any more pairs to merge
-            while (true) {
-                long bestId = -1;
-                long bestIdx = -1;
-                long bestRank = Long.MAX_VALUE;
-
-                for (int i = 0; i < tokens.size() - 1; i++) {
-                    // check if we can merge the pair (tokens[i], tokens[i+1])
-                    String token1 = decodeInternal(tokens.get(i));
-                    String token2 = decodeInternal(tokens.get(i + 1));
-
-                    String merge2 = String.format("%s %s", token1, token2);
-                    String merge3 = String.format("%s%s", token1, token2);
-
-                    if (model.merges.containsKey(merge2)) {
-                        Long id = model.vocabLookup.get(merge3);
-                        if (id != null) {
-                            // Check if this merge has a better rank (i.e., lower rank number)
-                            long rank = model.merges.get(merge2);
-                            if (rank < bestRank) {
-                                // this merge pair exists in vocab! record its position
-                                bestId = id;
-                                bestIdx = i;
-                                bestRank = rank;
-                            }
-                        }
-                    }
-                }
+        return merge(tokens, mergeIds, n);
+    }
 
-                if (bestIdx == -1) {
-                    break; // we couldn't find any more pairs to merge, so we're done
-                }
+    /**
+     * Byte fallback tokens merge as the character they encode
+     */
+    private long mergeId(long token) {
+        return maybeDecodeTokenAsCharacter(token).map(c -> model.vocabulary().getId(c.toString())).orElse(token);
+    }
 
-                // merge the consecutive pair (best_idx, best_idx+1) into new token best_id
-                tokens.set((int) bestIdx, bestId);
-                // delete token at position best_idx+1, shift the entire sequence back 1
-                tokens.remove((int) bestIdx + 1);
-            }
+    /**
+     * Repeatedly merges the best ranked pair, the leftmost on ties, until no pair can be merged.
+     *
+     * The tokens form a linked list and the candidate pairs sit in a heap ordered by rank then position.
+     * Merging only changes the pairs either side of it, so rather than removing the stale heap entries they
+     * are checked against the current pair when they come up.  This makes it O(n log n) instead of rescanning
+     * every pair for every merge.
+     */
+    private long[] merge(long[] tokens, long[] mergeIds, int n) {
+        if (n < 2) return Arrays.copyOf(tokens, n);
+
+        MergeTable merges = model.merges;
+        int[] prev = new int[n];
+        int[] next = new int[n];
+        for (int i = 0; i < n; i++) {
+            prev[i] = i - 1;
+            next[i] = i + 1;
+        }
 
-            allTokens.addAll(tokens);
+        // Each merge adds at most two new pairs
+        long[] heap = new long[3 * n];
+        int heapSize = 0;
+        for (int i = 0; i < n - 1; i++)
+            heapSize = pushPair(heap, heapSize, merges, mergeIds, i, i + 1);
+
+        while (heapSize > 0) {
+            long top = heap[0];
+            heapSize = pop(heap, heapSize);
+
+            int i = (int) top;
+            int j = next[i];
+            if (tokens[i] < 0 || j >= n) continue;
+
+            // Skip entries for pairs that have since changed
+            long merge = merges.get(mergeIds[i], mergeIds[j]);
+            if (merge < 0 || MergeTable.rank(merge) != (int) (top >>> 32)) continue;
+
+            tokens[i] = mergeIds[i] = MergeTable.mergedId(merge);
+            tokens[j] = -1;
+            next[i] = next[j];
+            if (next[j] < n) prev[next[j]] = i;
+
+            if (prev[i] >= 0) heapSize = pushPair(heap, heapSize, merges, mergeIds, prev[i], i);
+            if (next[i] < n) heapSize = pushPair(heap, heapSize, merges, mergeIds, i, next[i]);
         }
 
-        return allTokens.stream().mapToLong(s -> s).toArray();
+        int count = 0;
+        for (int i = 0; i < n; i = next[i])
+            tokens[count++] = tokens[i];
+
+        return Arrays.copyOf(tokens, count);
+    }
+
+    private static int pushPair(long[] heap, int heapSize, MergeTable merges, long[] mergeIds, int left, int right) {
+        long merge = merges.get(mergeIds[left], mergeIds[right]);
+        if (merge < 0) return heapSize;
+
+        // Order by rank, then by position
+        long entry = ((long) MergeTable.rank(merge) << 32) | left;
+        int i = heapSize;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= entry) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = entry;
+
+        return heapSize + 1;
+    }
+
+    private static int pop(long[] heap, int heapSize) {
+        long last = heap[--heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && heap[child + 1] < heap[child]) child++;
+            if (heap[child] >= last) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+
+        return heapSize;
     }
 
     protected String postProcessToken(String decoded) {
@@ -194,47 +282,85 @@ public abstract class BPETokenizer implements Tokenizer {
         return decoded;
     }
 
+    /**
+     * Multibyte characters split across tokens come out once complete, buffered per thread
+     */
     @Override
     public String decode(long id) {
-        return maybeDecodeTokenAsCharacter(id).map(c -> {
-            // We have a continuation byte or are buffering them
-            if (Character.isUnicodeIdentifierPart(c) || decodeBuffer.remaining() < 4) {
-                decodeBuffer.put((byte) c.charValue());
-
-                // Unicode symbol is ready
-                if (decodeBuffer.remaining() == 0) {
-                    String s = new String(decodeBuffer.array());
-                    decodeBuffer.rewind();
-                    return s;
-                }
+        return decodeStream.get().next(id);
+    }
 
-                return "";
-            }
-            return Character.toString(c);
-        }).orElseGet(() -> postProcessToken(model.vocabLookup.inverse().get(id)));
+    @Override
+    public String decodeToken(long id) {
+        // Pieces of a multibyte character only mean something together
+        DetokenizerStream stream = detokenizer();
+        String s = stream.next(id);
+        return stream.flush().isEmpty() ? s : "";
     }
 
-    protected abstract long encodeCharacterAsToken(byte c);
+    @Override
+    public byte[] tokenBytes(long id) {
+        if (id < 0 || id >= tokenBytes.length()) return toBytes(id);
 
-    protected abstract Optional<Character> maybeDecodeTokenAsCharacter(long id);
+        byte[] bytes = tokenBytes.get((int) id);
+        if (bytes == null) {
+            bytes = toBytes(id);
+            tokenBytes.set((int) id, bytes);
+        }
+
+        return bytes;
+    }
+
+    private byte[] toBytes(long id) {
+        Optional<Character> c = maybeDecodeTokenAsCharacter(id);
+        if (c.isPresent()) return new byte[] { (byte) c.get().charValue() };
+
+        String s = postProcessToken(model.vocabulary().getToken(id));
+        if (!isByteLevel()) return s.getBytes(StandardCharsets.UTF_8);
+
+        // Each byte is spelled as a single character
+        byte[] bytes = new byte[s.length() * 4];
+        int n = 0;
+        for (int i = 0; i < s.length();) {
+            int cp = s.codePointAt(i);
+            i += Character.charCount(cp);
+            if (cp <= 0xFF) {
+                bytes[n++] = (byte) cp;
+            } else {
+                // Added tokens aren't byte level
+                byte[] utf8 = Character.toString(cp).getBytes(StandardCharsets.UTF_8);
+                System.arraycopy(utf8, 0, bytes, n, utf8.length);
+                n += utf8.length;
+            }
+        }
 
-    // Only used for merging
-    protected String decodeInternal(long id) {
-        return maybeDecodeTokenAsCharacter(id).map(Object::toString).orElseGet(() -> {
-            String s = model.vocabLookup.inverse().get(id);
-            if (s == null) s = model.unkToken;
+        return Arrays.copyOf(bytes, n);
+    }
 
-            return s;
-        });
+    /**
+     * True when the vocabulary spells each byte as a single character, after {@link #postProcessToken}
+     */
+    protected boolean isByteLevel() {
+        return false;
     }
 
+    protected abstract long encodeCharacterAsToken(byte c);
+
+    protected abstract Optional<Character> maybeDecodeTokenAsCharacter(long id);
+
     protected String postProcess(String sentence) {
         return sentence;
     }
 
     @Override
     public String decode(long[] ids) {
-        return postProcess(Arrays.stream(ids).mapToObj(this::decode).collect(Collectors.joining()));
+        DetokenizerStream stream = detokenizer();
+        StringBuilder sb = new StringBuilder();
+        for (long id : ids)
+            sb.append(stream.next(id));
+        sb.append(stream.flush());
+
+        return postProcess(sb.toString());
     }
 
     @Override
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.safetensors.tokenizer;
+
+/**
+ * Incrementally turns a stream of generated tokens back into text.
+ *
+ * Tokens don't have to end on a character boundary, byte fallback and byte level vocabularies can split a
+ * multibyte character across tokens.  The stream holds on to the bytes of an incomplete UTF-8 character until
+ * the rest arrive, so each call only returns whole characters.
+ *
+ * Each generation should use its own stream, they are not thread safe but share nothing with the tokenizer.
+ */
+public final class DetokenizerStream {
+    private static final String REPLACEMENT = "�";
+
+    private final Tokenizer tokenizer;
+    private final StringBuilder text = new StringBuilder();
+    private int codepoint;
+    private int pending; // continuation bytes still needed
+    private int expected; // continuation bytes of the pending character
+
+    public DetokenizerStream(Tokenizer tokenizer) {
+        this.tokenizer = tokenizer;
+    }
+
+    /**
+     * Adds the next token
+     * @return the characters it completes, may be empty
+     */
+    public String next(long id) {
+        byte[] bytes = tokenizer.tokenBytes(id);
+        text.setLength(0);
+
+        for (byte b : bytes)
+            decode(b);
+
+        return text.toString();
+    }
+
+    /**
+     * Ends the stream, an incomplete character is returned as the replacement character
+     */
+    public String flush() {
+        if (pending == 0) return "";
+
+        pending = 0;
+        return REPLACEMENT;
+    }
+
+    private void decode(byte b) {
+        int v = b & 0xFF;
+        if (pending > 0) {
+            if ((v & 0xC0) == 0x80) {
+                codepoint = (codepoint << 6) | (v & 0x3F);
+                if (--pending == 0) complete();
+                return;
+            }
+
+            // Cut short, emit what we had and start over with this byte
+            pending = 0;
+            text.append(REPLACEMENT);
+        }
+
+        if (v < 0x80) {
+            text.append((char) v);
+        } else if ((v & 0xE0) == 0xC0) {
+            start(v & 0x1F, 1);
+        } else if ((v & 0xF0) == 0xE0) {
+            start(v & 0x0F, 2);
+        } else if ((v & 0xF8) == 0xF0) {
+            start(v & 0x07, 3);
+        } else {
+            text.append(REPLACEMENT);
+        }
+    }
+
+    private void start(int bits, int continuations) {
+        codepoint = bits;
+        pending = continuations;
+        expected = continuations;
+    }
+
+    private void complete() {
+        // Reject overlong encodings, surrogates and anything past the last codepoint
+        int min = expected == 1 ? 0x80 : expected == 2 ? 0x800 : 0x10000;
+        if (codepoint < min || codepoint > Character.MAX_CODE_POINT || (codepoint >= 0xD800 && codepoint <= 0xDFFF)) {
+            text.append(REPLACEMENT);
+        } else {
+            text.appendCodePoint(codepoint);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.safetensors.tokenizer;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Open addressing map from a pair of token ids to the merge rank and the merged token id,
+ * so the BPE merge loop never allocates.
+ */
+final class MergeTable {
+    private final long[] keys;
+    private final long[] values;
+    private final int mask;
+    private final int shift;
+    private final int size;
+
+    /**
+     * @param merges the merges in rank order, either "left right" strings or [left, right] lists
+     */
+    MergeTable(List<Object> merges, Vocabulary vocabulary) {
+        // Resolve the entries first, a merge string with several spaces can give more than one
+        long[] pairs = new long[Math.max(merges.size(), 1) * 2];
+        int entries = 0;
+        for (int rank = 0; rank < merges.size(); rank++) {
+            Object merge = merges.get(rank);
+            if (merge instanceof String s) {
+                // Tokens can contain spaces, so try every split
+                for (int i = s.indexOf(' '); i >= 0; i = s.indexOf(' ', i + 1)) {
+                    if (entries * 2 == pairs.length) pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                    entries += resolve(vocabulary, s.substring(0, i), s.substring(i + 1), rank, pairs, entries);
+                }
+            } else if (merge instanceof List<?> pair && pair.size() == 2) {
+                if (entries * 2 == pairs.length) pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                entries += resolve(vocabulary, (String) pair.get(0), (String) pair.get(1), rank, pairs, entries);
+            } else {
+                throw new IllegalArgumentException("Invalid merge format: " + merge);
+            }
+        }
+
+        // At most half full so probes stay short
+        int capacity = Integer.highestOneBit(Math.max(entries, 1) * 2) * 2;
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        this.mask = capacity - 1;
+        this.shift = Long.SIZE - Integer.numberOfTrailingZeros(capacity);
+        Arrays.fill(keys, -1);
+
+        int count = 0;
+        for (int e = 0; e < entries; e++)
+            count += add(pairs[e * 2], pairs[e * 2 + 1]);
+        this.size = count;
+    }
+
+    private static int resolve(Vocabulary vocabulary, String left, String right, int rank, long[] pairs, int entry) {
+        long leftId = vocabulary.getId(left);
+        long rightId = vocabulary.getId(right);
+        long mergedId = vocabulary.getId(left + right);
+        if (leftId < 0 || rightId < 0 || mergedId < 0) return 0;
+
+        pairs[entry * 2] = pair(leftId, rightId);
+        pairs[entry * 2 + 1] = ((long) rank << 32) | mergedId;
+        return 1;
+    }
+
+    private int add(long key, long value) {
+        int i = slot(key);
+        while (keys[i] != -1 && keys[i] != key)
+            i = (i + 1) & mask;
+
+        // Keep the best rank if a pair is listed twice
+        if (keys[i] == key) return 0;
+
+        keys[i] = key;
+        values[i] = value;
+        return 1;
+    }
+
+    static int rank(long merge) {
+        return (int) (merge >>> 32);
+    }
+
+    static long mergedId(long merge) {
+        return merge & 0xFFFFFFFFL;
+    }
+
+    private static long pair(long left, long right) {
+        return (left << 32) | right;
+    }
+
+    private int slot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift) & mask;
+    }
+
+    /**
+     * @return the merge for the pair or -1 if they don't merge
+     */
+    long get(long left, long right) {
+        if (left < 0 || right < 0) return -1;
+
+        long key = pair(left, right);
+        for (int i = slot(key);; i = (i + 1) & mask) {
+            if (keys[i] == key) return values[i];
+            if (keys[i] == -1) return -1;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+}
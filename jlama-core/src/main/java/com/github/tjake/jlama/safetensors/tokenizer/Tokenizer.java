@@ -15,7 +15,10 @@
  */
 package com.github.tjake.jlama.safetensors.tokenizer;
 
+import com.github.tjake.jlama.math.VectorMath;
 import com.github.tjake.jlama.safetensors.prompt.PromptSupport;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
@@ -39,12 +42,52 @@ public interface Tokenizer {
     long[] encode(String sentence);
 
     /**
-     * Decode a token id into its string representation
+     * Encode many sentences in parallel across the physical cores
+     * @param sentences sentences to encode
+     * @return the token ids for each sentence, in order
+     */
+    default List<long[]> encodeBatch(List<String> sentences) {
+        long[][] encoded = new long[sentences.size()][];
+        VectorMath.pfor(0, sentences.size(), i -> encoded[i] = encode(sentences.get(i)));
+
+        return Arrays.asList(encoded);
+    }
+
+    /**
+     * Decode a token id into its string representation.
+     * Some tokenizers buffer partial characters between calls, use a {@link #detokenizer()} to stream
      * @param id
      * @return token string
      */
     String decode(long id);
 
+    /**
+     * Decode a single token id without any streaming state, used to build per token tables.
+     * Tokens that are only part of a multibyte character decode to an empty string.
+     * @param id
+     * @return token string
+     */
+    default String decodeToken(long id) {
+        return decode(id);
+    }
+
+    /**
+     * The UTF-8 bytes a token stands for.  A token may hold only part of a multibyte character,
+     * like the byte fallback tokens.
+     * @param id
+     * @return token bytes
+     */
+    default byte[] tokenBytes(long id) {
+        return decodeToken(id).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Start decoding a new stream of generated tokens, use one per generation
+     */
+    default DetokenizerStream detokenizer() {
+        return new DetokenizerStream(this);
+    }
+
     /**
      * Decode a list of token ids into their string representation
      * @param ids list of token ids
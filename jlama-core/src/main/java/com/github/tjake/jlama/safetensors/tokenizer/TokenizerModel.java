@@ -42,6 +42,9 @@ import org.slf4j.LoggerFactory;
  */
 public class TokenizerModel {
     private static final Logger logger = LoggerFactory.getLogger(TokenizerModel.class);
+
+    // Entries each tokenizer keeps in its encode cache, shared by every tokenizer type so there is one setting
+    static final int CACHE_SIZE = Integer.getInteger("jlama.tokenizer_cache_size", 65536);
     private static final java.util.regex.Pattern gpt2Pattern = java.util.regex.Pattern.compile(
         "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+"
     );
@@ -58,11 +61,9 @@ public class TokenizerModel {
     @JsonProperty("byte_fallback")
     public final boolean byteFallback;
 
-    @JsonProperty("vocab")
-    public final BiMap<String, Long> vocabLookup;
+    private Vocabulary vocabulary;
 
-    @JsonProperty("merges")
-    public final Map<String, Long> merges;
+    final MergeTable merges;
 
     private PreTokenizer preTokenizer;
     private Normalizer normalizer;
@@ -86,7 +87,7 @@ public class TokenizerModel {
         @JsonProperty("unk_token") String unkToken,
         @JsonProperty("fuse_unk") boolean fuseUnk,
         @JsonProperty("byte_fallback") boolean byteFallback,
-        @JsonProperty("vocab") Map<String, Long> vocabLookup,
+        @JsonProperty("vocab") Map<String, Long> vocab,
         @JsonProperty("ignore_merges") Boolean ignoreMerges,
         @JsonProperty("merges") List<Object> merges
     ) {
@@ -94,21 +95,13 @@ public class TokenizerModel {
         this.unkToken = unkToken;
         this.fuseUnk = fuseUnk;
         this.byteFallback = byteFallback;
-        this.vocabLookup = HashBiMap.create(vocabLookup);
+        this.vocabulary = new Vocabulary(vocab);
         this.ignoreMerges = ignoreMerges != null && ignoreMerges;
-        this.merges = new HashMap<>();
-        if (merges != null) {
-            for (int i = 0; i < merges.size(); i++) {
-                if (merges.get(i) instanceof String) {
-                    this.merges.put((String) merges.get(i), (long) i);
-                } else if (merges.get(i) instanceof List) {
-                    List<String> merge = (List<String>) merges.get(i);
-                    this.merges.put(merge.get(0) + " " + merge.get(1), (long) i);
-                } else {
-                    throw new IllegalArgumentException("Invalid merge format: " + merges.get(i));
-                }
-            }
-        }
+        this.merges = new MergeTable(merges == null ? Collections.emptyList() : merges, vocabulary);
+    }
+
+    public Vocabulary vocabulary() {
+        return vocabulary;
     }
 
     public PreTokenizer preTokenizer() {
@@ -134,7 +127,6 @@ public class TokenizerModel {
         if (addedTokens != null && !addedTokens.isEmpty()) {
             for (Map<String, Object> token : addedTokens) {
                 this.addedTokens.put((String) token.get("content"), ((Integer) token.get("id")).longValue());
-                this.vocabLookup.put((String) token.get("content"), ((Integer) token.get("id")).longValue());
                 if (token.containsKey("special") && (Boolean) token.get("special")) {
                     this.specialTokens.put((String) token.get("content"), ((Integer) token.get("id")).longValue());
                 }
@@ -142,6 +134,7 @@ public class TokenizerModel {
 
             // Lock down the added tokens
             this.addedTokens = ImmutableBiMap.copyOf(this.addedTokens);
+            this.vocabulary = vocabulary.withTokens(this.addedTokens);
             this.specialTokens = ImmutableBiMap.copyOf(this.specialTokens);
 
             // Create a regular expression from the list of delimiters
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.safetensors.tokenizer;
+
+import com.google.common.base.Preconditions;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * The token strings and their ids, in a handful of flat arrays rather than a map of boxed objects.
+ *
+ * The UTF-8 bytes of every token sit back to back in one array, indexed by id.  Token to id lookups go
+ * through an open addressing table of ids keyed by the String hash, compared against the bytes in place
+ * so a lookup never allocates.
+ */
+public final class Vocabulary {
+    private final byte[] data;
+    private final int[] offsets; // token bytes are data[offsets[id], offsets[id + 1])
+    private final int[] hashes;
+    private final BitSet present;
+    private final int[] slots; // id + 1, zero is empty
+    private final int mask;
+    private final int size;
+
+    public Vocabulary(Map<String, Long> tokens) {
+        this(toArray(tokens));
+    }
+
+    private Vocabulary(String[] byId) {
+        int total = 0;
+        int count = 0;
+        byte[][] encoded = new byte[byId.length][];
+        for (int id = 0; id < byId.length; id++) {
+            if (byId[id] == null) continue;
+
+            encoded[id] = byId[id].getBytes(StandardCharsets.UTF_8);
+            total += encoded[id].length;
+            count++;
+        }
+
+        this.size = count;
+        this.data = new byte[total];
+        this.offsets = new int[byId.length + 1];
+        this.hashes = new int[byId.length];
+        this.present = new BitSet(byId.length);
+
+        int capacity = Integer.highestOneBit(Math.max(count, 1) * 2) * 2;
+        this.slots = new int[capacity];
+        this.mask = capacity - 1;
+
+        int offset = 0;
+        for (int id = 0; id < byId.length; id++) {
+            offsets[id] = offset;
+            if (encoded[id] == null) continue;
+
+            System.arraycopy(encoded[id], 0, data, offset, encoded[id].length);
+            offset += encoded[id].length;
+            hashes[id] = byId[id].hashCode();
+            present.set(id);
+
+            int i = hashes[id] & mask;
+            while (slots[i] != 0)
+                i = (i + 1) & mask;
+            slots[i] = id + 1;
+        }
+        offsets[byId.length] = offset;
+    }
+
+    private static String[] toArray(Map<String, Long> tokens) {
+        int limit = tokens.values().stream().mapToInt(Long::intValue).max().orElse(-1) + 1;
+        String[] byId = new String[limit];
+        for (Map.Entry<String, Long> e : tokens.entrySet()) {
+            int id = e.getValue().intValue();
+            Preconditions.checkArgument(id >= 0, "Invalid token id %s for %s", id, e.getKey());
+            Preconditions.checkArgument(byId[id] == null, "Token id %s is used by both %s and %s", id, byId[id], e.getKey());
+            byId[id] = e.getKey();
+        }
+
+        return byId;
+    }
+
+    /**
+     * A copy with the tokens added, replacing any existing token with the same string or id
+     */
+    public Vocabulary withTokens(Map<String, Long> tokens) {
+        int limit = Math.max(offsets.length - 1, tokens.values().stream().mapToInt(Long::intValue).max().orElse(-1) + 1);
+        String[] byId = new String[limit];
+        for (int id = present.nextSetBit(0); id >= 0; id = present.nextSetBit(id + 1))
+            byId[id] = getToken(id);
+
+        for (Map.Entry<String, Long> e : tokens.entrySet()) {
+            long old = getId(e.getKey());
+            if (old >= 0) byId[(int) old] = null;
+            byId[e.getValue().intValue()] = e.getKey();
+        }
+
+        return new Vocabulary(byId);
+    }
+
+    /**
+     * @return the id of the token or -1 if it isn't in the vocabulary
+     */
+    public long getId(String token) {
+        int hash = token.hashCode();
+        for (int i = hash & mask;; i = (i + 1) & mask) {
+            int id = slots[i] - 1;
+            if (id < 0) return -1;
+            if (hashes[id] == hash && matches(id, token)) return id;
+        }
+    }
+
+    public boolean contains(String token) {
+        return getId(token) >= 0;
+    }
+
+    /**
+     * @return the token string or null if there is no token with this id
+     */
+    public String getToken(long id) {
+        if (id < 0 || id >= offsets.length - 1 || !present.get((int) id)) return null;
+
+        int start = offsets[(int) id];
+        return new String(data, start, offsets[(int) id + 1] - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The number of tokens
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * One more than the largest id
+     */
+    public int idLimit() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Compares the token bytes to the string, encoding it on the fly
+     */
+    private boolean matches(int id, String token) {
+        int pos = offsets[id];
+        int end = offsets[id + 1];
+        for (int i = 0; i < token.length();) {
+            int cp = token.codePointAt(i);
+            i += Character.charCount(cp);
+
+            if (cp < 0x80) {
+                if (pos >= end || data[pos++] != (byte) cp) return false;
+            } else if (cp < 0x800) {
+                if (pos + 2 > end || data[pos++] != (byte) (0xC0 | (cp >> 6)) || data[pos++] != (byte) (0x80 | (cp & 0x3F))) return false;
+            } else if (cp < 0x10000) {
+                // Lone surrogates encode as '?'
+                if (Character.isSurrogate((char) cp)) {
+                    if (pos >= end || data[pos++] != '?') return false;
+                    continue;
+                }
+                if (pos + 3 > end
+                    || data[pos++] != (byte) (0xE0 | (cp >> 12))
+                    || data[pos++] != (byte) (0x80 | ((cp >> 6) & 0x3F))
+                    || data[pos++] != (byte) (0x80 | (cp & 0x3F))) return false;
+            } else {
+                if (pos + 4 > end
+                    || data[pos++] != (byte) (0xF0 | (cp >> 18))
+                    || data[pos++] != (byte) (0x80 | ((cp >> 12) & 0x3F))
+                    || data[pos++] != (byte) (0x80 | ((cp >> 6) & 0x3F))
+                    || data[pos++] != (byte) (0x80 | (cp & 0x3F))) return false;
+            }
+        }
+
+        return pos == end;
+    }
+
+    @Override
+    public String toString() {
+        return "Vocabulary{size=" + size + ", bytes=" + data.length + "}";
+    }
+}
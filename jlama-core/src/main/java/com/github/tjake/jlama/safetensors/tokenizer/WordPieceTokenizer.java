@@ -18,6 +18,8 @@ package com.github.tjake.jlama.safetensors.tokenizer;
 import com.github.tjake.jlama.safetensors.SafeTensorSupport;
 import com.github.tjake.jlama.safetensors.prompt.PromptSupport;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -43,6 +45,9 @@ public class WordPieceTokenizer implements Tokenizer {
     protected static final String clsString = "[CLS]";
     protected static final String unkString = "[UNK]";
 
+    // Words repeat a lot in real text, so remember how the most recent ones were split
+    private final Cache<String, List<String>> wordCache = CacheBuilder.newBuilder().maximumSize(TokenizerModel.CACHE_SIZE).build();
+
     public WordPieceTokenizer(Path modelRoot) {
         Preconditions.checkArgument(modelRoot.resolve("tokenizer.json").toFile().exists(), "No tokenizer.json found in " + modelRoot);
 
@@ -58,9 +63,9 @@ public class WordPieceTokenizer implements Tokenizer {
             throw new RuntimeException(e);
         }
 
-        this.sepToken = model.vocabLookup.get(sepString);
-        this.clsToken = model.vocabLookup.get(clsString);
-        this.unkToken = model.vocabLookup.get(unkString);
+        this.sepToken = model.vocabulary().getId(sepString);
+        this.clsToken = model.vocabulary().getId(clsString);
+        this.unkToken = model.vocabulary().getId(unkString);
     }
 
     @Override
@@ -82,33 +87,12 @@ public class WordPieceTokenizer implements Tokenizer {
             .flatMap(this::splitByPunctuation)
             .map(str -> str.length() > 200 ? model.unkToken : str)
             .flatMap(str -> {
-                boolean isBad = false;
-                List<String> subTokens = new ArrayList<>();
-
-                int start = 0;
-                while (start < str.length()) {
-                    int end = str.length();
-                    String curSubStr = null;
-                    while (start < end) {
-                        String substr = str.substring(start, end);
-                        if (start > 0) substr = "##" + substr;
-                        if (model.vocabLookup.containsKey(substr)) {
-                            curSubStr = substr;
-                            break;
-                        }
-                        end -= 1;
-                    }
-                    if (curSubStr == null) {
-                        isBad = true;
-                        break;
-                    }
-
-                    subTokens.add(curSubStr);
-                    start = end;
+                List<String> subTokens = wordCache.getIfPresent(str);
+                if (subTokens == null) {
+                    subTokens = splitWord(str);
+                    wordCache.put(str, subTokens);
                 }
 
-                if (isBad) subTokens.add(model.unkToken);
-
                 return subTokens.stream();
             })
             .collect(Collectors.toList());
@@ -119,6 +103,40 @@ public class WordPieceTokenizer implements Tokenizer {
         return tokens;
     }
 
+    /**
+     * Greedy longest-match-first split of a word into word pieces
+     */
+    private List<String> splitWord(String str) {
+        boolean isBad = false;
+        List<String> subTokens = new ArrayList<>();
+
+        int start = 0;
+        while (start < str.length()) {
+            int end = str.length();
+            String curSubStr = null;
+            while (start < end) {
+                String substr = str.substring(start, end);
+                if (start > 0) substr = "##" + substr;
+                if (model.vocabulary().contains(substr)) {
+                    curSubStr = substr;
+                    break;
+                }
+                end -= 1;
+            }
+            if (curSubStr == null) {
+                isBad = true;
+                break;
+            }
+
+            subTokens.add(curSubStr);
+            start = end;
+        }
+
+        if (isBad) subTokens.add(model.unkToken);
+
+        return subTokens;
+    }
+
     protected String preProcess(String sentence) {
         sentence = sentence.toLowerCase().strip();
 
@@ -182,7 +200,7 @@ public class WordPieceTokenizer implements Tokenizer {
 
     @Override
     public long[] encode(String sentence) {
-        return tokenize(sentence).stream().mapToLong(s -> model.vocabLookup.get(s)).toArray();
+        return tokenize(sentence).stream().mapToLong(s -> model.vocabulary().getId(s)).toArray();
     }
 
     protected String postProcessToken(String decoded) {
@@ -193,7 +211,7 @@ public class WordPieceTokenizer implements Tokenizer {
 
     @Override
     public String decode(long id) {
-        return postProcessToken(model.vocabLookup.inverse().get(id));
+        return postProcessToken(model.vocabulary().getToken(id));
     }
 
     protected String postProcess(String sentence) {
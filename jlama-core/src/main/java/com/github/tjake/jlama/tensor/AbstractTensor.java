@@ -25,6 +25,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.Optional;
 import java.util.UUID;
 
 import jdk.incubator.vector.Vector;
@@ -51,6 +52,7 @@ public abstract class AbstractTensor<V extends Vector<?>, T extends Number> impl
     protected final AbstractTensor[] sliceCache;
     private final int stride;
     private volatile TensorCache originCache = null;
+    private volatile MemorySegment mappedSegment = null;
 
     protected AbstractTensor(DType dType, TensorShape shape, boolean cacheSlices) {
         Preconditions.checkArgument(shape != null && shape.dims() > 0);
@@ -89,6 +91,24 @@ public abstract class AbstractTensor<V extends Vector<?>, T extends Number> impl
         return TensorCache.instance.get(dType, shape);
     }
 
+    /** The region of a mapped file this tensor reads from, empty when its data lives in allocated memory */
+    public Optional<MemorySegment> mappedSegment() {
+        return Optional.ofNullable(mappedSegment);
+    }
+
+    public void setMappedSegment(MemorySegment mappedSegment) {
+        Preconditions.checkArgument(mappedSegment.isMapped(), "Segment is not mapped");
+        this.mappedSegment = mappedSegment;
+    }
+
+    /** Create a copy of this tensor in newly allocated off-heap memory, detached from any mapped file */
+    public AbstractTensor copy() {
+        Preconditions.checkArgument(!shape.isSparse(), "Cannot copy a sparse tensor");
+        AbstractTensor t = make(shape);
+        t.copyFrom(this, 0, 0, Ints.checkedCast(size()));
+        return t;
+    }
+
     /** Number of dimensions */
     public final int dims() {
         return shape.dims();
@@ -279,17 +299,36 @@ public abstract class AbstractTensor<V extends Vector<?>, T extends Number> impl
         return quantize(dType, false);
     }
 
-    public AbstractTensor quantize(DType dType, boolean force) {
+    /**
+     * The type {@link #quantize(DType)} produces for a tensor of the given type and shape,
+     * so the output layout can be planned without loading the tensor
+     */
+    public static DType quantizedType(DType from, TensorShape shape, DType to) {
+        return quantizedType(from, shape, to, false);
+    }
 
-        if (!force && (this.shape().first() == 1 || this.dType == dType || this.dType.size() < dType.size())) return this;
+    private static DType quantizedType(DType from, TensorShape shape, DType to, boolean force) {
+        if (shape.isSparse() || (!force && (shape.first() == 1 || from == to || from.size() < to.size()))) return from;
 
-        if (shape.isSparse()) {
-            logger.info("Quantizing sparse tensor is not supported");
+        return switch (to) {
+            case Q4, I8, F32, BF16 -> to;
+            case Q4_K, Q6_K -> shape.last() % KQuantByteBufferTensor.SUPER_BLOCK_SIZE == 0 ? to : from;
+            default -> from;
+        };
+    }
+
+    public AbstractTensor quantize(DType dType, boolean force) {
+        DType target = quantizedType(this.dType, shape, dType, force);
+        // Already the requested type, only a forced quantize makes a copy
+        if (target != dType || (!force && target == this.dType)) {
+            if (shape.isSparse() && this.dType != dType) logger.info("Quantizing sparse tensor is not supported");
             return this;
         }
 
-        return switch (dType) {
+        return switch (target) {
             case Q4 -> new Q4ByteBufferTensor(this);
+            case Q4_K -> new Q4KByteBufferTensor(this);
+            case Q6_K -> new Q6KByteBufferTensor(this);
             case I8 -> new Q8ByteBufferTensor(this);
             case F32 -> new FloatBufferTensor(this);
             case BF16 -> new BFloat16BufferTensor(this);
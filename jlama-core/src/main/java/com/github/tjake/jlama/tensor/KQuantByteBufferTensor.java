@@ -0,0 +1,195 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.tensor;
+
+import com.github.tjake.jlama.safetensors.DType;
+import com.github.tjake.jlama.util.UnsafeDirectByteBuffer;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Base for the K-quant formats, which quantize weights in super-blocks of {@link #SUPER_BLOCK_SIZE} elements.
+ *
+ * Each super-block holds its own quantized scales next to the quantized weights, so unlike {@link Q4ByteBufferTensor}
+ * there is no separate block scale tensor and the whole tensor is a single buffer of fixed size blocks.
+ * Slices must start and end on a super-block.
+ */
+public abstract class KQuantByteBufferTensor extends AbstractTensor<ByteVector, Byte> {
+    public static final int SUPER_BLOCK_SIZE = 256;
+
+    final ByteBuffer b;
+    final MemorySegment segment;
+    final String name;
+    private final int blockBytes;
+
+    protected KQuantByteBufferTensor(DType dType, int blockBytes, TensorShape shape) {
+        super(dType, shape, true);
+        Preconditions.checkArgument(shape.last() % SUPER_BLOCK_SIZE == 0, "Last dimension must be a multiple of SUPER_BLOCK_SIZE");
+        this.blockBytes = blockBytes;
+        this.name = "tmp";
+        this.b = UnsafeDirectByteBuffer.allocateAlignedByteBuffer(
+            Ints.checkedCast(this.size() / SUPER_BLOCK_SIZE * blockBytes),
+            UnsafeDirectByteBuffer.CACHE_LINE_SIZE
+        ).order(ByteOrder.LITTLE_ENDIAN);
+        this.segment = MemorySegment.ofBuffer(b);
+    }
+
+    protected KQuantByteBufferTensor(DType dType, int blockBytes, String name, ByteBuffer b, TensorShape shape, boolean cacheSlices) {
+        super(dType, shape, cacheSlices);
+        Preconditions.checkArgument(shape.last() % SUPER_BLOCK_SIZE == 0, "Last dimension must be a multiple of SUPER_BLOCK_SIZE");
+        this.blockBytes = blockBytes;
+        this.name = name;
+        // The scales are read through the buffer, and slicing a buffer resets its byte order
+        if (b.isDirect()) {
+            this.b = b.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            this.b = ByteBuffer.allocateDirect(b.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+            this.b.duplicate().put(b);
+        }
+
+        this.segment = MemorySegment.ofBuffer(this.b);
+    }
+
+    /**
+     * The number of bytes needed to store this many elements of a K-quant type
+     */
+    public static long storageBytes(DType dType, long elements) {
+        Preconditions.checkArgument(elements % SUPER_BLOCK_SIZE == 0, "Must be a multiple of SUPER_BLOCK_SIZE");
+        return switch (dType) {
+            case Q4_K -> elements / SUPER_BLOCK_SIZE * Q4KByteBufferTensor.BLOCK_BYTES;
+            case Q6_K -> elements / SUPER_BLOCK_SIZE * Q6KByteBufferTensor.BLOCK_BYTES;
+            default -> throw new IllegalArgumentException("Not a K-quant type: " + dType);
+        };
+    }
+
+    /**
+     * Quantizes the source tensor into this one, each super-block in parallel
+     */
+    protected void quantizeFrom(AbstractTensor ft) {
+        Preconditions.checkArgument(ft.dType != dType, "This should never happen, likely a bug");
+        Preconditions.checkArgument(ft.size() == size(), "Size mismatch");
+
+        List<int[]> startBlockCursors = new ArrayList<>();
+        int[] cursor = new int[ft.shape.dims()];
+        int c = 0;
+        do {
+            if (c++ % SUPER_BLOCK_SIZE == 0) {
+                startBlockCursors.add(Arrays.copyOf(cursor, cursor.length));
+            }
+        } while (ft.iterate(cursor));
+
+        IntStream.range(0, startBlockCursors.size()).parallel().forEach(i -> {
+            int[] blockCursor = startBlockCursors.get(i);
+            float[] x = new float[SUPER_BLOCK_SIZE];
+            for (int j = 0; j < SUPER_BLOCK_SIZE; j++) {
+                x[j] = ft.get(blockCursor);
+                ft.iterate(blockCursor);
+            }
+            quantizeBlock(x, i * blockBytes);
+        });
+    }
+
+    /**
+     * Quantizes one super-block of floats into the block starting at the given byte offset
+     */
+    protected abstract void quantizeBlock(float[] x, int blockOffset);
+
+    /**
+     * Dequantizes the element at the given index within the block starting at the given byte offset
+     */
+    protected abstract float dequantize(int blockOffset, int index);
+
+    protected abstract AbstractTensor make(String name, ByteBuffer b, TensorShape shape, boolean cacheSlices);
+
+    /**
+     * The byte offset of the super-block containing the given element
+     */
+    public int getBlockOffset(int... dims) {
+        return getMemorySegmentOffset(getOffset(dims));
+    }
+
+    @Override
+    protected AbstractTensor make(int offset, int length, TensorShape shape, boolean cacheSlices) {
+        Preconditions.checkArgument(offset % SUPER_BLOCK_SIZE == 0 && length % SUPER_BLOCK_SIZE == 0, "Slices must be super-block aligned");
+        return make(name, b.slice(getMemorySegmentOffset(offset), getMemorySegmentOffset(length)), shape, cacheSlices);
+    }
+
+    @Override
+    public float get(int... dims) {
+        Preconditions.checkArgument(dims.length == shape.dims(), "Must specify all dimensions");
+        int i = getOffset(dims);
+        return dequantize(getMemorySegmentOffset(i), i % SUPER_BLOCK_SIZE);
+    }
+
+    @Override
+    public void set(float v, int... dims) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ByteVector getVector(VectorSpecies<Byte> species, int... voffset) {
+        int offset = getOffset(voffset);
+        return ByteVector.fromMemorySegment(species, segment, getMemorySegmentOffset(offset), ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void intoTensor(ByteVector vector, int... aoffset) {
+        Preconditions.checkArgument(!b.isReadOnly());
+        int offset = getOffset(aoffset);
+        vector.intoMemorySegment(segment, getMemorySegmentOffset(offset), ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public MemorySegment getMemorySegment() {
+        return segment;
+    }
+
+    @Override
+    public int getMemorySegmentOffset(int offset) {
+        return offset / SUPER_BLOCK_SIZE * blockBytes;
+    }
+
+    @Override
+    public void copyFrom(AbstractTensor src, int srcOffset, int destOffset, int length) {
+        Preconditions.checkArgument(this.dType == src.dType, "different types");
+        Preconditions.checkArgument(!b.isReadOnly(), "Read-only");
+        Preconditions.checkArgument(length % SUPER_BLOCK_SIZE == 0, "Copies must be super-block aligned");
+        segment.asSlice(getMemorySegmentOffset(destOffset), getMemorySegmentOffset(length))
+            .copyFrom(src.getMemorySegment().asSlice(src.getMemorySegmentOffset(srcOffset), getMemorySegmentOffset(length)));
+    }
+
+    @Override
+    public void clear() {
+        Preconditions.checkArgument(!b.isReadOnly(), "Can't clear a read-only buffer");
+        segment.fill((byte) 0);
+    }
+
+    @Override
+    public String toString() {
+        byte[] sample = new byte[Math.min(blockBytes, b.remaining())];
+        b.duplicate().get(sample);
+        return getClass().getSimpleName() + "{" + "name='" + name + '\'' + "shape=" + shape + ", b=" + Arrays.toString(sample) + "...}";
+    }
+}
@@ -21,25 +21,40 @@ import com.github.tjake.jlama.safetensors.Config;
 import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.util.Pair;
 import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOError;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A cache for key-value buffers used in the model.
@@ -47,29 +62,325 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class KvBufferCache implements Closeable {
     private static final Logger logger = LoggerFactory.getLogger(KvBufferCache.class);
+
+    // Memory budget for kv pages across all sessions, idle sessions are evicted LRU once it's exceeded, 0 disables it
+    private static final long KV_CACHE_BYTES = Long.getLong("jlama.kv_cache_mb", 0) << 20;
+
+    // Sessions idle for longer than this are removed entirely and start over with an empty context, 0 disables it
+    private static final long SESSION_TTL_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("jlama.kv_session_ttl_seconds", 0));
+
+    // Freed session pages kept for reuse when there is no budget
+    private static final long DEFAULT_POOL_BYTES = 2048L << 20;
+
+    // Storage type for kv pages, defaults to the model working type. I8 stores keys and values as Q8 blocks
+    private static final String KV_DTYPE = System.getProperty("jlama.kv_cache_dtype");
+
+    // Memory budget for kv pages kept around for prompt prefix reuse, 0 disables it
+    private static final long PREFIX_CACHE_BYTES = Long.getLong("jlama.prefix_cache_mb", 0) << 20;
+
     private final ConcurrentMap<UUID, KvBuffer> kvBufferCache;
     private final AbstractModel model;
+    private final PrefixCache prefixCache;
+
+    private final long maxBytes;
+    private final DType kvDType;
+    private final TensorCache pagePool;
+    private final AtomicLong bytesInUse;
+    private final AtomicInteger pagesInUse;
+    private final AtomicLong evictions;
+    private volatile long sessionPageBytes;
+    private volatile long lastSweepNanos;
 
     public KvBufferCache(AbstractModel model) {
+        this(model, KV_CACHE_BYTES > 0 ? KV_CACHE_BYTES : Long.MAX_VALUE, PREFIX_CACHE_BYTES);
+    }
+
+    public KvBufferCache(AbstractModel model, long maxBytes, long prefixCacheBytes) {
+        this(model, maxBytes, prefixCacheBytes, KV_DTYPE == null ? null : DType.valueOf(KV_DTYPE));
+    }
+
+    /**
+     * @param kvDType storage type for kv pages, null for the model working type
+     */
+    public KvBufferCache(AbstractModel model, long maxBytes, long prefixCacheBytes, DType kvDType) {
+        Preconditions.checkArgument(maxBytes > 0, "maxBytes must be > 0");
+        Preconditions.checkArgument(
+            kvDType == null || kvDType == DType.I8 || kvDType == model.getWorkingDType(),
+            "Unsupported kv cache type %s",
+            kvDType
+        );
         this.kvBufferCache = new ConcurrentHashMap<>();
         this.model = model;
+        this.prefixCache = prefixCacheBytes > 0 ? new PrefixCache(prefixCacheBytes) : null;
+        this.maxBytes = maxBytes;
+        this.kvDType = kvDType;
+        this.pagePool = new TensorCache(maxBytes == Long.MAX_VALUE ? DEFAULT_POOL_BYTES : maxBytes);
+        this.bytesInUse = new AtomicLong(0);
+        this.pagesInUse = new AtomicInteger(0);
+        this.evictions = new AtomicLong(0);
+        this.sessionPageBytes = 0;
+        this.lastSweepNanos = System.nanoTime();
     }
 
+    /**
+     * Returns the kv buffer for a session, the caller must close it when done so the session can be evicted.
+     */
     public KvBuffer getKvBuffer(UUID session) {
-        return kvBufferCache.computeIfAbsent(session, s -> new KvBuffer(s, 1 << 23, false)); // 8MB per page
+        expireIdleSessions();
+
+        // Synchronized with eviction so a session can't be evicted while it's being acquired
+        KvBuffer kvBuffer;
+        synchronized (this) {
+            kvBuffer = kvBufferCache.computeIfAbsent(session, s -> new KvBuffer(s, 1 << 23, false)); // 8MB per page
+            kvBuffer.acquire();
+        }
+
+        kvBuffer.restore();
+        return kvBuffer;
     }
 
     public KvBuffer getEphemeralKvBuffer() {
         return new KvBuffer(UUID.randomUUID(), 1 << 20, true);
     }
 
+    public int pagesInUse() {
+        return pagesInUse.get();
+    }
+
+    /**
+     * The number of session pages that can still be allocated before the budget is exceeded
+     */
+    public long pagesFree() {
+        long pageBytes = sessionPageBytes;
+        if (pageBytes == 0) return 0;
+        return Math.max(0, maxBytes - bytesInUse.get()) / pageBytes;
+    }
+
+    public long bytesInUse() {
+        return bytesInUse.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    public int sessions() {
+        return kvBufferCache.size();
+    }
+
+    private boolean overBudget(long bytes) {
+        return bytesInUse.get() > maxBytes - bytes;
+    }
+
+    private void reservePage(long bytes, UUID session) {
+        if (overBudget(bytes)) evictIdleSessions(bytes, session);
+
+        bytesInUse.addAndGet(bytes);
+        pagesInUse.incrementAndGet();
+    }
+
+    private void unreservePage(long bytes) {
+        bytesInUse.addAndGet(-bytes);
+        pagesInUse.decrementAndGet();
+    }
+
+    /**
+     * Frees the pages of the least recently used idle sessions until there is room for the requested bytes.
+     * Only sessions that can be brought back and that hold pages nobody else shares are evicted,
+     * if there are none left the page is allocated over budget.
+     */
+    private synchronized void evictIdleSessions(long bytes, UUID requester) {
+        List<KvBuffer> idle = new ArrayList<>();
+        for (KvBuffer b : kvBufferCache.values()) {
+            if (!b.isInUse() && !b.session.equals(requester) && b.isRestorable() && b.reclaimableBytes() > 0) idle.add(b);
+        }
+
+        idle.sort(Comparator.comparingLong(b -> b.lastAccessNanos));
+        for (KvBuffer b : idle) {
+            if (!overBudget(bytes)) break;
+
+            logger.debug("Evicting kv pages of idle session {}", b.session);
+            b.evict();
+            evictions.incrementAndGet();
+        }
+
+        if (overBudget(bytes)) logger.debug("kv cache budget of {} bytes exceeded by active sessions", maxBytes);
+    }
+
+    private void expireIdleSessions() {
+        if (SESSION_TTL_NANOS <= 0) return;
+
+        long now = System.nanoTime();
+        if (now - lastSweepNanos < SESSION_TTL_NANOS / 10) return;
+        lastSweepNanos = now;
+
+        synchronized (this) {
+            Iterator<KvBuffer> it = kvBufferCache.values().iterator();
+            while (it.hasNext()) {
+                KvBuffer b = it.next();
+                if (!b.isInUse() && now - b.lastAccessNanos > SESSION_TTL_NANOS) {
+                    logger.info("Removing session {} after {}s idle", b.session, TimeUnit.NANOSECONDS.toSeconds(now - b.lastAccessNanos));
+                    b.releasePages();
+                    b.deletePageFiles();
+                    evictions.incrementAndGet();
+                    it.remove();
+                }
+            }
+        }
+    }
+
     @Override
     public void close() {
         Iterator<Map.Entry<UUID, KvBuffer>> it = kvBufferCache.entrySet().iterator();
         while (it.hasNext()) {
-            it.next().getValue().close();
+            it.next().getValue().releasePages();
             it.remove();
         }
+
+        if (prefixCache != null) prefixCache.clear();
+    }
+
+    /**
+     * An entry in the prefix cache, holds the kv pages (one per layer page) of a single context page
+     * along with the tokens that were used to fill it.
+     */
+    static class PrefixEntry {
+        final long hash;
+        final long parentHash;
+        final int[] tokens;
+        final KvBufferPage[] pages;
+        final long bytes;
+
+        PrefixEntry(long hash, long parentHash, int[] tokens, KvBufferPage[] pages, long bytes) {
+            this.hash = hash;
+            this.parentHash = parentHash;
+            this.tokens = tokens;
+            this.pages = pages;
+            this.bytes = bytes;
+        }
+
+        int commonPrefixLength(int[] other, int offset, int length) {
+            int n = Math.min(tokens.length, length);
+            for (int i = 0; i < n; i++) {
+                if (tokens[i] != other[offset + i]) return i;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Content addressed store of kv pages for previously processed prompts.
+     *
+     * Each entry covers one context page and is keyed by a hash chained over every token
+     * up to the end of that page, so an entry can only be reached if the whole prefix before it matches.
+     * Pages are reference counted and shared copy-on-write with the sessions that use them.
+     * Entries are evicted in LRU order once the byte budget is exceeded.
+     */
+    class PrefixCache {
+        private final long maxBytes;
+        private final LinkedHashMap<Long, PrefixEntry> entries;
+        private final Map<Long, Set<PrefixEntry>> children;
+        private long bytes;
+
+        PrefixCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+            this.entries = new LinkedHashMap<>(16, 0.75f, true);
+            this.children = new HashMap<>();
+            this.bytes = 0;
+        }
+
+        static long hash(long parentHash, int[] tokens, int offset, int length) {
+            // FNV-1a over the token ids
+            long h = parentHash;
+            for (int i = offset; i < offset + length; i++) {
+                h ^= tokens[i];
+                h *= 0x100000001b3L;
+            }
+            return h;
+        }
+
+        /**
+         * Finds the entry under the given parent sharing the longest prefix with the tokens,
+         * and retains its pages for the caller.
+         */
+        synchronized Pair<PrefixEntry, Integer> acquire(long parentHash, int[] tokens, int offset, int length) {
+            Set<PrefixEntry> candidates = children.get(parentHash);
+            if (candidates == null) return null;
+
+            PrefixEntry best = null;
+            int bestLength = 0;
+            for (PrefixEntry e : candidates) {
+                int l = e.commonPrefixLength(tokens, offset, length);
+                if (l > bestLength) {
+                    best = e;
+                    bestLength = l;
+                }
+            }
+
+            if (best == null) return null;
+
+            entries.get(best.hash); // Mark as recently used
+            for (KvBufferPage page : best.pages)
+                page.retain();
+
+            return Pair.of(best, bestLength);
+        }
+
+        synchronized void put(long hash, long parentHash, int[] tokens, KvBufferPage[] pages, long pageBytes) {
+            PrefixEntry existing = entries.get(hash);
+            if (existing != null && Arrays.equals(existing.tokens, tokens)) return;
+
+            // Hash collision, replace the old entry
+            if (existing != null) evict(existing);
+
+            if (pageBytes * pages.length > maxBytes) return;
+
+            for (KvBufferPage page : pages)
+                page.retain();
+
+            PrefixEntry e = new PrefixEntry(hash, parentHash, tokens, pages, pageBytes * pages.length);
+            entries.put(hash, e);
+            children.computeIfAbsent(parentHash, k -> new HashSet<>()).add(e);
+            bytes += e.bytes;
+
+            Iterator<PrefixEntry> it = entries.values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                PrefixEntry eldest = it.next();
+                if (eldest == e) continue;
+                evict(eldest);
+                it = entries.values().iterator();
+            }
+        }
+
+        private void evict(PrefixEntry e) {
+            if (entries.remove(e.hash) != e) return;
+
+            Set<PrefixEntry> siblings = children.get(e.parentHash);
+            if (siblings != null) {
+                siblings.remove(e);
+                if (siblings.isEmpty()) children.remove(e.parentHash);
+            }
+
+            bytes -= e.bytes;
+            for (KvBufferPage page : e.pages)
+                page.release();
+
+            // Descendants are unreachable without this entry
+            Set<PrefixEntry> descendants = children.get(e.hash);
+            if (descendants != null) {
+                for (PrefixEntry d : new ArrayList<>(descendants))
+                    evict(d);
+            }
+        }
+
+        synchronized void clear() {
+            for (PrefixEntry e : new ArrayList<>(entries.values()))
+                evict(e);
+        }
+
+        synchronized long bytes() {
+            return bytes;
+        }
     }
 
     class KvPageContext {
@@ -80,6 +391,7 @@ public class KvBufferCache implements Closeable {
         private final UUID session;
 
         public final TensorShape pageShape;
+        public final DType dType;
 
         public KvPageContext(UUID session, int numberOfLayerPages, int numberOfContextPages, int layersPerPage, int contextLengthPerPage) {
             this.session = session;
@@ -110,6 +422,29 @@ public class KvBufferCache implements Closeable {
             }
 
             this.pageShape = s;
+            this.dType = pageDType(s);
+        }
+
+        private DType pageDType(TensorShape shape) {
+            DType workingDType = model.getWorkingDType();
+            if (kvDType == null || kvDType == workingDType) return workingDType;
+
+            // The attention kernels read Q8 blocks against F32 queries, and blocks must not straddle a head
+            if (workingDType != DType.F32 || shape.isSparse() || model.getConfig().headSize % Q8ByteBufferTensor.BLOCK_SIZE != 0) {
+                logger.warn("I8 kv cache requires F32 working memory and block aligned heads, using {}", workingDType);
+                return workingDType;
+            }
+
+            return kvDType;
+        }
+
+        /**
+         * Bytes used by a page, including the block scales of quantized pages
+         */
+        public long pageBytes() {
+            long bytes = pageShape.size() * dType.size();
+            if (dType == DType.I8) bytes += (pageShape.size() / Q8ByteBufferTensor.BLOCK_SIZE) * Float.BYTES;
+            return bytes;
         }
     }
 
@@ -125,50 +460,66 @@ public class KvBufferCache implements Closeable {
         private final String pageId;
 
         private final AtomicBoolean closed = new AtomicBoolean(false);
+        private final AtomicInteger refCount = new AtomicInteger(1);
         private final RandomAccessFile raf;
+        private final long bytes;
 
         KvBufferPage(KvPageContext pageCtx, String pageId, boolean ephemeral) {
             this.pageCtx = pageCtx;
             this.pageId = pageId;
+            this.bytes = pageCtx.pageBytes();
 
-            if (model.getConfig().workingDirectory().isEmpty() || ephemeral) {
+            reservePage(bytes, pageCtx.session);
+
+            if (ephemeral) {
+                this.raf = null;
+                this.tensor = TensorCache.instance.get(pageCtx.dType, pageCtx.pageShape);
+            } else if (model.getConfig().workingDirectory().isEmpty()) {
                 this.raf = null;
-                this.tensor = TensorCache.instance.get(model.getWorkingDType(), pageCtx.pageShape);
+                this.tensor = pagePool.get(pageCtx.dType, pageCtx.pageShape);
             } else {
                 try {
-                    raf = new RandomAccessFile(
-                        Paths.get(
-                            model.getConfig().workingDirectory().get().toString(),
-                            pageCtx.session.toString() + "-" + pageId + ".page"
-                        ).toFile(),
-                        "rw"
-                    );
-                    long bytes = pageCtx.pageShape.size() * model.getWorkingDType().size();
+                    raf = new RandomAccessFile(pageFile(pageCtx.session, pageId), "rw");
                     logger.debug("Allocating page {} with {} bytes {}", pageId, bytes, raf.length());
                     if (raf.length() != bytes) raf.setLength(bytes);
 
                     AbstractTensor t;
-                    if (model.getWorkingDType() == DType.F32) {
+                    if (pageCtx.dType == DType.F32) {
                         FloatBuffer fb = raf.getChannel()
                             .map(FileChannel.MapMode.READ_WRITE, 0, bytes)
                             .order(ByteOrder.LITTLE_ENDIAN)
                             .asFloatBuffer();
 
                         t = new FloatBufferTensor(fb, pageCtx.pageShape, true);
-                    } else if (model.getWorkingDType() == DType.BF16) {
+                    } else if (pageCtx.dType == DType.BF16) {
                         ShortBuffer sb = raf.getChannel()
                             .map(FileChannel.MapMode.READ_WRITE, 0, bytes)
                             .order(ByteOrder.LITTLE_ENDIAN)
                             .asShortBuffer();
 
                         t = new BFloat16BufferTensor("kvmem", sb, pageCtx.pageShape, true);
+                    } else if (pageCtx.dType == DType.I8) {
+                        // Quantized values followed by their block scales
+                        long valueBytes = pageCtx.pageShape.size();
+                        ByteBuffer bb = raf.getChannel()
+                            .map(FileChannel.MapMode.READ_WRITE, 0, valueBytes)
+                            .order(ByteOrder.LITTLE_ENDIAN);
+
+                        FloatBuffer fb = raf.getChannel()
+                            .map(FileChannel.MapMode.READ_WRITE, valueBytes, bytes - valueBytes)
+                            .order(ByteOrder.LITTLE_ENDIAN)
+                            .asFloatBuffer();
+
+                        TensorShape blockShape = Q4ByteBufferTensor.makeBlockShape(pageCtx.pageShape);
+                        t = new Q8ByteBufferTensor("kvmem", bb, new FloatBufferTensor(fb, blockShape, true), pageCtx.pageShape, true);
                     } else {
-                        throw new UnsupportedOperationException("Only F32/BF16 is supported for now");
+                        throw new UnsupportedOperationException("Only F32/BF16/I8 is supported for now");
                     }
 
                     this.tensor = t;
 
                 } catch (IOException e) {
+                    unreservePage(bytes);
                     throw new IOError(e);
                 }
             }
@@ -183,6 +534,34 @@ public class KvBufferCache implements Closeable {
             return closed.get();
         }
 
+        /**
+         * Shared pages must be copied before they are written to
+         */
+        public boolean isShared() {
+            return refCount.get() > 1;
+        }
+
+        /**
+         * File backed pages are tied to the session that created them so are never shared
+         */
+        public boolean isShareable() {
+            return raf == null && !closed.get();
+        }
+
+        void retain() {
+            refCount.incrementAndGet();
+        }
+
+        void release() {
+            if (refCount.decrementAndGet() == 0) {
+                try {
+                    close();
+                } catch (IOException e) {
+                    logger.debug("Error closing page", e);
+                }
+            }
+        }
+
         @Override
         public void close() throws IOException {
             if (closed.compareAndSet(false, true)) {
@@ -190,10 +569,15 @@ public class KvBufferCache implements Closeable {
                     raf.close();
                 }
                 tensor.close();
+                unreservePage(bytes);
             }
         }
     }
 
+    private File pageFile(UUID session, String pageId) {
+        return Paths.get(model.getConfig().workingDirectory().get().toString(), session.toString() + "-" + pageId + ".page").toFile();
+    }
+
     public class KvBuffer implements AutoCloseable {
         private UUID session;
         private final AtomicInteger currentContextPosition = new AtomicInteger(0);
@@ -202,11 +586,129 @@ public class KvBufferCache implements Closeable {
         private final KvPageContext pageContext;
         private final boolean ephemeral;
 
+        // Sliding window layers are grouped after the global layers so their pages are not mixed,
+        // and positions wrap around a ring of window length so pages past the window are reused
+        private final int[] layerSlots;
+        private final int[] layerWindows;
+        private final int slidingWindow;
+
+        private final AtomicInteger users = new AtomicInteger(0);
+        private volatile long lastAccessNanos;
+
+        // The token fed at each position, so a session held in memory can be recomputed after its pages are evicted
+        private int[] history = new int[0];
+        private final BitSet recordedPositions = new BitSet();
+        private final AtomicInteger positionsWritten = new AtomicInteger(0);
+        private int evictedPositions = 0;
+
         KvBuffer(UUID session, int maxPageSizeInBytes, boolean ephemeral) {
             this.session = session;
+
+            Config c = model.getConfig();
+            int numberOfLayers = c.dctx().numberOfLayers;
+            this.layerSlots = new int[numberOfLayers];
+            this.layerWindows = new int[numberOfLayers];
+            int window = c.contextLength;
+            int slot = 0;
+            for (int l = 0; l < numberOfLayers; l++) {
+                layerWindows[l] = c.attentionWindow(l);
+                if (layerWindows[l] == c.contextLength) layerSlots[l] = slot++;
+                else window = Math.min(window, layerWindows[l]);
+            }
+            for (int l = 0; l < numberOfLayers; l++) {
+                if (layerWindows[l] < c.contextLength) layerSlots[l] = slot++;
+            }
+            this.slidingWindow = window;
+
             this.pageContext = computePageSize(maxPageSizeInBytes);
             this.pages = new KvBufferPage[pageContext.numberOfLayerPages][pageContext.numberOfContextPages];
             this.ephemeral = ephemeral;
+            this.lastAccessNanos = System.nanoTime();
+
+            if (!ephemeral) sessionPageBytes = pageContext.pageBytes();
+        }
+
+        void acquire() {
+            users.incrementAndGet();
+            lastAccessNanos = System.nanoTime();
+        }
+
+        boolean isInUse() {
+            return users.get() > 0;
+        }
+
+        /**
+         * The bytes that would be freed by evicting this session, pages shared with the prefix cache
+         * or other sessions stay allocated.
+         */
+        long reclaimableBytes() {
+            long bytes = 0;
+            for (KvBufferPage[] layerPages : pages) {
+                for (KvBufferPage page : layerPages) {
+                    if (page != null && !page.isClosed() && !page.isShared()) bytes += page.bytes;
+                }
+            }
+            return bytes;
+        }
+
+        /**
+         * File backed pages are mapped back in from the working directory, in memory pages can only be
+         * recomputed if every token written to them was recorded.
+         */
+        synchronized boolean isRestorable() {
+            return model.getConfig().workingDirectory().isPresent() || recordedPositions.nextClearBit(0) >= positionsWritten.get();
+        }
+
+        /**
+         * Records the tokens fed to the model starting at the given position
+         */
+        public synchronized void recordTokens(int startPosition, int... tokens) {
+            if (ephemeral) return;
+
+            int end = startPosition + tokens.length;
+            if (end > history.length) history = Arrays.copyOf(history, Math.max(end, Math.min(2 * history.length, contextLength())));
+            System.arraycopy(tokens, 0, history, startPosition, tokens.length);
+            recordedPositions.set(startPosition, end);
+        }
+
+        private int contextLength() {
+            return model.getConfig().contextLength;
+        }
+
+        /**
+         * Frees this session's pages to make room for others.
+         * File backed pages keep their contents in the working directory and are mapped back in on next use,
+         * otherwise the recorded tokens are run through the model again on next use.
+         */
+        synchronized void evict() {
+            releasePages();
+            if (model.getConfig().workingDirectory().isEmpty()) evictedPositions = positionsWritten.getAndSet(0);
+        }
+
+        /**
+         * Recomputes the kv values of an evicted session from its recorded tokens
+         */
+        synchronized void restore() {
+            if (evictedPositions == 0) return;
+
+            int length = evictedPositions;
+            evictedPositions = 0;
+            logger.debug("Recomputing {} evicted positions of session {}", length, session);
+            model.batchForward(Arrays.copyOf(history, length), 0, this).close();
+        }
+
+        void deletePageFiles() {
+            if (model.getConfig().workingDirectory().isEmpty()) return;
+
+            for (int lp = 0; lp < pageContext.numberOfLayerPages; lp++) {
+                for (int cp = 0; cp < pageContext.numberOfContextPages; cp++) {
+                    try {
+                        Files.deleteIfExists(pageFile(session, "L" + lp + "C" + cp).toPath());
+                    } catch (IOException e) {
+                        logger.debug("Error deleting page file", e);
+                    }
+                }
+            }
         }
 
         public int getCurrentContextPosition() {
@@ -221,6 +723,90 @@ public class KvBufferCache implements Closeable {
             currentContextPosition.incrementAndGet();
         }
 
+        private long prefixSeed() {
+            return 0xcbf29ce484222325L ^ pageContext.contextLengthPerPage;
+        }
+
+        /**
+         * Attaches any cached kv pages matching the start of the given prompt to this buffer.
+         * The pages are shared copy-on-write so the caller can begin prefill from the returned position.
+         *
+         * @param tokens the prompt tokens starting at position 0
+         * @return the number of leading tokens whose kv values are already present
+         */
+        public int attachPrefix(int[] tokens) {
+            if (prefixCache == null || ephemeral) return 0;
+            Preconditions.checkState(currentContextPosition.get() == 0, "Prefix can only be attached to an empty buffer");
+
+            long parentHash = prefixSeed();
+            int matched = 0;
+            for (int cp = 0; cp < pageContext.numberOfContextPages && matched < tokens.length; cp++) {
+                int length = Math.min(pageContext.contextLengthPerPage, tokens.length - matched);
+                Pair<PrefixEntry, Integer> hit = prefixCache.acquire(parentHash, tokens, matched, length);
+                if (hit == null) break;
+
+                PrefixEntry entry = hit.left();
+                for (int lp = 0; lp < pageContext.numberOfLayerPages; lp++) {
+                    if (pages[lp][cp] != null) pages[lp][cp].release();
+                    pages[lp][cp] = entry.pages[lp];
+                }
+
+                matched += hit.right();
+
+                // Only a full page match can continue on to the next page
+                if (hit.right() < pageContext.contextLengthPerPage) break;
+                parentHash = entry.hash;
+            }
+
+            if (matched > 0) {
+                logger.debug("Attached {} cached prefix tokens to session {}", matched, session);
+                recordTokens(0, Arrays.copyOf(tokens, matched));
+                positionsWritten.accumulateAndGet(matched, Math::max);
+            }
+
+            return matched;
+        }
+
+        /**
+         * Publishes the kv pages holding the given prompt tokens to the prefix cache so other sessions can reuse them.
+         *
+         * @param tokens the prompt tokens starting at position 0
+         * @param length the number of tokens whose kv values have been computed
+         */
+        public void registerPrefix(int[] tokens, int length) {
+            if (prefixCache == null || ephemeral) return;
+
+            // Sliding window pages no longer hold the start of the prompt once the window wraps
+            if (length > slidingWindow) return;
+
+            long pageBytes = pageContext.pageBytes();
+            long parentHash = prefixSeed();
+            for (int cp = 0; cp < pageContext.numberOfContextPages; cp++) {
+                int start = cp * pageContext.contextLengthPerPage;
+                if (start >= length) break;
+
+                int end = Math.min(length, start + pageContext.contextLengthPerPage);
+                KvBufferPage[] contextPages = new KvBufferPage[pageContext.numberOfLayerPages];
+                for (int lp = 0; lp < pageContext.numberOfLayerPages; lp++) {
+                    KvBufferPage page = pages[lp][cp];
+                    if (page == null || !page.isShareable()) return;
+                    contextPages[lp] = page;
+                }
+
+                long hash = PrefixCache.hash(parentHash, tokens, start, end - start);
+                prefixCache.put(hash, parentHash, Arrays.copyOfRange(tokens, start, end), contextPages, pageBytes);
+                parentHash = hash;
+            }
+        }
+
+        private KvBufferPage copyOnWrite(int layerPageIndex, int contextPageIndex, KvBufferPage shared) {
+            KvBufferPage page = new KvBufferPage(pageContext, "L" + layerPageIndex + "C" + contextPageIndex, ephemeral);
+            page.getTensor().copyFrom(shared.getTensor(), 0, 0, Ints.checkedCast(shared.getTensor().size()));
+            pages[layerPageIndex][contextPageIndex] = page;
+            shared.release();
+            return page;
+        }
+
         public KvPageContext computePageSize(long maxPageSizeInBytes) {
             Config c = model.getConfig();
             DType workingDType = model.getWorkingDType();
@@ -254,6 +840,12 @@ public class KvBufferCache implements Closeable {
                 }
             }
 
+            // Ring buffers for sliding window layers must be made of whole pages
+            if (slidingWindow < C) {
+                while (slidingWindow % optimalContextLengthPerPage != 0)
+                    optimalContextLengthPerPage--;
+            }
+
             // Calculate the number of pages needed
             int numberOfLayerPages = (int) Math.ceil((double) N / optimalLayersPerPage);
             int numberOfContextPages = (int) Math.ceil((double) C / optimalContextLengthPerPage);
@@ -279,17 +871,30 @@ public class KvBufferCache implements Closeable {
             return new KvPageContext(session, numberOfLayerPages, numberOfContextPages, optimalLayersPerPage, optimalContextLengthPerPage);
         }
 
+        /**
+         * Releases this caller's use of the buffer.  Session pages stay resident for the next request
+         * until they are evicted, ephemeral buffers are freed right away.
+         */
         @Override
         public void close() {
+            if (ephemeral) {
+                releasePages();
+                return;
+            }
+
+            lastAccessNanos = System.nanoTime();
+            users.updateAndGet(u -> Math.max(0, u - 1));
+        }
+
+        void releasePages() {
             for (KvBufferPage[] layerPages : pages) {
                 if (layerPages != null) {
-                    for (KvBufferPage page : layerPages) {
+                    for (int i = 0; i < layerPages.length; i++) {
+                        KvBufferPage page = layerPages[i];
                         if (page != null) {
-                            try {
-                                page.close();
-                            } catch (IOException e) {
-                                logger.debug("Error closing page", e);
-                            }
+                            // Pages may still be referenced by the prefix cache
+                            page.release();
+                            layerPages[i] = null;
                         }
                     }
                 }
@@ -305,16 +910,24 @@ public class KvBufferCache implements Closeable {
         }
 
         private AbstractTensor getTensorForPosition(int layerIndex, int position, int index) {
+            // Sliding window layers overwrite the oldest position in their ring
+            int slot = layerSlots[layerIndex];
+            int ringPosition = position % layerWindows[layerIndex];
+
             // Calculate page indices and relative indices
-            int layerPageIndex = layerIndex / pageContext.layersPerPage;
-            int contextPageIndex = position / pageContext.contextLengthPerPage;
-            int relativeLayerIndex = layerIndex % pageContext.layersPerPage;
-            int relativeContextIndex = position % pageContext.contextLengthPerPage;
+            int layerPageIndex = slot / pageContext.layersPerPage;
+            int contextPageIndex = ringPosition / pageContext.contextLengthPerPage;
+            int relativeLayerIndex = slot % pageContext.layersPerPage;
+            int relativeContextIndex = ringPosition % pageContext.contextLengthPerPage;
+
+            if (position >= positionsWritten.get()) positionsWritten.accumulateAndGet(position + 1, Math::max);
 
             KvBufferPage page = pages[layerPageIndex][contextPageIndex];
             if (page == null || page.isClosed()) {
                 page = new KvBufferPage(pageContext, "L" + layerPageIndex + "C" + contextPageIndex, ephemeral);
                 pages[layerPageIndex][contextPageIndex] = page;
+            } else if (page.isShared()) {
+                page = copyOnWrite(layerPageIndex, contextPageIndex, page);
             }
 
             return page.getTensor().slice(true, relativeLayerIndex, index, relativeContextIndex);
@@ -328,10 +941,15 @@ public class KvBufferCache implements Closeable {
             return getTensorsUptoPosition(layerIndex, 1, upperBound);
         }
 
+        /**
+         * Returns the pages holding the positions a layer attends to at the given position.
+         * For sliding window layers, once the window is full this is the whole ring in slot order.
+         */
         private AbstractTensor[] getTensorsUptoPosition(int layerIndex, int index, int upperBound) {
-            int layerPageIndex = layerIndex / pageContext.layersPerPage;
-            int contextPageIndex = upperBound / pageContext.contextLengthPerPage;
-            int relativeLayerIndex = layerIndex % pageContext.layersPerPage;
+            int slot = layerSlots[layerIndex];
+            int layerPageIndex = slot / pageContext.layersPerPage;
+            int contextPageIndex = Math.min(upperBound, layerWindows[layerIndex] - 1) / pageContext.contextLengthPerPage;
+            int relativeLayerIndex = slot % pageContext.layersPerPage;
 
             KvBufferPage[] layerPages = pages[layerPageIndex];
 
@@ -341,7 +959,7 @@ public class KvBufferCache implements Closeable {
                 KvBufferPage page = layerPages[i];
 
                 if (page == null || page.isClosed()) {
-                    page = new KvBufferPage(pageContext, "L" + layerPageIndex + "C" + contextPageIndex, ephemeral);
+                    page = new KvBufferPage(pageContext, "L" + layerPageIndex + "C" + i, ephemeral);
                     layerPages[i] = page;
                 }
 
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.tensor;
+
+import com.github.tjake.jlama.safetensors.DType;
+import java.nio.ByteBuffer;
+
+/**
+ * 4-bit K-quant weights, 4.5 bits per weight.
+ *
+ * A super-block of 256 weights is split into 8 sub-blocks of 32.  Each sub-block has its own 6-bit scale and min,
+ * which are themselves scaled by a F16 scale and min for the whole super-block, so a weight is
+ * {@code d * scale * q - dmin * min} with q in [0, 15].
+ *
+ * Block layout (144 bytes):
+ * <pre>
+ *   [0, 2)     d, F16
+ *   [2, 4)     dmin, F16
+ *   [4, 16)    8 scales and 8 mins, 6 bits each, packed as in llama.cpp
+ *   [16, 144)  8 sub-blocks of 16 bytes, byte j holds element j in the low nibble and j + 16 in the high nibble
+ * </pre>
+ * The nibble order within a sub-block matches {@link Q4ByteBufferTensor} so the kernels unpack them the same way.
+ */
+public final class Q4KByteBufferTensor extends KQuantByteBufferTensor {
+    public static final int SUB_BLOCK_SIZE = 32;
+    public static final int SUB_BLOCKS = SUPER_BLOCK_SIZE / SUB_BLOCK_SIZE;
+    public static final int SCALES_OFFSET = 4;
+    public static final int QS_OFFSET = 16;
+    public static final int BLOCK_BYTES = QS_OFFSET + SUPER_BLOCK_SIZE / 2;
+
+    public Q4KByteBufferTensor(AbstractTensor ft) {
+        this(ft.shape);
+        quantizeFrom(ft);
+    }
+
+    protected Q4KByteBufferTensor(TensorShape shape) {
+        super(DType.Q4_K, BLOCK_BYTES, shape);
+    }
+
+    public Q4KByteBufferTensor(String name, ByteBuffer b, TensorShape shape, boolean cacheSlices) {
+        super(DType.Q4_K, BLOCK_BYTES, name, b, shape, cacheSlices);
+    }
+
+    @Override
+    protected AbstractTensor make(TensorShape shape) {
+        return new Q4KByteBufferTensor(shape);
+    }
+
+    @Override
+    protected AbstractTensor make(String name, ByteBuffer b, TensorShape shape, boolean cacheSlices) {
+        return new Q4KByteBufferTensor(name, b, shape, cacheSlices);
+    }
+
+    @Override
+    protected void quantizeBlock(float[] x, int blockOffset) {
+        float[] scales = new float[SUB_BLOCKS];
+        float[] mins = new float[SUB_BLOCKS];
+        float maxScale = 0, maxMin = 0;
+
+        for (int s = 0; s < SUB_BLOCKS; s++) {
+            fitSubBlock(x, s * SUB_BLOCK_SIZE, scales, mins, s);
+            maxScale = Math.max(maxScale, scales[s]);
+            maxMin = Math.max(maxMin, mins[s]);
+        }
+
+        // Use the F16 rounded super-block values so the 6-bit values are relative to what's stored
+        short dh = Float.floatToFloat16(maxScale / 63f);
+        short dminh = Float.floatToFloat16(maxMin / 63f);
+        float d = Float.float16ToFloat(dh);
+        float dmin = Float.float16ToFloat(dminh);
+
+        int[] sc = new int[SUB_BLOCKS];
+        int[] m = new int[SUB_BLOCKS];
+        for (int s = 0; s < SUB_BLOCKS; s++) {
+            sc[s] = d > 0 ? Math.min(63, Math.round(scales[s] / d)) : 0;
+            m[s] = dmin > 0 ? Math.min(63, Math.round(mins[s] / dmin)) : 0;
+        }
+
+        b.putShort(blockOffset, dh);
+        b.putShort(blockOffset + 2, dminh);
+        for (int j = 0; j < 4; j++) {
+            b.put(blockOffset + SCALES_OFFSET + j, (byte) (sc[j] | ((sc[j + 4] >> 4) << 6)));
+            b.put(blockOffset + SCALES_OFFSET + j + 4, (byte) (m[j] | ((m[j + 4] >> 4) << 6)));
+            b.put(blockOffset + SCALES_OFFSET + j + 8, (byte) ((sc[j + 4] & 0xF) | ((m[j + 4] & 0xF) << 4)));
+        }
+
+        for (int s = 0; s < SUB_BLOCKS; s++) {
+            float scale = d * sc[s];
+            float iscale = scale != 0 ? 1.0f / scale : 0;
+            float offset = dmin * m[s];
+            int base = s * SUB_BLOCK_SIZE;
+            for (int j = 0; j < SUB_BLOCK_SIZE / 2; j++) {
+                int q0 = Math.max(0, Math.min(15, Math.round((x[base + j] + offset) * iscale)));
+                int q1 = Math.max(0, Math.min(15, Math.round((x[base + j + SUB_BLOCK_SIZE / 2] + offset) * iscale)));
+                b.put(blockOffset + QS_OFFSET + s * (SUB_BLOCK_SIZE / 2) + j, (byte) (q0 | (q1 << 4)));
+            }
+        }
+    }
+
+    /**
+     * Finds the scale and min of a sub-block.  Starts by mapping [min, max] onto [0, 15], with the min kept <= 0
+     * so it's stored as a positive offset, then refines both with a few rounds of least squares over the chosen levels
+     */
+    private static void fitSubBlock(float[] x, int base, float[] scales, float[] mins, int s) {
+        float min = 0, max = 0;
+        for (int j = base; j < base + SUB_BLOCK_SIZE; j++) {
+            min = Math.min(min, x[j]);
+            max = Math.max(max, x[j]);
+        }
+
+        float scale = (max - min) / 15f;
+        float offset = -min;
+        for (int iter = 0; iter < 4 && scale > 0; iter++) {
+            double sq = 0, sqq = 0, sx = 0, sxq = 0;
+            for (int j = base; j < base + SUB_BLOCK_SIZE; j++) {
+                int q = Math.max(0, Math.min(15, Math.round((x[j] + offset) / scale)));
+                sq += q;
+                sqq += q * q;
+                sx += x[j];
+                sxq += x[j] * q;
+            }
+
+            // Solve x = scale * q - offset
+            double det = SUB_BLOCK_SIZE * sqq - sq * sq;
+            if (det <= 0) break;
+            double newScale = (SUB_BLOCK_SIZE * sxq - sq * sx) / det;
+            double newOffset = (sq * sxq - sqq * sx) / det;
+            if (newOffset < 0) {
+                newOffset = 0;
+                newScale = sxq / sqq;
+            }
+            if (newScale <= 0) break;
+
+            scale = (float) newScale;
+            offset = (float) newOffset;
+        }
+
+        scales[s] = scale;
+        mins[s] = offset;
+    }
+
+    @Override
+    protected float dequantize(int blockOffset, int index) {
+        int s = index / SUB_BLOCK_SIZE;
+        int j = index % SUB_BLOCK_SIZE;
+        byte q = b.get(blockOffset + QS_OFFSET + s * (SUB_BLOCK_SIZE / 2) + j % (SUB_BLOCK_SIZE / 2));
+        int x = j < SUB_BLOCK_SIZE / 2 ? q & 0x0F : (q >> 4) & 0x0F;
+        return scale(blockOffset, s) * x - min(blockOffset, s);
+    }
+
+    /**
+     * The scale of a sub-block, d * scale
+     */
+    public float scale(int blockOffset, int subBlock) {
+        int q;
+        if (subBlock < 4) {
+            q = b.get(blockOffset + SCALES_OFFSET + subBlock) & 63;
+        } else {
+            q = (b.get(blockOffset + SCALES_OFFSET + subBlock + 4) & 0xF)
+                | (((b.get(blockOffset + SCALES_OFFSET + subBlock - 4) & 0xFF) >> 6) << 4);
+        }
+        return Float.float16ToFloat(b.getShort(blockOffset)) * q;
+    }
+
+    /**
+     * The offset subtracted from every weight of a sub-block, dmin * min
+     */
+    public float min(int blockOffset, int subBlock) {
+        int q;
+        if (subBlock < 4) {
+            q = b.get(blockOffset + SCALES_OFFSET + subBlock + 4) & 63;
+        } else {
+            q = ((b.get(blockOffset + SCALES_OFFSET + subBlock + 4) & 0xFF) >> 4)
+                | (((b.get(blockOffset + SCALES_OFFSET + subBlock) & 0xFF) >> 6) << 4);
+        }
+        return Float.float16ToFloat(b.getShort(blockOffset + 2)) * q;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.tensor;
+
+import com.github.tjake.jlama.safetensors.DType;
+import java.nio.ByteBuffer;
+
+/**
+ * 6-bit K-quant weights, 6.5625 bits per weight.
+ *
+ * A super-block of 256 weights is split into 16 groups of 16, each with a signed 8-bit scale relative to
+ * a F16 scale for the whole super-block, so a weight is {@code d * scale * q} with q in [-32, 31].
+ *
+ * Block layout (210 bytes):
+ * <pre>
+ *   [0, 2)      d, F16
+ *   [2, 18)     16 group scales, I8
+ *   [18, 146)   low 4 bits, 8 sub-blocks of 32 laid out as in {@link Q4KByteBufferTensor}
+ *   [146, 210)  high 2 bits, 4 runs of 16 bytes.  Byte j of run r holds, from the low bits up,
+ *               elements j and j + 16 of sub-block 2r, then j and j + 16 of sub-block 2r + 1
+ * </pre>
+ * Lane j of a 16 byte load of the low and high bits lines up, so a sub-block unpacks with a few shifts.
+ */
+public final class Q6KByteBufferTensor extends KQuantByteBufferTensor {
+    public static final int GROUP_SIZE = 16;
+    public static final int GROUPS = SUPER_BLOCK_SIZE / GROUP_SIZE;
+    public static final int SUB_BLOCK_SIZE = 32;
+    public static final int SUB_BLOCKS = SUPER_BLOCK_SIZE / SUB_BLOCK_SIZE;
+    public static final int SCALES_OFFSET = 2;
+    public static final int QL_OFFSET = SCALES_OFFSET + GROUPS;
+    public static final int QH_OFFSET = QL_OFFSET + SUPER_BLOCK_SIZE / 2;
+    public static final int BLOCK_BYTES = QH_OFFSET + SUPER_BLOCK_SIZE / 4;
+
+    public Q6KByteBufferTensor(AbstractTensor ft) {
+        this(ft.shape);
+        quantizeFrom(ft);
+    }
+
+    protected Q6KByteBufferTensor(TensorShape shape) {
+        super(DType.Q6_K, BLOCK_BYTES, shape);
+    }
+
+    public Q6KByteBufferTensor(String name, ByteBuffer b, TensorShape shape, boolean cacheSlices) {
+        super(DType.Q6_K, BLOCK_BYTES, name, b, shape, cacheSlices);
+    }
+
+    @Override
+    protected AbstractTensor make(TensorShape shape) {
+        return new Q6KByteBufferTensor(shape);
+    }
+
+    @Override
+    protected AbstractTensor make(String name, ByteBuffer b, TensorShape shape, boolean cacheSlices) {
+        return new Q6KByteBufferTensor(name, b, shape, cacheSlices);
+    }
+
+    @Override
+    protected void quantizeBlock(float[] x, int blockOffset) {
+        float[] scales = new float[GROUPS];
+        float maxScale = 0;
+        for (int g = 0; g < GROUPS; g++) {
+            float amax = 0;
+            for (int j = g * GROUP_SIZE; j < (g + 1) * GROUP_SIZE; j++)
+                amax = Math.max(amax, Math.abs(x[j]));
+
+            scales[g] = amax / 31f;
+            maxScale = Math.max(maxScale, scales[g]);
+        }
+
+        // Use the F16 rounded super-block scale so the group scales are relative to what's stored
+        short dh = Float.floatToFloat16(maxScale / 127f);
+        float d = Float.float16ToFloat(dh);
+        b.putShort(blockOffset, dh);
+
+        for (int g = 0; g < GROUPS; g++) {
+            int sc = d > 0 ? Math.min(127, Math.round(scales[g] / d)) : 0;
+            b.put(blockOffset + SCALES_OFFSET + g, (byte) sc);
+
+            float scale = d * sc;
+            float iscale = scale != 0 ? 1.0f / scale : 0;
+            for (int j = g * GROUP_SIZE; j < (g + 1) * GROUP_SIZE; j++) {
+                int q = Math.max(-32, Math.min(31, Math.round(x[j] * iscale))) + 32;
+                setLow(blockOffset, j, q & 0xF);
+                setHigh(blockOffset, j, q >> 4);
+            }
+        }
+    }
+
+    private int lowIndex(int blockOffset, int index) {
+        return blockOffset + QL_OFFSET + (index / SUB_BLOCK_SIZE) * GROUP_SIZE + index % GROUP_SIZE;
+    }
+
+    private int highIndex(int blockOffset, int index) {
+        return blockOffset + QH_OFFSET + (index / (2 * SUB_BLOCK_SIZE)) * GROUP_SIZE + index % GROUP_SIZE;
+    }
+
+    // Bit position of an element's high bits within its byte
+    private static int highShift(int index) {
+        int s = index / SUB_BLOCK_SIZE;
+        int half = (index % SUB_BLOCK_SIZE) / GROUP_SIZE;
+        return ((s % 2) * 2 + half) * 2;
+    }
+
+    private void setLow(int blockOffset, int index, int v) {
+        int i = lowIndex(blockOffset, index);
+        int shift = (index % SUB_BLOCK_SIZE) < GROUP_SIZE ? 0 : 4;
+        b.put(i, (byte) ((b.get(i) & ~(0xF << shift)) | (v << shift)));
+    }
+
+    private void setHigh(int blockOffset, int index, int v) {
+        int i = highIndex(blockOffset, index);
+        int shift = highShift(index);
+        b.put(i, (byte) ((b.get(i) & ~(0x3 << shift)) | (v << shift)));
+    }
+
+    @Override
+    protected float dequantize(int blockOffset, int index) {
+        int shift = (index % SUB_BLOCK_SIZE) < GROUP_SIZE ? 0 : 4;
+        int low = (b.get(lowIndex(blockOffset, index)) >> shift) & 0xF;
+        int high = (b.get(highIndex(blockOffset, index)) >> highShift(index)) & 0x3;
+        return scale(blockOffset, index / GROUP_SIZE) * ((low | (high << 4)) - 32);
+    }
+
+    /**
+     * The scale of a group of 16 weights, d * scale
+     */
+    public float scale(int blockOffset, int group) {
+        return Float.float16ToFloat(b.getShort(blockOffset)) * b.get(blockOffset + SCALES_OFFSET + group);
+    }
+}
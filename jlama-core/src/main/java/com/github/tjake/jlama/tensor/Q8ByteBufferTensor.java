@@ -206,6 +206,17 @@ public class Q8ByteBufferTensor extends AbstractTensor<ByteVector, Byte> {
         Preconditions.checkArgument(!b.isReadOnly(), "Read-only");
         segment.asSlice(getMemorySegmentOffset(destOffset), length)
             .copyFrom(src.getMemorySegment().asSlice(src.getMemorySegmentOffset(srcOffset), length));
+
+        // The values are meaningless without their scales, so copy those along when whole blocks are copied
+        if (srcOffset % BLOCK_SIZE == 0 && destOffset % BLOCK_SIZE == 0 && length % BLOCK_SIZE == 0) {
+            Q8ByteBufferTensor q8src = (Q8ByteBufferTensor) src;
+            blockF.copyFrom(
+                q8src.blockF,
+                (int) (srcOffset * I_BLOCK_SIZE),
+                (int) (destOffset * I_BLOCK_SIZE),
+                (int) (length * I_BLOCK_SIZE)
+            );
+        }
     }
 
     @Override
@@ -87,6 +87,8 @@ public class TensorCache {
             case BF16 -> new BFloat16BufferTensor(shape);
             case I8 -> new Q8ByteBufferTensor(shape);
             case Q4 -> new Q4ByteBufferTensor(shape);
+            case Q4_K -> new Q4KByteBufferTensor(shape);
+            case Q6_K -> new Q6KByteBufferTensor(shape);
             default -> throw new RuntimeException("Unsupported tensor type: " + dType);
         };
 
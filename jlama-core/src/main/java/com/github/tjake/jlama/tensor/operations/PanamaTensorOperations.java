@@ -19,14 +19,20 @@ import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.tensor.AbstractTensor;
 import com.github.tjake.jlama.tensor.BFloat16BufferTensor;
 import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import com.github.tjake.jlama.tensor.KQuantByteBufferTensor;
 import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q4KByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q6KByteBufferTensor;
 import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
 import com.github.tjake.jlama.tensor.TensorCache;
 import com.github.tjake.jlama.util.BiIntConsumer;
 import com.github.tjake.jlama.util.MachineSpec;
 import com.github.tjake.jlama.util.PhysicalCoreExecutor;
 import com.google.common.base.Preconditions;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
 import jdk.incubator.vector.*;
+import net.jafama.FastMath;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,6 +57,13 @@ public final class PanamaTensorOperations implements TensorOperations {
     static final IntVector BF16_BYTE_SHIFT_128 = IntVector.broadcast(IntVector.SPECIES_128, 16);
     static final FloatVector F32_ROUND_UP_128 = FloatVector.broadcast(FloatVector.SPECIES_128, 0.5f);
 
+    // Lane shuffles for rotating interleaved RoPE pairs
+    static final VectorShuffle<Float> ROPE_SWAP = VectorShuffle.fromOp(FloatVector.SPECIES_PREFERRED, i -> i ^ 1);
+    static final VectorShuffle<Float> ROPE_EVEN = VectorShuffle.fromOp(FloatVector.SPECIES_PREFERRED, i -> i & ~1);
+    static final VectorShuffle<Float> ROPE_ODD = VectorShuffle.fromOp(FloatVector.SPECIES_PREFERRED, i -> i | 1);
+    static final FloatVector ROPE_SIGN = FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, 1f)
+        .blend(-1f, VectorMask.fromLong(FloatVector.SPECIES_PREFERRED, 0x5555555555555555L));
+
     static final VectorMask<Byte> BYTE_MASK_32 = VectorMask.fromValues(
         ByteVector.SPECIES_64,
         true,
@@ -119,6 +132,9 @@ public final class PanamaTensorOperations implements TensorOperations {
             case F32 -> switch (b.dType()) {
                 case F32 -> new GemmerF32(K, a, b, result, aColumnOffset, bColumnOffset, rOffset);
                 case BF16 -> new GemmerF32BF16(K, a, b, result, aColumnOffset, bColumnOffset, rOffset);
+                case I8 -> new GemmerF32I8(K, a, b, result, aColumnOffset, bColumnOffset, rOffset);
+                case Q4_K -> new GemmerF32Q4K(K, a, b, result, aColumnOffset, bColumnOffset, rOffset);
+                case Q6_K -> new GemmerF32Q6K(K, a, b, result, aColumnOffset, bColumnOffset, rOffset);
                 case Q4 -> switch (vectorType) {
                     case AVX_256 -> new GemmerF32Q4_256(K, a, b, result, aColumnOffset, bColumnOffset, rOffset);
                     case AVX_512 -> new GemmerF32Q4_512(K, a, b, result, aColumnOffset, bColumnOffset, rOffset);
@@ -1538,6 +1554,244 @@ public final class PanamaTensorOperations implements TensorOperations {
         }
     }
 
+    /**
+     * F32 against Q8 blocks, used for attention over an I8 kv cache.
+     * Each block is widened to floats in registers so the cache is never dequantized in memory.
+     */
+    private class GemmerF32I8 extends Gemmer {
+
+        final BiIntConsumer matmul1x1;
+
+        final FloatBufferTensor a;
+        final Q8ByteBufferTensor b;
+
+        GemmerF32I8(int k, AbstractTensor ta, AbstractTensor tb, AbstractTensor c, int aColumnOffset, int bColumnOffset, int rOffset) {
+            super(k, ta, tb, c, aColumnOffset, bColumnOffset, rOffset);
+
+            this.matmul1x1 = initMatmul1x1();
+            this.a = (FloatBufferTensor) ta;
+            this.b = (Q8ByteBufferTensor) tb;
+        }
+
+        @Override
+        protected int pickKernel(int m0, int m, int n0, int n) {
+            short mc, nc;
+            mc = 1;
+            nc = 1;
+            kernel(m0, m, 1, n0, n, 1, matmul1x1);
+
+            return (mc << 4) | nc;
+        }
+
+        protected BiIntConsumer initMatmul1x1() {
+            return (i, j) -> {
+                FloatVector acc = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+                int alim = aColumnOffset + k;
+                int blim = bColumnOffset + k;
+                int slen = Q8ByteBufferTensor.BLOCK_SIZE;
+                int flen = FloatVector.SPECIES_PREFERRED.length();
+                int parts = ByteVector.SPECIES_128.length() / flen;
+
+                for (; aoffset < alim && boffset < blim; aoffset += slen, boffset += slen) {
+                    FloatVector scale = FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, b.getFactorForIndex(j, boffset));
+                    FloatVector blockAcc = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+
+                    // BLOCK_SIZE bytes as two 16 byte loads, each widened to floats one register at a time
+                    for (int h = 0; h < slen; h += ByteVector.SPECIES_128.length()) {
+                        ByteVector vb = b.getVector(ByteVector.SPECIES_128, j, boffset + h);
+                        for (int p = 0; p < parts; p++) {
+                            FloatVector fb = (FloatVector) vb.castShape(FloatVector.SPECIES_PREFERRED, p);
+                            FloatVector fa = a.getVector(FloatVector.SPECIES_PREFERRED, i, aoffset + h + p * flen);
+                            blockAcc = fa.fma(fb, blockAcc);
+                        }
+                    }
+
+                    acc = blockAcc.fma(scale, acc);
+                }
+
+                c.set(acc.reduceLanes(VectorOperators.ADD), i, j + rOffset);
+            };
+        }
+    }
+
+    /**
+     * F32 x Q4_K, each sub-block is reduced against the unsigned 4-bit weights and against the plain inputs,
+     * so the scale and min are applied once per 32 weights: d * scale * sum(a * q) - dmin * min * sum(a)
+     */
+    private class GemmerF32Q4K extends Gemmer {
+
+        final BiIntConsumer matmul1x1;
+
+        final FloatBufferTensor a;
+        final Q4KByteBufferTensor b;
+
+        GemmerF32Q4K(int k, AbstractTensor ta, AbstractTensor tb, AbstractTensor c, int aColumnOffset, int bColumnOffset, int rOffset) {
+            super(k, ta, tb, c, aColumnOffset, bColumnOffset, rOffset);
+            Preconditions.checkArgument(
+                k % KQuantByteBufferTensor.SUPER_BLOCK_SIZE == 0 && bColumnOffset % KQuantByteBufferTensor.SUPER_BLOCK_SIZE == 0,
+                "Q4_K columns must be super-block aligned"
+            );
+
+            this.matmul1x1 = initMatmul1x1();
+            this.a = (FloatBufferTensor) ta;
+            this.b = (Q4KByteBufferTensor) tb;
+        }
+
+        @Override
+        protected int pickKernel(int m0, int m, int n0, int n) {
+            short mc, nc;
+            mc = 1;
+            nc = 1;
+            kernel(m0, m, 1, n0, n, 1, matmul1x1);
+
+            return (mc << 4) | nc;
+        }
+
+        protected BiIntConsumer initMatmul1x1() {
+            return (i, j) -> {
+                FloatVector acc = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                FloatVector accMin = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+                int alim = aColumnOffset + k;
+                int blim = bColumnOffset + k;
+                int slen = Q4KByteBufferTensor.SUB_BLOCK_SIZE;
+                int half = slen / 2;
+                int flen = FloatVector.SPECIES_PREFERRED.length();
+                int parts = ByteVector.SPECIES_128.length() / flen;
+                MemorySegment bs = b.getMemorySegment();
+
+                for (; aoffset < alim && boffset < blim; aoffset += KQuantByteBufferTensor.SUPER_BLOCK_SIZE, boffset +=
+                    KQuantByteBufferTensor.SUPER_BLOCK_SIZE) {
+                    int block = b.getBlockOffset(j, boffset);
+
+                    for (int s = 0; s < Q4KByteBufferTensor.SUB_BLOCKS; s++) {
+                        // 16 bytes -> 32 4bit, the low nibbles are the first half of the sub-block
+                        ByteVector q = ByteVector.fromMemorySegment(
+                            ByteVector.SPECIES_128,
+                            bs,
+                            block + Q4KByteBufferTensor.QS_OFFSET + s * half,
+                            ByteOrder.LITTLE_ENDIAN
+                        );
+                        ByteVector lo = q.and(Q4_BYTE_MASK_128);
+                        ByteVector hi = q.lanewise(VectorOperators.LSHR, Q4_BYTE_SHIFT_128);
+
+                        FloatVector sumq = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                        FloatVector suma = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                        int ao = aoffset + s * slen;
+                        for (int p = 0; p < parts; p++) {
+                            FloatVector fa0 = a.getVector(FloatVector.SPECIES_PREFERRED, i, ao + p * flen);
+                            FloatVector fa1 = a.getVector(FloatVector.SPECIES_PREFERRED, i, ao + half + p * flen);
+                            sumq = fa0.fma((FloatVector) lo.castShape(FloatVector.SPECIES_PREFERRED, p), sumq);
+                            sumq = fa1.fma((FloatVector) hi.castShape(FloatVector.SPECIES_PREFERRED, p), sumq);
+                            suma = suma.add(fa0).add(fa1);
+                        }
+
+                        acc = sumq.fma(FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, b.scale(block, s)), acc);
+                        accMin = suma.fma(FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, b.min(block, s)), accMin);
+                    }
+                }
+
+                c.set(acc.sub(accMin).reduceLanes(VectorOperators.ADD), i, j + rOffset);
+            };
+        }
+    }
+
+    /**
+     * F32 x Q6_K, the low 4 bits and high 2 bits of a sub-block are two 16 byte loads whose lanes line up,
+     * each half of the sub-block has its own group scale
+     */
+    private class GemmerF32Q6K extends Gemmer {
+
+        final BiIntConsumer matmul1x1;
+
+        final FloatBufferTensor a;
+        final Q6KByteBufferTensor b;
+
+        GemmerF32Q6K(int k, AbstractTensor ta, AbstractTensor tb, AbstractTensor c, int aColumnOffset, int bColumnOffset, int rOffset) {
+            super(k, ta, tb, c, aColumnOffset, bColumnOffset, rOffset);
+            Preconditions.checkArgument(
+                k % KQuantByteBufferTensor.SUPER_BLOCK_SIZE == 0 && bColumnOffset % KQuantByteBufferTensor.SUPER_BLOCK_SIZE == 0,
+                "Q6_K columns must be super-block aligned"
+            );
+
+            this.matmul1x1 = initMatmul1x1();
+            this.a = (FloatBufferTensor) ta;
+            this.b = (Q6KByteBufferTensor) tb;
+        }
+
+        @Override
+        protected int pickKernel(int m0, int m, int n0, int n) {
+            short mc, nc;
+            mc = 1;
+            nc = 1;
+            kernel(m0, m, 1, n0, n, 1, matmul1x1);
+
+            return (mc << 4) | nc;
+        }
+
+        protected BiIntConsumer initMatmul1x1() {
+            return (i, j) -> {
+                FloatVector acc = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+                int alim = aColumnOffset + k;
+                int blim = bColumnOffset + k;
+                int slen = Q6KByteBufferTensor.SUB_BLOCK_SIZE;
+                int half = slen / 2;
+                int flen = FloatVector.SPECIES_PREFERRED.length();
+                int parts = ByteVector.SPECIES_128.length() / flen;
+                MemorySegment bs = b.getMemorySegment();
+
+                for (; aoffset < alim && boffset < blim; aoffset += KQuantByteBufferTensor.SUPER_BLOCK_SIZE, boffset +=
+                    KQuantByteBufferTensor.SUPER_BLOCK_SIZE) {
+                    int block = b.getBlockOffset(j, boffset);
+
+                    for (int s = 0; s < Q6KByteBufferTensor.SUB_BLOCKS; s++) {
+                        ByteVector ql = ByteVector.fromMemorySegment(
+                            ByteVector.SPECIES_128,
+                            bs,
+                            block + Q6KByteBufferTensor.QL_OFFSET + s * half,
+                            ByteOrder.LITTLE_ENDIAN
+                        );
+                        ByteVector qh = ByteVector.fromMemorySegment(
+                            ByteVector.SPECIES_128,
+                            bs,
+                            block + Q6KByteBufferTensor.QH_OFFSET + (s / 2) * half,
+                            ByteOrder.LITTLE_ENDIAN
+                        );
+
+                        // Combine into signed 6 bit values in [-32, 31]
+                        int shift = (s % 2) * 4;
+                        ByteVector lo = ql.and(Q4_BYTE_MASK_128)
+                            .or(qh.lanewise(VectorOperators.LSHR, shift).and((byte) 0x3).lanewise(VectorOperators.LSHL, 4))
+                            .sub((byte) 32);
+                        ByteVector hi = ql.lanewise(VectorOperators.LSHR, Q4_BYTE_SHIFT_128)
+                            .or(qh.lanewise(VectorOperators.LSHR, shift + 2).and((byte) 0x3).lanewise(VectorOperators.LSHL, 4))
+                            .sub((byte) 32);
+
+                        FloatVector sumLo = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                        FloatVector sumHi = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                        int ao = aoffset + s * slen;
+                        for (int p = 0; p < parts; p++) {
+                            FloatVector fa0 = a.getVector(FloatVector.SPECIES_PREFERRED, i, ao + p * flen);
+                            FloatVector fa1 = a.getVector(FloatVector.SPECIES_PREFERRED, i, ao + half + p * flen);
+                            sumLo = fa0.fma((FloatVector) lo.castShape(FloatVector.SPECIES_PREFERRED, p), sumLo);
+                            sumHi = fa1.fma((FloatVector) hi.castShape(FloatVector.SPECIES_PREFERRED, p), sumHi);
+                        }
+
+                        acc = sumLo.fma(FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, b.scale(block, 2 * s)), acc);
+                        acc = sumHi.fma(FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, b.scale(block, 2 * s + 1)), acc);
+                    }
+                }
+
+                c.set(acc.reduceLanes(VectorOperators.ADD), i, j + rOffset);
+            };
+        }
+    }
+
     private abstract class Gemmer {
         final int k;
         final AbstractTensor a;
@@ -2497,6 +2751,292 @@ public final class PanamaTensorOperations implements TensorOperations {
         }
     }
 
+    @Override
+    public float max(AbstractTensor x, int offset, int length) {
+        if (x.dType() != DType.F32) return TensorOperations.super.max(x, offset, length);
+
+        FloatBufferTensor xf = (FloatBufferTensor) x;
+        int upperBound = FloatVector.SPECIES_PREFERRED.loopBound(length) + offset;
+        int i = offset;
+
+        FloatVector vmax = FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, Float.NEGATIVE_INFINITY);
+        for (; i < upperBound; i += FloatVector.SPECIES_PREFERRED.length())
+            vmax = vmax.max(xf.getVector(FloatVector.SPECIES_PREFERRED, 0, i));
+
+        float max = vmax.reduceLanes(VectorOperators.MAX);
+
+        // tail
+        for (; i < offset + length; i++)
+            max = Math.max(max, xf.get(0, i));
+
+        return max;
+    }
+
+    @Override
+    public float expSum(AbstractTensor x, float shift, float scale, int offset, int length) {
+        if (x.dType() != DType.F32) return TensorOperations.super.expSum(x, shift, scale, offset, length);
+
+        FloatBufferTensor xf = (FloatBufferTensor) x;
+        int upperBound = FloatVector.SPECIES_PREFERRED.loopBound(length) + offset;
+        int i = offset;
+
+        FloatVector vshift = FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, shift);
+        FloatVector vscale = FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, scale);
+        FloatVector vsum = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+        for (; i < upperBound; i += FloatVector.SPECIES_PREFERRED.length()) {
+            FloatVector v = xf.getVector(FloatVector.SPECIES_PREFERRED, 0, i).sub(vshift).mul(vscale).lanewise(VectorOperators.EXP);
+            xf.intoTensor(v, 0, i);
+            vsum = vsum.add(v);
+        }
+
+        float sum = vsum.reduceLanes(VectorOperators.ADD);
+
+        // tail
+        for (; i < offset + length; i++) {
+            float v = (float) FastMath.exp((xf.get(0, i) - shift) * scale);
+            xf.set(v, 0, i);
+            sum += v;
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void rope(AbstractTensor x, AbstractTensor table, int position, int offset, int length, int headSize, boolean interleaved) {
+        if (x.dType() != DType.F32 || table.dType() != DType.F32) {
+            TensorOperations.super.rope(x, table, position, offset, length, headSize, interleaved);
+            return;
+        }
+
+        Preconditions.checkArgument(length % headSize == 0 && table.shape().last() == headSize);
+        FloatBufferTensor xf = (FloatBufferTensor) x;
+        FloatBufferTensor t = (FloatBufferTensor) table;
+        int headPiece = headSize / 2;
+        int flen = FloatVector.SPECIES_PREFERRED.length();
+
+        for (int h = offset; h < offset + length; h += headSize) {
+            int j = 0;
+            if (interleaved) {
+                // Rotate adjacent pairs by swapping lanes, the table holds matching cos,sin pairs
+                int upperBound = FloatVector.SPECIES_PREFERRED.loopBound(headSize);
+                for (; j < upperBound; j += flen) {
+                    FloatVector vx = xf.getVector(FloatVector.SPECIES_PREFERRED, 0, h + j);
+                    FloatVector vt = t.getVector(FloatVector.SPECIES_PREFERRED, position, j);
+                    FloatVector cos = vt.rearrange(ROPE_EVEN);
+                    FloatVector sin = vt.rearrange(ROPE_ODD);
+                    FloatVector r = vx.rearrange(ROPE_SWAP).mul(sin).fma(ROPE_SIGN, vx.mul(cos));
+                    xf.intoTensor(r, 0, h + j);
+                }
+
+                // tail
+                for (; j < headSize; j += 2) {
+                    float fcr = t.get(position, j);
+                    float fci = t.get(position, j + 1);
+                    float x0 = xf.get(0, h + j);
+                    float x1 = xf.get(0, h + j + 1);
+                    xf.set(x0 * fcr - x1 * fci, 0, h + j);
+                    xf.set(x0 * fci + x1 * fcr, 0, h + j + 1);
+                }
+            } else {
+                int upperBound = FloatVector.SPECIES_PREFERRED.loopBound(headPiece);
+                for (; j < upperBound; j += flen) {
+                    FloatVector x0 = xf.getVector(FloatVector.SPECIES_PREFERRED, 0, h + j);
+                    FloatVector x1 = xf.getVector(FloatVector.SPECIES_PREFERRED, 0, h + j + headPiece);
+                    FloatVector cos = t.getVector(FloatVector.SPECIES_PREFERRED, position, j);
+                    FloatVector sin = t.getVector(FloatVector.SPECIES_PREFERRED, position, j + headPiece);
+                    xf.intoTensor(x0.mul(cos).sub(x1.mul(sin)), 0, h + j);
+                    xf.intoTensor(x0.fma(sin, x1.mul(cos)), 0, h + j + headPiece);
+                }
+
+                // tail
+                for (; j < headPiece; j++) {
+                    float fcr = t.get(position, j);
+                    float fci = t.get(position, j + headPiece);
+                    float x0 = xf.get(0, h + j);
+                    float x1 = xf.get(0, h + j + headPiece);
+                    xf.set(x0 * fcr - x1 * fci, 0, h + j);
+                    xf.set(x0 * fci + x1 * fcr, 0, h + j + headPiece);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void attention(
+        AbstractTensor query,
+        AbstractTensor[] keys,
+        AbstractTensor[] values,
+        AbstractTensor out,
+        int qOffset,
+        int kvOffset,
+        int headSize,
+        int length,
+        float scale,
+        float softCap
+    ) {
+        DType kvType = keys[0].dType();
+        boolean quantizedAligned = kvOffset % Q8ByteBufferTensor.BLOCK_SIZE == 0 && headSize % Q8ByteBufferTensor.BLOCK_SIZE == 0;
+        if (query.dType() != DType.F32
+            || out.dType() != DType.F32
+            || values[0].dType() != kvType
+            || !(kvType == DType.F32 || kvType == DType.BF16 || (kvType == DType.I8 && quantizedAligned))) {
+            TensorOperations.super.attention(query, keys, values, out, qOffset, kvOffset, headSize, length, scale, softCap);
+            return;
+        }
+
+        Preconditions.checkArgument(keys.length == values.length && length > 0);
+        FloatBufferTensor q = (FloatBufferTensor) query;
+        FloatBufferTensor o = (FloatBufferTensor) out;
+        float[] tile = attentionTile.get();
+        float max = Float.NEGATIVE_INFINITY;
+        float sum = 0f;
+
+        o.getMemorySegment().asSlice(o.getMemorySegmentOffset(o.getOffset(0, qOffset)), (long) headSize * Float.BYTES).fill((byte) 0);
+
+        int position = 0;
+        for (int p = 0; p < keys.length && position < length; p++) {
+            AbstractTensor k = keys[p];
+            AbstractTensor v = values[p];
+            int rows = Math.min(k.shape().first(), length - position);
+
+            for (int r0 = 0; r0 < rows; r0 += tile.length) {
+                int n = Math.min(tile.length, rows - r0);
+
+                float tileMax = Float.NEGATIVE_INFINITY;
+                for (int t = 0; t < n; t++) {
+                    float s = attentionDot(q, k, r0 + t, qOffset, kvOffset, headSize) * scale;
+                    if (softCap > 0) s = softCap * (float) Math.tanh(s / softCap);
+                    tile[t] = s;
+                    tileMax = Math.max(tileMax, s);
+                }
+
+                // Rescale what we have so far to the new max
+                if (tileMax > max) {
+                    if (sum > 0) {
+                        float correction = (float) Math.exp(max - tileMax);
+                        sum *= correction;
+                        scaleF32(correction, o, qOffset, headSize);
+                    }
+                    max = tileMax;
+                }
+
+                for (int t = 0; t < n; t++) {
+                    float w = (float) Math.exp(tile[t] - max);
+                    sum += w;
+                    attentionSaxpy(w, v, r0 + t, o, kvOffset, qOffset, headSize);
+                }
+            }
+
+            position += rows;
+        }
+
+        scaleF32(1f / sum, o, qOffset, headSize);
+    }
+
+    private float attentionDot(FloatBufferTensor q, AbstractTensor k, int row, int qOffset, int kOffset, int length) {
+        int flen = FloatVector.SPECIES_PREFERRED.length();
+        FloatVector acc = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+        int i = 0;
+
+        switch (k.dType()) {
+            case F32 -> {
+                FloatBufferTensor kf = (FloatBufferTensor) k;
+                int upperBound = FloatVector.SPECIES_PREFERRED.loopBound(length);
+                for (; i < upperBound; i += flen) {
+                    FloatVector vq = q.getVector(FloatVector.SPECIES_PREFERRED, 0, qOffset + i);
+                    acc = vq.fma(kf.getVector(FloatVector.SPECIES_PREFERRED, row, kOffset + i), acc);
+                }
+            }
+            case BF16 -> {
+                BFloat16BufferTensor kb = (BFloat16BufferTensor) k;
+                int slen = ShortVector.SPECIES_PREFERRED.length();
+                int upperBound = ShortVector.SPECIES_PREFERRED.loopBound(length);
+                for (; i < upperBound; i += slen) {
+                    ShortVector sk = kb.getVector(ShortVector.SPECIES_PREFERRED, row, kOffset + i);
+                    FloatVector vk0 = sk.convertShape(VectorOperators.ZERO_EXTEND_S2I, IntVector.SPECIES_PREFERRED, 0)
+                        .lanewise(VectorOperators.LSHL, BF16_BYTE_SHIFT)
+                        .reinterpretAsFloats();
+                    FloatVector vk1 = sk.convertShape(VectorOperators.ZERO_EXTEND_S2I, IntVector.SPECIES_PREFERRED, 1)
+                        .lanewise(VectorOperators.LSHL, BF16_BYTE_SHIFT)
+                        .reinterpretAsFloats();
+
+                    acc = q.getVector(FloatVector.SPECIES_PREFERRED, 0, qOffset + i).fma(vk0, acc);
+                    acc = q.getVector(FloatVector.SPECIES_PREFERRED, 0, qOffset + i + flen).fma(vk1, acc);
+                }
+            }
+            case I8 -> {
+                Q8ByteBufferTensor kq = (Q8ByteBufferTensor) k;
+                int slen = Q8ByteBufferTensor.BLOCK_SIZE;
+                int parts = ByteVector.SPECIES_128.length() / flen;
+                for (; i < length; i += slen) {
+                    FloatVector blockAcc = FloatVector.zero(FloatVector.SPECIES_PREFERRED);
+                    for (int h = 0; h < slen; h += ByteVector.SPECIES_128.length()) {
+                        ByteVector vk = kq.getVector(ByteVector.SPECIES_128, row, kOffset + i + h);
+                        for (int part = 0; part < parts; part++) {
+                            FloatVector fk = (FloatVector) vk.castShape(FloatVector.SPECIES_PREFERRED, part);
+                            blockAcc = q.getVector(FloatVector.SPECIES_PREFERRED, 0, qOffset + i + h + part * flen).fma(fk, blockAcc);
+                        }
+                    }
+                    acc = blockAcc.fma(FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, kq.getFactorForIndex(row, kOffset + i)), acc);
+                }
+            }
+            default -> throw new UnsupportedOperationException(k.dType().name());
+        }
+
+        float r = acc.reduceLanes(VectorOperators.ADD);
+
+        // tail
+        for (; i < length; i++)
+            r += q.get(0, qOffset + i) * k.get(row, kOffset + i);
+
+        return r;
+    }
+
+    private void attentionSaxpy(float alpha, AbstractTensor v, int row, FloatBufferTensor o, int vOffset, int oOffset, int length) {
+        int flen = FloatVector.SPECIES_PREFERRED.length();
+        FloatVector av = FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, alpha);
+        int i = 0;
+
+        switch (v.dType()) {
+            case F32 -> {
+                FloatBufferTensor vf = (FloatBufferTensor) v;
+                int upperBound = FloatVector.SPECIES_PREFERRED.loopBound(length);
+                for (; i < upperBound; i += flen) {
+                    FloatVector vy = o.getVector(FloatVector.SPECIES_PREFERRED, 0, oOffset + i);
+                    o.intoTensor(vf.getVector(FloatVector.SPECIES_PREFERRED, row, vOffset + i).fma(av, vy), 0, oOffset + i);
+                }
+            }
+            case BF16 -> {
+                BFloat16BufferTensor vb = (BFloat16BufferTensor) v;
+                int slen = ShortVector.SPECIES_PREFERRED.length();
+                int upperBound = ShortVector.SPECIES_PREFERRED.loopBound(length);
+                for (; i < upperBound; i += slen) {
+                    ShortVector sv = vb.getVector(ShortVector.SPECIES_PREFERRED, row, vOffset + i);
+                    FloatVector vx0 = sv.convertShape(VectorOperators.ZERO_EXTEND_S2I, IntVector.SPECIES_PREFERRED, 0)
+                        .lanewise(VectorOperators.LSHL, BF16_BYTE_SHIFT)
+                        .reinterpretAsFloats();
+                    FloatVector vx1 = sv.convertShape(VectorOperators.ZERO_EXTEND_S2I, IntVector.SPECIES_PREFERRED, 1)
+                        .lanewise(VectorOperators.LSHL, BF16_BYTE_SHIFT)
+                        .reinterpretAsFloats();
+
+                    FloatVector vy0 = o.getVector(FloatVector.SPECIES_PREFERRED, 0, oOffset + i);
+                    FloatVector vy1 = o.getVector(FloatVector.SPECIES_PREFERRED, 0, oOffset + i + flen);
+                    o.intoTensor(vx0.fma(av, vy0), 0, oOffset + i);
+                    o.intoTensor(vx1.fma(av, vy1), 0, oOffset + i + flen);
+                }
+            }
+            case I8 -> {
+                saxpyI8F32(alpha, (Q8ByteBufferTensor) v, o, row, vOffset, oOffset, length);
+                return;
+            }
+            default -> throw new UnsupportedOperationException(v.dType().name());
+        }
+
+        // tail
+        for (; i < length; i++)
+            o.set(o.get(0, oOffset + i) + alpha * v.get(row, vOffset + i), 0, oOffset + i);
+    }
+
     public void scaleF32(float factor, FloatBufferTensor a, int offset, int length) {
         int upperBound = FloatVector.SPECIES_PREFERRED.loopBound(length) + offset;
         int i = offset;
@@ -2566,13 +3106,17 @@ public final class PanamaTensorOperations implements TensorOperations {
     @Override
     public void saxpy(float alpha, AbstractTensor x, AbstractTensor y, int xoffset, int yoffset, int limit) {
         Preconditions.checkArgument(y.shape().first() == 1);
-        Preconditions.checkArgument(x.dType() == y.dType() || x.dType() == DType.BF16 && y.dType() == DType.F32);
+        Preconditions.checkArgument(x.dType() == y.dType() || (x.dType() == DType.BF16 || x.dType() == DType.I8) && y.dType() == DType.F32);
         Preconditions.checkArgument(limit % 2 == 0);
 
         switch (x.dType()) {
             case F32:
                 saxpyF32(alpha, (FloatBufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit);
                 break;
+            case I8:
+                if (y.dType() != DType.F32) throw new UnsupportedOperationException();
+                saxpyI8F32(alpha, (Q8ByteBufferTensor) x, (FloatBufferTensor) y, 0, xoffset, yoffset, limit);
+                break;
             case BF16:
                 switch (y.dType()) {
                     case F32:
@@ -2628,6 +3172,10 @@ public final class PanamaTensorOperations implements TensorOperations {
             case F32:
                 saxpyF32(alpha, (FloatBufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit, aOffset, xOffset, batchSize);
                 break;
+            case I8:
+                if (y.dType() != DType.F32) throw new UnsupportedOperationException();
+                saxpyI8F32(alpha, (Q8ByteBufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit, aOffset, xOffset, batchSize);
+                break;
             case BF16:
                 switch (y.dType()) {
                     case F32:
@@ -2697,6 +3245,47 @@ public final class PanamaTensorOperations implements TensorOperations {
         }
     }
 
+    public void saxpyI8F32(
+        AbstractTensor alpha,
+        Q8ByteBufferTensor x,
+        FloatBufferTensor y,
+        int xoffset,
+        int yoffset,
+        int limit,
+        int aOffset,
+        int xOffset,
+        int batchSize
+    ) {
+        // Rows are read in place, no slices needed since each row has its own block scales
+        int batchLimit = aOffset + batchSize;
+        for (int a = aOffset, xi = xOffset; a < batchLimit; a++, xi++) {
+            saxpyI8F32(alpha.get(0, a), x, y, xi, xoffset, yoffset, limit);
+        }
+    }
+
+    void saxpyI8F32(float alpha, Q8ByteBufferTensor x, FloatBufferTensor y, int xrow, int xoffset, int yoffset, int limit) {
+        Preconditions.checkArgument(xoffset % Q8ByteBufferTensor.BLOCK_SIZE == 0 && limit % Q8ByteBufferTensor.BLOCK_SIZE == 0);
+
+        int slen = Q8ByteBufferTensor.BLOCK_SIZE;
+        int flen = FloatVector.SPECIES_PREFERRED.length();
+        int parts = ByteVector.SPECIES_128.length() / flen;
+
+        for (int xo = xoffset, yo = yoffset; xo < xoffset + limit; xo += slen, yo += slen) {
+            // Fold the block scale into alpha
+            FloatVector av = FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, alpha * x.getFactorForIndex(xrow, xo));
+
+            for (int h = 0; h < slen; h += ByteVector.SPECIES_128.length()) {
+                ByteVector vx = x.getVector(ByteVector.SPECIES_128, xrow, xo + h);
+                for (int p = 0; p < parts; p++) {
+                    int yi = yo + h + p * flen;
+                    FloatVector fx = (FloatVector) vx.castShape(FloatVector.SPECIES_PREFERRED, p);
+                    FloatVector vy = y.getVector(FloatVector.SPECIES_PREFERRED, 0, yi);
+                    y.intoTensor(fx.fma(av, vy), 0, yi);
+                }
+            }
+        }
+    }
+
     public void saxpyBF16(
         AbstractTensor alpha,
         AbstractTensor xt,
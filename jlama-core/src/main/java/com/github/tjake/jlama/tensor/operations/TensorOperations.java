@@ -21,10 +21,15 @@ import com.github.tjake.jlama.tensor.FloatBufferTensor;
 import com.github.tjake.jlama.tensor.TensorCache;
 import com.github.tjake.jlama.tensor.TensorShape;
 import com.google.common.base.Preconditions;
+import net.jafama.FastMath;
 
 public interface TensorOperations {
     ThreadLocal<FloatBufferTensor> scratch = ThreadLocal.withInitial(() -> new FloatBufferTensor(TensorShape.one));
 
+    // Number of attention scores computed at a time before they are folded into the output
+    int ATTENTION_TILE = 32;
+    ThreadLocal<float[]> attentionTile = ThreadLocal.withInitial(() -> new float[ATTENTION_TILE]);
+
     String name();
 
     int parallelSplitSize();
@@ -139,6 +144,134 @@ public interface TensorOperations {
      */
     void scale(float factor, AbstractTensor x, int offset, int length);
 
+    /**
+     * Finds the largest value in x[offset, offset + length)
+     */
+    default float max(AbstractTensor x, int offset, int length) {
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = offset; i < offset + length; i++)
+            max = Math.max(max, x.get(0, i));
+        return max;
+    }
+
+    /**
+     * Replaces each value v in x[offset, offset + length) with exp((v - shift) * scale) and returns their sum.
+     * With shift as the max and scale as 1/temperature this is the unnormalized softmax.
+     */
+    default float expSum(AbstractTensor x, float shift, float scale, int offset, int length) {
+        float sum = 0.0f;
+        for (int i = offset; i < offset + length; i++) {
+            float v = (float) FastMath.exp((x.get(0, i) - shift) * scale);
+            x.set(v, 0, i);
+            sum += v;
+        }
+        return sum;
+    }
+
+    /**
+     * Applies rotary position embeddings in place to each head in x[offset, offset + length)
+     *
+     * @param x the row to rotate
+     * @param table the packed cos/sin table for every position, see {@link com.github.tjake.jlama.math.VectorMath#precomputeRopeTable}
+     * @param position the position of x
+     * @param offset start of the first head
+     * @param length total length of the heads
+     * @param headSize size of each head
+     * @param interleaved true when rotation pairs are adjacent (0,1 2,3 etc...) rather than
+     *                    the huggingface permutation (0,64 1,65 etc...)
+     */
+    default void rope(AbstractTensor x, AbstractTensor table, int position, int offset, int length, int headSize, boolean interleaved) {
+        Preconditions.checkArgument(length % headSize == 0 && table.shape().last() == headSize);
+        int headPiece = headSize / 2;
+        for (int h = offset; h < offset + length; h += headSize) {
+            for (int j = 0; j < headPiece; j++) {
+                int i0 = interleaved ? h + 2 * j : h + j;
+                int i1 = interleaved ? i0 + 1 : i0 + headPiece;
+                float fcr = table.get(position, interleaved ? 2 * j : j);
+                float fci = table.get(position, interleaved ? 2 * j + 1 : j + headPiece);
+                float x0 = x.get(0, i0);
+                float x1 = x.get(0, i1);
+                x.set(x0 * fcr - x1 * fci, 0, i0);
+                x.set(x0 * fci + x1 * fcr, 0, i1);
+            }
+        }
+    }
+
+    /**
+     * Fused attention for a single head over paged keys and values.
+     *
+     * Scores are computed a tile at a time and folded into the output using an online softmax
+     * (a running max and sum), so the full score vector for the context is never materialized.
+     *
+     * @param query the query row
+     * @param keys key pages, each [positions, kvLength]
+     * @param values value pages, each [positions, kvLength]
+     * @param out the output row, the head is overwritten
+     * @param qOffset offset of the head in the query and output
+     * @param kvOffset offset of the head in the key and value pages
+     * @param headSize size of the head
+     * @param length number of positions to attend to
+     * @param scale applied to each score
+     * @param softCap logit soft capping, 0 for none
+     */
+    default void attention(
+        AbstractTensor query,
+        AbstractTensor[] keys,
+        AbstractTensor[] values,
+        AbstractTensor out,
+        int qOffset,
+        int kvOffset,
+        int headSize,
+        int length,
+        float scale,
+        float softCap
+    ) {
+        Preconditions.checkArgument(keys.length == values.length && length > 0);
+        float[] tile = attentionTile.get();
+        float max = Float.NEGATIVE_INFINITY;
+        float sum = 0f;
+
+        for (int i = qOffset; i < qOffset + headSize; i++)
+            out.set(0f, 0, i);
+
+        int position = 0;
+        for (int p = 0; p < keys.length && position < length; p++) {
+            int rows = Math.min(keys[p].shape().first(), length - position);
+
+            for (int r0 = 0; r0 < rows; r0 += tile.length) {
+                int n = Math.min(tile.length, rows - r0);
+
+                float tileMax = Float.NEGATIVE_INFINITY;
+                for (int t = 0; t < n; t++) {
+                    float s = dotProduct(query, keys[p].slice(r0 + t), qOffset, kvOffset, headSize) * scale;
+                    if (softCap > 0) s = softCap * (float) Math.tanh(s / softCap);
+                    tile[t] = s;
+                    tileMax = Math.max(tileMax, s);
+                }
+
+                // Rescale what we have so far to the new max
+                if (tileMax > max) {
+                    if (sum > 0) {
+                        float correction = (float) Math.exp(max - tileMax);
+                        sum *= correction;
+                        scale(correction, out, qOffset, headSize);
+                    }
+                    max = tileMax;
+                }
+
+                for (int t = 0; t < n; t++) {
+                    float w = (float) Math.exp(tile[t] - max);
+                    sum += w;
+                    saxpy(w, values[p].slice(r0 + t), out, kvOffset, qOffset, headSize);
+                }
+            }
+
+            position += rows;
+        }
+
+        scale(1f / sum, out, qOffset, headSize);
+    }
+
     /**
      * Quantizes the tensor to the specified type (if supported)
      */
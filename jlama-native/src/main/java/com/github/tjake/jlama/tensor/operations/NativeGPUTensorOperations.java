@@ -216,8 +216,8 @@ public class NativeGPUTensorOperations implements TensorOperations {
     private boolean gpuSupported(Long btId, DType atype, DType btype, DType rtype) {
         return !limitReached.get()
             && btId != null
-            && (atype == DType.F32 || atype == DType.I8)
-            && (btype == DType.F32 || btype == DType.BF16 || btype == DType.Q4)
+            && (atype == DType.F32 && (btype == DType.F32 || btype == DType.BF16 || btype == DType.Q4)
+                || atype == DType.I8 && btype == DType.Q4)
             && rtype == DType.F32;
     }
 
@@ -391,6 +391,37 @@ public class NativeGPUTensorOperations implements TensorOperations {
         delegate.scale(factor, x, offset, length);
     }
 
+    @Override
+    public float max(AbstractTensor x, int offset, int length) {
+        return delegate.max(x, offset, length);
+    }
+
+    @Override
+    public float expSum(AbstractTensor x, float shift, float scale, int offset, int length) {
+        return delegate.expSum(x, shift, scale, offset, length);
+    }
+
+    @Override
+    public void rope(AbstractTensor x, AbstractTensor table, int position, int offset, int length, int headSize, boolean interleaved) {
+        delegate.rope(x, table, position, offset, length, headSize, interleaved);
+    }
+
+    @Override
+    public void attention(
+        AbstractTensor query,
+        AbstractTensor[] keys,
+        AbstractTensor[] values,
+        AbstractTensor out,
+        int qOffset,
+        int kvOffset,
+        int headSize,
+        int length,
+        float scale,
+        float softCap
+    ) {
+        delegate.attention(query, keys, values, out, qOffset, kvOffset, headSize, length, scale, softCap);
+    }
+
     @Override
     public AbstractTensor quantize(AbstractTensor t, DType qtype, int offset, int length) {
         return delegate.quantize(t, qtype, offset, length);
@@ -80,6 +80,18 @@ public class NativeSimdTensorOperations implements TensorOperations {
         return 128;
     }
 
+    /**
+     * The type pairs with native gemm kernels, everything else (e.g. I8 kv pages, K-quant weights) goes to the delegate
+     */
+    static boolean nativeSupported(DType atype, DType btype) {
+        return switch (atype) {
+            case BF16 -> btype == DType.BF16;
+            case F32 -> btype == DType.F32 || btype == DType.BF16 || btype == DType.Q4;
+            case I8 -> btype == DType.Q4;
+            default -> false;
+        };
+    }
+
     @Override
     public void batchDotProduct(
         AbstractTensor result,
@@ -92,6 +104,10 @@ public class NativeSimdTensorOperations implements TensorOperations {
         int bRowOffset,
         int rowChunkSize
     ) {
+        if (!nativeSupported(at.dType(), bt.dType())) {
+            delegate.batchDotProduct(result, at, bt, aColumnOffset, bColumnOffset, columnLength, rRowOffset, bRowOffset, rowChunkSize);
+            return;
+        }
 
         int M = at.shape().dim(0);
         int N = rowChunkSize; // b.shape().dim(0);
@@ -241,6 +257,10 @@ public class NativeSimdTensorOperations implements TensorOperations {
         int bRowOffset,
         int rowChunkSize
     ) {
+        if (!nativeSupported(a.dType(), b[0].dType())) {
+            delegate.dotProductBatchChunk(r, a, b, columnOffset, columnLength, bRowOffset, rowChunkSize);
+            return;
+        }
 
         MemorySegment[] tmp = MemorySegmentSupport.setupBatch(
             i -> r[i].getMemorySegment(),
@@ -429,6 +449,37 @@ public class NativeSimdTensorOperations implements TensorOperations {
         delegate.scale(factor, x, offset, length);
     }
 
+    @Override
+    public float max(AbstractTensor x, int offset, int length) {
+        return delegate.max(x, offset, length);
+    }
+
+    @Override
+    public float expSum(AbstractTensor x, float shift, float scale, int offset, int length) {
+        return delegate.expSum(x, shift, scale, offset, length);
+    }
+
+    @Override
+    public void rope(AbstractTensor x, AbstractTensor table, int position, int offset, int length, int headSize, boolean interleaved) {
+        delegate.rope(x, table, position, offset, length, headSize, interleaved);
+    }
+
+    @Override
+    public void attention(
+        AbstractTensor query,
+        AbstractTensor[] keys,
+        AbstractTensor[] values,
+        AbstractTensor out,
+        int qOffset,
+        int kvOffset,
+        int headSize,
+        int length,
+        float scale,
+        float softCap
+    ) {
+        delegate.attention(query, keys, values, out, qOffset, kvOffset, headSize, length, scale, softCap);
+    }
+
     @Override
     public AbstractTensor quantize(AbstractTensor t, DType qtype, int offset, int length) {
         return delegate.quantize(t, qtype, offset, length);
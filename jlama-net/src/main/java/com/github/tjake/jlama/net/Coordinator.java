@@ -27,6 +27,7 @@ import com.github.tjake.jlama.safetensors.SafeTensorSupport;
 import com.github.tjake.jlama.safetensors.WeightLoader;
 import com.github.tjake.jlama.safetensors.prompt.PromptContext;
 import com.github.tjake.jlama.safetensors.prompt.PromptSupport;
+import com.github.tjake.jlama.safetensors.tokenizer.DetokenizerStream;
 import com.github.tjake.jlama.safetensors.tokenizer.Tokenizer;
 import com.github.tjake.jlama.tensor.AbstractTensor;
 import com.google.common.base.Function;
@@ -155,6 +156,7 @@ public class Coordinator implements Generator {
             service.waitForReady();
             StringBuilder responseBuilder = new StringBuilder();
             StringBuilder responseWithSpecialTokens = new StringBuilder();
+            DetokenizerStream detokenizer = model.getTokenizer().detokenizer();
 
             int startPos = sessionPositions.computeIfAbsent(session, s -> 0);
             logger.info("Generating tokens for session {} starting at position {}", session, startPos);
@@ -191,7 +193,7 @@ public class Coordinator implements Generator {
                 }
 
                 try {
-                    String c = model.getTokenizer().decode(next);
+                    String c = detokenizer.next(next);
                     if (model.getTokenizer().getModel().isSpecialToken(next)) {
                         responseWithSpecialTokens.append(c);
                     } else {
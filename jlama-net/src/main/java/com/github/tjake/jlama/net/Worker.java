@@ -20,13 +20,13 @@ import static com.github.tjake.jlama.model.ModelSupport.loadModel;
 import com.github.tjake.jlama.model.AbstractModel;
 import com.github.tjake.jlama.model.DistributedContext;
 import com.github.tjake.jlama.net.grpc.JlamaRingWorkerService;
+import com.github.tjake.jlama.safetensors.Config;
 import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.safetensors.HTTPSafeTensorLoader;
 import com.github.tjake.jlama.safetensors.SafeTensorSupport;
 import com.github.tjake.jlama.safetensors.WeightLoader;
 import com.github.tjake.jlama.tensor.AbstractTensor;
 import com.github.tjake.jlama.tensor.KvBufferCache;
-import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.protobuf.ByteString;
@@ -43,6 +43,7 @@ import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
 
 import org.slf4j.Logger;
@@ -157,9 +158,10 @@ public class Worker implements Closeable {
         this.combineStreams = new ConcurrentHashMap<>();
 
         // Load the model
-        Function<File, WeightLoader> weightLoaderFunction = SafeTensorSupport.isModelLocal(modelPath.toPath())
-            ? b -> SafeTensorSupport.loadWeights(modelPath)
-            : b -> new HTTPSafeTensorLoader(modelPath.toPath(), modelOwner, modelName, modelDType, authToken, branch);
+        // Local weights are only warmed for this worker's layers
+        BiFunction<File, Config, WeightLoader> weightLoaderFunction = SafeTensorSupport.isModelLocal(modelPath.toPath())
+            ? (b, c) -> SafeTensorSupport.loadWeights(modelPath, Optional.empty(), Optional.of(c.dctx()))
+            : (b, c) -> new HTTPSafeTensorLoader(modelPath.toPath(), modelOwner, modelName, modelDType, authToken, branch);
 
         this.model = loadModel(
             AbstractModel.InferenceType.FORWARD_PASS,
@@ -218,9 +220,11 @@ public class Worker implements Closeable {
                     .copyFrom(MemorySegment.ofBuffer(combineResponse.getTensor(i).asReadOnlyByteBuffer().order(ByteOrder.LITTLE_ENDIAN)));
         };
 
-        AbstractTensor output = model.forward(tensor, startPosition, kvBufferCache.getKvBuffer(session), Optional.of(combineCallback));
+        try (KvBufferCache.KvBuffer kvBuffer = kvBufferCache.getKvBuffer(session)) {
+            AbstractTensor output = model.forward(tensor, startPosition, kvBuffer, Optional.of(combineCallback));
 
-        processOutput(sessionBytes, startPosition, tensor.shape().first(), output);
+            processOutput(sessionBytes, startPosition, tensor.shape().first(), output);
+        }
     }
 
     public void processOutput(ByteString session, int startPosition, int batchSize, AbstractTensor output) {
@@ -339,14 +343,11 @@ public class Worker implements Closeable {
                         );
             };
 
-            AbstractTensor output = model.batchForward(
-                tokens,
-                startPosition,
-                kvBufferCache.getKvBuffer(session),
-                Optional.of(combineCallback)
-            );
+            try (KvBufferCache.KvBuffer kvBuffer = kvBufferCache.getKvBuffer(session)) {
+                AbstractTensor output = model.batchForward(tokens, startPosition, kvBuffer, Optional.of(combineCallback));
 
-            processOutput(generateResponse.getSession(), startPosition, tokens.length, output);
+                processOutput(generateResponse.getSession(), startPosition, tokens.length, output);
+            }
         }
 
         @Override
@@ -17,6 +17,10 @@ package com.github.tjake.jlama.model;
 
 import com.github.tjake.jlama.math.ActivationFunction;
 import com.github.tjake.jlama.model.functions.EmbedInput;
+import com.github.tjake.jlama.model.llama.LlamaConfig;
+import com.github.tjake.jlama.model.llama.LlamaModel;
+import com.github.tjake.jlama.model.mistral.MistralConfig;
+import com.github.tjake.jlama.model.mistral.MistralModel;
 import com.github.tjake.jlama.model.functions.SampleOutput;
 import com.github.tjake.jlama.safetensors.Config;
 import com.github.tjake.jlama.safetensors.DType;
@@ -26,10 +30,14 @@ import com.github.tjake.jlama.safetensors.prompt.PromptSupport;
 import com.github.tjake.jlama.safetensors.tokenizer.Tokenizer;
 import com.github.tjake.jlama.safetensors.tokenizer.TokenizerModel;
 import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
+import java.util.stream.Collectors;
 
 public class Mocks {
 
@@ -37,6 +45,75 @@ public class Mocks {
         return new MockModel(new MockConfig(contextLength, embeddingLength, hiddenLength, numberOfHeads, numberOfLayers, 1e5f));
     }
 
+    public static MockModel makeModel(
+        int contextLength,
+        int embeddingLength,
+        int hiddenLength,
+        int numberOfHeads,
+        int numberOfLayers,
+        int slidingWindow
+    ) {
+        return new MockModel(new MockConfig(contextLength, embeddingLength, hiddenLength, numberOfHeads, numberOfLayers, 1e5f, slidingWindow));
+    }
+
+    /**
+     * A small llama model with random weights, for checking the forward pass without downloading a model
+     */
+    public static LlamaModel makeRandomLlama(
+        int embeddingLength,
+        int hiddenLength,
+        int numberOfHeads,
+        int numberOfKeyValueHeads,
+        int numberOfLayers
+    ) {
+        Config c = new LlamaConfig(
+            256,
+            embeddingLength,
+            hiddenLength,
+            numberOfHeads,
+            numberOfKeyValueHeads,
+            numberOfLayers,
+            1e-5f,
+            128,
+            1,
+            2,
+            ActivationFunction.Type.SILU,
+            null,
+            null
+        );
+        return new LlamaModel(c, new RandomWeightLoader(c), new IdTokenizer(), DType.F32, DType.F32, Optional.empty());
+    }
+
+    /**
+     * A small mistral model with random weights whose layers attend to the last slidingWindow positions
+     */
+    public static MistralModel makeRandomMistral(
+        int embeddingLength,
+        int hiddenLength,
+        int numberOfHeads,
+        int numberOfKeyValueHeads,
+        int numberOfLayers,
+        int slidingWindow
+    ) {
+        Config c = new MistralConfig(
+            256,
+            embeddingLength,
+            hiddenLength,
+            numberOfHeads,
+            numberOfKeyValueHeads,
+            numberOfLayers,
+            1e-5f,
+            128,
+            1,
+            2,
+            ActivationFunction.Type.SILU,
+            10000.0,
+            null,
+            slidingWindow
+        );
+        return new MistralModel(c, new RandomWeightLoader(c), new IdTokenizer(), DType.F32, DType.F32, Optional.empty());
+    }
+
     public static class MockConfig extends Config {
         public MockConfig(
             int contextLength,
@@ -62,6 +139,41 @@ public class Mocks {
                 1.0
             );
         }
+
+        public MockConfig(
+            int contextLength,
+            int embeddingLength,
+            int hiddenLength,
+            int numberOfHeads,
+            int numberOfLayers,
+            float layerNormEps,
+            int slidingWindow
+        ) {
+            super(
+                contextLength,
+                embeddingLength,
+                hiddenLength,
+                numberOfHeads,
+                numberOfHeads,
+                numberOfLayers,
+                layerNormEps,
+                32000,
+                1,
+                List.of(2),
+                ActivationFunction.Type.SILU,
+                10000.0,
+                1.0,
+                null,
+                embeddingLength / numberOfHeads,
+                null,
+                null,
+                null,
+                null,
+                null,
+                null,
+                slidingWindow
+            );
+        }
     }
 
     public static class MockWeightLoader implements WeightLoader {
@@ -89,6 +201,40 @@ public class Mocks {
         public void close() throws Exception {}
     }
 
+    /**
+     * Serves llama weights filled with seeded random values, shaped from the config
+     */
+    public static class RandomWeightLoader extends MockWeightLoader {
+        private final Config c;
+
+        public RandomWeightLoader(Config c) {
+            this.c = c;
+        }
+
+        @Override
+        public AbstractTensor load(String name, DistributedContext dctx, boolean sparseRows, boolean sparseColumns) {
+            int[] shape;
+            if (name.equals("model.embed_tokens.weight")) shape = new int[] { c.vocabularySize, c.embeddingLength };
+            else if (name.endsWith("norm.weight")) shape = new int[] { c.embeddingLength };
+            else if (name.endsWith("q_proj.weight")) shape = new int[] { c.numberOfHeads * c.headSize, c.embeddingLength };
+            else if (name.endsWith("k_proj.weight") || name.endsWith("v_proj.weight")) shape = new int[] { c.kvLength, c.embeddingLength };
+            else if (name.endsWith("o_proj.weight")) shape = new int[] { c.embeddingLength, c.numberOfHeads * c.headSize };
+            else if (name.endsWith("down_proj.weight")) shape = new int[] { c.embeddingLength, c.hiddenLength };
+            else shape = new int[] { c.hiddenLength, c.embeddingLength };
+
+            // Vectors are stored as a single row
+            FloatBufferTensor t = new FloatBufferTensor(shape);
+            Random r = new Random(name.hashCode());
+            boolean norm = name.endsWith("norm.weight");
+            float scale = (float) (1.0 / Math.sqrt(t.shape().last()));
+            for (int i = 0; i < t.shape().first(); i++)
+                for (int j = 0; j < t.shape().last(); j++)
+                    t.set(norm ? 1.0f + 0.1f * (float) r.nextGaussian() : scale * (float) r.nextGaussian(), i, j);
+
+            return t;
+        }
+    }
+
     public static class MockTokenizer implements Tokenizer {
 
         @Override
@@ -122,6 +268,33 @@ public class Mocks {
         }
     }
 
+    /**
+     * Prompts are token ids separated by spaces and each token decodes to its id, so a whole generate can run
+     */
+    public static class IdTokenizer extends MockTokenizer {
+        private final TokenizerModel model = new TokenizerModel("BPE", null, false, false, Collections.emptyMap(), null, null);
+
+        @Override
+        public long[] encode(String sentence) {
+            return sentence.isBlank() ? new long[0] : Arrays.stream(sentence.trim().split("\\s+")).mapToLong(Long::parseLong).toArray();
+        }
+
+        @Override
+        public String decode(long id) {
+            return " " + id;
+        }
+
+        @Override
+        public String decode(long[] ids) {
+            return Arrays.stream(ids).mapToObj(this::decode).collect(Collectors.joining());
+        }
+
+        @Override
+        public TokenizerModel getModel() {
+            return model;
+        }
+    }
+
     public static class MockModel extends AbstractModel {
         protected MockModel(Config c) {
             super(InferenceType.INPUT_TO_EMBEDDING, c, new MockWeightLoader(), new MockTokenizer(), DType.F32, DType.F32, Optional.empty());
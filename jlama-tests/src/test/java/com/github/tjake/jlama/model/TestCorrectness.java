@@ -19,24 +19,56 @@ import static com.github.tjake.jlama.util.JsonSupport.om;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.github.tjake.jlama.math.ActivationFunction;
 import com.github.tjake.jlama.math.FloatConversions;
 import com.github.tjake.jlama.math.VectorMath;
+import com.github.tjake.jlama.model.functions.Generator;
+import com.github.tjake.jlama.model.functions.JsonConstraint;
+import com.github.tjake.jlama.model.functions.SampleOutput;
+import com.github.tjake.jlama.model.functions.Sampler;
+import com.github.tjake.jlama.model.functions.TokenConstraint;
 import com.github.tjake.jlama.model.gemma.GemmaTokenizer;
 import com.github.tjake.jlama.model.gpt2.GPT2Tokenizer;
 import com.github.tjake.jlama.model.llama.LlamaTokenizer;
+import com.github.tjake.jlama.safetensors.Config;
+import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.safetensors.prompt.*;
+import com.github.tjake.jlama.safetensors.tokenizer.DetokenizerStream;
 import com.github.tjake.jlama.safetensors.tokenizer.Tokenizer;
+import com.github.tjake.jlama.safetensors.tokenizer.Vocabulary;
 import com.github.tjake.jlama.safetensors.tokenizer.WordPieceTokenizer;
+import com.github.tjake.jlama.tensor.AbstractTensor;
+import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import com.github.tjake.jlama.tensor.KvBufferCache;
+import com.github.tjake.jlama.tensor.TensorShape;
 import com.github.tjake.jlama.util.JsonSupport;
 import com.google.common.io.Resources;
 import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.junit.Assert;
 import org.junit.Assume;
@@ -62,6 +94,137 @@ public class TestCorrectness {
         System.out.println(tokenizer.decode(actual));
     }
 
+    @Test
+    public void testBPEMerges() throws IOException {
+        Map<String, Long> vocab = new LinkedHashMap<>();
+        vocab.put("<unk>", 0L);
+        for (int i = 0; i < 256; i++)
+            vocab.put(String.format("<0x%02X>", i), i + 1L);
+        for (String token : List.of("a", "b", "c", "ab", "bc", "abc", "ca", "cab"))
+            vocab.put(token, (long) vocab.size());
+        List<String> merges = List.of("a b", "b c", "ab c", "c a", "c ab");
+
+        Path modelRoot = Files.createTempDirectory("jltest");
+        Files.writeString(
+            modelRoot.resolve("tokenizer.json"),
+            om.writeValueAsString(Map.of("model", Map.of("type", "BPE", "byte_fallback", true, "vocab", vocab, "merges", merges)))
+        );
+        Tokenizer tokenizer = new LlamaTokenizer(modelRoot);
+
+        // The best ranked pair merges first, the leftmost on ties
+        Assert.assertArrayEquals(new long[] { vocab.get("abc"), vocab.get("ab") }, tokenizer.encode("abcab"));
+        // Characters missing from the vocabulary fall back to bytes
+        Assert.assertArrayEquals(new long[] { vocab.get("bc"), 1 + 'd' }, tokenizer.encode("bcd"));
+
+        for (int i = 0; i < 100; i++) {
+            String text = ThreadLocalRandom.current()
+                .ints(200, 0, 4)
+                .mapToObj(c -> Character.toString("abcd".charAt(c)))
+                .collect(Collectors.joining());
+            Assert.assertArrayEquals(text, referenceBpe(text, vocab, merges), tokenizer.encode(text));
+        }
+
+        // Long documents are linear, not quadratic
+        String document = "abcd".repeat(25_000);
+        Assert.assertArrayEquals(referenceBpe("abcd", vocab, merges), Arrays.copyOf(tokenizer.encode(document), 2));
+
+        // Multibyte characters split across byte fallback tokens only come out once complete
+        long[] ids = tokenizer.encode("bc\u00e9a");
+        Assert.assertArrayEquals(new long[] { vocab.get("bc"), 1 + 0xC3, 1 + 0xA9, vocab.get("a") }, ids);
+        DetokenizerStream stream = tokenizer.detokenizer();
+        Assert.assertEquals("bc", stream.next(ids[0]));
+        Assert.assertEquals("", stream.next(ids[1]));
+        Assert.assertEquals("\u00e9", stream.next(ids[2]));
+        Assert.assertEquals("a", stream.next(ids[3]));
+        Assert.assertEquals("bc\u00e9a", tokenizer.decode(ids));
+
+        // A character cut short is replaced rather than dropped
+        stream = tokenizer.detokenizer();
+        Assert.assertEquals("", stream.next(ids[1]));
+        Assert.assertEquals("\ufffda", stream.next(ids[3]));
+        Assert.assertEquals("", stream.next(ids[1]));
+        Assert.assertEquals("\ufffd", stream.flush());
+
+        // Batches encode in parallel and keep their order
+        List<String> documents = List.of("abcab", "bcd", document, "", "cabc");
+        List<long[]> batch = tokenizer.encodeBatch(documents);
+        for (int i = 0; i < documents.size(); i++)
+            Assert.assertArrayEquals(tokenizer.encode(documents.get(i)), batch.get(i));
+    }
+
+    @Test
+    public void testMergesWithSpaces() throws IOException {
+        // Tokens can contain spaces, so one merge string can hold several valid pairs
+        Map<String, Long> vocab = new LinkedHashMap<>();
+        vocab.put("<unk>", 0L);
+        for (int i = 0; i < 256; i++)
+            vocab.put(String.format("<0x%02X>", i), i + 1L);
+        vocab.put("x", (long) vocab.size());
+        vocab.put("y", (long) vocab.size());
+        String merge = "x y z w v";
+        for (int i = merge.indexOf(' '); i >= 0; i = merge.indexOf(' ', i + 1)) {
+            for (String token : List.of(merge.substring(0, i), merge.substring(i + 1), merge.substring(0, i) + merge.substring(i + 1)))
+                vocab.putIfAbsent(token, (long) vocab.size());
+        }
+
+        Path modelRoot = Files.createTempDirectory("jltest");
+        Files.writeString(
+            modelRoot.resolve("tokenizer.json"),
+            om.writeValueAsString(Map.of("model", Map.of("type", "BPE", "byte_fallback", true, "vocab", vocab, "merges", List.of(merge))))
+        );
+        Tokenizer tokenizer = new LlamaTokenizer(modelRoot);
+
+        // The table is sized for every pair, so lookups of pairs that don't merge still end
+        Assert.assertArrayEquals(new long[] { vocab.get("y"), vocab.get("x") }, tokenizer.encode("yx"));
+        Assert.assertArrayEquals(new long[] { vocab.get("x"), vocab.get("y"), 1 + 'q' }, tokenizer.encode("xyq"));
+    }
+
+    @Test
+    public void testVocabulary() {
+        Map<String, Long> tokens = new LinkedHashMap<>();
+        List<String> strings = List.of("a", "ab", "\u00e9", "\u4e2d\u6587", "\uD83D\uDC31", "\u2581the", "");
+        for (int i = 0; i < strings.size(); i++)
+            tokens.put(strings.get(i), i * 2L);
+
+        Vocabulary vocabulary = new Vocabulary(tokens);
+        Assert.assertEquals(strings.size(), vocabulary.size());
+        for (int i = 0; i < strings.size(); i++) {
+            Assert.assertEquals(i * 2L, vocabulary.getId(strings.get(i)));
+            Assert.assertEquals(strings.get(i), vocabulary.getToken(i * 2L));
+            Assert.assertNull(vocabulary.getToken(i * 2L + 1));
+        }
+        Assert.assertEquals(-1, vocabulary.getId("abc"));
+        Assert.assertEquals(-1, vocabulary.getId("\u00e8"));
+
+        // Added tokens can reuse a string or extend the ids
+        Vocabulary added = vocabulary.withTokens(Map.of("ab", 100L, "<s>", 101L));
+        Assert.assertEquals(100, added.getId("ab"));
+        Assert.assertNull(added.getToken(2));
+        Assert.assertEquals("<s>", added.getToken(101));
+        Assert.assertEquals(102, added.idLimit());
+    }
+
+    // The textbook version, rescanning every pair for each merge
+    private static long[] referenceBpe(String text, Map<String, Long> vocab, List<String> merges) {
+        List<String> pieces = text.chars().mapToObj(Character::toString).collect(Collectors.toList());
+        while (true) {
+            int best = -1;
+            int bestRank = Integer.MAX_VALUE;
+            for (int i = 0; i < pieces.size() - 1; i++) {
+                int rank = merges.indexOf(pieces.get(i) + " " + pieces.get(i + 1));
+                if (rank >= 0 && rank < bestRank) {
+                    best = i;
+                    bestRank = rank;
+                }
+            }
+
+            if (best < 0) break;
+            pieces.set(best, pieces.get(best) + pieces.remove(best + 1));
+        }
+
+        return pieces.stream().mapToLong(p -> vocab.getOrDefault(p, 1L + p.charAt(0))).toArray();
+    }
+
     @Test
     public void TestLLamaTokenizer() throws IOException {
         String modelPrefix = "../models/Llama-2-7b-chat-hf-2";
@@ -99,10 +262,11 @@ public class TestCorrectness {
             1.0000e-03, 8.6596e-04, 7.4989e-04, 6.4938e-04, 5.6234e-04, 4.8697e-04, 4.2170e-04, 3.6517e-04, 3.1623e-04, 2.7384e-04,
             2.3714e-04, 2.0535e-04, 1.7783e-04, 1.5399e-04, 1.3335e-04, 1.1548e-04 };
 
-        float[][] ropeFreqs = VectorMath.precomputeFreqsCis(128, 4096 * 2, 10000.0, 1.0);
+        // Each row holds the cosines then the sines for one position
+        AbstractTensor rope = VectorMath.precomputeRopeTable(128, 4096 * 2, 10000.0, 1.0, false);
 
         for (int i = 0; i < 64; i++)
-            Assert.assertEquals(expected[i], ropeFreqs[i + 64][1], 0.0001);
+            Assert.assertEquals(expected[i], rope.get(1, i + 64), 0.0001);
 
         expected = new double[] { 0.9200, -0.9031, -0.7639, -0.6592, -0.9904, -0.2474, 0.9597, -0.9819, 0.9835, -0.9696, 0.5065, 0.5448,
             -0.9266, -0.4176, 0.7772, 0.8945, 0.1165, -0.6750, -0.9962, -0.8492, -0.4416, 0.0250, 0.4284, 0.7205, 0.8991, 0.9835, 0.9986,
@@ -111,7 +275,7 @@ public class TestCorrectness {
             0.0131, 0.0114, 0.0099, 0.0085, 0.0074 };
 
         for (int i = 0; i < 64; i++)
-            Assert.assertEquals(expected[i], ropeFreqs[i + (64 * 64)][1], 0.0001);
+            Assert.assertEquals(expected[i], rope.get(64, i + 64), 0.0001);
     }
 
     @Test
@@ -121,15 +285,15 @@ public class TestCorrectness {
         List<List<Float>> imag = om.readerFor(new TypeReference<ArrayList<ArrayList<Float>>>() {
         }).readValue(Resources.getResource("imag.json"));
 
-        float[][] ropeFreqs = VectorMath.precomputeFreqsCis(128, 2048, 10000.0, 1.0);
+        AbstractTensor rope = VectorMath.precomputeRopeTable(128, 2048, 10000.0, 1.0, false);
 
         Assert.assertEquals(imag.size(), real.size());
-        Assert.assertEquals(ropeFreqs.length, real.size() * 64);
+        Assert.assertEquals(rope.shape().first(), real.size());
 
         for (int i = 0; i < real.size(); i++) {
             for (int j = 0; j < 64; j++) {
-                Assert.assertEquals(real.get(i).get(j), ropeFreqs[i * 64 + j][0], 0.0001);
-                Assert.assertEquals(imag.get(i).get(j), ropeFreqs[i * 64 + j][1], 0.0001);
+                Assert.assertEquals(real.get(i).get(j), rope.get(i, j), 0.0001);
+                Assert.assertEquals(imag.get(i).get(j), rope.get(i, j + 64), 0.0001);
             }
         }
     }
@@ -470,4 +634,592 @@ public class TestCorrectness {
         prompt = tokenizer.promptSupport().get().builder().addUserMessage("This is a test").stripPreamble().build();
         Assert.assertEquals("<|im_start|>user\n" + "This is a test<|im_end|>\n" + "<|im_start|>assistant\n", prompt.getPrompt());
     }
+
+    @Test
+    public void testBatchedPrefillAttention() {
+        AbstractModel model = Mocks.makeModel(1024, 256, 512, 4, 1);
+        int dim = model.getConfig().embeddingLength;
+        CausalSelfAttention attention = new CausalSelfAttention(
+            model,
+            0,
+            randomTensor(dim, dim),
+            randomTensor(dim, dim),
+            randomTensor(dim, dim),
+            randomTensor(dim, dim)
+        );
+
+        // Spans more than one prefill block
+        int length = 100;
+        AbstractTensor input = randomTensor(length, dim);
+
+        try (KvBufferCache cache = new KvBufferCache(model, 256 << 20, 0)) {
+            AbstractTensor batched = attention.forward(input, 0, cache.getKvBuffer(UUID.randomUUID()), Optional.empty());
+
+            KvBufferCache.KvBuffer kvBuffer = cache.getKvBuffer(UUID.randomUUID());
+            for (int i = 0; i < length; i++) {
+                AbstractTensor row = new FloatBufferTensor(1, dim);
+                row.copyFrom(input, input.getOffset(i, 0), 0, dim);
+
+                AbstractTensor single = attention.forward(row, i, kvBuffer, Optional.empty());
+                for (int j = 0; j < dim; j++)
+                    Assert.assertEquals("position " + i, single.get(0, j), batched.get(i, j), 1e-3f);
+            }
+        }
+    }
+
+    @Test
+    public void testSampler() {
+        int vocab = 1000;
+        FloatBufferTensor logits = new FloatBufferTensor(1, vocab);
+
+        // Greedy picks the max, a repetition penalty moves it to the runner up
+        fillLogits(logits);
+        Assert.assertEquals(7, Sampler.of(0.0f).newState(vocab).sample(logits, 0.5f));
+
+        Sampler.State penalized = new Sampler(0.0f, 0, 1.0f, 0.0f, 10.0f).newState(vocab);
+        penalized.accept(7);
+        fillLogits(logits);
+        Assert.assertEquals(3, penalized.sample(logits, 0.5f));
+
+        // Top-k, top-p and min-p only ever pick from the few likely tokens
+        Sampler[] samplers = new Sampler[] {
+            new Sampler(1.0f, 2, 1.0f, 0.0f, 1.0f),
+            new Sampler(1.0f, 0, 0.5f, 0.0f, 1.0f),
+            new Sampler(1.0f, 0, 1.0f, 0.1f, 1.0f) };
+        for (Sampler sampler : samplers) {
+            Sampler.State state = sampler.newState(vocab);
+            for (int i = 0; i < 1000; i++) {
+                fillLogits(logits);
+                int token = state.sample(logits, ThreadLocalRandom.current().nextFloat());
+                Assert.assertTrue("Sampled " + token, token == 7 || token == 3);
+            }
+        }
+
+        // The speculative distribution matches what is sampled from
+        float[] dist = new float[vocab];
+        fillLogits(logits);
+        new Sampler(1.0f, 2, 1.0f, 0.0f, 1.0f).newState(vocab).distribution(logits, dist);
+        Assert.assertEquals(1.0f, dist[7] + dist[3], 1e-5f);
+        Assert.assertEquals(1.0 / (1.0 + Math.exp(-1.0)), dist[7], 1e-5f);
+    }
+
+    private static void fillLogits(FloatBufferTensor logits) {
+        // Two likely tokens, everything else far less likely
+        for (int i = 0; i < logits.shape().last(); i++)
+            logits.set(-5.0f, 0, i);
+        logits.set(10.0f, 0, 7);
+        logits.set(9.0f, 0, 3);
+    }
+
+    @Test
+    public void testPartialLogits() {
+        AbstractModel model = Mocks.makeModel(1024, 256, 512, 4, 1);
+        int dim = model.getConfig().embeddingLength;
+        int vocab = model.getConfig().vocabularySize;
+
+        AbstractTensor ones = new FloatBufferTensor(1, dim);
+        for (int i = 0; i < dim; i++)
+            ones.set(1.0f, 0, i);
+        LayerNorm norm = new LayerNorm(model, new FloatBufferTensor(1, dim), ones);
+        AbstractTensor lmHead = randomTensor(vocab, dim);
+        model.sampleOutput = new SampleOutput() {
+            @Override
+            public LayerNorm getOutputLayerNorm() {
+                return norm;
+            }
+
+            @Override
+            public AbstractTensor getOutputLogitsWeights() {
+                return lmHead;
+            }
+        };
+
+        // Scattered tokens plus a run long enough to be split across cores
+        BitSet allowed = new BitSet(vocab);
+        allowed.set(5, 8);
+        allowed.set(100, 500);
+        allowed.set(vocab - 1);
+
+        AbstractTensor output = randomTensor(1, dim);
+        AbstractTensor full = new FloatBufferTensor(1, vocab);
+        AbstractTensor partial = new FloatBufferTensor(1, vocab);
+        model.computeLogits(output, full);
+        model.computeLogits(output, partial, Optional.of(allowed));
+
+        for (int i = 0; i < vocab; i++) {
+            if (allowed.get(i)) Assert.assertEquals(full.get(0, i), partial.get(0, i), 1e-5f);
+            else Assert.assertEquals(Float.NEGATIVE_INFINITY, partial.get(0, i), 0.0f);
+        }
+
+        // Sampling never leaves the allowed set, even for a zero sample
+        Sampler.State state = new Sampler(1.0f, 0, 1.0f, 0.0f, 1.0f, Optional.of(allowed)).newState(vocab);
+        Assert.assertTrue(allowed.get(model.sample(output, state, 0.0f, partial)));
+
+        // A scattered mask of single tokens is split across cores too
+        BitSet scattered = new BitSet(vocab);
+        for (int i = 3; i < vocab; i += 8)
+            scattered.set(i);
+
+        model.computeLogits(output, partial, Optional.of(scattered));
+        for (int i = 0; i < vocab; i++) {
+            if (scattered.get(i)) Assert.assertEquals(full.get(0, i), partial.get(0, i), 1e-5f);
+            else Assert.assertEquals(Float.NEGATIVE_INFINITY, partial.get(0, i), 0.0f);
+        }
+    }
+
+    @Test
+    public void testJsonConstraint() {
+        List<String> vocab = List.of("", "{", "", "}", "\"", "\"name\"", "\"age\"", ":", " ", "1", "12", "x", ",", "[", "\"a");
+        Tokenizer tokenizer = new Mocks.MockTokenizer() {
+            @Override
+            public String decode(long id) {
+                return id < vocab.size() ? vocab.get((int) id) : "";
+            }
+        };
+        Config c = new Mocks.MockConfig(128, 64, 128, 4, 1, 1e5f);
+        int eos = c.eosTokens.get(0);
+
+        String schema = "{\"type\":\"object\",\"properties\":{\"name\":{\"type\":\"string\"},\"age\":{\"type\":\"integer\"}}}";
+        TokenConstraint.Matcher matcher = JsonConstraint.of(tokenizer, c, schema).matcher();
+        Assert.assertEquals(allowed(vocab, "{", " "), matcher.allowedTokens());
+
+        // Properties come in the declared order
+        matcher.accept(vocab.indexOf("{"));
+        Assert.assertEquals(allowed(vocab, "\"", "\"name\"", " "), matcher.allowedTokens());
+
+        for (String token : List.of("\"name\"", ":", "\"", "x", "\"", ",", "\"age\"", ":", "12"))
+            matcher.accept(vocab.indexOf(token));
+
+        // An integer can keep going, but the object isn't done
+        Assert.assertEquals(allowed(vocab, "1", "12", " ", "}"), matcher.allowedTokens());
+        Assert.assertFalse(matcher.isComplete());
+        Assert.assertThrows(IllegalStateException.class, () -> matcher.accept(eos));
+
+        matcher.accept(vocab.indexOf("}"));
+        Assert.assertTrue(matcher.isComplete());
+        BitSet done = new BitSet();
+        done.set(eos);
+        Assert.assertEquals(done, matcher.allowedTokens());
+
+        // Any value, a number is complete as soon as it has a digit
+        TokenConstraint.Matcher any = JsonConstraint.of(tokenizer, c, "{}").matcher();
+        any.accept(vocab.indexOf("1"));
+        BitSet number = allowed(vocab, "1", "12");
+        number.set(eos);
+        Assert.assertEquals(number, any.allowedTokens());
+    }
+
+    private static BitSet allowed(List<String> vocab, String... tokens) {
+        BitSet allowed = new BitSet();
+        for (String token : tokens)
+            allowed.set(vocab.indexOf(token));
+        return allowed;
+    }
+
+    @Test
+    public void testSlidingWindowAttention() {
+        int window = 16;
+        AbstractModel windowed = Mocks.makeModel(1024, 256, 512, 4, 1, window);
+        AbstractModel global = Mocks.makeModel(1024, 256, 512, 4, 1);
+        int dim = global.getConfig().embeddingLength;
+        AbstractTensor[] weights = new AbstractTensor[] {
+            randomTensor(dim, dim),
+            randomTensor(dim, dim),
+            randomTensor(dim, dim),
+            randomTensor(dim, dim) };
+
+        CausalSelfAttention windowedAttention = new CausalSelfAttention(windowed, 0, weights[0], weights[1], weights[2], weights[3]);
+        CausalSelfAttention globalAttention = new CausalSelfAttention(global, 0, weights[0], weights[1], weights[2], weights[3]);
+
+        int length = 40;
+        AbstractTensor input = randomTensor(length, dim);
+        AbstractTensor recent = new FloatBufferTensor(window, dim);
+        recent.copyFrom(input, input.getOffset(length - window, 0), 0, window * dim);
+
+        // RoPE is relative, so the last window of positions attends the same wherever it starts
+        try (
+            KvBufferCache windowedCache = new KvBufferCache(windowed, 256 << 20, 0);
+            KvBufferCache globalCache = new KvBufferCache(global, 256 << 20, 0)
+        ) {
+            AbstractTensor a = windowedAttention.forward(input, 0, windowedCache.getKvBuffer(UUID.randomUUID()), Optional.empty());
+            AbstractTensor b = globalAttention.forward(recent, 0, globalCache.getKvBuffer(UUID.randomUUID()), Optional.empty());
+
+            for (int j = 0; j < dim; j++)
+                Assert.assertEquals(b.get(window - 1, j), a.get(length - 1, j), 1e-3f);
+        }
+    }
+
+    @Test
+    public void testMoEBlock() {
+        AbstractModel model = Mocks.makeModel(1024, 64, 128, 4, 1);
+        int dim = model.getConfig().embeddingLength;
+        int hidden = model.getConfig().hiddenLength;
+        int experts = 4;
+        int perToken = 2;
+
+        AbstractTensor gate = randomTensor(experts, dim);
+        AbstractTensor[] w1 = new AbstractTensor[experts];
+        AbstractTensor[] w2 = new AbstractTensor[experts];
+        AbstractTensor[] w3 = new AbstractTensor[experts];
+        for (int e = 0; e < experts; e++) {
+            w1[e] = randomTensor(hidden, dim);
+            w2[e] = randomTensor(dim, hidden);
+            w3[e] = randomTensor(hidden, dim);
+        }
+        MoEBlock moe = new MoEBlock(model, experts, perToken, ActivationFunction.Type.SILU, gate, w1, w2, w3);
+
+        int batchSize = 7;
+        AbstractTensor input = randomTensor(batchSize, dim);
+        AbstractTensor output = moe.forward(input, Optional.empty());
+
+        // Each token is the renormalized gate weighted sum of its top experts
+        for (int b = 0; b < batchSize; b++) {
+            float[] probs = new float[experts];
+            for (int e = 0; e < experts; e++)
+                probs[e] = dot(input, b, gate, e, dim);
+            float max = probs[0];
+            for (float p : probs)
+                max = Math.max(max, p);
+            for (int e = 0; e < experts; e++)
+                probs[e] = (float) Math.exp(probs[e] - max);
+
+            Integer[] order = new Integer[] { 0, 1, 2, 3 };
+            Arrays.sort(order, Comparator.comparing(e -> -probs[e]));
+            float total = probs[order[0]] + probs[order[1]];
+
+            float[] expected = new float[dim];
+            for (int k = 0; k < perToken; k++) {
+                int e = order[k];
+                float[] h = new float[hidden];
+                for (int j = 0; j < hidden; j++) {
+                    float up = dot(input, b, w3[e], j, dim);
+                    h[j] = ActivationFunction.eval(ActivationFunction.Type.SILU, dot(input, b, w1[e], j, dim)) * up;
+                }
+
+                for (int i = 0; i < dim; i++) {
+                    float v = 0;
+                    for (int j = 0; j < hidden; j++)
+                        v += w2[e].get(i, j) * h[j];
+                    expected[i] += probs[e] / total * v;
+                }
+            }
+
+            for (int i = 0; i < dim; i++)
+                Assert.assertEquals("token " + b + " dim " + i, expected[i], output.get(b, i), 1e-4f);
+        }
+
+        // Routing state is per call so concurrent sessions get the same answer
+        IntStream.range(0, 8).parallel().forEach(n -> {
+            AbstractTensor concurrent = moe.forward(input, Optional.empty());
+            for (int b = 0; b < batchSize; b++)
+                for (int i = 0; i < dim; i++)
+                    Assert.assertEquals(output.get(b, i), concurrent.get(b, i), 1e-6f);
+        });
+    }
+
+    @Test
+    public void testExpertResidency() throws Exception {
+        int experts = 4;
+        int rows = 4, columns = 8;
+        Path file = Files.createTempFile("experts", ".bin");
+        file.toFile().deleteOnExit();
+
+        float[] values = new float[2 * experts * 3 * rows * columns];
+        for (int i = 0; i < values.length; i++)
+            values[i] = i;
+        ByteBuffer bytes = ByteBuffer.allocate(values.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asFloatBuffer().put(values);
+        Files.write(file, bytes.array());
+
+        // Background work is queued and run by the test so the pins happen at known points
+        Queue<Runnable> paging = new ArrayDeque<>();
+        ExpertResidency residency = new ExpertResidency(2, experts, 1, 1, paging::add);
+        ExpertResidency.Layer[] layers = new ExpertResidency.Layer[2];
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).order(ByteOrder.LITTLE_ENDIAN);
+            int t = 0;
+            for (int l = 0; l < 2; l++) {
+                AbstractTensor[][] w = new AbstractTensor[3][experts];
+                for (int e = 0; e < experts; e++) {
+                    for (int i = 0; i < 3; i++, t++) {
+                        int length = rows * columns * Float.BYTES;
+                        ByteBuffer slice = mapped.slice(t * length, length).order(ByteOrder.LITTLE_ENDIAN);
+                        w[i][e] = new FloatBufferTensor(slice.asFloatBuffer(), TensorShape.of(rows, columns), false);
+                        w[i][e].setMappedSegment(MemorySegment.ofBuffer(slice));
+                    }
+                }
+                layers[l] = residency.register(l, w[0], w[1], w[2]);
+            }
+        }
+
+        // Layer 0 always routes to expert 2 and layer 1 follows with expert 3
+        for (int i = 0; i < 256; i++) {
+            layers[0].route(new int[] { 2 }, new int[] { 0, 0, 1, 0 });
+            layers[1].route(new int[] { 3 }, new int[] { 0, 0, 0, 1 });
+        }
+
+        Assert.assertArrayEquals(new int[] { 3 }, layers[1].predict(new int[] { 2 }));
+
+        Assert.assertFalse(layers[0].isPinned(2));
+        while (!paging.isEmpty())
+            paging.poll().run();
+
+        Assert.assertTrue(layers[0].isPinned(2));
+        Assert.assertFalse(layers[0].isPinned(0));
+        AbstractTensor pinned = layers[0].weights(2)[1];
+        Assert.assertFalse(pinned.mappedSegment().isPresent());
+        for (int i = 0; i < rows; i++)
+            for (int j = 0; j < columns; j++)
+                Assert.assertEquals(((2 * 3 + 1) * rows + i) * columns + j, pinned.get(i, j), 0f);
+
+        // Routing moves to expert 1 then to expert 0 before the pin of expert 1 runs, so that pin is dropped
+        for (int i = 0; i < 256; i++)
+            layers[0].route(new int[] { 1 }, new int[] { 0, 1, 0, 0 });
+        for (int i = 0; i < 256; i++)
+            layers[0].route(new int[] { 0 }, new int[] { 1, 0, 0, 0 });
+        while (!paging.isEmpty())
+            paging.poll().run();
+
+        Assert.assertFalse(layers[0].isPinned(1));
+        Assert.assertTrue(layers[0].weights(1)[0].mappedSegment().isPresent());
+        Assert.assertTrue(layers[0].isPinned(0));
+        Assert.assertFalse(layers[0].isPinned(2));
+    }
+
+    @Test
+    public void testSpeculativeSessionReuse() {
+        AbstractModel model = Mocks.makeRandomLlama(64, 128, 4, 2, 2);
+        AbstractModel draft = Mocks.makeRandomLlama(32, 64, 2, 1, 1);
+        Sampler greedy = Sampler.of(0.0f);
+        UUID plain = UUID.randomUUID(), speculative = UUID.randomUUID(), lookup = UUID.randomUUID();
+
+        // Each session carries on from the last call, the draft model's buffer has to stay in step with the target's
+        String[] prompts = { "5 9 17 3 44", "12 7 90" };
+        int[] ntokens = { 32, 96 };
+        for (int i = 0; i < prompts.length; i++) {
+            PromptContext prompt = PromptContext.of(prompts[i]);
+            Generator.Response expected = model.generate(plain, prompt, greedy, ntokens[i], (s, f) -> {});
+            Assert.assertTrue(expected.generatedTokens > 0);
+
+            Generator.Response viaDraft = model.generateSpeculative(speculative, prompt, draft, 4, greedy, ntokens[i], (s, f) -> {});
+            Assert.assertEquals(expected.responseText, viaDraft.responseText);
+
+            Generator.Response viaLookup = model.generatePromptLookup(lookup, prompt, 2, 4, greedy, ntokens[i], (s, f) -> {});
+            Assert.assertEquals(expected.responseText, viaLookup.responseText);
+        }
+    }
+
+    @Test
+    public void testSpeculativeMatchesGenerate() {
+        AbstractModel model = Mocks.makeRandomLlama(64, 128, 4, 2, 2);
+        AbstractModel draft = Mocks.makeRandomLlama(32, 64, 2, 1, 1);
+        Sampler greedy = Sampler.of(0.0f);
+        PromptContext prompt = PromptContext.of("5 9 17 5 9 17 3");
+
+        // At temperature 0 every proposal is accepted or replaced by the target's own choice, so the output can't change
+        Generator.Response expected = model.generate(UUID.randomUUID(), prompt, greedy, 64, (s, f) -> {});
+        for (int draftTokens : new int[] { 1, 3, 8 }) {
+            UUID session = UUID.randomUUID();
+            Generator.Response viaDraft = model.generateSpeculative(session, prompt, draft, draftTokens, greedy, 64, (s, f) -> {});
+            Assert.assertEquals("draft tokens " + draftTokens, expected.responseText, viaDraft.responseText);
+            Assert.assertEquals(expected.generatedTokens, viaDraft.generatedTokens);
+
+            for (int ngramSize : new int[] { 1, 2, 3 }) {
+                Generator.Response viaLookup = model.generatePromptLookup(
+                    UUID.randomUUID(),
+                    prompt,
+                    ngramSize,
+                    draftTokens,
+                    greedy,
+                    64,
+                    (s, f) -> {}
+                );
+                Assert.assertEquals("ngram " + ngramSize + ", draft tokens " + draftTokens, expected.responseText, viaLookup.responseText);
+                Assert.assertEquals(expected.generatedTokens, viaLookup.generatedTokens);
+            }
+        }
+    }
+
+    @Test
+    public void testSpeculationLimit() {
+        int window = 16;
+        AbstractModel model = Mocks.makeRandomMistral(64, 128, 4, 2, 2, window);
+        Assert.assertEquals(window, model.speculationLimit());
+
+        Sampler greedy = Sampler.of(0.0f);
+        PromptContext prompt = PromptContext.of("5 9 17 5 9 17 3");
+        List<int[]> verified = new ArrayList<>();
+        PromptLookupDrafter drafter = new PromptLookupDrafter(2) {
+            @Override
+            public void verified(int[] proposal, int position, int proposed, int accepted) {
+                verified.add(new int[] { position, proposed });
+            }
+        };
+
+        // Past the window a batch would read positions the layers no longer attend to, so speculation must stop short of it
+        Generator.Response expected = model.generate(UUID.randomUUID(), prompt, greedy, 64, (s, f) -> {});
+        Generator.Response actual = model.generateSpeculative(UUID.randomUUID(), prompt, drafter, 4, greedy, 64, (s, f) -> {});
+        Assert.assertEquals(expected.responseText, actual.responseText);
+        Assert.assertTrue(actual.generatedTokens + 7 > window);
+
+        Assert.assertTrue(verified.stream().anyMatch(v -> v[1] > 0));
+        Assert.assertTrue(verified.stream().anyMatch(v -> v[0] >= window));
+        for (int[] v : verified)
+            if (v[1] > 0) Assert.assertTrue("proposed " + v[1] + " at " + v[0], v[0] + v[1] < window);
+    }
+
+    @Test
+    public void testContinuousBatchMatchesSessionForward() throws Exception {
+        AbstractModel model = Mocks.makeRandomLlama(64, 128, 4, 2, 2);
+        int[][] prompts = { { 5, 9, 17 }, { 3, 44, 12, 7, 90, 31, 8 }, { 100, 2, 66, 1, 19, 25, 70, 48, 11, 4, 57 } };
+        int[][] next = { { 21, 60 }, { 13, 99 }, { 37, 6 } };
+
+        KvBufferCache.KvBuffer[] single = new KvBufferCache.KvBuffer[prompts.length];
+        KvBufferCache.KvBuffer[] batched = new KvBufferCache.KvBuffer[prompts.length];
+        for (int s = 0; s < prompts.length; s++) {
+            single[s] = model.kvBufferCache.getKvBuffer(UUID.randomUUID());
+            batched[s] = model.kvBufferCache.getKvBuffer(UUID.randomUUID());
+            model.batchForward(prompts[s], 0, single[s]).close();
+            model.batchForward(prompts[s], 0, batched[s]).close();
+        }
+
+        // Each step puts every session through one batched forward pass at its own position
+        ContinuousBatchScheduler scheduler = new ContinuousBatchScheduler(model, prompts.length);
+        ExecutorService sessions = Executors.newFixedThreadPool(prompts.length);
+        try {
+            for (int step = 0; step < next[0].length; step++) {
+                int[] tokens = new int[prompts.length];
+                int[] positions = new int[prompts.length];
+                for (int s = 0; s < prompts.length; s++) {
+                    tokens[s] = next[s][step];
+                    positions[s] = prompts[s].length + step;
+                }
+
+                try (AbstractTensor output = model.batchForward(tokens, positions, batched)) {
+                    for (int s = 0; s < prompts.length; s++) {
+                        try (
+                            AbstractTensor expected = model.forward(tokens[s], positions[s], single[s]);
+                            AbstractTensor row = model.makeDenseTensor(1, output.shape().last())
+                        ) {
+                            row.copyFrom(output, output.getOffset(s, 0), 0, output.shape().last());
+                            Assert.assertArrayEquals(model.getLogits(expected), model.getLogits(row), 1e-4f);
+                        }
+                    }
+                }
+            }
+
+            // The scheduler gathers the concurrent sessions into the same kind of step
+            for (int s = 0; s < prompts.length; s++)
+                scheduler.join();
+
+            List<Future<float[]>> results = new ArrayList<>();
+            for (int s = 0; s < prompts.length; s++) {
+                int session = s;
+                int position = prompts[s].length + next[s].length;
+                results.add(sessions.submit(() -> {
+                    try (AbstractTensor output = scheduler.forward(77, position, batched[session])) {
+                        return model.getLogits(output);
+                    }
+                }));
+            }
+
+            for (int s = 0; s < prompts.length; s++) {
+                try (AbstractTensor expected = model.forward(77, prompts[s].length + next[s].length, single[s])) {
+                    Assert.assertArrayEquals(model.getLogits(expected), results.get(s).get(), 1e-4f);
+                }
+            }
+        } finally {
+            sessions.shutdown();
+            scheduler.close();
+            model.close();
+        }
+    }
+
+    @Test
+    public void testEvictedSessionIsRecomputed() {
+        AbstractModel model = Mocks.makeRandomLlama(64, 128, 4, 2, 2);
+        int[] prompt = { 5, 9, 17, 3, 44, 12, 7, 90, 31 };
+        UUID session = UUID.randomUUID();
+
+        // Pages of this model hold one position of one layer, so this is room for two sessions
+        long sessionBytes = 2L * prompt.length * 2 * model.getConfig().kvLength * Float.BYTES;
+        try (
+            KvBufferCache cache = new KvBufferCache(model, 2 * sessionBytes, 0);
+            KvBufferCache reference = new KvBufferCache(model, 256 << 20, 0)
+        ) {
+            KvBufferCache.KvBuffer kvBuffer = cache.getKvBuffer(session);
+            model.batchForward(prompt, 0, kvBuffer).close();
+            kvBuffer.setCurrentContextPosition(prompt.length);
+            kvBuffer.close();
+
+            // The third session pushes out the idle one
+            for (int i = 0; i < 2; i++)
+                model.batchForward(prompt, 0, cache.getKvBuffer(UUID.randomUUID())).close();
+            Assert.assertEquals(1, cache.evictions());
+
+            // Its context comes back on next use rather than starting over
+            kvBuffer = cache.getKvBuffer(session);
+            Assert.assertEquals(prompt.length, kvBuffer.getCurrentContextPosition());
+
+            KvBufferCache.KvBuffer expected = reference.getKvBuffer(UUID.randomUUID());
+            model.batchForward(prompt, 0, expected).close();
+            try (
+                AbstractTensor a = model.forward(21, prompt.length, expected);
+                AbstractTensor b = model.forward(21, prompt.length, kvBuffer)
+            ) {
+                Assert.assertArrayEquals(model.getLogits(a), model.getLogits(b), 1e-5f);
+            }
+        } finally {
+            model.close();
+        }
+    }
+
+    @Test
+    public void testBatchAttentionWithQ8Pages() {
+        // Heads of 32 so Q8 blocks line up with them
+        AbstractModel model = Mocks.makeRandomLlama(128, 256, 4, 2, 2);
+        int[] prompt = new int[40];
+        for (int i = 0; i < prompt.length; i++)
+            prompt[i] = (i * 37 + 11) % model.getConfig().vocabularySize;
+
+        try (KvBufferCache cache = new KvBufferCache(model, 256 << 20, 0, DType.I8)) {
+            KvBufferCache.KvBuffer batched = cache.getKvBuffer(UUID.randomUUID());
+            KvBufferCache.KvBuffer single = cache.getKvBuffer(UUID.randomUUID());
+
+            // The prompt goes through the blocked prefill attention, one token at a time reads the same pages per position
+            try (AbstractTensor output = model.batchForward(prompt, 0, batched)) {
+                Assert.assertEquals(DType.I8, batched.getKeyTensorForPosition(0, 0).dType());
+
+                AbstractTensor expected = null;
+                for (int i = 0; i < prompt.length; i++) {
+                    if (expected != null) expected.close();
+                    expected = model.forward(prompt[i], i, single);
+                }
+
+                try (AbstractTensor last = model.makeDenseTensor(1, output.shape().last())) {
+                    last.copyFrom(output, output.getOffset(prompt.length - 1, 0), 0, output.shape().last());
+                    Assert.assertArrayEquals(model.getLogits(expected), model.getLogits(last), 1e-4f);
+                }
+                expected.close();
+            }
+        } finally {
+            model.close();
+        }
+    }
+
+    private static float dot(AbstractTensor a, int aRow, AbstractTensor b, int bRow, int length) {
+        float sum = 0;
+        for (int i = 0; i < length; i++)
+            sum += a.get(aRow, i) * b.get(bRow, i);
+        return sum;
+    }
+
+    private static AbstractTensor randomTensor(int rows, int columns) {
+        AbstractTensor t = new FloatBufferTensor(rows, columns);
+        for (int i = 0; i < rows; i++)
+            for (int j = 0; j < columns; j++)
+                t.set(ThreadLocalRandom.current().nextFloat(-0.1f, 0.1f), i, j);
+
+        return t;
+    }
 }
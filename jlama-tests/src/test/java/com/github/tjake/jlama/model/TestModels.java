@@ -188,6 +188,59 @@ public class TestModels {
         }
     }
 
+    @Test
+    public void LlamaSpeculativeRun() throws Exception {
+        String modelPrefix = "../models/tjake_Llama-3.2-1B-Instruct-Jlama-Q4";
+        Assume.assumeTrue(Files.exists(Paths.get(modelPrefix)));
+
+        AbstractModel model = ModelSupport.loadModel(new File(modelPrefix), DType.F32, DType.I8);
+        AbstractModel draft = ModelSupport.loadModel(new File(modelPrefix), DType.F32, DType.I8);
+
+        PromptContext promptContext = model.promptSupport().get().builder().addUserMessage("Write a haiku about autumn").build();
+
+        // Greedy speculative decoding must produce exactly the same output as plain decoding
+        Generator.Response expected = model.generate(UUID.randomUUID(), promptContext, 0.0f, 128, (l, f) -> {});
+        Generator.Response actual = model.generateBuilder()
+            .session(UUID.randomUUID())
+            .promptContext(promptContext)
+            .temperature(0.0f)
+            .ntokens(128)
+            .draftModel(draft)
+            .draftTokens(4)
+            .generate();
+
+        logger.info("Response: {}", actual.responseText);
+        Assert.assertEquals(expected.responseText, actual.responseText);
+    }
+
+    @Test
+    public void LlamaPromptLookupRun() throws Exception {
+        String modelPrefix = "../models/tjake_Llama-3.2-1B-Instruct-Jlama-Q4";
+        Assume.assumeTrue(Files.exists(Paths.get(modelPrefix)));
+
+        AbstractModel model = ModelSupport.loadModel(new File(modelPrefix), DType.F32, DType.I8);
+
+        PromptContext promptContext = model.promptSupport()
+            .get()
+            .builder()
+            .addUserMessage("Repeat this code exactly: public int add(int a, int b) { return a + b; }")
+            .build();
+
+        // Greedy prompt lookup decoding must produce exactly the same output as plain decoding
+        Generator.Response expected = model.generate(UUID.randomUUID(), promptContext, 0.0f, 128, (l, f) -> {});
+        Generator.Response actual = model.generateBuilder()
+            .session(UUID.randomUUID())
+            .promptContext(promptContext)
+            .temperature(0.0f)
+            .ntokens(128)
+            .promptLookup(3)
+            .draftTokens(8)
+            .generate();
+
+        logger.info("Response: {}", actual.responseText);
+        Assert.assertEquals(expected.responseText, actual.responseText);
+    }
+
     @Test
     public void DeepCoderRun() throws Exception {
         String modelPrefix = "../models/deepseek-coder-1.3b-base";
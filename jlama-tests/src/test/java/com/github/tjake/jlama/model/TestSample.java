@@ -20,9 +20,9 @@ import com.github.tjake.jlama.model.functions.Generator;
 import com.github.tjake.jlama.safetensors.DType;
 import com.github.tjake.jlama.safetensors.SafeTensorSupport;
 import com.github.tjake.jlama.safetensors.prompt.PromptContext;
+import com.github.tjake.jlama.safetensors.tokenizer.Vocabulary;
 import java.io.File;
 import java.io.IOException;
-import java.util.Map;
 import java.util.UUID;
 
 import com.github.tjake.jlama.tensor.AbstractTensor;
@@ -148,7 +148,7 @@ public class TestSample {
             """;
 
         final PromptContext promptContext = PromptContext.of(text);
-        Map<String, Long> vocab = m.getTokenizer().getModel().vocabLookup;
+        Vocabulary vocab = m.getTokenizer().getModel().vocabulary();
 
         KvBufferCache.KvBuffer kvBuffer = new KvBufferCache(m).getKvBuffer(UUID.randomUUID());
         int[] promptTokens = m.encodePrompt(promptContext);
@@ -160,8 +160,8 @@ public class TestSample {
         // Convert into logits
         float[] logits = m.getLogits(v);
 
-        float yesScore = logits[vocab.get("Yes").intValue()];
-        float noScore = logits[vocab.get("No").intValue()];
+        float yesScore = logits[(int) vocab.getId("Yes")];
+        float noScore = logits[(int) vocab.getId("No")];
 
         System.out.println(String.format("Scores Y=%.5f, N=%.5f", yesScore, noScore));
     }
@@ -15,8 +15,12 @@
  */
 package com.github.tjake.jlama.safetensors;
 
+import com.github.tjake.jlama.math.ActivationFunction;
+import com.github.tjake.jlama.model.DistributedContext;
+import com.github.tjake.jlama.model.llama.LlamaConfig;
 import com.github.tjake.jlama.tensor.AbstractTensor;
 import com.github.tjake.jlama.tensor.FloatBufferTensor;
+import com.github.tjake.jlama.tensor.KQuantByteBufferTensor;
 import com.github.tjake.jlama.tensor.TensorShape;
 import com.google.common.io.BaseEncoding;
 import java.io.IOException;
@@ -26,8 +30,15 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.Assert;
 import org.junit.Assume;
 import org.junit.Test;
@@ -98,6 +109,224 @@ public class TestParser {
         } while (tt.iterate(tcursor));
     }
 
+    @Test
+    public void testSingleFileMapping() throws IOException {
+        byte[] header = ("{\"a\":{\"dtype\":\"F32\",\"shape\":[2,2],\"data_offsets\":[0,16]},"
+            + "\"b\":{\"dtype\":\"F32\",\"shape\":[1,2],\"data_offsets\":[16,24]}}").getBytes();
+
+        ByteBuffer bb = ByteBuffer.allocate(8 + header.length + 24).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putLong(header.length);
+        bb.put(header);
+        for (int i = 1; i <= 6; i++)
+            bb.putFloat(i);
+
+        Path dir = Files.createTempDirectory("safetensors");
+        dir.toFile().deleteOnExit();
+        Path file = dir.resolve(SafeTensorIndex.SINGLE_MODEL_NAME);
+        file.toFile().deleteOnExit();
+        Files.write(file, bb.array());
+
+        SafeTensorIndex index = SafeTensorIndex.loadSingleFile(dir, SafeTensorIndex.SINGLE_MODEL_NAME);
+        AbstractTensor a = index.load("a");
+        AbstractTensor b = index.load("b");
+
+        Assert.assertEquals(1.0, a.get(0, 0), 0.0001);
+        Assert.assertEquals(4.0, a.get(1, 1), 0.0001);
+        Assert.assertEquals(5.0, b.get(0, 0), 0.0001);
+        Assert.assertEquals(6.0, b.get(0, 1), 0.0001);
+
+        // Both are zero-copy slices of the one file mapping
+        Assert.assertTrue(a.mappedSegment().isPresent());
+        Assert.assertTrue(b.mappedSegment().isPresent());
+
+        AtomicLong warmed = new AtomicLong();
+        index.warmup(Optional.of((name, loaded, total) -> warmed.accumulateAndGet(loaded, Math::max)));
+        Assert.assertEquals(Files.size(file), warmed.get());
+        Assert.assertEquals(6.0, b.get(0, 1), 0.0001);
+    }
+
+    @Test
+    public void testQuantizedWeightCache() throws Exception {
+        int rows = 4, columns = 64;
+        byte[] header = ("{\"w\":{\"dtype\":\"F32\",\"shape\":[" + rows + "," + columns + "],"
+            + "\"data_offsets\":[0," + rows * columns * 4 + "]}}").getBytes();
+
+        ByteBuffer bb = ByteBuffer.allocate(8 + header.length + rows * columns * 4).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putLong(header.length);
+        bb.put(header);
+        for (int i = 0; i < rows * columns; i++)
+            bb.putFloat((i % 17) - 8.5f);
+
+        Path dir = Files.createTempDirectory("safetensors");
+        Files.write(dir.resolve(SafeTensorIndex.SINGLE_MODEL_NAME), bb.array());
+        Path cacheRoot = dir.resolve("cache");
+
+        SafeTensorIndex index = SafeTensorIndex.loadSingleFile(dir, SafeTensorIndex.SINGLE_MODEL_NAME);
+        AbstractTensor expected = index.load("w").quantize(DType.I8);
+
+        // The first load quantizes and writes the cache, the second maps it back
+        for (int i = 0; i < 2; i++) {
+            AbstractTensor t = new QuantizedWeightCache(index, cacheRoot).load("w", DType.I8);
+            Assert.assertEquals(DType.I8, t.dType());
+            Assert.assertTrue(t.mappedSegment().isPresent());
+            for (int r = 0; r < rows; r++)
+                for (int c = 0; c < columns; c++)
+                    Assert.assertEquals(expected.get(r, c), t.get(r, c), 0f);
+        }
+
+        // Weights that don't change when quantized aren't cached
+        Assert.assertSame(DType.F32, new QuantizedWeightCache(index, cacheRoot).load("w", DType.F32).dType());
+        try (var files = Files.walk(cacheRoot)) {
+            Assert.assertEquals(1, files.filter(p -> p.toString().endsWith(".safetensors")).count());
+        }
+    }
+
+    @Test
+    public void testShardedQuantization() throws Exception {
+        int rows = 4, columns = 64, tensorBytes = rows * columns * 4;
+        String[] names = { "a", "b", "c", "norm" };
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < names.length; i++) {
+            int r = names[i].equals("norm") ? 1 : rows;
+            json.append(i == 0 ? "" : ",").append("\"").append(names[i]).append("\":{\"dtype\":\"F32\",\"shape\":[");
+            json.append(r).append(",").append(columns).append("],\"data_offsets\":[");
+            json.append(i * tensorBytes).append(",").append(i * tensorBytes + r * columns * 4).append("]}");
+        }
+        byte[] header = json.append("}").toString().getBytes();
+
+        ByteBuffer bb = ByteBuffer.allocate(8 + header.length + names.length * tensorBytes).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putLong(header.length);
+        bb.put(header);
+        for (int i = 0; i < names.length * rows * columns; i++)
+            bb.putFloat((i % 23) - 11.5f);
+
+        Path dir = Files.createTempDirectory("safetensors");
+        Files.write(dir.resolve(SafeTensorIndex.SINGLE_MODEL_NAME), bb.array());
+        Path out = dir.resolve("quantized");
+        Files.createDirectories(out);
+
+        SafeTensorIndex index = SafeTensorIndex.loadSingleFile(dir, SafeTensorIndex.SINGLE_MODEL_NAME);
+        // Each quantized tensor is 256 bytes plus 32 bytes of block scales, so this gives one tensor per shard
+        new ModelQuantizer(index, DType.I8, new String[] { "c" }, new String[] { "b" }, 300, 1).write(out);
+
+        // The in-flight bound counts the loaded source as well as the quantized copy
+        List<List<ModelQuantizer.Planned>> plan = new ModelQuantizer(index, DType.I8, new String[] { "c" }, new String[] { "b" }, 300, 1)
+            .plan();
+        Assert.assertEquals(tensorBytes + 256 + 32, plan.get(0).get(0).inflightBytes());
+        Assert.assertEquals(tensorBytes, plan.get(1).get(0).inflightBytes());
+
+        Path first = out.resolve("model-00001-of-00003.safetensors");
+        Path last = out.resolve("model-00003-of-00003.safetensors");
+        Assert.assertTrue(Files.exists(first));
+        Assert.assertTrue(Files.exists(last));
+
+        WeightLoader q = SafeTensorSupport.loadWeights(out.toFile());
+        Assert.assertFalse(q.tensorInfoMap().containsKey("b"));
+        Assert.assertEquals(DType.I8, q.load("a").dType());
+        Assert.assertEquals(DType.F32, q.load("c").dType());
+        Assert.assertEquals(DType.F32, q.load("norm").dType());
+
+        AbstractTensor expected = index.load("a").quantize(DType.I8);
+        for (int r = 0; r < rows; r++)
+            for (int c = 0; c < columns; c++)
+                Assert.assertEquals(expected.get(r, c), q.load("a").get(r, c), 0f);
+        Assert.assertEquals(index.load("norm").get(0, 5), q.load("norm").get(0, 5), 0f);
+
+        // An interrupted run only redoes the shards that were not finished
+        Files.setLastModifiedTime(first, FileTime.fromMillis(0));
+        Files.delete(last);
+        Files.delete(out.resolve(SafeTensorIndex.MODEL_INDEX_JSON));
+        new ModelQuantizer(index, DType.I8, new String[] { "c" }, new String[] { "b" }, 300, 1).write(out);
+
+        Assert.assertEquals(0, Files.getLastModifiedTime(first).toMillis());
+        Assert.assertTrue(Files.exists(last));
+        Assert.assertEquals(index.load("norm").get(0, 1), SafeTensorSupport.loadWeights(out.toFile()).load("norm").get(0, 1), 0f);
+    }
+
+    @Test
+    public void testWarmupLayerRange() throws Exception {
+        int rows = 4, columns = 64, tensorBytes = rows * columns * 4;
+        byte[] header = ("{\"model.layers.0.w\":{\"dtype\":\"F32\",\"shape\":[" + rows + "," + columns + "],"
+            + "\"data_offsets\":[0," + tensorBytes + "]},"
+            + "\"model.layers.1.w\":{\"dtype\":\"F32\",\"shape\":[" + rows + "," + columns + "],"
+            + "\"data_offsets\":[" + tensorBytes + "," + 2 * tensorBytes + "]}}").getBytes();
+
+        ByteBuffer bb = ByteBuffer.allocate(8 + header.length + 2 * tensorBytes).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putLong(header.length).put(header);
+        for (int i = 0; i < 2 * rows * columns; i++)
+            bb.putFloat(i);
+
+        Path dir = Files.createTempDirectory("safetensors");
+        Files.write(dir.resolve(SafeTensorIndex.SINGLE_MODEL_NAME), bb.array());
+        Path out = dir.resolve("sharded");
+        Files.createDirectories(out);
+
+        // Unquantized, one layer per shard
+        new ModelQuantizer(SafeTensorIndex.loadSingleFile(dir, SafeTensorIndex.SINGLE_MODEL_NAME), DType.F32, null, null, tensorBytes, 1)
+            .write(out);
+        SafeTensorIndex index = SafeTensorIndex.loadWithWeights(out);
+        Assert.assertEquals(2, index.files().size());
+
+        Config c = new LlamaConfig(256, columns, 128, 4, 4, 2, 1e-5f, 128, 1, 2, ActivationFunction.Type.SILU, null, null);
+        DistributedContext dctx = DistributedContext.builder(c).setLayerShard(1).setNumLayerShards(2).build();
+        Assert.assertFalse(SafeTensorIndex.inLayerRange("model.layers.0.w", dctx));
+        Assert.assertTrue(SafeTensorIndex.inLayerRange("model.layers.1.w", dctx));
+        Assert.assertTrue(SafeTensorIndex.inLayerRange("model.norm.weight", dctx));
+
+        // Only the second layer's shard is warmed, and the reported total never goes backwards
+        List<Long> reported = new CopyOnWriteArrayList<>();
+        index.warmup(Optional.of((name, loaded, total) -> reported.add(loaded)), Optional.of(dctx));
+        Assert.assertFalse(reported.isEmpty());
+        for (int i = 1; i < reported.size(); i++)
+            Assert.assertTrue(reported.get(i) > reported.get(i - 1));
+        Assert.assertEquals(Files.size(out.resolve("model-00002-of-00002.safetensors")), (long) reported.get(reported.size() - 1));
+    }
+
+    @Test
+    public void testKQuantFormats() {
+        int rows = 4, columns = 512;
+        FloatBufferTensor w = new FloatBufferTensor(rows, columns);
+        Random r = new Random(42);
+        for (int i = 0; i < rows; i++)
+            for (int j = 0; j < columns; j++)
+                w.set((float) r.nextGaussian(), i, j);
+
+        // More bits should mean less error, and the sub-block mins make Q4_K better than Q4
+        double q4 = rmse(w, w.quantize(DType.Q4));
+        double q4k = rmse(w, w.quantize(DType.Q4_K));
+        double q6k = rmse(w, w.quantize(DType.Q6_K));
+        logger.info("RMSE Q4 {} Q4_K {} Q6_K {}", q4, q4k, q6k);
+        Assert.assertTrue(q6k < q4k && q4k < q4);
+
+        for (DType type : new DType[] { DType.Q4_K, DType.Q6_K }) {
+            AbstractTensor q = w.quantize(type);
+            long bytes = q.getMemorySegment().byteSize();
+            Assert.assertEquals(KQuantByteBufferTensor.storageBytes(type, rows * columns), bytes);
+
+            // Round trip through safetensors and a row slice
+            byte[] header = ("{\"w\":{\"dtype\":\"" + type + "\",\"shape\":[" + rows + "," + columns + "],"
+                + "\"data_offsets\":[0," + bytes + "]}}").getBytes();
+            ByteBuffer bb = ByteBuffer.allocate(Math.toIntExact(8 + header.length + bytes)).order(ByteOrder.LITTLE_ENDIAN);
+            bb.putLong(header.length).put(header).put(q.getMemorySegment().asByteBuffer()).flip();
+
+            AbstractTensor loaded = SafeTensorSupport.readWeights(bb).load("w");
+            Assert.assertEquals(type, loaded.dType());
+            Assert.assertEquals(q.get(2, 300), loaded.get(2, 300), 0f);
+            Assert.assertEquals(q.get(3, 7), loaded.slice(3).get(0, 7), 0f);
+        }
+    }
+
+    private static double rmse(AbstractTensor expected, AbstractTensor actual) {
+        double sum = 0;
+        for (int i = 0; i < expected.shape().first(); i++) {
+            for (int j = 0; j < expected.shape().last(); j++) {
+                double d = expected.get(i, j) - actual.get(i, j);
+                sum += d * d;
+            }
+        }
+        return Math.sqrt(sum / expected.size());
+    }
+
     @Test
     public void testOffsets() {
         FloatBufferTensor b = new FloatBufferTensor(FloatBuffer.allocate(10), TensorShape.of(50000, 768), false);
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2024 T Jake Luciani
+ *
+ * The Jlama Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.tjake.jlama.tensor;
+
+import com.github.tjake.jlama.model.AbstractModel;
+import com.github.tjake.jlama.model.Mocks;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestKvBufferCache {
+
+    private static final int LAYERS = 2;
+
+    private static void fill(KvBufferCache.KvBuffer kvBuffer, int[] tokens, int from, int to) {
+        for (int p = from; p < to; p++) {
+            for (int l = 0; l < LAYERS; l++) {
+                AbstractTensor key = kvBuffer.getKeyTensorForPosition(l, p);
+                AbstractTensor val = kvBuffer.getValTensorForPosition(l, p);
+                for (int j = 0; j < key.shape().last(); j++) {
+                    key.set(tokens[p] * 10 + l, 0, j);
+                    val.set(-(tokens[p] * 10 + l), 0, j);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPrefixSharing() {
+        // One position per page
+        testPrefixSharing(Mocks.makeModel(4096, 32, 64, 4, LAYERS));
+
+        // Many positions per page, so partial pages get shared
+        testPrefixSharing(Mocks.makeModel(4096, 1024, 64, 4, LAYERS));
+    }
+
+    private void testPrefixSharing(AbstractModel model) {
+        try (KvBufferCache cache = new KvBufferCache(model, 256 << 20, 64 << 20)) {
+            int[] prompt = new int[] { 1, 5, 6, 7, 8, 9 };
+            KvBufferCache.KvBuffer a = cache.getKvBuffer(UUID.randomUUID());
+            fill(a, prompt, 0, prompt.length);
+            a.registerPrefix(prompt, prompt.length);
+
+            // Shares the first four tokens
+            int[] other = new int[] { 1, 5, 6, 7, 2, 3 };
+            KvBufferCache.KvBuffer b = cache.getKvBuffer(UUID.randomUUID());
+            Assert.assertEquals(4, b.attachPrefix(other));
+
+            for (int p = 0; p < 4; p++)
+                Assert.assertEquals(other[p] * 10 + 1, b.getKeyTensorForPosition(1, p).get(0, 0), 0f);
+
+            // Writes to b must not leak into a
+            fill(b, other, 4, other.length);
+            fill(b, new int[] { 4, 4, 4, 4 }, 0, 4);
+            for (int p = 0; p < prompt.length; p++) {
+                Assert.assertEquals(prompt[p] * 10, a.getKeyTensorForPosition(0, p).get(0, 0), 0f);
+                Assert.assertEquals(-(prompt[p] * 10 + 1), a.getValTensorForPosition(1, p).get(0, 0), 0f);
+            }
+
+            // Closing the owner keeps the cached pages alive
+            a.close();
+            KvBufferCache.KvBuffer c = cache.getKvBuffer(UUID.randomUUID());
+            Assert.assertEquals(prompt.length, c.attachPrefix(prompt));
+            Assert.assertEquals(prompt[5] * 10 + 1, c.getKeyTensorForPosition(1, 5).get(0, 0), 0f);
+
+            Assert.assertEquals(0, cache.getKvBuffer(UUID.randomUUID()).attachPrefix(new int[] { 2, 5, 6 }));
+        }
+    }
+
+    @Test
+    public void testEvictIdleSessions() {
+        AbstractModel model = Mocks.makeModel(4096, 1024, 64, 4, LAYERS);
+        int[] tokens = new int[512 + 1];
+
+        // Room for three 8MB pages
+        try (KvBufferCache cache = new KvBufferCache(model, 28 << 20, 0)) {
+            KvBufferCache.KvBuffer a = cache.getKvBuffer(UUID.randomUUID());
+            fill(a, tokens, 0, 3);
+            a.recordTokens(0, Arrays.copyOf(tokens, 3));
+            a.setCurrentContextPosition(3);
+            a.close();
+            Assert.assertEquals(1, cache.pagesInUse());
+            Assert.assertEquals(2, cache.pagesFree());
+
+            KvBufferCache.KvBuffer b = cache.getKvBuffer(UUID.randomUUID());
+            fill(b, tokens, 0, tokens.length); // Spans two pages
+            Assert.assertEquals(0, cache.evictions());
+
+            // In use sessions are never evicted
+            KvBufferCache.KvBuffer c = cache.getKvBuffer(UUID.randomUUID());
+            fill(c, tokens, 0, 3);
+            Assert.assertEquals(1, cache.evictions());
+            Assert.assertEquals(3, a.getCurrentContextPosition());
+            Assert.assertEquals(3, cache.pagesInUse());
+
+            // Sessions whose tokens weren't recorded can't be recomputed so are never evicted
+            b.close();
+            c.close();
+            KvBufferCache.KvBuffer d = cache.getKvBuffer(UUID.randomUUID());
+            fill(d, tokens, 0, 3);
+            Assert.assertEquals(1, cache.evictions());
+            Assert.assertEquals(4, cache.pagesInUse());
+            d.close();
+        }
+    }
+
+    @Test
+    public void testSlidingWindowRing() {
+        int window = 8;
+        AbstractModel model = Mocks.makeModel(4096, 32, 64, 4, LAYERS, window);
+        try (KvBufferCache cache = new KvBufferCache(model, 256 << 20, 0)) {
+            KvBufferCache.KvBuffer kvBuffer = cache.getKvBuffer(UUID.randomUUID());
+            int[] tokens = new int[100];
+            for (int i = 0; i < tokens.length; i++)
+                tokens[i] = i;
+
+            fill(kvBuffer, tokens, 0, 20);
+            int pages = cache.pagesInUse();
+
+            // The ring holds exactly the last window positions
+            AbstractTensor[] keys = kvBuffer.getKeyTensorsUptoPosition(1, 19);
+            Set<Float> seen = new HashSet<>();
+            int rows = 0;
+            for (AbstractTensor page : keys) {
+                for (int r = 0; r < page.shape().first(); r++, rows++)
+                    seen.add(page.get(r, 0));
+            }
+            Assert.assertEquals(window, rows);
+            for (int p = 12; p < 20; p++)
+                Assert.assertTrue(seen.contains((float) (p * 10 + 1)));
+
+            // Memory stays bounded as the context grows
+            fill(kvBuffer, tokens, 20, tokens.length);
+            Assert.assertEquals(pages, cache.pagesInUse());
+        }
+    }
+}
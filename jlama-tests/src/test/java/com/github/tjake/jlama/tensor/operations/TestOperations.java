@@ -24,6 +24,8 @@ import com.github.tjake.jlama.tensor.BFloat16BufferTensor;
 import com.github.tjake.jlama.tensor.Float16BufferTensor;
 import com.github.tjake.jlama.tensor.FloatBufferTensor;
 import com.github.tjake.jlama.tensor.Q4ByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q4KByteBufferTensor;
+import com.github.tjake.jlama.tensor.Q6KByteBufferTensor;
 import com.github.tjake.jlama.tensor.Q8ByteBufferTensor;
 import com.github.tjake.jlama.util.MachineSpec;
 import com.github.tjake.jlama.util.RuntimeSupport;
@@ -89,6 +91,8 @@ public class TestOperations {
         bTypes.put(DType.BF16, BFloat16BufferTensor::new);
         bTypes.put(DType.I8, Q8ByteBufferTensor::new);
         bTypes.put(DType.Q4, Q4ByteBufferTensor::new);
+        bTypes.put(DType.Q4_K, Q4KByteBufferTensor::new);
+        bTypes.put(DType.Q6_K, Q6KByteBufferTensor::new);
     }
 
     static AbstractTensor makeTensor(int size) {
@@ -573,6 +577,129 @@ public class TestOperations {
         Assert.assertEquals(t.name(), controlOps.sum(c), controlOps.sum(c1), controlOps.sum(c) * 0.01);
     }
 
+    @Test
+    public void testQ8KvAttention() {
+        // Query against a Q8 kv page, the way attention reads an I8 kv cache
+        FloatBufferTensor query = makeWeights(1, SIZE);
+        FloatBufferTensor keys = makeWeights(ROWS, SIZE);
+        Q8ByteBufferTensor qkeys = new Q8ByteBufferTensor(keys);
+
+        FloatBufferTensor scores = new FloatBufferTensor(1, ROWS);
+        FloatBufferTensor value = new FloatBufferTensor(1, SIZE);
+        controlOps.batchDotProduct(scores, query, keys, 64, 64, 128, 0, 0, ROWS);
+        controlOps.saxpy(scores, keys, value, 64, 64, 128, 0, 0, ROWS);
+
+        // Includes the native providers when they are available, which hand this pair to their delegate
+        List<TensorOperations> ops = new ArrayList<>(opTypes);
+        ops.add(globalOps);
+        for (TensorOperations t : ops) {
+            FloatBufferTensor scores1 = new FloatBufferTensor(1, ROWS);
+            FloatBufferTensor value1 = new FloatBufferTensor(1, SIZE);
+
+            t.batchDotProduct(scores1, query, qkeys, 64, 64, 128, 0, 0, ROWS);
+            t.saxpy(scores, qkeys, value1, 64, 64, 128, 0, 0, ROWS);
+
+            Assert.assertEquals(t.name(), controlOps.sum(scores), controlOps.sum(scores1), controlOps.sum(scores) * 0.01);
+            Assert.assertEquals(t.name(), controlOps.sum(value), controlOps.sum(value1), controlOps.sum(value) * 0.01);
+        }
+    }
+
+    @Test
+    public void testRope() {
+        int headSize = 128;
+        int position = 37;
+        for (boolean interleaved : new boolean[] { false, true }) {
+            AbstractTensor table = VectorMath.precomputeRopeTable(headSize, 64, 10000.0, 1.0, interleaved);
+            FloatBufferTensor x = makeWeights(1, SIZE);
+
+            // Rotate two heads starting at the second one
+            FloatBufferTensor expected = new FloatBufferTensor(x);
+            for (int h = headSize; h < headSize * 3; h += headSize) {
+                for (int j = 0; j < headSize / 2; j++) {
+                    int i0 = interleaved ? h + 2 * j : h + j;
+                    int i1 = interleaved ? i0 + 1 : i0 + headSize / 2;
+                    float angle = (float) position * (float) (1.0 / Math.pow(10000.0, 2.0 * j / headSize));
+                    float cos = (float) Math.cos(angle), sin = (float) Math.sin(angle);
+                    expected.set(x.get(0, i0) * cos - x.get(0, i1) * sin, 0, i0);
+                    expected.set(x.get(0, i0) * sin + x.get(0, i1) * cos, 0, i1);
+                }
+            }
+
+            for (TensorOperations t : opTypes) {
+                FloatBufferTensor x1 = new FloatBufferTensor(x);
+                t.rope(x1, table, position, headSize, headSize * 2, headSize, interleaved);
+
+                for (int i = 0; i < SIZE; i++)
+                    Assert.assertEquals(t.name() + " " + interleaved, expected.get(0, i), x1.get(0, i), 1e-5f);
+            }
+        }
+    }
+
+    @Test
+    public void testMaxExpSum() {
+        FloatBufferTensor x = makeWeights(1, SIZE - 3);
+        int length = SIZE - 3;
+
+        FloatBufferTensor expected = new FloatBufferTensor(x);
+        VectorMath.softMax(expected, 0, length);
+
+        for (TensorOperations t : opTypes) {
+            FloatBufferTensor x1 = new FloatBufferTensor(x);
+            float max = t.max(x1, 0, length);
+            Assert.assertEquals(t.name(), controlOps.max(x, 0, length), max, 0.0f);
+
+            float sum = t.expSum(x1, max, 1.0f, 0, length);
+            for (int i = 0; i < length; i++)
+                Assert.assertEquals(t.name(), expected.get(0, i), x1.get(0, i) / sum, 1e-5f);
+        }
+    }
+
+    @Test
+    public void testFusedAttention() {
+        // Two kv pages with the last one partially filled
+        int headSize = 128;
+        int length = ROWS + ROWS / 2 - 3;
+        float scale = (float) (1.0 / Math.sqrt(headSize));
+        FloatBufferTensor query = makeWeights(1, SIZE);
+        FloatBufferTensor[] keys = new FloatBufferTensor[] { makeWeights(ROWS, SIZE), makeWeights(ROWS, SIZE) };
+        FloatBufferTensor[] vals = new FloatBufferTensor[] { makeWeights(ROWS, SIZE), makeWeights(ROWS, SIZE) };
+
+        // Reference: materialize every score, softmax then sum the values
+        FloatBufferTensor scores = new FloatBufferTensor(1, ROWS * 2);
+        FloatBufferTensor value = new FloatBufferTensor(1, SIZE);
+        controlOps.batchDotProduct(scores, query, keys[0], 256, 128, headSize, 0, 0, ROWS);
+        controlOps.batchDotProduct(scores, query, keys[1], 256, 128, headSize, ROWS, 0, length - ROWS);
+        controlOps.scale(scale, scores, 0, length);
+        VectorMath.softMax(scores, 0, length);
+        for (int i = 0; i < length; i++)
+            controlOps.saxpy(scores.get(0, i), vals[i / ROWS].slice(i % ROWS), value, 128, 256, headSize);
+
+        FloatBufferTensor value0 = new FloatBufferTensor(1, SIZE);
+        controlOps.attention(query, keys, vals, value0, 256, 128, headSize, length, scale, 0f);
+        for (int i = 256; i < 256 + headSize; i++)
+            Assert.assertEquals(value.get(0, i), value0.get(0, i), 1e-4f);
+
+        Function<FloatBufferTensor, AbstractTensor>[] converters = new Function[] {
+            (Function<FloatBufferTensor, AbstractTensor>) f -> f,
+            (Function<FloatBufferTensor, AbstractTensor>) BFloat16BufferTensor::new,
+            (Function<FloatBufferTensor, AbstractTensor>) Q8ByteBufferTensor::new };
+
+        for (MachineSpec.Type type : List.of(MachineSpec.Type.AVX_512, MachineSpec.Type.AVX_256, MachineSpec.Type.ARM_128)) {
+            TensorOperations t = new PanamaTensorOperations(type);
+            for (Function<FloatBufferTensor, AbstractTensor> converter : converters) {
+                AbstractTensor[] k = new AbstractTensor[] { converter.apply(keys[0]), converter.apply(keys[1]) };
+                AbstractTensor[] v = new AbstractTensor[] { converter.apply(vals[0]), converter.apply(vals[1]) };
+
+                FloatBufferTensor value1 = makeWeights(1, SIZE);
+                t.attention(query, k, v, value1, 256, 128, headSize, length, scale, 0f);
+
+                String name = t.name() + " " + k[0].dType();
+                for (int i = 256; i < 256 + headSize; i++)
+                    Assert.assertEquals(name, value.get(0, i), value1.get(0, i), 0.02f);
+            }
+        }
+    }
+
     @Test
     public void testNativeBatchDotProduct() {
         // M == BATCH, N == ROWS, K == SIZE